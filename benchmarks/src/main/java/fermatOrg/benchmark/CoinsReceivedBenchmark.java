@@ -0,0 +1,96 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.network.IoPBlockchain;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.blockchainj.core.Address;
+import org.blockchainj.core.Context;
+import org.blockchainj.core.Transaction;
+import org.blockchainj.wallet.Wallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from a transaction paying to a watched address reaching the wallet until its incoming transaction event is stored and
+ * notified to listeners. This is the coins received path of {@link IoPBlockchain}, without the network.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 100)
+@Measurement(iterations = 10, batchSize = 100)
+@Fork(1)
+public class CoinsReceivedBenchmark {
+    @Param({"1000", "100000"})
+    public int addressCount;
+
+    private File directory;
+    private Wallet wallet;
+    private List<Address> addresses;
+    private Random random;
+    private IoPBlockchain blockchain;
+    private List<Transaction> transactions;
+    private final Semaphore notified = new Semaphore(0);
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createWallet() throws IOException {
+        directory = SyntheticWallets.createTempDirectory("coinsReceivedBenchmark");
+        random = new Random(addressCount);
+        addresses = SyntheticWallets.createAddresses(addressCount, random);
+        wallet = SyntheticWallets.writeWallet(new File(directory, "coinsReceivedWallet"), addresses, 0, random);
+    }
+
+    @Setup(Level.Iteration)
+    public void connectWallet() {
+        Context.propagate(wallet.getContext());
+
+        // every iteration starts with no stored events.
+        File eventsDB = new File(directory, "events");
+        eventsDB.delete();
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsDB);
+        eventNotificationManager.addIncomingTransactionListener(new IncomingTransactionListener() {
+            private final Set<String> received = new HashSet<>();
+
+            @Override
+            public synchronized void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+                // the agent of the manager notifies pending events again, we only count the first notification.
+                if (received.add(incomingTransactionEvent.getTransactionHash()))
+                    notified.release();
+            }
+        });
+        blockchain = new IoPBlockchain(Collections.singletonList(wallet), eventNotificationManager, new File(directory, "blocks"));
+
+        transactions = new ArrayList<>();
+        for (int i = 0; i < 200; i++)
+            transactions.add(SyntheticWallets.createTransaction(addresses.get(random.nextInt(addresses.size())), random));
+        next = 0;
+    }
+
+    @Benchmark
+    public void onCoinsReceived() throws InterruptedException {
+        wallet.receivePending(transactions.get(next++), null);
+        notified.acquire();
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnectWallet() {
+        blockchain.removeWallets(Collections.singletonList(wallet));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        SyntheticWallets.deleteDirectory(directory);
+    }
+}
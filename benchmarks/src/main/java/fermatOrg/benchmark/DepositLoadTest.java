@@ -0,0 +1,62 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.network.IoPBlockchain;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.Address;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load test of deposit detection against the in process {@link RegTestNetwork}, with no external network.
+ * A regtest wallet is created with the given amount of addresses and connected to the network, which generates blocks with deposits
+ * to those addresses until the given amount of blocks. Then the throughput and latency from block arrival to listener delivery are printed.
+ * <p>
+ *     Usage: java -cp target/benchmarks.jar fermatOrg.benchmark.DepositLoadTest [addresses] [blocks] [depositsPerBlock] [blockIntervalMillis] [shards]
+ * </p>
+ */
+public class DepositLoadTest {
+    public static void main(String[] args) throws Exception {
+        int addressCount = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int blockCount = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        int depositsPerBlock = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        long blockInterval = args.length > 3 ? Long.parseLong(args[3]) : 100;
+        int shardCount = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        File directory = SyntheticWallets.createTempDirectory("depositLoadTest");
+        RegTestNetwork network = null;
+        IoPBlockchain blockchain = null;
+        try {
+            // the wallet watching the addresses deposits are sent to.
+            List<Address> addresses = SyntheticWallets.createAddresses(WatchOnlyWallet.getNetworkParameters(NetworkType.REGTEST), addressCount, new Random(addressCount));
+            File inputFile = new File(directory, "addresses.txt");
+            SyntheticWallets.writeInputFile(inputFile, addresses);
+            WatchOnlyWallet wallet = new WatchOnlyWallet(new File(directory, "loadTestWallet"), NetworkType.REGTEST, shardCount, directory);
+            wallet.importAddresses(inputFile);
+
+            network = new RegTestNetwork(addresses, depositsPerBlock, 0, blockCount);
+            wallet.addIncomingTransactionListener(network);
+            blockchain = new IoPBlockchain(NetworkType.REGTEST, directory);
+            blockchain.addPeer(network.getAddress());
+            wallet.connect(blockchain);
+
+            network.startGenerating(blockInterval, TimeUnit.MILLISECONDS);
+            boolean delivered = network.awaitDelivery(blockCount * blockInterval + 60000, TimeUnit.MILLISECONDS);
+            if (!delivered)
+                System.out.println("Timed out before all deposits were delivered.");
+
+            System.out.println("Addresses:           " + addressCount + " in " + shardCount + " shards");
+            network.printReport(System.out);
+        } finally {
+            if (blockchain != null)
+                blockchain.disconnect();
+            if (network != null)
+                network.close();
+            SyntheticWallets.deleteDirectory(directory);
+        }
+        System.exit(0);
+    }
+}
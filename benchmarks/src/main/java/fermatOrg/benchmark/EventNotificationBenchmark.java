@@ -0,0 +1,96 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import org.blockchainj.core.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the event manager with a given amount of stored events. Adding and confirming events change the stored
+ * events, so they are measured in batches over a new events file on each iteration.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 100)
+@Measurement(iterations = 10, batchSize = 100)
+@Fork(1)
+public class EventNotificationBenchmark {
+    @Param({"100", "1000", "10000"})
+    public int eventCount;
+
+    private File directory;
+    private EventNotificationManager eventNotificationManager;
+    private List<IncomingTransactionEvent> pendingEvents;
+    private Random random;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void createDirectory() throws IOException {
+        directory = SyntheticWallets.createTempDirectory("eventBenchmark");
+        random = new Random(eventCount);
+    }
+
+    @Setup(Level.Iteration)
+    public void createEvents() throws IOException {
+        // the events are written the way the manager stores them, to avoid saving the file once per event.
+        List<IncomingTransactionEvent> events = new ArrayList<>(eventCount);
+        for (int i = 0; i < eventCount; i++)
+            events.add(createEvent());
+
+        File eventsDB = new File(directory, "events");
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(eventsDB));
+        try {
+            oos.writeObject(events);
+        } finally {
+            oos.close();
+        }
+
+        eventNotificationManager = new EventNotificationManager(eventsDB);
+        pendingEvents = eventNotificationManager.getPendingNotificationEvents();
+        next = 0;
+    }
+
+    private IncomingTransactionEvent createEvent(){
+        byte[] hash = new byte[32];
+        random.nextBytes(hash);
+        return new IncomingTransactionEvent(this,
+                SyntheticWallets.createAddresses(1, random).get(0).toBase58(),
+                SyntheticWallets.NETWORK_TYPE,
+                random.nextInt(100000000),
+                Utils.HEX.encode(hash));
+    }
+
+    @Benchmark
+    public void addNewEvent() throws IOException {
+        eventNotificationManager.addNewEvent(createEvent());
+    }
+
+    @Benchmark
+    public void confirmEventNotification() {
+        eventNotificationManager.confirmEventNotification(pendingEvents.get(next++ % pendingEvents.size()));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 5, time = 1, batchSize = 1)
+    @Measurement(iterations = 5, time = 1, batchSize = 1)
+    public List<IncomingTransactionEvent> getPendingNotificationEvents() {
+        return eventNotificationManager.getPendingNotificationEvents();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        SyntheticWallets.deleteDirectory(directory);
+    }
+}
@@ -0,0 +1,62 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to import an input file into a new wallet, including the save of the watched addresses.
+ * Each import is a single shot because it changes the wallet, so a new wallet is created before each one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportAddressesBenchmark {
+    @Param({"10000", "100000", "1000000"})
+    public int addressCount;
+
+    @Param({"1", "16"})
+    public int shardCount;
+
+    private File directory;
+    private File inputFile;
+    private File walletFile;
+    private WatchOnlyWallet wallet;
+    private int invocation;
+
+    @Setup(Level.Trial)
+    public void createInputFile() throws IOException {
+        directory = SyntheticWallets.createTempDirectory("importBenchmark");
+        inputFile = new File(directory, "addresses.txt");
+        SyntheticWallets.writeInputFile(inputFile, SyntheticWallets.createAddresses(addressCount, new Random(addressCount)));
+    }
+
+    @Setup(Level.Invocation)
+    public void createWallet() throws IoWalletException {
+        // the autosave of the previous wallet may still be running, so each invocation uses its own file.
+        if (walletFile != null)
+            SyntheticWallets.delete(walletFile);
+        walletFile = new File(directory, "importWallet" + invocation++);
+        wallet = new WatchOnlyWallet(walletFile, SyntheticWallets.NETWORK_TYPE, shardCount, directory);
+    }
+
+    @Benchmark
+    public WatchOnlyWallet importAddresses() throws IoWalletException, AddressFormatException {
+        wallet.importAddresses(inputFile);
+        return wallet;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        SyntheticWallets.deleteDirectory(directory);
+    }
+}
@@ -0,0 +1,102 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.network.WatchedAddressIndex;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.*;
+import org.blockchainj.wallet.Wallet;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Matching the outputs of received transactions against the watched addresses, the way it was done through the wallet
+ * and Base58 addresses and with the primitive {@link WatchedAddressIndex}. Run it with <b>-prof gc</b> to compare the allocation rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OutputMatchingBenchmark {
+    @Param({"10000", "100000"})
+    public int addressCount;
+
+    // one of every watchedRatio outputs pays to a watched address.
+    @Param({"1", "10"})
+    public int watchedRatio;
+
+    private static final int OUTPUTS = 1000;
+
+    private Wallet wallet;
+    private WatchedAddressIndex index;
+    private List<TransactionOutput> outputs;
+    private NetworkParameters params;
+
+    @Setup(Level.Trial)
+    public void createOutputs() {
+        Random random = new Random(addressCount);
+        params = SyntheticWallets.getParams();
+        List<Address> watched = SyntheticWallets.createAddresses(addressCount, random);
+        List<Address> others = SyntheticWallets.createAddresses(OUTPUTS, random);
+
+        wallet = new Wallet(WatchOnlyWallet.getNetworkContext(SyntheticWallets.NETWORK_TYPE));
+        wallet.addWatchedAddresses(watched, 1475280000);
+        index = new WatchedAddressIndex(wallet.getWatchedScripts());
+
+        outputs = new ArrayList<>(OUTPUTS);
+        for (int i = 0; i < OUTPUTS; i++){
+            Address address = i % watchedRatio == 0 ? watched.get(random.nextInt(watched.size())) : others.get(i);
+            outputs.add(SyntheticWallets.createTransaction(address, random).getOutput(0));
+        }
+    }
+
+    /**
+     * The wallet lookup, the address and the network type for every watched output, as in the former incoming transaction listener.
+     */
+    @Benchmark
+    @OperationsPerInvocation(OUTPUTS)
+    public void walletMatching(Blackhole blackhole) {
+        for (TransactionOutput output : outputs){
+            if (output.isWatched(wallet)){
+                blackhole.consume(output.getAddressFromP2PKHScript(params).toBase58());
+                blackhole.consume(WatchOnlyWallet.getNetworkType(params));
+            }
+        }
+    }
+
+    /**
+     * Matching the hash160 in the script bytes. The address is only created for watched outputs.
+     */
+    @Benchmark
+    @OperationsPerInvocation(OUTPUTS)
+    public void indexMatching(Blackhole blackhole) {
+        for (int i = 0; i < outputs.size(); i++){
+            byte[] script = outputs.get(i).getScriptBytes();
+            int offset = WatchedAddressIndex.getHash160Offset(script);
+            if (offset >= 0 && index.contains(script, offset)){
+                int version = offset == 3 ? params.getAddressHeader() : params.getP2SHHeader();
+                blackhole.consume(new Address(params, version, Arrays.copyOfRange(script, offset, offset + Address.LENGTH)).toBase58());
+            }
+        }
+    }
+
+    /**
+     * The matching alone, which should allocate nothing.
+     */
+    @Benchmark
+    @OperationsPerInvocation(OUTPUTS)
+    public int indexMatchingOnly() {
+        int matches = 0;
+        for (int i = 0; i < outputs.size(); i++){
+            if (index.matches(outputs.get(i).getScriptBytes()))
+                matches++;
+        }
+        return matches;
+    }
+}
@@ -0,0 +1,422 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.blockchainj.core.*;
+import org.blockchainj.utils.ContextPropagatingThreadFactory;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An in process IoP regtest network, made of a single peer listening on a local socket. It generates blocks with transactions that
+ * pay to the watched addresses at a given rate, and serves them to the wallets the way a full node does, honouring their bloom filters.
+ * <p>
+ *     Added as a listener of the wallets, it measures the time from each deposit reaching the wallet in a filtered block until the
+ *     incoming transaction event is delivered, and the amount of deposits delivered per second.
+ * </p>
+ * Difficulty adjustments are not simulated, so at most one difficulty interval of blocks can be generated.
+ */
+public class RegTestNetwork implements IncomingTransactionListener, Closeable {
+    //class variables
+    private long startTime;
+    private long lastDeliveryTime;
+
+    //class constants
+    private final NetworkParameters params;
+    private final Context context;
+    private final List<Address> watchedAddresses;
+    private final int depositsPerBlock;
+    private final Random random = new Random();
+    private final ServerSocket serverSocket;
+    private final List<Block> blocks = new ArrayList<>(); // the chain, by height.
+    private final Map<Sha256Hash, Integer> heights = new ConcurrentHashMap<>();
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+    private final Map<String, Long> pendingDeposits = new ConcurrentHashMap<>(); // sent deposits and the time they reached the wallet.
+    private final Set<String> deliveredDeposits = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()); // events come again on each confirmation stage.
+    private final List<Long> latencies = new ArrayList<>();
+    private final ExecutorService connectionThreads;
+    private final ScheduledExecutorService generator;
+    private final CountDownLatch generated;
+    private int depositCount;
+    private static final int MAX_HEADERS = 2000;
+    private static final int MAX_INVENTORY = 500;
+
+    /**
+     * Creates the network with the genesis block and starts listening for wallets.
+     * @param watchedAddresses the addresses the deposits are sent to, on the regtest network.
+     * @param depositsPerBlock the amount of deposits on each generated block.
+     * @param port the local port to listen to. The regtest port lets {@link fermatOrg.network.IoPBlockchain#connect()} find it
+     *             as a local node, zero picks a free port to add with {@link fermatOrg.network.IoPBlockchain#addPeer(InetSocketAddress)}
+     * @param blockCount the amount of blocks to generate.
+     * @throws IOException if we can't listen on the port.
+     */
+    public RegTestNetwork(List<Address> watchedAddresses, int depositsPerBlock, int port, int blockCount) throws IOException {
+        this.context = WatchOnlyWallet.getNetworkContext(NetworkType.REGTEST);
+        this.params = context.getParams();
+        if (blockCount >= params.getInterval())
+            throw new IllegalArgumentException("At most " + (params.getInterval() - 1) + " blocks can be generated.");
+
+        this.watchedAddresses = new ArrayList<>(watchedAddresses);
+        this.depositsPerBlock = depositsPerBlock;
+        this.generated = new CountDownLatch(blockCount);
+
+        Block genesis = params.getGenesisBlock();
+        blocks.add(genesis);
+        heights.put(genesis.getHash(), 0);
+
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.connectionThreads = Executors.newCachedThreadPool(new ContextPropagatingThreadFactory("RegTest peer"));
+        this.generator = Executors.newSingleThreadScheduledExecutor(new ContextPropagatingThreadFactory("RegTest miner"));
+        this.connectionThreads.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        });
+    }
+
+    /**
+     * @return the address and port in which the network listens for wallets.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) serverSocket.getLocalSocketAddress();
+    }
+
+    /**
+     * Starts generating blocks, one on each interval. Each block is announced to the connected wallets.
+     * @param interval the time between blocks.
+     * @param timeUnit the unit of the interval.
+     */
+    public synchronized void startGenerating(long interval, TimeUnit timeUnit) {
+        startTime = System.nanoTime();
+        generator.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (generated.getCount() == 0)
+                    return;
+
+                Context.propagate(context);
+                announce(generateBlock());
+                generated.countDown();
+            }
+        }, 0, interval, timeUnit);
+    }
+
+    /**
+     * Waits until all the blocks are generated and all the deposits are delivered to the listeners.
+     * @param timeout the maximum time to wait.
+     * @param timeUnit the unit of the timeout.
+     * @return true if all the deposits were delivered.
+     * @throws InterruptedException if the thread is interrupted while waiting.
+     */
+    public boolean awaitDelivery(long timeout, TimeUnit timeUnit) throws InterruptedException {
+        long deadline = System.nanoTime() + timeUnit.toNanos(timeout);
+        if (!generated.await(timeout, timeUnit))
+            return false;
+
+        synchronized (latencies) {
+            while (latencies.size() < getDepositCount()){
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                    return false;
+                TimeUnit.NANOSECONDS.timedWait(latencies, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the amount of generated blocks, without the genesis block.
+     */
+    public synchronized int getHeight() {
+        return blocks.size() - 1;
+    }
+
+    /**
+     * @return the amount of deposits included in generated blocks.
+     */
+    public synchronized int getDepositCount() {
+        return depositCount;
+    }
+
+    /**
+     * @return the amount of deposits delivered to the listeners.
+     */
+    public int getDeliveredCount() {
+        synchronized (latencies) {
+            return latencies.size();
+        }
+    }
+
+    /**
+     * Measures the delivery of an incoming transaction event. Only the first delivery of each deposit is counted.
+     * @param incomingTransactionEvent the event of a deposit.
+     */
+    @Override
+    public void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+        Long sentTime = pendingDeposits.remove(incomingTransactionEvent.getTransactionHash());
+        if (sentTime == null)
+            return;
+        deliveredDeposits.add(incomingTransactionEvent.getTransactionHash());
+
+        long now = System.nanoTime();
+        synchronized (latencies) {
+            latencies.add(now - sentTime);
+            lastDeliveryTime = now;
+            latencies.notifyAll();
+        }
+    }
+
+    /**
+     * Writes the throughput and latency of the delivered deposits.
+     * @param out the stream to write to.
+     */
+    public void printReport(PrintStream out) {
+        List<Long> sorted;
+        long elapsed;
+        synchronized (latencies) {
+            sorted = new ArrayList<>(latencies);
+            elapsed = lastDeliveryTime - startTime;
+        }
+        Collections.sort(sorted);
+
+        out.println("Blocks generated:    " + getHeight());
+        out.println("Deposits generated:  " + getDepositCount());
+        out.println("Deposits delivered:  " + sorted.size());
+        if (sorted.isEmpty())
+            return;
+
+        out.println(String.format("Throughput:          %.1f deposits/s", sorted.size() / (elapsed / 1e9)));
+        out.println(String.format("Latency p50:         %.2f ms", percentile(sorted, 50) / 1e6));
+        out.println(String.format("Latency p95:         %.2f ms", percentile(sorted, 95) / 1e6));
+        out.println(String.format("Latency p99:         %.2f ms", percentile(sorted, 99) / 1e6));
+        out.println(String.format("Latency max:         %.2f ms", sorted.get(sorted.size() - 1) / 1e6));
+    }
+
+    private static long percentile(List<Long> sorted, int percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.size()) - 1;
+        return sorted.get(Math.max(0, index));
+    }
+
+    /**
+     * Stops generating blocks and disconnects the wallets.
+     */
+    @Override
+    public void close() throws IOException {
+        generator.shutdownNow();
+        serverSocket.close();
+        for (Connection connection : connections)
+            connection.close();
+        connectionThreads.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()){
+            try {
+                Connection connection = new Connection(serverSocket.accept());
+                connections.add(connection);
+                connectionThreads.execute(connection);
+            } catch (IOException e) {
+                // the socket is closed when the network is closed.
+                if (!serverSocket.isClosed())
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Mines the next block with a coinbase and the deposits to random watched addresses. Regtest blocks are solved in a few tries.
+     * @return the new block.
+     */
+    private synchronized Block generateBlock() {
+        Block previous = blocks.get(blocks.size() - 1);
+        int height = blocks.size();
+        Block block = previous.createNextBlock(null, Block.BLOCK_VERSION_BIP65, System.currentTimeMillis() / 1000, height);
+        for (int i = 0; i < depositsPerBlock; i++)
+            block.addTransaction(SyntheticWallets.createTransaction(watchedAddresses.get(random.nextInt(watchedAddresses.size())), random));
+
+        // the merkle root changed with the deposits, so we solve it again.
+        block.solve();
+        blocks.add(block);
+        heights.put(block.getHash(), height);
+        depositCount += depositsPerBlock;
+        return block;
+    }
+
+    private void announce(Block block) {
+        InventoryMessage inventory = new InventoryMessage(params);
+        inventory.addBlock(block);
+        for (Connection connection : connections){
+            try {
+                connection.send(inventory);
+            } catch (IOException e) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * @param locator the hashes of the blocks the wallet has, from the newest one.
+     * @param stopHash the last block the wallet wants, or zero.
+     * @param max the maximum amount of blocks.
+     * @return the blocks after the newest block of the locator we have.
+     */
+    private synchronized List<Block> getBlocksAfter(List<Sha256Hash> locator, Sha256Hash stopHash, int max) {
+        int start = 1;
+        for (Sha256Hash hash : locator){
+            Integer height = heights.get(hash);
+            if (height != null) {
+                start = height + 1;
+                break;
+            }
+        }
+
+        List<Block> found = new ArrayList<>();
+        for (int height = start; height < blocks.size() && found.size() < max; height++){
+            found.add(blocks.get(height));
+            if (blocks.get(height).getHash().equals(stopHash))
+                break;
+        }
+        return found;
+    }
+
+    private synchronized Block getBlock(Sha256Hash hash) {
+        Integer height = heights.get(hash);
+        return height == null ? null : blocks.get(height);
+    }
+
+    /**
+     * A wallet connected to the network. Messages are read on its own thread and answered right away.
+     */
+    private class Connection implements Runnable {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final OutputStream out;
+        private final MessageSerializer serializer;
+        private volatile BloomFilter filter;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.socket.setTcpNoDelay(true);
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.serializer = params.getDefaultSerializer();
+        }
+
+        @Override
+        public void run() {
+            Context.propagate(context);
+            try {
+                while (!socket.isClosed())
+                    process(read());
+            } catch (Exception e) {
+                // the wallet disconnected.
+            } finally {
+                close();
+            }
+        }
+
+        private Message read() throws IOException {
+            byte[] header = new byte[BitcoinSerializer.BitcoinPacketHeader.HEADER_LENGTH + 4];
+            in.readFully(header);
+            int length = (int) Utils.readUint32(header, 16);
+
+            byte[] message = Arrays.copyOf(header, header.length + length);
+            in.readFully(message, header.length, length);
+            return serializer.deserialize(ByteBuffer.wrap(message));
+        }
+
+        void send(Message message) throws IOException {
+            synchronized (out) {
+                serializer.serialize(message, out);
+                out.flush();
+            }
+        }
+
+        private void process(Message message) throws IOException {
+            if (message instanceof VersionMessage) {
+                VersionMessage version = new VersionMessage(params, getHeight());
+                version.localServices = VersionMessage.NODE_NETWORK;
+                send(version);
+                send(new VersionAck());
+            } else if (message instanceof Ping) {
+                if (((Ping) message).hasNonce())
+                    send(new Pong(((Ping) message).getNonce()));
+            } else if (message instanceof BloomFilter) {
+                filter = (BloomFilter) message;
+            } else if (message instanceof GetHeadersMessage) {
+                GetHeadersMessage getHeaders = (GetHeadersMessage) message;
+                List<Block> headers = new ArrayList<>();
+                for (Block block : getBlocksAfter(getHeaders.getLocator(), getHeaders.getStopHash(), MAX_HEADERS))
+                    headers.add(block.cloneAsHeader());
+                send(new HeadersMessage(params, headers));
+            } else if (message instanceof GetBlocksMessage) {
+                GetBlocksMessage getBlocks = (GetBlocksMessage) message;
+                InventoryMessage inventory = new InventoryMessage(params);
+                for (Block block : getBlocksAfter(getBlocks.getLocator(), getBlocks.getStopHash(), MAX_INVENTORY))
+                    inventory.addBlock(block);
+                if (!inventory.getItems().isEmpty())
+                    send(inventory);
+            } else if (message instanceof GetDataMessage) {
+                for (InventoryItem item : ((GetDataMessage) message).getItems())
+                    sendBlock(item);
+
+                // wallets process a filtered block when a message other than its transactions arrives.
+                send(new Ping(random.nextLong()));
+            }
+        }
+
+        private void sendBlock(InventoryItem item) throws IOException {
+            Block block = getBlock(item.hash);
+            if (block == null)
+                return;
+
+            BloomFilter currentFilter = filter;
+            if (item.type != InventoryItem.Type.FilteredBlock || currentFilter == null) {
+                send(block);
+                return;
+            }
+
+            // the filter is applied as full nodes do, with the merkle branches of the matched transactions.
+            List<Transaction> transactions = block.getTransactions();
+            List<Sha256Hash> hashes = new ArrayList<>(transactions.size());
+            List<Transaction> matched = new ArrayList<>();
+            byte[] bits = new byte[(transactions.size() + 7) / 8];
+            for (int i = 0; i < transactions.size(); i++){
+                Transaction transaction = transactions.get(i);
+                hashes.add(transaction.getHash());
+                // deposits are never coinbases, and the filter can't match the small height pushes of early coinbases.
+                if (!transaction.isCoinBase() && currentFilter.applyAndUpdate(transaction)) {
+                    Utils.setBitLE(bits, i);
+                    matched.add(transaction);
+                }
+            }
+
+            send(new FilteredBlock(params, block.cloneAsHeader(), PartialMerkleTree.buildFromLeaves(params, bits, hashes)));
+            for (Transaction transaction : matched){
+                String hash = transaction.getHashAsString();
+                if (!pendingDeposits.containsKey(hash) && !deliveredDeposits.contains(hash))
+                    pendingDeposits.put(hash, System.nanoTime());
+                send(transaction);
+            }
+        }
+
+        void close() {
+            connections.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
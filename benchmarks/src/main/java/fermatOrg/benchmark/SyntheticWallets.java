@@ -0,0 +1,157 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.*;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletTransaction;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Builds the input files and wallets used by the benchmarks. Addresses are made from random hashes instead of keys, so that
+ * a million of them are generated in seconds, and transactions pay to them from made up outputs, as if they were already in the chain.
+ */
+final class SyntheticWallets {
+    //class constants
+    static final NetworkType NETWORK_TYPE = NetworkType.PRODUCTION;
+    private static final int CHAIN_HEIGHT = 100000;
+
+    private SyntheticWallets() {
+    }
+
+    static NetworkParameters getParams(){
+        return WatchOnlyWallet.getNetworkParameters(NETWORK_TYPE);
+    }
+
+    /**
+     * @param count the amount of addresses.
+     * @param random the source of the hashes, seeded so that every run uses the same addresses.
+     * @return random addresses of the benchmark network.
+     */
+    static List<Address> createAddresses(int count, Random random){
+        return createAddresses(getParams(), count, random);
+    }
+
+    /**
+     * @param params the network of the addresses.
+     * @param count the amount of addresses.
+     * @param random the source of the hashes.
+     * @return random addresses of the given network.
+     */
+    static List<Address> createAddresses(NetworkParameters params, int count, Random random){
+        List<Address> addresses = new ArrayList<>(count);
+        for (int i = 0; i < count; i++){
+            byte[] hash160 = new byte[20];
+            random.nextBytes(hash160);
+            addresses.add(new Address(params, hash160));
+        }
+        return addresses;
+    }
+
+    /**
+     * Writes an input file for {@link WatchOnlyWallet#importAddresses(File)}, one address per line.
+     * @param inputFile the file to write.
+     * @param addresses the addresses.
+     * @throws IOException if the file can't be written.
+     */
+    static void writeInputFile(File inputFile, List<Address> addresses) throws IOException {
+        BufferedWriter writer = new BufferedWriter(new FileWriter(inputFile));
+        try {
+            for (Address address : addresses){
+                writer.write(address.toBase58());
+                writer.newLine();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Creates a transaction that pays to the address, spending a made up output.
+     * @param address the receiving address.
+     * @param random the source of the spent output and the value.
+     * @return the transaction.
+     */
+    static Transaction createTransaction(Address address, Random random){
+        NetworkParameters params = address.getParameters();
+        byte[] spentHash = new byte[32];
+        random.nextBytes(spentHash);
+
+        Transaction transaction = new Transaction(params);
+        transaction.addInput(Sha256Hash.wrap(spentHash), 0, new Script(new byte[0]));
+        transaction.addOutput(Coin.valueOf(1 + random.nextInt(100000000)), address);
+        return transaction;
+    }
+
+    /**
+     * Writes a single shard wallet that can be opened with {@link WatchOnlyWallet#loadFromFile(File)}
+     * @param walletFile the wallet file to write.
+     * @param addresses the watched addresses.
+     * @param transactions the amount of confirmed transactions, spread among the addresses.
+     * @param random the source of the transactions.
+     * @return the blockchainj wallet that was written.
+     * @throws IOException if the file can't be written.
+     */
+    static Wallet writeWallet(File walletFile, List<Address> addresses, int transactions, Random random) throws IOException {
+        Context context = WatchOnlyWallet.getNetworkContext(NETWORK_TYPE);
+        Wallet wallet = new Wallet(context);
+        wallet.addWatchedAddresses(addresses, 1475280000);
+
+        for (int i = 0; i < transactions; i++){
+            Transaction transaction = createTransaction(addresses.get(random.nextInt(addresses.size())), random);
+            int height = CHAIN_HEIGHT - random.nextInt(CHAIN_HEIGHT);
+            transaction.getConfidence().setAppearedAtChainHeight(height);
+            transaction.getConfidence().setDepthInBlocks(CHAIN_HEIGHT - height + 1);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, transaction));
+        }
+        wallet.setLastBlockSeenHeight(CHAIN_HEIGHT);
+
+        wallet.saveToFile(walletFile);
+        return wallet;
+    }
+
+    /**
+     * Deletes the wallet file and every file stored next to it, like shards, events, journals and indexes.
+     * @param walletFile the wallet file.
+     */
+    static void delete(File walletFile){
+        File directory = walletFile.getAbsoluteFile().getParentFile();
+        File[] files = directory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files){
+            if (file.getName().startsWith(walletFile.getName()))
+                file.delete();
+        }
+    }
+
+    /**
+     * @param prefix the name of the benchmark.
+     * @return a new file in the temporary directory.
+     * @throws IOException if the directory can't be created.
+     */
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdir())
+            throw new IOException("Unable to create the benchmark directory " + directory.toString());
+        return directory;
+    }
+
+    /**
+     * Deletes the directory and its files.
+     * @param directory the benchmark directory.
+     */
+    static void deleteDirectory(File directory){
+        File[] files = directory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        directory.delete();
+    }
+}
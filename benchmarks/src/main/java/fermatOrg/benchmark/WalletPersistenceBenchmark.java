@@ -0,0 +1,64 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to load and save synthetic wallets of different sizes, and to open them from their memory mapped snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class WalletPersistenceBenchmark {
+    @Param({"10000", "100000"})
+    public int addressCount;
+
+    @Param({"10000"})
+    public int transactionCount;
+
+    private File directory;
+    private File walletFile;
+    private WatchOnlyWallet wallet;
+
+    @Setup(Level.Trial)
+    public void writeWallet() throws IOException, IoWalletException {
+        directory = SyntheticWallets.createTempDirectory("persistenceBenchmark");
+        walletFile = new File(directory, "persistenceWallet");
+        Random random = new Random(addressCount);
+        SyntheticWallets.writeWallet(walletFile, SyntheticWallets.createAddresses(addressCount, random), transactionCount, random);
+
+        // flushing writes the snapshot used by loadFromSnapshot.
+        wallet = WatchOnlyWallet.loadFromFile(walletFile);
+        wallet.flush();
+    }
+
+    @Benchmark
+    public WatchOnlyWallet loadFromFile() throws IoWalletException {
+        return WatchOnlyWallet.loadFromFile(walletFile);
+    }
+
+    @Benchmark
+    public WatchOnlyWallet loadFromSnapshot() throws IoWalletException {
+        return WatchOnlyWallet.loadFromSnapshot(walletFile, false);
+    }
+
+    @Benchmark
+    public WatchOnlyWallet save() throws IoWalletException {
+        wallet.flush();
+        return wallet;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        SyntheticWallets.deleteDirectory(directory);
+    }
+}
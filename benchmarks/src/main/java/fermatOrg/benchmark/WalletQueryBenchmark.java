@@ -0,0 +1,72 @@
+package fermatOrg.benchmark;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.Address;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Balance and address queries against synthetic wallets of different sizes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WalletQueryBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int addressCount;
+
+    @Param({"1000", "10000"})
+    public int transactionCount;
+
+    private File directory;
+    private WatchOnlyWallet wallet;
+    private String[] addresses;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void loadWallet() throws IOException, IoWalletException {
+        directory = SyntheticWallets.createTempDirectory("queryBenchmark");
+        File walletFile = new File(directory, "queryWallet");
+        Random random = new Random(addressCount);
+        List<Address> watched = SyntheticWallets.createAddresses(addressCount, random);
+        SyntheticWallets.writeWallet(walletFile, watched, transactionCount, random);
+        wallet = WatchOnlyWallet.loadFromFile(walletFile);
+
+        addresses = new String[watched.size()];
+        for (int i = 0; i < addresses.length; i++)
+            addresses[i] = watched.get(i).toBase58();
+    }
+
+    @Benchmark
+    public long getAddressBalance() throws AddressFormatException {
+        // we go through all the addresses so that we don't measure a single cached one.
+        String address = addresses[next];
+        next = (next + 1) % addresses.length;
+        return wallet.getAddressBalance(address);
+    }
+
+    @Benchmark
+    public long getWalletBalance() {
+        return wallet.getWalletBalance();
+    }
+
+    @Benchmark
+    public List<String> getAddresses() {
+        return wallet.getAddresses();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() {
+        SyntheticWallets.deleteDirectory(directory);
+    }
+}
@@ -0,0 +1,290 @@
+package fermatOrg.http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal JSON reader and writer, so the HTTP server and webhooks depend only on the JDK.
+ * <p>
+ *     Objects are read as maps in their original order, arrays as lists, integers as longs, other numbers as doubles.
+ *     Objects and arrays can be nested up to {@link #MAX_DEPTH} levels.
+ * </p>
+ */
+final class Json {
+    private final String text;
+    private int position;
+    private int depth; // the objects and arrays open at the position.
+    static final int MAX_DEPTH = 64; // deeper documents are rejected before they exhaust the stack.
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @param text a JSON document.
+     * @return the value, a map, list, string, long, double, boolean or null.
+     * @throws IllegalArgumentException if the text is not valid JSON or is nested too deep.
+     */
+    static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.readValue();
+        json.skipWhitespace();
+        if (json.position != text.length())
+            throw json.error("unexpected content");
+        return value;
+    }
+
+    /**
+     * @param value a map, collection, string, number, boolean or null.
+     * @return the JSON of the value.
+     */
+    static String write(Object value) {
+        StringBuilder builder = new StringBuilder();
+        write(builder, value);
+        return builder.toString();
+    }
+
+    private static void write(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append("null");
+        } else if (value instanceof String) {
+            writeString(builder, (String) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            builder.append(value.toString());
+        } else if (value instanceof Map) {
+            builder.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()){
+                if (!first)
+                    builder.append(',');
+                first = false;
+                writeString(builder, String.valueOf(entry.getKey()));
+                builder.append(':');
+                write(builder, entry.getValue());
+            }
+            builder.append('}');
+        } else if (value instanceof Collection) {
+            builder.append('[');
+            boolean first = true;
+            for (Object element : (Collection<?>) value){
+                if (!first)
+                    builder.append(',');
+                first = false;
+                write(builder, element);
+            }
+            builder.append(']');
+        } else {
+            writeString(builder, value.toString());
+        }
+    }
+
+    private static void writeString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            switch (c){
+                case '"':
+                    builder.append("\\\"");
+                    break;
+                case '\\':
+                    builder.append("\\\\");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20)
+                        builder.append(String.format("\\u%04x", (int) c));
+                    else
+                        builder.append(c);
+            }
+        }
+        builder.append('"');
+    }
+
+    private Object readValue() {
+        skipWhitespace();
+        if (position >= text.length())
+            throw error("unexpected end");
+
+        char c = text.charAt(position);
+        switch (c){
+            case '{':
+                enter();
+                Map<String, Object> object = readObject();
+                depth--;
+                return object;
+            case '[':
+                enter();
+                List<Object> array = readArray();
+                depth--;
+                return array;
+            case '"':
+                return readString();
+            case 't':
+                expect("true");
+                return Boolean.TRUE;
+            case 'f':
+                expect("false");
+                return Boolean.FALSE;
+            case 'n':
+                expect("null");
+                return null;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                    return readNumber();
+                throw error("unexpected character");
+        }
+    }
+
+    private Map<String, Object> readObject() {
+        Map<String, Object> object = new LinkedHashMap<>();
+        position++;
+        skipWhitespace();
+        if (peek() == '}') {
+            position++;
+            return object;
+        }
+        while (true){
+            skipWhitespace();
+            if (peek() != '"')
+                throw error("expected a name");
+            String name = readString();
+            skipWhitespace();
+            if (peek() != ':')
+                throw error("expected ':'");
+            position++;
+            object.put(name, readValue());
+            skipWhitespace();
+            char c = peek();
+            position++;
+            if (c == '}')
+                return object;
+            if (c != ',')
+                throw error("expected ',' or '}'");
+        }
+    }
+
+    private List<Object> readArray() {
+        List<Object> array = new ArrayList<>();
+        position++;
+        skipWhitespace();
+        if (peek() == ']') {
+            position++;
+            return array;
+        }
+        while (true){
+            array.add(readValue());
+            skipWhitespace();
+            char c = peek();
+            position++;
+            if (c == ']')
+                return array;
+            if (c != ',')
+                throw error("expected ',' or ']'");
+        }
+    }
+
+    private String readString() {
+        StringBuilder builder = new StringBuilder();
+        position++;
+        while (true){
+            if (position >= text.length())
+                throw error("unterminated string");
+            char c = text.charAt(position++);
+            if (c == '"')
+                return builder.toString();
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+
+            if (position >= text.length())
+                throw error("unterminated string");
+            char escaped = text.charAt(position++);
+            switch (escaped){
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > text.length())
+                        throw error("invalid escape");
+                    try {
+                        builder.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("invalid escape");
+                    }
+                    position = position + 4;
+                    break;
+                default:
+                    builder.append(escaped);
+            }
+        }
+    }
+
+    private Object readNumber() {
+        int start = position;
+        boolean decimal = false;
+        while (position < text.length()){
+            char c = text.charAt(position);
+            if (c == '.' || c == 'e' || c == 'E')
+                decimal = true;
+            else if (!(c == '-' || c == '+' || (c >= '0' && c <= '9')))
+                break;
+            position++;
+        }
+        String number = text.substring(start, position);
+        try {
+            return decimal ? (Object) Double.parseDouble(number) : (Object) Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            throw error("invalid number");
+        }
+    }
+
+    private void expect(String literal) {
+        if (!text.startsWith(literal, position))
+            throw error("unexpected character");
+        position = position + literal.length();
+    }
+
+    private void enter() {
+        if (++depth > MAX_DEPTH)
+            throw error("nested too deep");
+    }
+
+    private char peek() {
+        if (position >= text.length())
+            throw error("unexpected end");
+        return text.charAt(position);
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position)))
+            position++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException("Invalid JSON, " + message + " at " + position);
+    }
+}
@@ -0,0 +1,29 @@
+package fermatOrg.http;
+
+/**
+ * An error of a call to the wallet server, returned to the client with its JSON-RPC error code.
+ */
+class RequestException extends Exception {
+    static final int PARSE_ERROR = -32700;
+    static final int INVALID_REQUEST = -32600;
+    static final int METHOD_NOT_FOUND = -32601;
+    static final int INVALID_PARAMS = -32602;
+    static final int WALLET_ERROR = -32000;
+    static final int NOT_ALLOWED = -32001;
+
+    private final int code;
+
+    RequestException(int code, String message) {
+        super(message);
+        this.code = code;
+    }
+
+    RequestException(int code, String message, Throwable cause) {
+        super(message, cause);
+        this.code = code;
+    }
+
+    int getCode() {
+        return code;
+    }
+}
@@ -0,0 +1,267 @@
+package fermatOrg.http;
+
+import com.google.common.base.Preconditions;
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.wallet.AddressHistory;
+import fermatOrg.wallet.BalanceType;
+import fermatOrg.wallet.WalletState;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The wallet operations available to the clients of the server, called by name with their parameters by name.
+ * <p>
+ *     Balances and addresses are read from the {@link WalletState} of the wallet, so queries don't wait for the blocks being processed.
+ * </p>
+ */
+class WalletMethods {
+    //class constants
+    private final WatchOnlyWallet wallet;
+    private static final int DEFAULT_HISTORY_LIMIT = 100;
+    private static final Set<String> WRITE_METHODS = new HashSet<>(Arrays.asList("importAddress", "removeAddresses", "confirmEventReception", "flush"));
+
+    WalletMethods(WatchOnlyWallet wallet) {
+        Preconditions.checkNotNull(wallet);
+        this.wallet = wallet;
+    }
+
+    /**
+     * Calls a wallet operation.
+     * @param method the name of the operation.
+     * @param params the parameters by name, empty if it has none.
+     * @return the result, a map, list, string, number, boolean or null.
+     * @throws RequestException if the method doesn't exist, a parameter is missing or invalid, or the wallet fails.
+     */
+    Object call(String method, Map<String, Object> params) throws RequestException {
+        try {
+            switch (method){
+                case "getWalletBalance":
+                    return getWalletBalance(getBalanceType(params));
+                case "getAddressBalance":
+                    return getAddressBalance(getString(params, "address"), getBalanceType(params));
+                case "getWalletBalanceAt":
+                    return wallet.getWalletBalanceAt(getInt(params, "height"));
+                case "getAddressBalanceAt":
+                    return wallet.getAddressBalanceAt(getString(params, "address"), getInt(params, "height"));
+                case "getGroupBalance":
+                    return wallet.getGroupBalance(getString(params, "group"), getBalanceType(params));
+                case "getAddressHistory":
+                    return getAddressHistory(params);
+                case "getAddresses":
+                    return getAddresses();
+                case "getAddressesSize":
+                    return getAddressesSize();
+                case "getState":
+                    return getState();
+                case "getNetworkType":
+                    return wallet.getNetworkType().toString();
+                case "importAddress":
+                    String group = getOptionalString(params, "group");
+                    if (group == null)
+                        wallet.importAddress(getString(params, "address"));
+                    else
+                        wallet.importAddress(getString(params, "address"), group);
+                    return true;
+                case "removeAddresses":
+                    return wallet.removeAddresses(getStrings(params, "addresses"), getBoolean(params, "dropHistory"));
+                case "getPendingNotificationEvents":
+                    return toJson(wallet.getPendingNotificationEvents());
+                case "confirmEventReception":
+                    return confirmEventReception(params);
+                case "flush":
+                    wallet.flush();
+                    return true;
+                default:
+                    throw new RequestException(RequestException.METHOD_NOT_FOUND, "Method not found: " + method);
+            }
+        } catch (AddressFormatException e) {
+            throw new RequestException(RequestException.INVALID_PARAMS, "Invalid address.", e);
+        } catch (IllegalArgumentException e) {
+            throw new RequestException(RequestException.INVALID_PARAMS, "Invalid params: " + e.getMessage(), e);
+        } catch (IoWalletException e) {
+            throw new RequestException(RequestException.WALLET_ERROR, e.getMessage(), e);
+        }
+    }
+
+    private long getWalletBalance(BalanceType balanceType) {
+        WalletState state = wallet.getState();
+        return state == null ? wallet.getWalletBalance(balanceType) : state.getWalletBalance(balanceType);
+    }
+
+    private long getAddressBalance(String address, BalanceType balanceType) throws AddressFormatException {
+        // addresses not in the state are validated by the wallet.
+        WalletState state = wallet.getState();
+        if (state != null && state.isWatched(address))
+            return state.getAddressBalance(address, balanceType);
+        return wallet.getAddressBalance(address, balanceType);
+    }
+
+    private List<String> getAddresses() {
+        WalletState state = wallet.getState();
+        return state == null ? wallet.getAddresses() : new ArrayList<>(state.getAddresses());
+    }
+
+    private int getAddressesSize() {
+        WalletState state = wallet.getState();
+        return state == null ? wallet.getAddressesSize() : state.getAddressCount();
+    }
+
+    private Map<String, Object> getState() {
+        WalletState state = wallet.getState();
+        if (state == null)
+            return null;
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("walletBalance", state.getWalletBalance());
+        json.put("confirmedBalance", state.getWalletBalance(BalanceType.CONFIRMED));
+        json.put("unconfirmedBalance", state.getWalletBalance(BalanceType.UNCONFIRMED));
+        json.put("spentBalance", state.getWalletBalance(BalanceType.SPENT));
+        json.put("addressCount", state.getAddressCount());
+        json.put("syncHeight", state.getSyncHeight());
+        json.put("time", state.getTime());
+        return json;
+    }
+
+    /**
+     * pages go on from the cursor of the last output if there is one, or start at a height.
+     */
+    private List<Object> getAddressHistory(Map<String, Object> params) throws AddressFormatException {
+        String address = getString(params, "address");
+        String after = getOptionalString(params, "after");
+        int limit = (int) getLong(params, "limit", DEFAULT_HISTORY_LIMIT);
+        List<AddressHistory.Entry> entries = after == null ? wallet.getAddressHistory(address, getLong(params, "fromHeight", 0), limit)
+                : wallet.getAddressHistory(address, after, limit);
+
+        List<Object> json = new ArrayList<>();
+        for (AddressHistory.Entry entry : entries){
+            Map<String, Object> entryJson = new LinkedHashMap<>();
+            entryJson.put("transactionHash", entry.getTransactionHash());
+            entryJson.put("index", entry.getIndex());
+            entryJson.put("address", entry.getAddress());
+            entryJson.put("value", entry.getValue());
+            entryJson.put("height", entry.getHeight());
+            entryJson.put("spentBy", entry.getSpentBy());
+            entryJson.put("spentHeight", entry.getSpentHeight());
+            entryJson.put("cursor", entry.getCursor());
+            json.add(entryJson);
+        }
+        return json;
+    }
+
+    /**
+     * the event is found among the pending ones by its transaction, address, stage and height, which the client got with it.
+     * Events are shared by all the clients, so the first one to confirm an event removes it from the polls of the others.
+     */
+    private boolean confirmEventReception(Map<String, Object> params) {
+        IncomingTransactionEvent event = wallet.getPendingNotificationEvent(getString(params, "transactionHash"), getString(params, "address"),
+                IncomingTransactionEvent.Stage.valueOf(getString(params, "stage")), getInt(params, "height"));
+        if (event == null)
+            return false;
+
+        wallet.confirmEventReception(event);
+        return true;
+    }
+
+    /**
+     * @param method the name of an operation.
+     * @return true if the operation changes the wallet or its events, which clients can only call with the token of the server.
+     */
+    static boolean isWriteMethod(String method) {
+        return WRITE_METHODS.contains(method);
+    }
+
+    /**
+     * @param events incoming transaction events.
+     * @return the events as JSON objects, with what is needed to confirm their reception.
+     */
+    static List<Object> toJson(List<IncomingTransactionEvent> events) {
+        List<Object> json = new ArrayList<>();
+        for (IncomingTransactionEvent event : events)
+            json.add(toJson(event));
+        return json;
+    }
+
+    static Map<String, Object> toJson(IncomingTransactionEvent event) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("transactionHash", event.getTransactionHash());
+        json.put("address", event.getAddress());
+        json.put("value", event.getValue());
+        json.put("networkType", event.getNetworkType() == null ? null : event.getNetworkType().toString());
+        json.put("stage", event.getStage().toString());
+        json.put("height", event.getHeight());
+        json.put("confirmations", event.getConfirmations());
+        if (event.getReversedStage() != null)
+            json.put("reversedStage", event.getReversedStage().toString());
+        return json;
+    }
+
+    private static BalanceType getBalanceType(Map<String, Object> params) {
+        String balanceType = getOptionalString(params, "balanceType");
+        return balanceType == null ? BalanceType.ESTIMATED : BalanceType.valueOf(balanceType);
+    }
+
+    private static String getString(Map<String, Object> params, String name) {
+        String value = getOptionalString(params, name);
+        if (value == null)
+            throw new IllegalArgumentException("missing " + name);
+        return value;
+    }
+
+    private static String getOptionalString(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        if (value != null && !(value instanceof String))
+            throw new IllegalArgumentException(name + " must be a string");
+        return (String) value;
+    }
+
+    private static long getLong(Map<String, Object> params, String name, long defaultValue) {
+        Object value = params.get(name);
+        if (value == null)
+            return defaultValue;
+        if (!(value instanceof Long))
+            throw new IllegalArgumentException(name + " must be an integer");
+        return (Long) value;
+    }
+
+    private static int getInt(Map<String, Object> params, String name) {
+        if (params.get(name) == null)
+            throw new IllegalArgumentException("missing " + name);
+        long value = getLong(params, name, 0);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(name + " is out of range");
+        return (int) value;
+    }
+
+    private static boolean getBoolean(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        if (value != null && !(value instanceof Boolean))
+            throw new IllegalArgumentException(name + " must be a boolean");
+        return Boolean.TRUE.equals(value);
+    }
+
+    private static List<String> getStrings(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        if (value == null)
+            return Collections.emptyList();
+        if (!(value instanceof List))
+            throw new IllegalArgumentException(name + " must be an array");
+
+        List<String> strings = new ArrayList<>();
+        for (Object element : (List<?>) value){
+            if (!(element instanceof String))
+                throw new IllegalArgumentException(name + " must be an array of strings");
+            strings.add((String) element);
+        }
+        return strings;
+    }
+}
@@ -0,0 +1,448 @@
+package fermatOrg.http;
+
+import ch.qos.logback.classic.Logger;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import fermatOrg.metrics.Metrics;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.blockchainj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Serves a wallet over HTTP with JSON, so one synced wallet is shared by many clients instead of each one running its own.
+ * <p>
+ *     Wallet operations are called with JSON-RPC 2.0 requests posted to {@code /api}, with their parameters by name. An array of
+ *     requests is a batch, answered with an array of responses in one round trip.
+ * </p>
+ * <p>
+ *     Incoming transaction events are long polled with {@code GET /events?wait=seconds}. The pending events are returned right away,
+ *     or as soon as there is one, or an empty array when the wait is over. Events are returned until their reception is confirmed
+ *     with the {@code confirmEventReception} method.
+ * </p>
+ * <p>
+ *     The events and their confirmations are shared by all the clients. An event confirmed by one client is no longer returned to the
+ *     others, so each event should be consumed by only one of them.
+ * </p>
+ * <p>
+ *     The server is read only unless it has a token, see {@link #setAuthToken(String)}. With a token, every request must carry it and
+ *     the methods that change the wallet or its events are allowed.
+ * </p>
+ * <p>
+ *     Requests are handled by a fixed amount of threads on top of the JDK server, which keeps connections alive between requests.
+ *     Waiting polls don't hold any of them.
+ * </p>
+ */
+public class WalletServer {
+    //class variables
+    private HttpServer server;
+    private ExecutorService executor;
+    private ScheduledExecutorService timer; // ends the polls whose wait is over.
+    private volatile byte[] authToken; // the token every request must carry, or null if the server is read only.
+
+    //class constants
+    private final WatchOnlyWallet wallet;
+    private final WalletMethods methods;
+    private final InetSocketAddress address;
+    private final int threads;
+    private final Queue<Poll> polls = new ConcurrentLinkedQueue<>(); // the polls waiting for an event.
+    private final EventListener eventListener = new EventListener();
+    private static final Logger logger = (Logger) LoggerFactory.getLogger(WalletServer.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final int DEFAULT_THREADS = 8;
+    public static final int MAX_BATCH_SIZE = 1000;
+    public static final int MAX_WAIT = 60; // the longest wait of a poll, in seconds.
+    private static final int DEFAULT_WAIT = 30;
+    private static final int MAX_BODY_LENGTH = 4 * 1024 * 1024;
+    private static final String BEARER = "Bearer ";
+
+    /**
+     * constructor with the default amount of threads.
+     * @param wallet the wallet to serve.
+     * @param address the address to listen on, with port 0 to pick any free port.
+     */
+    public WalletServer(WatchOnlyWallet wallet, InetSocketAddress address) {
+        this(wallet, address, DEFAULT_THREADS);
+    }
+
+    /**
+     * constructor.
+     * @param wallet the wallet to serve.
+     * @param address the address to listen on, with port 0 to pick any free port.
+     * @param threads the amount of threads that handle the requests.
+     */
+    public WalletServer(WatchOnlyWallet wallet, InetSocketAddress address, int threads) {
+        Preconditions.checkNotNull(wallet);
+        Preconditions.checkNotNull(address);
+        Preconditions.checkArgument(threads > 0);
+
+        this.wallet = wallet;
+        this.methods = new WalletMethods(wallet);
+        this.address = address;
+        this.threads = threads;
+    }
+
+    /**
+     * Sets the token that clients must send on every request, as {@code Authorization: Bearer token}. Requests without it are
+     * answered with 401. With a token, clients can also import and remove addresses, confirm events and flush the wallet.
+     * @param token the token, or null to go back to a read only server that takes requests from anyone.
+     */
+    public void setAuthToken(String token) {
+        Preconditions.checkArgument(token == null || !token.isEmpty());
+        this.authToken = token == null ? null : token.getBytes(UTF8);
+    }
+
+    /**
+     * Starts listening.
+     * @throws IOException if the address can't be bound.
+     */
+    public synchronized void start() throws IOException {
+        Preconditions.checkState(server == null, "The server is already started.");
+
+        executor = Executors.newFixedThreadPool(threads, new ContextPropagatingThreadFactory("IoP wallet server"));
+        timer = Executors.newSingleThreadScheduledExecutor(new ContextPropagatingThreadFactory("IoP wallet server timer"));
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/api", new ApiHandler());
+        server.createContext("/events", new EventsHandler());
+        wallet.addIncomingTransactionListener(eventListener);
+        server.start();
+        logger.info("Wallet server listening on " + server.getAddress());
+    }
+
+    /**
+     * Stops listening and ends the waiting polls.
+     * @param delay the seconds to wait for the requests being handled.
+     */
+    public synchronized void stop(int delay) {
+        if (server == null)
+            return;
+
+        wallet.removeIncomingTransactionListener(eventListener);
+        Poll poll;
+        while ((poll = polls.poll()) != null)
+            poll.end(Collections.emptyList());
+        server.stop(delay);
+        timer.shutdownNow();
+        executor.shutdown();
+        server = null;
+    }
+
+    /**
+     * @return the address the server listens on, with the actual port, or null if it is not started.
+     */
+    public synchronized InetSocketAddress getAddress() {
+        return server == null ? null : server.getAddress();
+    }
+
+    /**
+     * handles a request or a batch of requests.
+     * @return the response, or null if there is nothing to answer because all requests were notifications.
+     */
+    private Object handleRequest(Object request) {
+        if (!(request instanceof List))
+            return handleCall(request);
+
+        List<?> batch = (List<?>) request;
+        if (batch.isEmpty() || batch.size() > MAX_BATCH_SIZE)
+            return error(null, new RequestException(RequestException.INVALID_REQUEST, "A batch must have between 1 and " + MAX_BATCH_SIZE + " requests."));
+
+        List<Object> responses = new ArrayList<>();
+        for (Object call : batch){
+            Object response = handleCall(call);
+            if (response != null)
+                responses.add(response);
+        }
+        return responses.isEmpty() ? null : responses;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object handleCall(Object call) {
+        if (!(call instanceof Map))
+            return error(null, new RequestException(RequestException.INVALID_REQUEST, "A request must be an object."));
+
+        Map<String, Object> request = (Map<String, Object>) call;
+        Object id = request.get("id");
+        Object method = request.get("method");
+        Object params = request.get("params");
+        if (!(method instanceof String) || (params != null && !(params instanceof Map)))
+            return error(id, new RequestException(RequestException.INVALID_REQUEST, "A request needs a method and its params by name."));
+        if (authToken == null && WalletMethods.isWriteMethod((String) method))
+            return error(id, new RequestException(RequestException.NOT_ALLOWED, "The server is read only: " + method));
+
+        Object result;
+        try {
+            result = methods.call((String) method, params == null ? Collections.<String, Object>emptyMap() : (Map<String, Object>) params);
+        } catch (RequestException e) {
+            return error(id, e);
+        } catch (RuntimeException e) {
+            logger.error("Error calling " + method, e);
+            return error(id, new RequestException(RequestException.WALLET_ERROR, String.valueOf(e.getMessage()), e));
+        }
+
+        // requests without id are notifications, they get no response.
+        if (!request.containsKey("id"))
+            return null;
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("jsonrpc", "2.0");
+        response.put("id", id);
+        response.put("result", result);
+        return response;
+    }
+
+    private static Map<String, Object> error(Object id, RequestException exception) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("code", exception.getCode());
+        error.put("message", exception.getMessage());
+
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("jsonrpc", "2.0");
+        response.put("id", id);
+        response.put("error", error);
+        return response;
+    }
+
+    private static void send(HttpExchange exchange, int status, Object body) throws IOException {
+        try {
+            if (body == null) {
+                exchange.sendResponseHeaders(204, -1);
+                return;
+            }
+
+            // the length is always known, so the connection is kept alive for the next request.
+            byte[] bytes = Json.write(body).getBytes(UTF8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException, RequestException {
+        InputStream in = exchange.getRequestBody();
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1){
+                body.write(buffer, 0, read);
+                if (body.size() > MAX_BODY_LENGTH)
+                    throw new RequestException(RequestException.INVALID_REQUEST, "The request is too long.");
+            }
+            return new String(body.toByteArray(), UTF8);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return true if the server has no token, or if the request carries it. Compared in constant time.
+     */
+    private boolean isAuthorized(HttpExchange exchange) {
+        byte[] token = authToken;
+        if (token == null)
+            return true;
+
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.startsWith(BEARER))
+            return false;
+        return MessageDigest.isEqual(token, authorization.substring(BEARER.length()).getBytes(UTF8));
+    }
+
+    /**
+     * answers 401 to a request without the token.
+     */
+    private static void sendUnauthorized(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+        send(exchange, 401, error(null, new RequestException(RequestException.NOT_ALLOWED, "The token of the server is required.")));
+    }
+
+    /**
+     * @return the seconds to wait of the query string, bounded to {@link #MAX_WAIT}
+     */
+    private static int getWait(URI uri) {
+        String query = uri.getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")){
+                if (parameter.startsWith("wait=")) {
+                    try {
+                        return Math.max(0, Math.min(MAX_WAIT, Integer.parseInt(parameter.substring(5))));
+                    } catch (NumberFormatException e) {
+                        return DEFAULT_WAIT;
+                    }
+                }
+            }
+        }
+        return DEFAULT_WAIT;
+    }
+
+    /**
+     * the pending events, ends the waiting polls as soon as there are any.
+     */
+    private List<Object> getPendingEvents() {
+        return WalletMethods.toJson(wallet.getPendingNotificationEvents());
+    }
+
+    /**
+     * JSON-RPC calls and batches.
+     */
+    private class ApiHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            long start = System.nanoTime();
+            try {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    send(exchange, 405, error(null, new RequestException(RequestException.INVALID_REQUEST, "Requests must be posted.")));
+                    return;
+                }
+                if (!isAuthorized(exchange)) {
+                    sendUnauthorized(exchange);
+                    return;
+                }
+
+                Object request;
+                try {
+                    request = Json.parse(readBody(exchange));
+                } catch (IllegalArgumentException e) {
+                    send(exchange, 200, error(null, new RequestException(RequestException.PARSE_ERROR, e.getMessage())));
+                    return;
+                } catch (RequestException e) {
+                    send(exchange, 413, error(null, e));
+                    return;
+                }
+                send(exchange, 200, handleRequest(request));
+            } finally {
+                Metrics.recordTime(Metrics.SERVER_REQUEST_TIME, start);
+            }
+        }
+    }
+
+    /**
+     * long polls of the pending events.
+     */
+    private class EventsHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                send(exchange, 405, error(null, new RequestException(RequestException.INVALID_REQUEST, "Events must be polled with GET.")));
+                return;
+            }
+            if (!isAuthorized(exchange)) {
+                sendUnauthorized(exchange);
+                return;
+            }
+
+            int wait = getWait(exchange.getRequestURI());
+            List<Object> events = getPendingEvents();
+            if (!events.isEmpty() || wait == 0) {
+                send(exchange, 200, events);
+                return;
+            }
+
+            // the poll waits first and checks again, so an event that arrives in between is not missed.
+            final Poll poll = new Poll(exchange);
+            polls.add(poll);
+            poll.timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    polls.remove(poll);
+                    poll.end(getPendingEvents());
+                }
+            }, wait, TimeUnit.SECONDS);
+            events = getPendingEvents();
+            if (!events.isEmpty()) {
+                polls.remove(poll);
+                poll.end(events);
+            }
+        }
+    }
+
+    /**
+     * a poll waiting for an event. It is answered once, by the first event or by its timeout.
+     */
+    private class Poll {
+        private final HttpExchange exchange;
+        private final AtomicBoolean ended = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> timeout;
+
+        Poll(HttpExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        void end(List<Object> events) {
+            if (!ended.compareAndSet(false, true))
+                return;
+
+            ScheduledFuture<?> scheduled = timeout;
+            if (scheduled != null)
+                scheduled.cancel(false);
+            try {
+                send(exchange, 200, events);
+            } catch (IOException e) {
+                // the client is gone, it gets the events on its next poll.
+                logger.debug("Unable to answer an events poll.", e);
+            }
+        }
+    }
+
+    /**
+     * answers the waiting polls on the server threads, not on the thread that notifies the event.
+     */
+    private class EventListener implements IncomingTransactionListener {
+        @Override
+        public void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+            if (polls.isEmpty())
+                return;
+
+            final List<Poll> waiting = new ArrayList<>();
+            Poll poll;
+            while ((poll = polls.poll()) != null)
+                waiting.add(poll);
+
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        List<Object> events = getPendingEvents();
+                        for (Poll waitingPoll : waiting)
+                            waitingPoll.end(events);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the server is stopping, its polls are already answered.
+            }
+        }
+    }
+}
@@ -0,0 +1,343 @@
+package fermatOrg.http;
+
+import ch.qos.logback.classic.Logger;
+import com.google.common.base.Preconditions;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.blockchainj.utils.ContextPropagatingThreadFactory;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the incoming transaction events of a wallet to an HTTP endpoint, confirming their reception only once the endpoint
+ * accepted them with a 2xx response. Events not accepted stay pending in the wallet and are delivered again, also after a restart.
+ * <p>
+ *     Events are posted as a JSON object with an {@code events} array, as many per request as are waiting up to the batch size.
+ *     Each sender thread keeps its connection alive between requests, so the senders are a pool of persistent connections with
+ *     one batch in flight on each. The events of a transaction always go to the same sender, so its stages arrive in order.
+ * </p>
+ * <p>
+ *     A sender whose batch can't be delivered, or is answered with 5xx or 429, retries it with an exponential backoff. Other answers
+ *     are taken as a rejection of the batch, which is logged and left pending in the wallet until the events are notified again.
+ * </p>
+ * <p>
+ *     Listener callbacks only queue the event, they never wait for the endpoint.
+ * </p>
+ */
+public class WebhookSink implements IncomingTransactionListener {
+    //class variables
+    private List<Thread> senders;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+    private volatile long initialBackoff = DEFAULT_INITIAL_BACKOFF;
+    private volatile long maxBackoff = DEFAULT_MAX_BACKOFF;
+    private volatile int timeout = DEFAULT_TIMEOUT;
+    private boolean stopped; // set by stop, so senders still posting don't confirm afterwards. Guarded by the confirmations lock.
+
+    //class constants
+    private final WatchOnlyWallet wallet;
+    private final URL endpoint;
+    private final int connections;
+    private final List<BlockingQueue<IncomingTransactionEvent>> queues = new ArrayList<>(); // the events of each sender.
+    private final Object confirmations = new Object(); // held while a sender confirms a batch.
+    private final Set<IncomingTransactionEvent> tracked = Collections.newSetFromMap(new ConcurrentHashMap<IncomingTransactionEvent, Boolean>()); // queued or in flight.
+    private final Map<String, String> headers = new ConcurrentHashMap<>();
+    private static final Logger logger = (Logger) LoggerFactory.getLogger(WebhookSink.class);
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    public static final int DEFAULT_CONNECTIONS = 2;
+    public static final int DEFAULT_BATCH_SIZE = 100;
+    public static final long DEFAULT_INITIAL_BACKOFF = 1000; // milliseconds.
+    public static final long DEFAULT_MAX_BACKOFF = 60000; // milliseconds.
+    private static final int DEFAULT_TIMEOUT = 30000; // connect and read timeout, in milliseconds.
+
+    /**
+     * constructor with the default amount of connections.
+     * @param wallet the wallet whose events are delivered.
+     * @param endpoint the URL the events are posted to.
+     */
+    public WebhookSink(WatchOnlyWallet wallet, URL endpoint) {
+        this(wallet, endpoint, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * constructor.
+     * @param wallet the wallet whose events are delivered.
+     * @param endpoint the URL the events are posted to.
+     * @param connections the amount of connections, and of batches in flight.
+     */
+    public WebhookSink(WatchOnlyWallet wallet, URL endpoint, int connections) {
+        Preconditions.checkNotNull(wallet);
+        Preconditions.checkNotNull(endpoint);
+        Preconditions.checkArgument(connections > 0);
+        // the JDK keeps up to 5 idle connections per destination by default.
+        Preconditions.checkArgument(connections <= Integer.getInteger("http.maxConnections", 5), "More connections than the JDK keeps alive.");
+
+        this.wallet = wallet;
+        this.endpoint = endpoint;
+        this.connections = connections;
+        for (int i = 0; i < connections; i++)
+            queues.add(new LinkedBlockingQueue<IncomingTransactionEvent>());
+    }
+
+    /**
+     * Sets the most events posted in one request.
+     * @param batchSize the amount of events.
+     */
+    public void setBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Sets the wait after a failed request, which doubles with each failure of the same batch up to the maximum.
+     * @param initialBackoff the first wait.
+     * @param maxBackoff the longest wait.
+     * @param timeUnit the unit of both waits.
+     */
+    public void setBackoff(long initialBackoff, long maxBackoff, TimeUnit timeUnit) {
+        Preconditions.checkArgument(initialBackoff > 0 && maxBackoff >= initialBackoff);
+        this.initialBackoff = timeUnit.toMillis(initialBackoff);
+        this.maxBackoff = timeUnit.toMillis(maxBackoff);
+    }
+
+    /**
+     * Sets the connect and read timeout of the requests.
+     * @param timeout the timeout in milliseconds.
+     */
+    public void setTimeout(int timeout) {
+        Preconditions.checkArgument(timeout > 0);
+        this.timeout = timeout;
+    }
+
+    /**
+     * Sets a header sent with every request, like the credentials of the endpoint.
+     * @param name the name of the header.
+     * @param value the value.
+     */
+    public void setHeader(String name, String value) {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(value);
+        headers.put(name, value);
+    }
+
+    /**
+     * Starts delivering the events that are pending and the new ones.
+     */
+    public synchronized void start() {
+        Preconditions.checkState(senders == null, "The webhook is already started.");
+
+        synchronized (confirmations) {
+            stopped = false;
+        }
+        wallet.addIncomingTransactionListener(this);
+        for (IncomingTransactionEvent event : wallet.getPendingNotificationEvents())
+            incomingEvent(event);
+
+        senders = new ArrayList<>();
+        ContextPropagatingThreadFactory threadFactory = new ContextPropagatingThreadFactory("IoP webhook");
+        for (int i = 0; i < connections; i++){
+            Thread sender = threadFactory.newThread(new Sender(queues.get(i)));
+            senders.add(sender);
+            sender.start();
+        }
+        logger.info("Delivering events to " + endpoint);
+    }
+
+    /**
+     * Stops delivering events. Events not accepted yet stay pending in the wallet, also the ones of a request still in flight when
+     * this returns, which are delivered again.
+     */
+    public synchronized void stop() {
+        if (senders == null)
+            return;
+
+        // a sender confirming a batch finishes it first, the ones still posting won't confirm theirs.
+        synchronized (confirmations) {
+            stopped = true;
+        }
+        wallet.removeIncomingTransactionListener(this);
+        for (Thread sender : senders)
+            sender.interrupt();
+        for (Thread sender : senders){
+            try {
+                sender.join(timeout);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        senders = null;
+        for (BlockingQueue<IncomingTransactionEvent> queue : queues)
+            queue.clear();
+        tracked.clear();
+    }
+
+    /**
+     * @return the events waiting to be delivered, or being delivered.
+     */
+    public int getPendingCount() {
+        return tracked.size();
+    }
+
+    /**
+     * queues the event to the sender of its transaction, unless it is already waiting or in flight. The agent of the wallet notifies
+     * pending events again.
+     */
+    @Override
+    public void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+        if (incomingTransactionEvent.getStatus() == IncomingTransactionEvent.Status.PENDING_NOTIFICATION && tracked.add(incomingTransactionEvent))
+            getQueue(incomingTransactionEvent.getTransactionHash()).add(incomingTransactionEvent);
+    }
+
+    private BlockingQueue<IncomingTransactionEvent> getQueue(String transactionHash) {
+        int hash = transactionHash == null ? 0 : transactionHash.hashCode();
+        return queues.get((hash & Integer.MAX_VALUE) % connections);
+    }
+
+    /**
+     * @return true if the batch may be accepted if it is posted again: the endpoint is overloaded, rate limiting or failing.
+     */
+    private static boolean isRetryable(int status) {
+        return status >= 500 || status == 429;
+    }
+
+    /**
+     * posts the events.
+     * @return the status code of the response.
+     * @throws IOException if the endpoint can't be reached.
+     */
+    private int post(List<Map<String, Object>> events) throws IOException {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("events", events);
+        byte[] bytes = Json.write(body).getBytes(UTF8);
+
+        HttpURLConnection connection = (HttpURLConnection) endpoint.openConnection();
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(bytes.length);
+        connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
+        for (Map.Entry<String, String> header : headers.entrySet())
+            connection.setRequestProperty(header.getKey(), header.getValue());
+
+        OutputStream out = connection.getOutputStream();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+
+        int status = connection.getResponseCode();
+        // the response is read to its end, so the connection goes back to the JDK pool for the next batch.
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        if (in != null) {
+            try {
+                byte[] buffer = new byte[1024];
+                while (in.read(buffer) != -1);
+            } finally {
+                in.close();
+            }
+        }
+        return status;
+    }
+
+    /**
+     * Takes the waiting events as one batch, posts it until the endpoint accepts it and confirms the reception of its events.
+     */
+    private class Sender implements Runnable {
+        private final BlockingQueue<IncomingTransactionEvent> queue;
+
+        Sender(BlockingQueue<IncomingTransactionEvent> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            List<IncomingTransactionEvent> batch = new ArrayList<>();
+            try {
+                while (!Thread.currentThread().isInterrupted()){
+                    batch.clear();
+                    batch.add(queue.take());
+                    queue.drainTo(batch, batchSize - 1);
+                    deliver(batch);
+                }
+            } catch (InterruptedException e) {
+                // stopped, the events of the batch stay pending in the wallet.
+            }
+        }
+
+        private void deliver(List<IncomingTransactionEvent> batch) throws InterruptedException {
+            // the stage and height sent, events that move on while in flight are sent again.
+            List<Map<String, Object>> events = new ArrayList<>();
+            List<IncomingTransactionEvent.Stage> stages = new ArrayList<>();
+            List<Integer> heights = new ArrayList<>();
+            for (IncomingTransactionEvent event : batch){
+                stages.add(event.getStage());
+                heights.add(event.getHeight());
+                events.add(WalletMethods.toJson(event));
+            }
+
+            long backoff = initialBackoff;
+            while (true){
+                try {
+                    int status = post(events);
+                    if (status >= 200 && status < 300)
+                        break;
+                    if (!isRetryable(status)) {
+                        // posting it again gets the same answer, the events stay pending until the wallet notifies them again.
+                        logger.error("Webhook " + endpoint + " rejected " + batch.size() + " events with " + status + ", they stay pending.");
+                        tracked.removeAll(batch);
+                        return;
+                    }
+                    logger.warn("Webhook " + endpoint + " answered " + status + ", retrying " + batch.size() + " events in " + backoff + " ms.");
+                } catch (IOException e) {
+                    logger.warn("Unable to deliver " + batch.size() + " events to " + endpoint + ", retrying in " + backoff + " ms.", e);
+                }
+
+                // the jitter keeps the senders from retrying all at once.
+                Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff / 4 + 1));
+                backoff = Math.min(maxBackoff, backoff * 2);
+            }
+
+            synchronized (confirmations) {
+                if (stopped)
+                    return;
+
+                // the events are saved once for the whole batch.
+                List<IncomingTransactionEvent> accepted = new ArrayList<>();
+                for (int i = 0; i < batch.size(); i++){
+                    IncomingTransactionEvent event = batch.get(i);
+                    if (event.getStage() == stages.get(i) && event.getHeight() == heights.get(i))
+                        accepted.add(event);
+                }
+                wallet.confirmEventReception(accepted);
+
+                // untracked after they are confirmed, so a new stage notified from now on is queued again.
+                for (int i = 0; i < batch.size(); i++){
+                    IncomingTransactionEvent event = batch.get(i);
+                    tracked.remove(event);
+                    if (event.getStage() != stages.get(i) || event.getHeight() != heights.get(i))
+                        incomingEvent(event);
+                }
+            }
+        }
+    }
+}
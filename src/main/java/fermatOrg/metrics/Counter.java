@@ -0,0 +1,19 @@
+package fermatOrg.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A counter that only grows.
+ */
+class Counter implements CounterMBean {
+    private final AtomicLong count = new AtomicLong();
+
+    void increment(long amount) {
+        count.addAndGet(amount);
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+}
@@ -0,0 +1,8 @@
+package fermatOrg.metrics;
+
+/**
+ * The JMX view of a counter.
+ */
+public interface CounterMBean {
+    long getCount();
+}
@@ -0,0 +1,11 @@
+package fermatOrg.metrics;
+
+/**
+ * A value that is read each time it is reported.
+ */
+public interface Gauge {
+    /**
+     * @return the current value.
+     */
+    long getValue();
+}
@@ -0,0 +1,8 @@
+package fermatOrg.metrics;
+
+/**
+ * The JMX view of a gauge.
+ */
+public interface GaugeMBean {
+    long getValue();
+}
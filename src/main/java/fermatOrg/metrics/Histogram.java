@@ -0,0 +1,78 @@
+package fermatOrg.metrics;
+
+import java.util.Arrays;
+
+/**
+ * A histogram that keeps the last samples to calculate percentiles, and the count, minimum, maximum and mean of all of them.
+ */
+class Histogram implements HistogramMBean {
+    //class variables
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max = Long.MIN_VALUE;
+
+    //class constants
+    private final long[] samples;
+    private static final int SAMPLES = 1024;
+
+    Histogram() {
+        this.samples = new long[SAMPLES];
+    }
+
+    synchronized void record(long value) {
+        samples[(int) (count % SAMPLES)] = value;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    @Override
+    public synchronized long getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    @Override
+    public synchronized long getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    @Override
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    @Override
+    public long get50thPercentile() {
+        return getPercentile(50);
+    }
+
+    @Override
+    public long get95thPercentile() {
+        return getPercentile(95);
+    }
+
+    @Override
+    public long get99thPercentile() {
+        return getPercentile(99);
+    }
+
+    private long getPercentile(int percentile) {
+        long[] sorted;
+        synchronized (this) {
+            if (count == 0)
+                return 0;
+            sorted = Arrays.copyOf(samples, (int) Math.min(count, SAMPLES));
+        }
+
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -0,0 +1,20 @@
+package fermatOrg.metrics;
+
+/**
+ * The JMX view of a histogram. Percentiles are calculated over the last samples.
+ */
+public interface HistogramMBean {
+    long getCount();
+
+    long getMin();
+
+    long getMax();
+
+    double getMean();
+
+    long get50thPercentile();
+
+    long get95thPercentile();
+
+    long get99thPercentile();
+}
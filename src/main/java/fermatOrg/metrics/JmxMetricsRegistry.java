@@ -0,0 +1,159 @@
+package fermatOrg.metrics;
+
+import ch.qos.logback.classic.Logger;
+import com.google.common.base.Preconditions;
+import org.slf4j.LoggerFactory;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default registry. It keeps the metrics in memory and registers each one as an MBean named fermatOrg:type=Metrics,name=the metric name,
+ * so they can be seen with jconsole or any JMX client.
+ */
+public class JmxMetricsRegistry implements MetricsRegistry {
+    //class constants
+    private final MBeanServer server;
+    private final String domain;
+    private final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static Logger logger = (Logger) LoggerFactory.getLogger(JmxMetricsRegistry.class);
+
+    /**
+     * Creates a registry on the platform MBean server.
+     */
+    public JmxMetricsRegistry() {
+        this(ManagementFactory.getPlatformMBeanServer(), "fermatOrg");
+    }
+
+    /**
+     * @param server the server in which metrics are registered.
+     * @param domain the domain of the MBean names.
+     */
+    public JmxMetricsRegistry(MBeanServer server, String domain) {
+        Preconditions.checkNotNull(server);
+        Preconditions.checkNotNull(domain);
+
+        this.server = server;
+        this.domain = domain;
+    }
+
+    @Override
+    public void record(String name, long value) {
+        histogram(name).record(value);
+    }
+
+    @Override
+    public void increment(String name, long amount) {
+        counter(name).increment(amount);
+    }
+
+    @Override
+    public void register(String name, final Gauge gauge) {
+        Preconditions.checkNotNull(gauge);
+
+        unregister(name);
+        gauges.put(name, gauge);
+        registerMBean(name, new GaugeMBean() {
+            @Override
+            public long getValue() {
+                return gauge.getValue();
+            }
+        }, GaugeMBean.class);
+    }
+
+    @Override
+    public void unregister(String name) {
+        if (gauges.remove(name) == null)
+            return;
+
+        try {
+            server.unregisterMBean(getObjectName(name));
+        } catch (JMException e) {
+            logger.warn("Unable to unregister the metric " + name, e);
+        }
+    }
+
+    /**
+     * @param name the name of the histogram.
+     * @return the histogram, created empty if it didn't exist.
+     */
+    public HistogramMBean getHistogram(String name) {
+        return histogram(name);
+    }
+
+    /**
+     * @param name the name of the counter.
+     * @return the counter, created with zero if it didn't exist.
+     */
+    public CounterMBean getCounter(String name) {
+        return counter(name);
+    }
+
+    private Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram != null)
+            return histogram;
+
+        synchronized (histograms) {
+            histogram = histograms.get(name);
+            if (histogram == null) {
+                histogram = new Histogram();
+                histograms.put(name, histogram);
+                registerMBean(name, histogram, HistogramMBean.class);
+            }
+            return histogram;
+        }
+    }
+
+    private Counter counter(String name) {
+        Counter counter = counters.get(name);
+        if (counter != null)
+            return counter;
+
+        synchronized (counters) {
+            counter = counters.get(name);
+            if (counter == null) {
+                counter = new Counter();
+                counters.put(name, counter);
+                registerMBean(name, counter, CounterMBean.class);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * @param name the name of the gauge.
+     * @return the gauge, or null if it is not registered.
+     */
+    public Gauge getGauge(String name) {
+        return gauges.get(name);
+    }
+
+    /**
+     * @param name the name of the metric.
+     * @return the name of its MBean.
+     * @throws MalformedObjectNameException if the domain is not valid.
+     */
+    public ObjectName getObjectName(String name) throws MalformedObjectNameException {
+        return new ObjectName(domain + ":type=Metrics,name=" + ObjectName.quote(name));
+    }
+
+    /**
+     * metrics are still collected if JMX fails, they are just not visible.
+     */
+    private <T> void registerMBean(String name, T metric, Class<T> mbeanInterface) {
+        try {
+            ObjectName objectName = getObjectName(name);
+            // a registry created before, maybe by another class loader, may have registered the same name.
+            if (server.isRegistered(objectName))
+                server.unregisterMBean(objectName);
+            server.registerMBean(new StandardMBean(metric, mbeanInterface), objectName);
+        } catch (JMException e) {
+            logger.warn("Unable to register the metric " + name + " on JMX.", e);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package fermatOrg.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.io.File;
+
+/**
+ * The metrics of the wallets and blockchain connections, and the registry that receives them.
+ * <p>
+ *     Durations are in microseconds. Gauges of each wallet or connection are named with the metric name followed by a dot and
+ *     the name of its events or blocks file.
+ * </p>
+ * To find the cause of a slowdown: a growing sync lag or few peers point to the network, a slow block processing with a fast
+ * event persistence points to the wallet, and a slow listener dispatch points to our own listeners.
+ */
+public final class Metrics {
+    /** histogram of the time from a filtered block arriving until it is added to the chain and wallets are updated. */
+    public static final String BLOCK_PROCESSING_TIME = "block.processingTime";
+    /** histogram of the amount of incoming transaction events created from each block. */
+    public static final String BLOCK_EVENTS = "block.events";
+    /** histogram of the time to store a new event. */
+    public static final String EVENT_PERSISTENCE_TIME = "event.persistenceTime";
+    /** histogram of the time each listener takes to handle an event. */
+    public static final String LISTENER_DISPATCH_TIME = "listener.dispatchTime";
+    /** gauge of the events pending confirmation, one per wallet. */
+    public static final String PENDING_EVENTS = "event.pending";
+    /** counter of imported addresses. */
+    public static final String IMPORTED_ADDRESSES = "import.addresses";
+    /** histogram of the addresses per second of each import from file. */
+    public static final String IMPORT_RATE = "import.rate";
+    /** gauge of the connected peers, one per blockchain connection. */
+    public static final String PEER_COUNT = "network.peers";
+    /** gauge of the blocks we are behind the best peer, one per blockchain connection. */
+    public static final String SYNC_LAG = "network.syncLag";
+    /** histogram of the time to handle each request, or batch of requests, of the wallet server. */
+    public static final String SERVER_REQUEST_TIME = "server.requestTime";
+
+    private static volatile MetricsRegistry registry = new JmxMetricsRegistry();
+
+    private Metrics() {
+    }
+
+    /**
+     * @return the registry that receives the metrics.
+     */
+    public static MetricsRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * Sets the registry that receives the metrics. It should be set before creating wallets, since their gauges are registered when they are created.
+     * @param metricsRegistry the new registry.
+     */
+    public static void setRegistry(MetricsRegistry metricsRegistry) {
+        Preconditions.checkNotNull(metricsRegistry);
+        registry = metricsRegistry;
+    }
+
+    /**
+     * Records the time elapsed since the start in microseconds.
+     * @param name the name of the histogram.
+     * @param startNanos the start, from {@link System#nanoTime()}
+     */
+    public static void recordTime(String name, long startNanos) {
+        registry.record(name, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * @param name the metric name.
+     * @param owner the events or blocks file the gauge belongs to.
+     * @return the name of the gauge.
+     */
+    public static String getGaugeName(String name, File owner) {
+        return name + "." + owner.getName();
+    }
+}
@@ -0,0 +1,35 @@
+package fermatOrg.metrics;
+
+/**
+ * Receives the metrics of the wallets and blockchain connections of this process. The default registry keeps them in memory and
+ * exposes them through JMX, a different one can be set with {@link Metrics#setRegistry(MetricsRegistry)} to send them to any monitoring system.
+ * Implementations are called from the network and wallet threads, so they must be thread safe and fast.
+ */
+public interface MetricsRegistry {
+    /**
+     * Adds a sample to a histogram, like a duration in microseconds or an amount of events.
+     * @param name the name of the histogram, one of the {@link Metrics} names.
+     * @param value the sample.
+     */
+    void record(String name, long value);
+
+    /**
+     * Increments a counter.
+     * @param name the name of the counter, one of the {@link Metrics} names.
+     * @param amount the amount to add.
+     */
+    void increment(String name, long amount);
+
+    /**
+     * Registers a value that is read when needed, like a queue size. A gauge with the same name is replaced.
+     * @param name the name of the gauge, usually one of the {@link Metrics} names followed by the wallet or blockchain it belongs to.
+     * @param gauge the gauge.
+     */
+    void register(String name, Gauge gauge);
+
+    /**
+     * Removes a gauge.
+     * @param name the name of the gauge.
+     */
+    void unregister(String name);
+}
@@ -0,0 +1,647 @@
+package fermatOrg.network;
+
+import com.google.common.base.Preconditions;
+import org.blockchainj.core.Address;
+import org.blockchainj.core.Block;
+import org.blockchainj.core.Coin;
+import org.blockchainj.core.NetworkParameters;
+import org.blockchainj.core.Sha256Hash;
+import org.blockchainj.core.StoredBlock;
+import org.blockchainj.core.Transaction;
+import org.blockchainj.core.TransactionInput;
+import org.blockchainj.core.TransactionOutPoint;
+import org.blockchainj.core.TransactionOutput;
+import org.blockchainj.script.ScriptBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A local copy of the data we need from each full block to find the transactions of addresses imported after the blocks were
+ * downloaded: the hash of each transaction, its outputs to addresses and the outpoints spent by its inputs, with a small filter per
+ * block over all of them. Rescans read this file in parallel instead of downloading every block again. Signatures and other
+ * outputs are not kept, so the cache is much smaller than the blocks.
+ * <p>
+ *     The file starts with its format version. Blocks are appended in height order, a block at a height we already have drops
+ *     it and every block above it. A block record is its length, height, header, keys count, filter, and its transactions,
+ *     each one with its position in the block, hash, outputs to addresses and spent outpoints.
+ * </p>
+ */
+public class BlockCache {
+    //class variables
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final FileChannel channel;
+    private long[] offsets = new long[1024]; // the position of each block record by height, -1 if the block is not cached.
+    private int firstHeight = -1;
+    private int lastHeight = -1;
+    private int blockCount;
+    private boolean closed;
+
+    //class constants
+    private final ReadWriteLock scanLock = new ReentrantReadWriteLock(); // held for reading by each scan, so the file is not truncated or closed under it.
+    private static final int FORMAT_VERSION = 2; // the version of the records, files of another version are started again.
+    private static final int HEADER_LENGTH = 4;
+    private static final int HASH_LENGTH = 32;
+    private static final int HASH160_LENGTH = 20;
+    private static final int OUTPUT_LENGTH = 33; // the index, value, type and hash160 of an output.
+    private static final int OUTPUT_HASH160_OFFSET = 13;
+    private static final byte PAY_TO_ADDRESS = 0;
+    private static final byte PAY_TO_SCRIPT_HASH = 1;
+    private static final int OUTPOINT_LENGTH = 36; // the hash of the transaction and the index of the output.
+    private static final int FILTER_BITS_PER_KEY = 16;
+    private static final int FILTER_PROBES = 4;
+
+    /**
+     * Opens the cache file, or creates it. An incomplete block at the end of the file, from a crash while it was written, is dropped,
+     * and so is the whole file if it was written with another format.
+     * @param file the cache file.
+     * @throws IOException if the file can't be read.
+     */
+    public BlockCache(File file) throws IOException {
+        Preconditions.checkNotNull(file);
+
+        this.file = file;
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        load();
+    }
+
+    /**
+     * reads the height of every record to build the offsets table.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer recordHeader = ByteBuffer.allocate(8);
+        if (size >= HEADER_LENGTH) {
+            recordHeader.limit(HEADER_LENGTH);
+            readFully(recordHeader, 0);
+        }
+        if (size < HEADER_LENGTH || recordHeader.getInt(0) != FORMAT_VERSION) {
+            channel.truncate(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(0, FORMAT_VERSION);
+            while (header.hasRemaining())
+                channel.write(header, header.position());
+            return;
+        }
+
+        long position = HEADER_LENGTH;
+        while (position + 8 <= size){
+            recordHeader.clear();
+            readFully(recordHeader, position);
+            recordHeader.flip();
+            int length = recordHeader.getInt();
+            int height = recordHeader.getInt();
+            if (length < 4 || position + 4 + length > size || height <= lastHeight)
+                break;
+
+            setOffset(height, position);
+            position += 4 + length;
+        }
+
+        if (position < size)
+            channel.truncate(position);
+    }
+
+    /**
+     * Adds a block of the best chain. Blocks with only their header are ignored. If we already have a block at this height or above it,
+     * they are dropped first since the chain was reorganized.
+     * @param block the full block.
+     * @param height the height of the block.
+     * @throws IOException if the block can't be written.
+     */
+    public void add(Block block, int height) throws IOException {
+        Preconditions.checkNotNull(block);
+        Preconditions.checkArgument(height >= 0);
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions == null)
+            return;
+
+        // blocks are only added by the block download, so the last height doesn't change until we append.
+        if (height <= getLastHeight())
+            truncate(height - 1);
+        append(block, transactions, height);
+    }
+
+    private synchronized void append(Block block, List<Transaction> transactions, int height) throws IOException {
+        // the keys of every transaction, for the filter of the block.
+        List<byte[]> keys = new ArrayList<>();
+        ByteArrayOutputStream transactionsBytes = new ByteArrayOutputStream();
+        DataOutputStream transactionsStream = new DataOutputStream(transactionsBytes);
+        int transactionCount = 0;
+        for (int position = 0; position < transactions.size(); position++){
+            Transaction transaction = transactions.get(position);
+            List<byte[]> outputKeys = new ArrayList<>();
+            List<byte[]> outputs = new ArrayList<>();
+            for (TransactionOutput output : transaction.getOutputs()){
+                byte[] script = output.getScriptBytes();
+                int offset = WatchedAddressIndex.getHash160Offset(script);
+                if (offset < 0)
+                    continue;
+
+                ByteBuffer outputBytes = ByteBuffer.allocate(OUTPUT_LENGTH);
+                outputBytes.putInt(output.getIndex()).putLong(output.getValue().getValue());
+                outputBytes.put(offset == 3 ? PAY_TO_ADDRESS : PAY_TO_SCRIPT_HASH).put(script, offset, HASH160_LENGTH);
+                outputs.add(outputBytes.array());
+                outputKeys.add(Arrays.copyOfRange(script, offset, offset + HASH160_LENGTH));
+            }
+            List<byte[]> spendKeys = new ArrayList<>();
+            if (!transaction.isCoinBase()){
+                for (TransactionInput input : transaction.getInputs())
+                    spendKeys.add(getOutpointKey(input.getOutpoint().getHash(), input.getOutpoint().getIndex()));
+            }
+            if (outputKeys.isEmpty() && spendKeys.isEmpty())
+                continue;
+
+            transactionsStream.writeInt(position);
+            transactionsStream.write(transaction.getHash().getBytes());
+            writeKeys(transactionsStream, outputs);
+            writeKeys(transactionsStream, spendKeys);
+            keys.addAll(outputKeys);
+            keys.addAll(spendKeys);
+            transactionCount++;
+        }
+
+        long[] filter = new long[Math.max(1, (keys.size() * FILTER_BITS_PER_KEY + 63) / 64)];
+        for (byte[] key : keys)
+            addToFilter(filter, getKeyHash(key, 0, key.length));
+
+        byte[] header = block.cloneAsHeader().bitcoinSerialize();
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream(64 + header.length + filter.length * 8 + transactionsBytes.size());
+        DataOutputStream record = new DataOutputStream(recordBytes);
+        record.writeInt(0); // the length, set below.
+        record.writeInt(height);
+        record.writeInt(header.length);
+        record.write(header);
+        record.writeInt(keys.size());
+        record.writeInt(filter.length);
+        for (long word : filter)
+            record.writeLong(word);
+        record.writeInt(transactionCount);
+        transactionsStream.flush();
+        transactionsBytes.writeTo(record);
+        record.flush();
+
+        ByteBuffer buffer = ByteBuffer.wrap(recordBytes.toByteArray());
+        buffer.putInt(0, buffer.capacity() - 4);
+        long position = channel.size();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        setOffset(height, position - buffer.capacity());
+    }
+
+    private static void writeKeys(DataOutputStream stream, List<byte[]> keys) throws IOException {
+        stream.writeInt(keys.size());
+        for (byte[] key : keys)
+            stream.write(key);
+    }
+
+    /**
+     * Drops the blocks above a height, after a reorganization. Waits for the running scans.
+     * @param height the last height to keep.
+     * @throws IOException if the file can't be truncated.
+     */
+    public void truncate(int height) throws IOException {
+        scanLock.writeLock().lock();
+        try {
+            drop(height);
+        } finally {
+            scanLock.writeLock().unlock();
+        }
+    }
+
+    private synchronized void drop(int height) throws IOException {
+        if (lastHeight <= height)
+            return;
+
+        long end = -1;
+        for (int i = lastHeight; i > height && i >= firstHeight; i--){
+            long offset = offsets[i - firstHeight];
+            if (offset >= 0) {
+                end = offset;
+                offsets[i - firstHeight] = -1;
+                blockCount--;
+            }
+        }
+        if (end >= 0)
+            channel.truncate(end);
+
+        lastHeight = -1;
+        for (int i = Math.min(height, lastHeightSlot()); i >= firstHeight && firstHeight >= 0; i--){
+            if (offsets[i - firstHeight] >= 0) {
+                lastHeight = i;
+                break;
+            }
+        }
+        if (lastHeight < 0)
+            firstHeight = -1;
+    }
+
+    /**
+     * the highest height the offsets table has room for.
+     */
+    private int lastHeightSlot() {
+        return firstHeight + offsets.length - 1;
+    }
+
+    private void setOffset(int height, long offset) {
+        if (firstHeight < 0) {
+            firstHeight = height;
+            Arrays.fill(offsets, -1);
+        }
+        if (height > lastHeightSlot()) {
+            int oldLength = offsets.length;
+            offsets = Arrays.copyOf(offsets, Math.max(oldLength * 2, height - firstHeight + 1));
+            Arrays.fill(offsets, oldLength, offsets.length, -1);
+        }
+
+        offsets[height - firstHeight] = offset;
+        lastHeight = height;
+        blockCount++;
+    }
+
+    /**
+     * @return the height of the first cached block, or -1 if the cache is empty.
+     */
+    public synchronized int getFirstHeight() {
+        return firstHeight;
+    }
+
+    /**
+     * @return the height of the last cached block, or -1 if the cache is empty.
+     */
+    public synchronized int getLastHeight() {
+        return lastHeight;
+    }
+
+    /**
+     * @return the amount of cached blocks. Blocks that were downloaded with only their header, before the creation time of the
+     * wallets, are not cached.
+     */
+    public synchronized int getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return the cache file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Closes the cache file once the running scans are done. Scans started after it fail.
+     * @throws IOException if the file can't be closed.
+     */
+    public void close() throws IOException {
+        scanLock.writeLock().lock();
+        try {
+            synchronized (this) {
+                closed = true;
+                randomAccessFile.close();
+            }
+        } finally {
+            scanLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the transactions that pay to any of the hash160s, from a height to the last cached block.
+     * @param hash160s the hash160 of the addresses.
+     * @param fromHeight the first height to look at.
+     * @return the transactions, in the order they are in the chain.
+     * @throws IOException if the file can't be read or is closed.
+     */
+    public List<CachedTransaction> findOutputs(List<byte[]> hash160s, int fromHeight) throws IOException {
+        return find(hash160s, false, fromHeight);
+    }
+
+    /**
+     * Finds the transactions that spend any of the outpoints, from a height to the last cached block.
+     * @param outpoints the outpoints, created with {@link #getOutpointKey(Sha256Hash, long)}
+     * @param fromHeight the first height to look at.
+     * @return the transactions, in the order they are in the chain.
+     * @throws IOException if the file can't be read or is closed.
+     */
+    public List<CachedTransaction> findSpends(List<byte[]> outpoints, int fromHeight) throws IOException {
+        return find(outpoints, true, fromHeight);
+    }
+
+    /**
+     * splits the heights in as many ranges as processors and scans them in parallel. Keys are matched by a 64 bit hash, so the caller
+     * must check the transactions it gets, which the wallets do anyway.
+     */
+    private List<CachedTransaction> find(List<byte[]> keys, boolean spends, int fromHeight) throws IOException {
+        Preconditions.checkNotNull(keys);
+        scanLock.readLock().lock();
+        try {
+            return findLocked(keys, spends, fromHeight);
+        } finally {
+            scanLock.readLock().unlock();
+        }
+    }
+
+    private List<CachedTransaction> findLocked(List<byte[]> keys, final boolean spends, int fromHeight) throws IOException {
+        final long[] keyHashes = new long[keys.size()];
+        for (int i = 0; i < keys.size(); i++)
+            keyHashes[i] = getKeyHash(keys.get(i), 0, keys.get(i).length);
+        Arrays.sort(keyHashes);
+
+        // the offsets of the blocks to scan as they are now, blocks added meanwhile are received by the wallets.
+        final long[] blockOffsets;
+        synchronized (this) {
+            if (closed)
+                throw new IOException("The block cache " + file + " is closed.");
+            if (keys.isEmpty() || firstHeight < 0 || fromHeight > lastHeight)
+                return new ArrayList<>();
+
+            int from = Math.max(fromHeight, firstHeight) - firstHeight;
+            blockOffsets = Arrays.copyOfRange(offsets, from, lastHeight - firstHeight + 1);
+        }
+
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), blockOffsets.length / 100));
+        int rangeSize = (blockOffsets.length + threads - 1) / threads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<List<CachedTransaction>>> futures = new ArrayList<>();
+            for (int start = 0; start < blockOffsets.length; start += rangeSize){
+                final int rangeStart = start;
+                final int rangeEnd = Math.min(blockOffsets.length, start + rangeSize);
+                futures.add(executor.submit(new Callable<List<CachedTransaction>>() {
+                    @Override
+                    public List<CachedTransaction> call() throws Exception {
+                        return scan(blockOffsets, rangeStart, rangeEnd, keyHashes, spends);
+                    }
+                }));
+            }
+
+            // the ranges are in height order, and so are the transactions of each one.
+            List<CachedTransaction> found = new ArrayList<>();
+            for (Future<List<CachedTransaction>> future : futures)
+                found.addAll(future.get());
+            return found;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("The block cache scan was interrupted.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to scan the block cache.", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * scans a range of blocks. The filter of each block is only checked when probing it for every key is cheaper than hashing the
+     * keys of the block.
+     */
+    private List<CachedTransaction> scan(long[] blockOffsets, int start, int end, long[] keyHashes, boolean spends) throws IOException {
+        List<CachedTransaction> found = new ArrayList<>();
+        byte[] bytes = new byte[4096];
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        for (int i = start; i < end; i++){
+            if (blockOffsets[i] < 0)
+                continue;
+
+            lengthBuffer.clear();
+            readFully(lengthBuffer, blockOffsets[i]);
+            int length = lengthBuffer.getInt(0);
+            if (bytes.length < length)
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            readFully(ByteBuffer.wrap(bytes, 0, length), blockOffsets[i] + 4);
+
+            ByteBuffer record = ByteBuffer.wrap(bytes, 0, length);
+            int height = record.getInt();
+            byte[] header = new byte[record.getInt()];
+            record.get(header);
+            int keyCount = record.getInt();
+            int filterWords = record.getInt();
+            if ((long) keyHashes.length * FILTER_PROBES < keyCount && !filterMatches(record, filterWords, keyHashes))
+                continue;
+            record.position(record.position() + filterWords * 8);
+
+            int transactionCount = record.getInt();
+            for (int t = 0; t < transactionCount; t++){
+                int transactionStart = record.position();
+                int position = record.getInt();
+                record.position(record.position() + HASH_LENGTH);
+                boolean matches = keysMatch(bytes, record, OUTPUT_LENGTH, OUTPUT_HASH160_OFFSET, HASH160_LENGTH, spends ? null : keyHashes);
+                matches |= keysMatch(bytes, record, OUTPOINT_LENGTH, 0, OUTPOINT_LENGTH, spends ? keyHashes : null);
+                if (matches)
+                    found.add(new CachedTransaction(height, header, position, Arrays.copyOfRange(bytes, transactionStart + 4, record.position())));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * reads a list of entries from the record, each one with a key at the same offset. If there are key hashes, it returns true if
+     * any key is in them.
+     */
+    private static boolean keysMatch(byte[] bytes, ByteBuffer record, int entryLength, int keyOffset, int keyLength, long[] keyHashes) {
+        int count = record.getInt();
+        int offset = record.position();
+        record.position(offset + count * entryLength);
+        if (keyHashes == null)
+            return false;
+
+        for (int k = 0; k < count; k++){
+            if (Arrays.binarySearch(keyHashes, getKeyHash(bytes, offset + k * entryLength + keyOffset, keyLength)) >= 0)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * checks the keys against the filter of the block, which starts at the current position of the record.
+     */
+    private static boolean filterMatches(ByteBuffer record, int filterWords, long[] keyHashes) {
+        int filterStart = record.position();
+        long bits = filterWords * 64L;
+        for (long keyHash : keyHashes){
+            boolean all = true;
+            int h1 = (int) keyHash;
+            int h2 = (int) (keyHash >>> 32) | 1;
+            for (int p = 0; p < FILTER_PROBES && all; p++){
+                long bit = ((h1 + p * h2) & 0x7fffffffL) % bits;
+                all = (record.getLong(filterStart + (int) (bit >>> 6) * 8) & (1L << bit)) != 0;
+            }
+            if (all)
+                return true;
+        }
+        return false;
+    }
+
+    private static void addToFilter(long[] filter, long keyHash) {
+        long bits = filter.length * 64L;
+        int h1 = (int) keyHash;
+        int h2 = (int) (keyHash >>> 32) | 1;
+        for (int p = 0; p < FILTER_PROBES; p++){
+            long bit = ((h1 + p * h2) & 0x7fffffffL) % bits;
+            filter[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * the 64 bit FNV-1a hash of the key, mixed with the murmur3 finalizer so that both halves are usable as filter probes.
+     */
+    static long getKeyHash(byte[] bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++)
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x100000001b3L;
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * The key of an outpoint in the cache.
+     * @param transactionHash the hash of the transaction of the output.
+     * @param index the index of the output.
+     * @return the hash bytes followed by the index.
+     */
+    public static byte[] getOutpointKey(Sha256Hash transactionHash, long index) {
+        return ByteBuffer.allocate(OUTPOINT_LENGTH).put(transactionHash.getBytes()).putInt((int) index).array();
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of the block cache " + file);
+            position += read;
+        }
+    }
+
+    /**
+     * Sorts transactions in chain order, by height and by position in the block.
+     * @param transactions the transactions.
+     */
+    public static void sort(List<CachedTransaction> transactions) {
+        Collections.sort(transactions, new Comparator<CachedTransaction>() {
+            @Override
+            public int compare(CachedTransaction first, CachedTransaction second) {
+                if (first.height != second.height)
+                    return first.height < second.height ? -1 : 1;
+                return first.position < second.position ? -1 : (first.position == second.position ? 0 : 1);
+            }
+        });
+    }
+
+    /**
+     * A transaction read from the cache with the block it is in.
+     */
+    public static class CachedTransaction {
+        private final int height;
+        private final byte[] header;
+        private final int position;
+        private final byte[] bytes; // the hash, outputs and outpoints of the transaction, as they are in the record.
+
+        CachedTransaction(int height, byte[] header, int position, byte[] bytes) {
+            this.height = height;
+            this.header = header;
+            this.position = position;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return the hash of the transaction.
+         */
+        public Sha256Hash getHash() {
+            return Sha256Hash.wrap(Arrays.copyOf(bytes, HASH_LENGTH));
+        }
+
+        /**
+         * @return the height of the block.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return the position of the transaction in the block.
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        /**
+         * @return true if both are the same transaction of the same block.
+         */
+        public boolean isSameAs(CachedTransaction other) {
+            return height == other.height && position == other.position;
+        }
+
+        /**
+         * Rebuilds what the cache has of the transaction: the outpoints it spends, with no signatures, and its outputs to addresses.
+         * The other outputs are empty, so the outputs keep their index. It has the hash of the real transaction, but it can't be
+         * verified or stored in a wallet.
+         * @param params the network of the cache.
+         * @return the partial transaction.
+         */
+        public Transaction getTransaction(NetworkParameters params) {
+            ByteBuffer record = ByteBuffer.wrap(bytes);
+            record.position(HASH_LENGTH);
+            byte[][] outputs = new byte[record.getInt()][];
+            for (int i = 0; i < outputs.length; i++){
+                outputs[i] = new byte[OUTPUT_LENGTH];
+                record.get(outputs[i]);
+            }
+
+            Transaction transaction = new Transaction(params);
+            int outpointCount = record.getInt();
+            byte[] outpointHash = new byte[HASH_LENGTH];
+            for (int i = 0; i < outpointCount; i++){
+                record.get(outpointHash);
+                TransactionOutPoint outpoint = new TransactionOutPoint(params, record.getInt() & 0xffffffffL, Sha256Hash.wrap(outpointHash));
+                transaction.addInput(new TransactionInput(params, transaction, new byte[0], outpoint));
+            }
+
+            for (byte[] output : outputs){
+                ByteBuffer outputBytes = ByteBuffer.wrap(output);
+                int index = outputBytes.getInt();
+                Coin value = Coin.valueOf(outputBytes.getLong());
+                byte type = outputBytes.get();
+                byte[] hash160 = Arrays.copyOfRange(output, OUTPUT_HASH160_OFFSET, OUTPUT_LENGTH);
+                while (transaction.getOutputs().size() < index)
+                    transaction.addOutput(new TransactionOutput(params, transaction, Coin.ZERO, new byte[0]));
+                if (type == PAY_TO_ADDRESS)
+                    transaction.addOutput(value, new Address(params, params.getAddressHeader(), hash160));
+                else
+                    transaction.addOutput(value, ScriptBuilder.createP2SHOutputScript(hash160));
+            }
+
+            byte[] transactionBytes = transaction.unsafeBitcoinSerialize();
+            return params.getDefaultSerializer().makeTransaction(transactionBytes, 0, transactionBytes.length, getHash().getReversedBytes());
+        }
+
+        /**
+         * @param params the network of the cache.
+         * @return the block with only its header, and no chain work.
+         */
+        public StoredBlock getBlock(NetworkParameters params) {
+            return new StoredBlock(params.getDefaultSerializer().makeBlock(header), BigInteger.ZERO, height);
+        }
+    }
+}
@@ -20,6 +20,12 @@ interface Blockchain  {
      */
     public int getBlockchainHeight();
 
+    /**
+     * returns the last snapshot of the synchronization state. Reading it is cheap and doesn't require to be connected.
+     * @return the current sync state.
+     */
+    SyncStatus getSyncStatus();
+
     /**
      * Connects to the blockchain and start downloading missing blocks.
      * It will try to connect first to any local IoP client, if not found, then it ill connect to remote peers thought DNS discovery.
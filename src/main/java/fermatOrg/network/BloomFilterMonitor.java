@@ -0,0 +1,139 @@
+package fermatOrg.network;
+
+import com.google.common.base.Preconditions;
+import org.blockchainj.core.*;
+import org.blockchainj.core.listeners.BlocksDownloadedEventListener;
+import org.blockchainj.wallet.Wallet;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Measures the false positives of every filtered block we download and forces the peer group to recalculate and resend
+ * the bloom filter when the observed rate drifts too far above the configured one.
+ */
+class BloomFilterMonitor implements BlocksDownloadedEventListener {
+    //class variables
+    private volatile double targetRate = PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE;
+    private volatile double tolerance = 4; // the observed rate can be this many times the target before recalculating.
+    private double falsePositives; // decayed amount of false positives
+    private double candidates; // decayed amount of transactions that didn't match our addresses
+    private long blocksSinceRecalculation;
+    private volatile PeerGroup peerGroup; // the peer group we ask to resend the filter.
+
+    //class constants
+    private final List<Wallet> wallets;
+    private final AtomicReference<BloomFilterStats> stats;
+    private static final double DECAY = 0.99; // weight of the previous blocks on each new block.
+    private static final int MIN_CANDIDATES = 1000; // we need this many transactions before trusting the observed rate.
+    private static final int MIN_BLOCKS_BETWEEN_RECALCULATIONS = 100; // gives peers time to apply the new filter.
+
+    /**
+     * constructor
+     * @param wallets the wallets with the watched addresses that the filter represents.
+     */
+    BloomFilterMonitor(List<Wallet> wallets) {
+        Preconditions.checkNotNull(wallets);
+
+        this.wallets = wallets;
+        this.stats = new AtomicReference<>(new BloomFilterStats(targetRate, 0, 0, 0, 0, 0, 0));
+    }
+
+    /**
+     * @return the last published filter stats.
+     */
+    BloomFilterStats getStats() {
+        return stats.get();
+    }
+
+    /**
+     * sets the peer group that will resend the filter when needed.
+     */
+    void setPeerGroup(PeerGroup peerGroup) {
+        this.peerGroup = peerGroup;
+    }
+
+    double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * sets the false positive rate the filter is calculated with. Measures start again.
+     */
+    synchronized void setTargetRate(double targetRate) {
+        this.targetRate = targetRate;
+        reset();
+    }
+
+    /**
+     * sets how many times the target rate the observed rate can be before forcing a recalculation.
+     */
+    void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    @Override
+    public synchronized void onBlocksDownloaded(Peer peer, Block block, FilteredBlock filteredBlock, int blocksLeft) {
+        if (filteredBlock == null)
+            return;
+
+        int matches = 0;
+        int blockFalsePositives = 0;
+        for (Transaction transaction : filteredBlock.getAssociatedTransactions().values()){
+            if (isRelevant(transaction))
+                matches++;
+            else
+                blockFalsePositives++;
+        }
+
+        falsePositives = falsePositives * DECAY + blockFalsePositives;
+        candidates = candidates * DECAY + Math.max(0, filteredBlock.getTransactionCount() - matches);
+        blocksSinceRecalculation++;
+
+        BloomFilterStats current = stats.get();
+        int recalculations = current.getRecalculations();
+        double observedRate = candidates == 0 ? 0 : falsePositives / candidates;
+
+        if (candidates >= MIN_CANDIDATES && blocksSinceRecalculation >= MIN_BLOCKS_BETWEEN_RECALCULATIONS && observedRate > targetRate * tolerance) {
+            // the filter is saturated or peers are sending us more than expected, we send a fresh filter to all peers.
+            if (peerGroup != null) {
+                peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.FORCE_SEND_FOR_REFRESH);
+                recalculations++;
+                falsePositives = 0;
+                candidates = 0;
+                blocksSinceRecalculation = 0;
+            }
+        }
+
+        stats.set(new BloomFilterStats(targetRate, observedRate, blockFalsePositives, current.getTotalFalsePositives() + blockFalsePositives,
+                current.getTotalMatches() + matches, current.getBlocks() + 1, recalculations));
+    }
+
+    /**
+     * a transaction is relevant if it pays to a watched address or spends from a transaction of the wallet.
+     */
+    private boolean isRelevant(Transaction transaction) {
+        for (Wallet wallet : wallets){
+            for (TransactionOutput output : transaction.getOutputs()){
+                if (output.isWatched(wallet) || output.isMine(wallet))
+                    return true;
+            }
+
+            for (TransactionInput input : transaction.getInputs()){
+                if (!input.isCoinBase() && wallet.getTransaction(input.getOutpoint().getHash()) != null)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void reset() {
+        falsePositives = 0;
+        candidates = 0;
+        blocksSinceRecalculation = 0;
+        BloomFilterStats current = stats.get();
+        stats.set(new BloomFilterStats(targetRate, 0, 0, current.getTotalFalsePositives(), current.getTotalMatches(),
+                current.getBlocks(), current.getRecalculations()));
+    }
+}
@@ -0,0 +1,89 @@
+package fermatOrg.network;
+
+/**
+ * Immutable snapshot of how the bloom filter we send to peers is performing.
+ * A false positive is a transaction the peers sent us because it matched the filter, but that doesn't pay to or spend from any watched address.
+ */
+public class BloomFilterStats {
+    //class constants
+    private final double targetRate;
+    private final double observedRate;
+    private final int lastBlockFalsePositives;
+    private final long totalFalsePositives;
+    private final long totalMatches;
+    private final long blocks;
+    private final int recalculations;
+
+    public BloomFilterStats(double targetRate, double observedRate, int lastBlockFalsePositives, long totalFalsePositives,
+                            long totalMatches, long blocks, int recalculations) {
+        this.targetRate = targetRate;
+        this.observedRate = observedRate;
+        this.lastBlockFalsePositives = lastBlockFalsePositives;
+        this.totalFalsePositives = totalFalsePositives;
+        this.totalMatches = totalMatches;
+        this.blocks = blocks;
+        this.recalculations = recalculations;
+    }
+
+    /**
+     * The configured false positive rate of the filter.
+     * @return a value between 0 and 1.
+     */
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * The false positive rate observed on the last blocks: false positives divided by the transactions that didn't match our addresses.
+     * @return a value between 0 and 1.
+     */
+    public double getObservedRate() {
+        return observedRate;
+    }
+
+    /**
+     * The amount of false positives received on the last filtered block.
+     * @return the false positives of the last block.
+     */
+    public int getLastBlockFalsePositives() {
+        return lastBlockFalsePositives;
+    }
+
+    /**
+     * The amount of false positives received since we connected.
+     * @return the total false positives.
+     */
+    public long getTotalFalsePositives() {
+        return totalFalsePositives;
+    }
+
+    /**
+     * The amount of transactions received since we connected that really matched our addresses.
+     * @return the total real matches.
+     */
+    public long getTotalMatches() {
+        return totalMatches;
+    }
+
+    /**
+     * The amount of filtered blocks analyzed since we connected.
+     * @return the amount of blocks.
+     */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * The amount of times the filter was recalculated and sent again to peers because the observed rate drifted from the target.
+     * @return the amount of recalculations.
+     */
+    public int getRecalculations() {
+        return recalculations;
+    }
+
+    @Override
+    public String toString() {
+        return "BloomFilterStats{targetRate=" + targetRate + ", observedRate=" + observedRate + ", lastBlockFalsePositives=" + lastBlockFalsePositives +
+                ", totalFalsePositives=" + totalFalsePositives + ", totalMatches=" + totalMatches + ", blocks=" + blocks + ", recalculations=" + recalculations + "}";
+    }
+}
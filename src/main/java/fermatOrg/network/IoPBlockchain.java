@@ -3,61 +3,316 @@ package fermatOrg.network;
 import ch.qos.logback.classic.Logger;
 import com.google.common.base.Preconditions;
 import fermatOrg.exceptions.IoPBlockchainException;
+import fermatOrg.metrics.Gauge;
+import fermatOrg.metrics.Metrics;
+import fermatOrg.wallet.UtxoSet;
 import fermatOrg.wallet.WatchOnlyWallet;
 import fermatOrg.wallet.event.EventNotificationManager;
 import fermatOrg.wallet.event.IncomingTransactionEvent;
 import fermatOrg.wallet.event.IncomingTransactionListener;
 import org.blockchainj.core.*;
+import org.blockchainj.core.listeners.BlocksDownloadedEventListener;
+import org.blockchainj.core.listeners.NewBestBlockListener;
+import org.blockchainj.core.listeners.PeerConnectedEventListener;
+import org.blockchainj.core.listeners.PeerDisconnectedEventListener;
+import org.blockchainj.core.listeners.PeerDiscoveredEventListener;
+import org.blockchainj.core.listeners.PreMessageReceivedEventListener;
+import org.blockchainj.core.listeners.ReorganizeListener;
+import org.blockchainj.core.listeners.TransactionReceivedInBlockListener;
+import org.blockchainj.core.listeners.TransactionConfidenceEventListener;
+import org.blockchainj.script.Script;
 import org.blockchainj.store.BlockStore;
 import org.blockchainj.store.BlockStoreException;
 import org.blockchainj.store.MemoryBlockStore;
 import org.blockchainj.store.SPVBlockStore;
+import org.blockchainj.utils.ContextPropagatingThreadFactory;
+import org.blockchainj.utils.Threading;
 import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.listeners.ScriptsChangeEventListener;
 import org.blockchainj.wallet.listeners.WalletCoinsReceivedEventListener;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Created by rodrigo on 11/3/16.
  * The IoP Blockchain connection. It takes care of finding peers on the IoP blockchain, download pending blocks as they are visible.
  * If we found transactions that belong to any of the watched address, we will store it and trigger the incoming transaction event.
  * Its better (in terms of performance) to only {@link WatchOnlyWallet#connect()}to the blockchain after all addresses have already been imported into the wallet with {@link WatchOnlyWallet#importAddresses(File)}
+ * <p>
+ *     A single connection can be shared by many watch only wallets of the same network with {@link WatchOnlyWallet#connect(IoPBlockchain)}.
+ *     They all use the same peers, block store and block download, and can be attached or detached at any time.
+ * </p>
  */
 public class IoPBlockchain implements  Blockchain{
     //class variables
     private PeerGroup peerGroup;
     private BlockStore blockStore;
     private BlockChain blockChain;
+    private final PeerEvents peerEvents = new PeerEvents();
+    private final ChainReorganization chainReorganization = new ChainReorganization();
+    private final BlockTransactions blockTransactions = new BlockTransactions();
+    private volatile int syncedThreshold = 10; // amount of blocks we can be behind the best peer and still be synced.
 
     // static members
-    private static Logger logger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    private static Logger logger = (Logger) LoggerFactory.getLogger(IoPBlockchain.class);
 
 
     // class constants
-    private final Wallet wallet;
+    private final List<Wallet> wallets = new CopyOnWriteArrayList<>(); // the blockchainj wallets of all the attached watch only wallets.
+    private final Map<Wallet, IncomingEvent> incomingEvents = new ConcurrentHashMap<>(); // the incoming transaction listener of each attached wallet.
+    private final List<UtxoSet> utxoSets = new CopyOnWriteArrayList<>(); // the unspent outputs of the attached compact wallets.
+    private final List<InetSocketAddress> fixedPeers = new CopyOnWriteArrayList<>(); // peers set by the user, used instead of any other.
     private final Context context;
     private final File blockchainFile; //the file in which we are storing the blocks
-    private final EventNotificationManager eventNotificationManager;
+    private final PeerDatabase peerDatabase; // the scored table of known peers, stored next to the blocks file.
+    private static final int PARALLEL_CONNECTIONS = 8; // amount of known peers we try to connect at the same time.
+    private static final int MAX_SIDE_CHAIN_BLOCKS = 100; // the side chain blocks whose transactions we keep for a reorganization.
+    private final AtomicReference<SyncStatus> syncStatus; // the last published sync state snapshot.
+    private final BloomFilterMonitor bloomFilterMonitor; // measures the false positives of the filter we send to peers.
+    private final AtomicInteger blockEvents = new AtomicInteger(); // events created since the last downloaded block.
+    private volatile BlockCache blockCache; // the local copy of full blocks for rescans, or null if disabled.
+    private static final int BLOCK_DOWNLOAD_TIMEOUT = 60; // seconds we wait for a block of a rescanned transaction.
 
     /**
      * Constructor with the blockchainj wallet
      * @param wallet the blockchainj wallet with the imported addresses.
      */
     public IoPBlockchain(Wallet wallet, EventNotificationManager eventNotificationManager) {
-        Preconditions.checkNotNull(wallet);
+        this(Collections.singletonList(wallet), eventNotificationManager);
+    }
+
+    /**
+     * Constructor with the blockchainj wallets of a sharded watch only wallet. All the wallets share the same block chain and
+     * their filters are merged into the one sent to peers.
+     * @param wallets the blockchainj wallets with the imported addresses, all on the same network.
+     */
+    public IoPBlockchain(List<Wallet> wallets, EventNotificationManager eventNotificationManager) {
+        this(wallets, eventNotificationManager, new File(wallets.get(0).getParams().getId()));
+    }
+
+    /**
+     * Constructor with the blockchainj wallets and the file in which blocks are stored. Wallets that run side by side in the same
+     * process, even on different networks, use their own blocks file so they don't lock each other's.
+     * @param wallets the blockchainj wallets with the imported addresses, all on the same network.
+     * @param blockchainFile the blocks file. Known peers are stored next to it.
+     */
+    public IoPBlockchain(List<Wallet> wallets, EventNotificationManager eventNotificationManager, File blockchainFile) {
+        this(wallets.get(0).getContext(), blockchainFile);
+        addWallets(wallets, eventNotificationManager);
+    }
+
+    /**
+     * Creates a blockchain connection with no wallets, to be shared by many watch only wallets of the same network.
+     * Wallets are attached with {@link WatchOnlyWallet#connect(IoPBlockchain)} and detached with {@link WatchOnlyWallet#detach()}.
+     * @param networkType the network of the wallets that will be attached.
+     * @param directory the directory in which the blocks and peers files are stored.
+     */
+    public IoPBlockchain(NetworkType networkType, File directory) {
+        this(WatchOnlyWallet.getNetworkContext(networkType), new File(directory, WatchOnlyWallet.getNetworkParameters(networkType).getId()));
+    }
+
+    /**
+     * base constructor
+     * @param context the blockchainj context of the network.
+     * @param blockchainFile the file in which blocks are stored.
+     */
+    private IoPBlockchain(Context context, File blockchainFile) {
+        Preconditions.checkNotNull(context);
+        Preconditions.checkNotNull(blockchainFile);
+
+        this.context = context;
+        this.blockchainFile = blockchainFile;
+        this.peerDatabase = new PeerDatabase(new File(blockchainFile.getPath() + ".peers"));
+        this.bloomFilterMonitor = new BloomFilterMonitor(this.wallets);
+        this.syncStatus = new AtomicReference<>(new SyncStatus(0, 0, 0, 0));
+
+        Metrics.getRegistry().register(Metrics.getGaugeName(Metrics.PEER_COUNT, blockchainFile), new Gauge() {
+            @Override
+            public long getValue() {
+                return syncStatus.get().getPeerCount();
+            }
+        });
+        Metrics.getRegistry().register(Metrics.getGaugeName(Metrics.SYNC_LAG, blockchainFile), new Gauge() {
+            @Override
+            public long getValue() {
+                return syncStatus.get().getLag();
+            }
+        });
+    }
+
+    /**
+     * Attaches blockchainj wallets to this connection. If we are already connected, the new filter is sent to peers and the wallets
+     * will receive the next blocks. Blocks downloaded before a wallet was attached are not given to it: blockchainj rolls the block
+     * store back to the last block seen by a wallet that is behind it, but nothing is downloaded until the next {@link #connect()}.
+     * The transactions of the missed blocks can be found in the block cache with {@link #rescanFrom(List, List, UtxoSet, int)}.
+     * @param wallets the blockchainj wallets of a watch only wallet, more than one if the watch only wallet is sharded.
+     * @param eventNotificationManager the event manager of the watch only wallet.
+     */
+    public synchronized void addWallets(List<Wallet> wallets, EventNotificationManager eventNotificationManager) {
+        Preconditions.checkNotNull(wallets);
+        Preconditions.checkArgument(!wallets.isEmpty());
         Preconditions.checkNotNull(eventNotificationManager);
 
-        this.wallet = wallet;
-        this.eventNotificationManager = eventNotificationManager;
-        this.context = wallet.getContext();
-        this.blockchainFile = new File(wallet.getNetworkParameters().getId());
+        Context.propagate(context);
+        for (int i = 0; i < wallets.size(); i++){
+            Wallet wallet = wallets.get(i);
+            Preconditions.checkArgument(wallet.getNetworkParameters().equals(context.getParams()), "The wallet is not on the network of this blockchain.");
+            if (incomingEvents.containsKey(wallet))
+                continue;
+
+            // add the wallet event listener. Shards process their incoming transactions in parallel, each one on its own thread.
+            IncomingEvent incomingEvent;
+            if (wallets.size() == 1) {
+                incomingEvent = new IncomingEvent(eventNotificationManager, null);
+                wallet.addCoinsReceivedEventListener(incomingEvent);
+                wallet.addTransactionConfidenceEventListener(incomingEvent);
+            } else {
+                incomingEvent = new IncomingEvent(eventNotificationManager, Executors.newSingleThreadExecutor(
+                        new ContextPropagatingThreadFactory("IoP wallet shard " + i)));
+                wallet.addCoinsReceivedEventListener(incomingEvent.executor, incomingEvent);
+                wallet.addTransactionConfidenceEventListener(incomingEvent.executor, incomingEvent);
+            }
+            // the index listens to imports before it is filled, so no address imported meanwhile is missed.
+            wallet.addScriptChangeEventListener(Threading.SAME_THREAD, incomingEvent);
+            for (Script script : wallet.getWatchedScripts())
+                incomingEvent.index.add(script);
+            incomingEvents.put(wallet, incomingEvent);
+            this.wallets.add(wallet);
+
+            if (blockChain != null) {
+                blockChain.addWallet(wallet);
+            } else if (wallet.getLastBlockSeenHeight() > syncStatus.get().getLocalHeight())
+                updateBestBlock(wallet.getLastBlockSeenHeight(), wallet.getLastBlockSeenTimeSecs());
+
+            // the peer group merges the filters of all the wallets into the one sent to peers.
+            if (peerGroup != null)
+                peerGroup.addWallet(wallet);
+        }
+
+        // events confirmed before the wallet was closed may be deep enough already.
+        notifyBestBlock(eventNotificationManager, syncStatus.get().getLocalHeight());
+    }
+
+    /**
+     * Detaches blockchainj wallets from this connection. The connection stays up for the rest of the attached wallets.
+     * @param wallets the blockchainj wallets to detach.
+     */
+    public synchronized void removeWallets(List<Wallet> wallets) {
+        Preconditions.checkNotNull(wallets);
+
+        for (Wallet wallet : wallets){
+            IncomingEvent incomingEvent = incomingEvents.remove(wallet);
+            if (incomingEvent == null)
+                continue;
+
+            if (peerGroup != null)
+                peerGroup.removeWallet(wallet);
+            if (blockChain != null)
+                blockChain.removeWallet(wallet);
+
+            wallet.removeCoinsReceivedEventListener(incomingEvent);
+            wallet.removeTransactionConfidenceEventListener(incomingEvent);
+            wallet.removeScriptChangeEventListener(incomingEvent);
+            if (incomingEvent.executor != null)
+                incomingEvent.executor.shutdown();
+            this.wallets.remove(wallet);
+        }
+    }
+
+    /**
+     * Attaches the unspent outputs of a compact wallet. The set receives the transactions of every best chain block and its outpoints
+     * are added to the filter sent to peers. Its wallets must be attached with {@link #addWallets(List, EventNotificationManager)}
+     * @param utxoSet the unspent outputs of the compact wallet.
+     */
+    public synchronized void addUtxoSet(UtxoSet utxoSet) {
+        Preconditions.checkNotNull(utxoSet);
+        if (utxoSets.contains(utxoSet))
+            return;
 
-        //sets the log level the same as the wallet
-        logger.setLevel(WatchOnlyWallet.getLogLevel());
+        utxoSets.add(utxoSet);
+        if (blockChain != null)
+            registerUtxoSet(utxoSet);
+    }
+
+    /**
+     * Detaches the unspent outputs of a compact wallet.
+     * @param utxoSet the unspent outputs to detach.
+     */
+    public synchronized void removeUtxoSet(UtxoSet utxoSet) {
+        Preconditions.checkNotNull(utxoSet);
+        if (!utxoSets.remove(utxoSet))
+            return;
+
+        if (blockChain != null) {
+            blockChain.removeTransactionReceivedListener(utxoSet);
+            blockChain.removeNewBestBlockListener(utxoSet);
+            blockChain.removeReorganizeListener(utxoSet);
+        }
+        if (peerGroup != null) {
+            peerGroup.removeOnTransactionBroadcastListener(utxoSet);
+            peerGroup.removePeerFilterProvider(utxoSet);
+        }
+        utxoSet.setPeerGroup(null);
+    }
+
+    /**
+     * registers the set after the wallets, so they process each block before the set prunes them.
+     */
+    private void registerUtxoSet(UtxoSet utxoSet) {
+        blockChain.addTransactionReceivedListener(utxoSet);
+        blockChain.addNewBestBlockListener(utxoSet);
+        blockChain.addReorganizeListener(utxoSet);
+        if (peerGroup != null) {
+            peerGroup.addOnTransactionBroadcastListener(utxoSet);
+            peerGroup.addPeerFilterProvider(utxoSet);
+            utxoSet.setPeerGroup(peerGroup);
+        }
+    }
+
+    /**
+     * Adds a peer to connect to instead of looking for a local node or any known peer, like a private node or a simulated network.
+     * Once a peer is added, only added peers are used. If we are already connected, we connect to it right away.
+     * @param address the address and port of the peer.
+     */
+    public synchronized void addPeer(InetSocketAddress address) {
+        Preconditions.checkNotNull(address);
+        fixedPeers.add(address);
+
+        if (peerGroup != null) {
+            peerGroup.addAddress(new PeerAddress(context.getParams(), address));
+            peerGroup.setMaxConnections(fixedPeers.size());
+        }
+    }
+
+    /**
+     * The amount of blockchainj wallets attached to this connection.
+     * @return the amount of wallets, counting each shard of sharded wallets.
+     */
+    public int getWalletCount() {
+        return wallets.size();
     }
 
     /**
@@ -68,12 +323,19 @@ public class IoPBlockchain implements  Blockchain{
      */
     public void connect() throws IoPBlockchainException {
         try{
-            configureConnection();
+            // wallets sharing this connection may be connecting at the same time, only one starts the peer group.
+            boolean started = false;
+            synchronized (this) {
+                configureConnection();
 
-            if (!peerGroup.isRunning()){
-                this.peerGroup.start();
-                this.peerGroup.downloadBlockChain();
+                if (!peerGroup.isRunning()){
+                    this.peerGroup.start();
+                    started = true;
+                }
             }
+
+            if (started)
+                this.peerGroup.downloadBlockChain();
         } catch (Exception e){
             throw new IoPBlockchainException("There was an error connecting to the IoP blockchain.", e);
         }
@@ -86,13 +348,46 @@ public class IoPBlockchain implements  Blockchain{
      */
     public void disconnect(){
         this.peerGroup.stop();
+
+        // connected peers won't notify their disconnection once the peer group is stopped.
+        for (Map.Entry<Peer, Long> entry : peerEvents.connectionTimes.entrySet())
+            peerEvents.recordDisconnection(entry.getKey(), entry.getValue());
+        peerEvents.connectionTimes.clear();
+
+        savePeerDatabase();
+        updatePeerStatus(0, 0);
+    }
+
+    /**
+     * Disconnects if we are connected, closes the block cache and removes the metrics of this connection. Used when the connection
+     * is no longer needed, it can't be connected again.
+     */
+    public void close(){
+        synchronized (this) {
+            if (peerGroup != null && peerGroup.isRunning())
+                disconnect();
+
+            if (blockCache != null) {
+                try {
+                    blockCache.close();
+                } catch (IOException e) {
+                    logger.warn("Unable to close the block cache.", e);
+                }
+                blockCache = null;
+            }
+        }
+
+        Metrics.getRegistry().unregister(Metrics.getGaugeName(Metrics.PEER_COUNT, blockchainFile));
+        Metrics.getRegistry().unregister(Metrics.getGaugeName(Metrics.SYNC_LAG, blockchainFile));
     }
 
     /**
      * sets all needed objects to perform the connection
      * @throws BlockStoreException
      */
-    private void configureConnection() throws BlockStoreException {
+    private synchronized void configureConnection() throws BlockStoreException {
+        // the connection may be configured from a thread that used wallets of another network.
+        Context.propagate(context);
         if (blockStore == null)
             try {
                 this.blockStore = new SPVBlockStore(context.getParams(), blockchainFile);
@@ -100,19 +395,97 @@ public class IoPBlockchain implements  Blockchain{
                 this.blockStore = new MemoryBlockStore(context.getParams());
             }
 
-            if (this.blockChain == null)
-                this.blockChain = new BlockChain(this.context, this.wallet, this.blockStore);
+            if (this.blockChain == null) {
+                this.blockChain = new BlockChain(this.context, new ArrayList<>(this.wallets), this.blockStore);
+
+                // the sync state is updated on each new block, so reading it is cheap.
+                StoredBlock chainHead = blockChain.getChainHead();
+                updateBestBlock(chainHead.getHeight(), chainHead.getHeader().getTimeSeconds());
+                this.blockChain.addNewBestBlockListener(new NewBestBlockListener() {
+                    @Override
+                    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+                        updateBestBlock(block.getHeight(), block.getHeader().getTimeSeconds());
+
+                        // shards share their event manager, which ignores the block the second time.
+                        for (IncomingEvent incomingEvent : incomingEvents.values())
+                            notifyBestBlock(incomingEvent.eventNotificationManager, block.getHeight());
+                    }
+                });
+                this.blockChain.addReorganizeListener(Threading.SAME_THREAD, chainReorganization);
+                this.blockChain.addTransactionReceivedListener(blockTransactions);
+            }
 
         if (this.peerGroup == null) {
             this.peerGroup = new PeerGroup(context, blockChain);
             this.peerGroup.setConnectTimeoutMillis(30 * 1000); //30 seconds time out default.
+            this.peerGroup.setBloomFilterFalsePositiveRate(bloomFilterMonitor.getTargetRate());
+            if (blockCache != null)
+                this.peerGroup.setBloomFilteringEnabled(false);
 
-            // add the wallet event listener
-            IncomingEvent incomingEvent = new IncomingEvent();
-            this.wallet.addCoinsReceivedEventListener(incomingEvent);
+            // measures the false positives of each filtered block and resends the filter if needed.
+            this.bloomFilterMonitor.setPeerGroup(peerGroup);
+            this.peerGroup.addBlocksDownloadedEventListener(bloomFilterMonitor);
 
-            this.peerGroup.addWallet(wallet);
+            // keeps the peer table updated and reconnects first to the best known peers.
+            this.peerGroup.addConnectedEventListener(peerEvents);
+            this.peerGroup.addDisconnectedEventListener(peerEvents);
+            this.peerGroup.addDiscoveredEventListener(peerEvents);
+            this.peerGroup.addBlocksDownloadedEventListener(peerEvents);
+            this.peerGroup.addBlocksDownloadedEventListener(Threading.SAME_THREAD, new BlockCacheFeed());
+            this.peerGroup.addPreMessageReceivedEventListener(Threading.SAME_THREAD, peerEvents);
+            if (fixedPeers.isEmpty())
+                addKnownPeers();
+            else
+                addFixedPeers();
 
+            // the peer group merges the filters of all the wallets into the one sent to peers.
+            for (Wallet wallet : wallets)
+                this.peerGroup.addWallet(wallet);
+
+            for (UtxoSet utxoSet : utxoSets)
+                registerUtxoSet(utxoSet);
+        }
+    }
+
+    /**
+     * Adds the best scored peers from the peer table to the peer group, so they are tried in parallel before any discovery.
+     * The peer group only runs discovery when it runs out of known peers to try, so discovery just tops up the table.
+     */
+    private void addKnownPeers() {
+        int maxConnections = peerGroup.getMaxConnections();
+        int added = 0;
+        for (PeerDatabase.PeerRecord record : peerDatabase.getBestPeers(PARALLEL_CONNECTIONS)){
+            try {
+                peerGroup.addAddress(new PeerAddress(context.getParams(), record.getAddress(), record.getPort()));
+                added++;
+            } catch (UnknownHostException e) {
+                logger.warn("Ignoring invalid peer address " + record.getHost(), e);
+            }
+        }
+
+        // adding addresses raises the max connections of the peer group, we only want as many as the parallel attempts.
+        if (added > 0)
+            peerGroup.setMaxConnections(Math.max(maxConnections, added));
+    }
+
+    /**
+     * Adds the peers set by the user as the only ones of the peer group, so it doesn't look for a local node either.
+     */
+    private void addFixedPeers() {
+        peerGroup.setUseLocalhostPeerWhenPossible(false);
+        for (InetSocketAddress address : fixedPeers)
+            peerGroup.addAddress(new PeerAddress(context.getParams(), address));
+        peerGroup.setMaxConnections(fixedPeers.size());
+    }
+
+    /**
+     * saves the peer table, errors are not critical since we can always discover peers again.
+     */
+    private void savePeerDatabase() {
+        try {
+            peerDatabase.save();
+        } catch (IOException e) {
+            logger.warn("Unable to save the peers file.", e);
         }
     }
 
@@ -135,43 +508,636 @@ public class IoPBlockchain implements  Blockchain{
      * @return the amount of blocks we downloaded when this method was called.
      */
     public int getBlockchainHeight(){
-        return peerGroup.getMostCommonChainHeight();
+        return syncStatus.get().getLocalHeight();
+    }
+
+    /**
+     * Returns the last published snapshot of the sync state. It is updated on every new best block and peer change,
+     * so it can be polled as often as needed, even before connecting.
+     * @return the current sync state snapshot.
+     */
+    public SyncStatus getSyncStatus(){
+        return syncStatus.get();
+    }
+
+    /**
+     * Sets the amount of blocks we can be behind the best connected peer and still be considered synced by {@link #isSynced()}
+     * @param blocks the amount of blocks, defaults to 10.
+     */
+    public void setSyncedThreshold(int blocks){
+        Preconditions.checkArgument(blocks >= 0);
+        this.syncedThreshold = blocks;
+    }
+
+    /**
+     * Sets the false positive rate of the bloom filter sent to peers. Lower rates mean bigger filters but less irrelevant
+     * transactions downloaded. If we are already connected, the new filter is sent to peers.
+     * @param rate a value between 0 and 1, defaults to {@link PeerGroup#DEFAULT_BLOOM_FILTER_FP_RATE}
+     */
+    public void setBloomFilterFalsePositiveRate(double rate){
+        Preconditions.checkArgument(rate > 0 && rate < 1);
+        bloomFilterMonitor.setTargetRate(rate);
+
+        if (peerGroup != null)
+            peerGroup.setBloomFilterFalsePositiveRate(rate);
     }
 
+    /**
+     * The false positive rate the bloom filter is calculated with.
+     * @return a value between 0 and 1.
+     */
+    public double getBloomFilterFalsePositiveRate(){
+        return bloomFilterMonitor.getTargetRate();
+    }
+
+    /**
+     * Sets how far the observed false positive rate can drift above the configured one before the filter is recalculated and
+     * sent again to peers.
+     * @param tolerance the observed rate can be this many times the configured rate. Defaults to 4.
+     */
+    public void setBloomFilterDriftTolerance(double tolerance){
+        Preconditions.checkArgument(tolerance >= 1);
+        bloomFilterMonitor.setTolerance(tolerance);
+    }
+
+    /**
+     * Returns the false positive metrics of the bloom filter, measured on every filtered block.
+     * @return the last published filter stats.
+     */
+    public BloomFilterStats getBloomFilterStats(){
+        return bloomFilterMonitor.getStats();
+    }
+
+    /**
+     * Keeps a local copy of the full blocks downloaded from now on, next to the blocks file, so that addresses imported later can be
+     * rescanned with {@link #rescanFrom(List, List, UtxoSet, int)} without downloading every block again. Peers can't send us
+     * filtered blocks for the cache, so bloom filtering is disabled while it is enabled and peers send us every transaction.
+     * If we are already connected, it applies to the next blocks.
+     * @param enabled true to keep the cache, false to stop adding blocks to it. The file is kept.
+     * @throws IoPBlockchainException if the cache file can't be opened.
+     */
+    public synchronized void setBlockCacheEnabled(boolean enabled) throws IoPBlockchainException {
+        try {
+            if (enabled && blockCache == null)
+                blockCache = new BlockCache(new File(blockchainFile.getPath() + ".cache"));
+            else if (!enabled && blockCache != null) {
+                blockCache.close();
+                blockCache = null;
+            }
+        } catch (IOException e) {
+            throw new IoPBlockchainException("Unable to open the block cache.", e);
+        }
+
+        if (peerGroup != null)
+            peerGroup.setBloomFilteringEnabled(!enabled);
+    }
+
+    /**
+     * @return the local copy of the downloaded blocks, or null if it is not enabled.
+     */
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Finds in the block cache the transactions of addresses imported after their blocks were downloaded, and gives them to the wallets
+     * as if they were in the blocks they are in. The cache is scanned in parallel for the outputs to the addresses, then for the
+     * transactions that spend them. Blocks that are not in the cache, like the ones downloaded before it was enabled, are not rescanned.
+     * <p>
+     *     Compact wallets get the transactions in their unspent outputs and history, which only need what the cache has, and a
+     *     transaction is skipped if they already know its outputs. Wallets that keep their transactions need the whole transaction,
+     *     so the blocks with matches are downloaded from a peer, and a transaction is skipped if the wallet already has it.
+     *     Rescanning the same blocks again adds nothing in both cases.
+     * </p>
+     * @param wallets the attached blockchainj wallets to rescan, only blocks up to their last seen block are given to each one.
+     * @param hash160s the hash160 of the addresses to look for, or null for all the watched addresses of the wallets.
+     * @param utxoSet the unspent outputs of the wallets if they are compact, or null.
+     * @param height the first height to rescan.
+     * @return the amount of transactions the wallets didn't have.
+     * @throws IoPBlockchainException if the block cache can't be read, or a block can't be downloaded.
+     */
+    public int rescanFrom(List<Wallet> wallets, List<byte[]> hash160s, UtxoSet utxoSet, int height) throws IoPBlockchainException {
+        Preconditions.checkNotNull(wallets);
+        BlockCache cache = blockCache;
+        Preconditions.checkState(cache != null, "The block cache is not enabled.");
+
+        if (hash160s == null) {
+            hash160s = new ArrayList<>();
+            for (Wallet wallet : wallets){
+                for (Script script : wallet.getWatchedScripts()){
+                    byte[] program = script.getProgram();
+                    int offset = WatchedAddressIndex.getHash160Offset(program);
+                    if (offset >= 0)
+                        hash160s.add(Arrays.copyOfRange(program, offset, offset + Address.LENGTH));
+                }
+            }
+        }
+
+        try {
+            NetworkParameters params = context.getParams();
+            List<BlockCache.CachedTransaction> found = cache.findOutputs(hash160s, height);
+
+            // the outputs to the addresses, to find where they were spent.
+            WatchedAddressIndex index = new WatchedAddressIndex();
+            for (byte[] hash160 : hash160s)
+                index.add(hash160);
+            List<byte[]> outpoints = new ArrayList<>();
+            for (BlockCache.CachedTransaction cached : found){
+                Transaction transaction = cached.getTransaction(params);
+                List<TransactionOutput> outputs = transaction.getOutputs();
+                for (int i = 0; i < outputs.size(); i++){
+                    if (index.matches(outputs.get(i).getScriptBytes()))
+                        outpoints.add(BlockCache.getOutpointKey(transaction.getHash(), i));
+                }
+            }
+            found.addAll(cache.findSpends(outpoints, height));
+            BlockCache.sort(found);
+
+            Context.propagate(context);
+            int replayed = 0;
+            Map<Sha256Hash, Block> downloaded = new HashMap<>();
+            BlockCache.CachedTransaction previous = null;
+            for (BlockCache.CachedTransaction cached : found){
+                // transactions that pay to the addresses and spend their outputs are found twice.
+                if (previous != null && previous.isSameAs(cached))
+                    continue;
+                previous = cached;
+
+                StoredBlock block = cached.getBlock(params);
+                if (utxoSet != null)
+                    replayed += replayCompact(wallets, utxoSet, cached, block) ? 1 : 0;
+                else
+                    replayed += replay(wallets, cached, block, downloaded);
+            }
+
+            logger.info("Rescanned " + found.size() + " cached transactions from height " + height + ", " + replayed + " were new.");
+            return replayed;
+        } catch (IOException | VerificationException e) {
+            throw new IoPBlockchainException("Unable to rescan the block cache.", e);
+        }
+    }
+
+    /**
+     * gives a cached transaction to the unspent outputs of compact wallets, and creates the events of its outputs. The wallets never
+     * get it, they would store a transaction without its signatures.
+     * @return true if the transaction had outputs or spends the wallets didn't know.
+     */
+    private boolean replayCompact(List<Wallet> wallets, UtxoSet utxoSet, BlockCache.CachedTransaction cached, StoredBlock block){
+        if (cached.getHeight() > utxoSet.getHeight())
+            return false;
+
+        Transaction transaction = cached.getTransaction(context.getParams());
+        if (!utxoSet.applyRescanned(transaction, block))
+            return false;
+
+        TransactionConfidence confidence = transaction.getConfidence();
+        confidence.setAppearedAtChainHeight(cached.getHeight());
+        confidence.setDepthInBlocks(utxoSet.getHeight() - cached.getHeight() + 1);
+        for (Wallet wallet : wallets){
+            IncomingEvent incomingEvent = incomingEvents.get(wallet);
+            Coin received = transaction.getValueSentToMe(wallet);
+            if (incomingEvent != null && received.signum() > 0)
+                incomingEvent.onCoinsReceived(wallet, transaction, Coin.ZERO, received);
+        }
+        return true;
+    }
+
+    /**
+     * gives the whole transaction of a cached one to the wallets that have seen its block and don't have it yet, or only have it
+     * as pending.
+     * @return the amount of wallets that got it.
+     */
+    private int replay(List<Wallet> wallets, BlockCache.CachedTransaction cached, StoredBlock block, Map<Sha256Hash, Block> downloaded) throws IoPBlockchainException, VerificationException{
+        Sha256Hash hash = cached.getHash();
+        List<Wallet> receivers = new ArrayList<>();
+        for (Wallet wallet : wallets){
+            Transaction existing = wallet.getTransaction(hash);
+            if (cached.getHeight() <= wallet.getLastBlockSeenHeight()
+                    && (existing == null || existing.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.PENDING))
+                receivers.add(wallet);
+        }
+        if (receivers.isEmpty())
+            return 0;
+
+        Transaction transaction = getBlockTransaction(cached, block.getHeader().getHash(), downloaded);
+        int replayed = 0;
+        for (Wallet wallet : receivers){
+            // each wallet connects the outputs of its own copy. The wallet gets no block, since it would not count the depth of the
+            // transaction on its next block, so the appearance is set here.
+            Transaction copy = replayed == 0 ? transaction : context.getParams().getDefaultSerializer().makeTransaction(transaction.bitcoinSerialize());
+            copy.setBlockAppearance(block, true, cached.getPosition());
+            copy.getConfidence().setDepthInBlocks(wallet.getLastBlockSeenHeight() - cached.getHeight() + 1);
+            wallet.receiveFromBlock(copy, null, AbstractBlockChain.NewBlockType.BEST_CHAIN, cached.getPosition());
+
+            Transaction walletTransaction = wallet.getTransaction(hash);
+            if (walletTransaction != null) {
+                if (walletTransaction != copy)
+                    walletTransaction.addBlockAppearance(block.getHeader().getHash(), cached.getPosition());
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    /**
+     * the transaction at the cached position of its block. The block is downloaded from the download peer, and kept for the next
+     * transactions since they come in chain order.
+     */
+    private Transaction getBlockTransaction(BlockCache.CachedTransaction cached, Sha256Hash blockHash, Map<Sha256Hash, Block> downloaded) throws IoPBlockchainException{
+        Block block = downloaded.get(blockHash);
+        if (block == null) {
+            PeerGroup currentPeerGroup;
+            synchronized (this) {
+                currentPeerGroup = peerGroup;
+            }
+            Peer peer = currentPeerGroup == null || !currentPeerGroup.isRunning() ? null : currentPeerGroup.getDownloadPeer();
+            if (peer == null)
+                throw new IoPBlockchainException("Wallets that keep their transactions need a connected peer to rescan the block cache.", null);
+
+            try {
+                block = peer.getBlock(blockHash).get(BLOCK_DOWNLOAD_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IoPBlockchainException("The download of block " + blockHash + " was interrupted.", e);
+            } catch (ExecutionException | TimeoutException e) {
+                throw new IoPBlockchainException("Unable to download block " + blockHash, e);
+            }
+            downloaded.clear();
+            downloaded.put(blockHash, block);
+        }
+
+        List<Transaction> transactions = block.getTransactions();
+        if (transactions == null || cached.getPosition() >= transactions.size() || !transactions.get(cached.getPosition()).getHash().equals(cached.getHash()))
+            throw new IoPBlockchainException("Block " + blockHash + " doesn't have the cached transaction " + cached.getHash(), null);
+        return transactions.get(cached.getPosition());
+    }
+
+    /**
+     * moves the unconfirmed events of a transaction included in a block of the best chain to the confirmed stage.
+     */
+    private void confirmTransaction(EventNotificationManager eventNotificationManager, String transactionHash, int height){
+        if (!eventNotificationManager.hasUnconfirmedEvents())
+            return;
+
+        try {
+            eventNotificationManager.transactionConfirmed(transactionHash, height);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * lets the event manager credit the events that reach the confirmation depth at this height.
+     */
+    private void notifyBestBlock(EventNotificationManager eventNotificationManager, int height){
+        if (height <= 0)
+            return;
+
+        try {
+            eventNotificationManager.newBestBlock(height);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * publishes a new sync state with the new best block.
+     */
+    private void updateBestBlock(int height, long blockTime){
+        SyncStatus current;
+        do {
+            current = syncStatus.get();
+        } while (!syncStatus.compareAndSet(current, current.withBestBlock(height, blockTime)));
+    }
+
+    /**
+     * publishes a new sync state with new peer information.
+     * @param bestPeerHeight the best height claimed by the connected peers. Lower values than the current one are ignored unless peerCount is zero.
+     * @param peerCount the amount of connected peers or a negative value to keep the current one.
+     */
+    private void updatePeerStatus(long bestPeerHeight, int peerCount){
+        SyncStatus current, updated;
+        do {
+            current = syncStatus.get();
+            int newPeerCount = peerCount < 0 ? current.getPeerCount() : peerCount;
+            long newBestPeerHeight = newPeerCount == 0 ? 0 : Math.max(bestPeerHeight, current.getBestPeerHeight());
+            updated = current.withPeers(newBestPeerHeight, newPeerCount);
+        } while (!syncStatus.compareAndSet(current, updated));
+    }
+
+    /**
+     * recalculates the best peer height from the connected peers. Only called from peer events.
+     */
+    private void recalculatePeerStatus(){
+        long bestPeerHeight = 0;
+        List<Peer> connectedPeers = peerGroup.getConnectedPeers();
+        for (Peer peer : connectedPeers)
+            bestPeerHeight = Math.max(bestPeerHeight, peer.getBestHeight());
+
+        // a disconnected peer might have been the best one, so we replace instead of keeping the maximum.
+        SyncStatus current;
+        do {
+            current = syncStatus.get();
+        } while (!syncStatus.compareAndSet(current, current.withPeers(bestPeerHeight, connectedPeers.size())));
+    }
+
+
+    /**
+     * Peer group listener that records connections, disconnections and discovered peers into the peer table.
+     */
+    private class PeerEvents implements PeerConnectedEventListener, PeerDisconnectedEventListener, PeerDiscoveredEventListener, BlocksDownloadedEventListener,
+            PreMessageReceivedEventListener {
+        private final Map<Peer, Long> connectionTimes = new ConcurrentHashMap<>();
+        private final Map<Sha256Hash, Long> blockArrivals = new ConcurrentHashMap<>(); // blocks being processed and when they arrived.
+
+        @Override
+        public Message onPreMessageReceived(Peer peer, Message message) {
+            // called on the network thread as the message arrives, before the block is processed. Blocks that are never
+            // added to the chain, like orphans, are dropped once in a while.
+            if (blockArrivals.size() > 1000)
+                blockArrivals.clear();
+
+            if (message instanceof FilteredBlock)
+                blockArrivals.put(((FilteredBlock) message).getHash(), System.nanoTime());
+            else if (message instanceof Block)
+                blockArrivals.put(((Block) message).getHash(), System.nanoTime());
+            return message;
+        }
+
+        @Override
+        public void onPeerConnected(Peer peer, int peerCount) {
+            InetAddress address = peer.getAddress().getAddr();
+            if (address == null)
+                return;
+
+            long now = System.currentTimeMillis();
+            connectionTimes.put(peer, now);
+            peerDatabase.peerConnected(address, peer.getAddress().getPort(), now);
+
+            recalculatePeerStatus();
+        }
+
+        @Override
+        public void onPeerDisconnected(Peer peer, int peerCount) {
+            Long connectedAt = connectionTimes.remove(peer);
+            if (connectedAt != null)
+                recordDisconnection(peer, connectedAt);
+            else if (peer.getAddress().getAddr() != null)
+                // the peer died before finishing the handshake, so it is a failed connection attempt.
+                peerDatabase.peerFailed(peer.getAddress().getAddr(), peer.getAddress().getPort());
+
+            savePeerDatabase();
+            recalculatePeerStatus();
+        }
+
+        @Override
+        public void onBlocksDownloaded(Peer peer, Block block, FilteredBlock filteredBlock, int blocksLeft) {
+            // peers announce new blocks while we download, the height they claim may grow.
+            updatePeerStatus(peer.getBestHeight(), -1);
+
+            // wallets notify received coins on this same thread before, so the events of this block are already created.
+            Long arrival = blockArrivals.remove(block.getHash());
+            if (arrival != null)
+                Metrics.recordTime(Metrics.BLOCK_PROCESSING_TIME, arrival);
+            Metrics.getRegistry().record(Metrics.BLOCK_EVENTS, blockEvents.getAndSet(0));
+        }
+
+        @Override
+        public void onPeersDiscovered(Set<PeerAddress> peerAddresses) {
+            for (PeerAddress peerAddress : peerAddresses){
+                if (peerAddress.getAddr() != null)
+                    peerDatabase.addPeer(peerAddress.getAddr(), peerAddress.getPort());
+            }
+        }
+
+        private void recordDisconnection(Peer peer, long connectedAt) {
+            InetAddress address = peer.getAddress().getAddr();
+            if (address == null)
+                return;
+
+            long pingTime = peer.getPingTime();
+            peerDatabase.peerDisconnected(address, peer.getAddress().getPort(), System.currentTimeMillis() - connectedAt,
+                    pingTime == Long.MAX_VALUE ? -1 : pingTime);
+        }
+    }
+
+    /**
+     * Peer group listener that adds the full blocks of the best chain to the block cache. It runs on the peer thread right after the
+     * block was added to the chain, so the block is the chain head unless it was an orphan or a side chain block.
+     */
+    private class BlockCacheFeed implements BlocksDownloadedEventListener {
+        @Override
+        public void onBlocksDownloaded(Peer peer, Block block, FilteredBlock filteredBlock, int blocksLeft) {
+            BlockCache cache = blockCache;
+            if (cache == null || filteredBlock != null || block.getTransactions() == null)
+                return;
+
+            StoredBlock chainHead = blockChain.getChainHead();
+            if (!chainHead.getHeader().getHash().equals(block.getHash()))
+                return;
+
+            try {
+                cache.add(block, chainHead.getHeight());
+            } catch (IOException e) {
+                logger.warn("Unable to add block " + block.getHashAsString() + " to the block cache.", e);
+            }
+        }
+    }
+
+    /**
+     * Block chain listener that confirms the unconfirmed events of the transactions of each best chain block. It only needs the hash
+     * of the transactions, so the events of compact wallets, whose wallets no longer have the transactions, are confirmed too.
+     * The transactions of side chain blocks are kept, so a reorganization knows the height of each transaction in the new chain.
+     * It runs on the user thread after the wallets got the block, like the received coins listeners.
+     */
+    private class BlockTransactions implements TransactionReceivedInBlockListener {
+        private final Map<Sha256Hash, List<String>> sideChainTransactions = new LinkedHashMap<Sha256Hash, List<String>>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, List<String>> eldest) {
+                return size() > MAX_SIDE_CHAIN_BLOCKS;
+            }
+        }; // the transaction hashes of side chain blocks by block hash, only used on the user thread.
+
+        @Override
+        public void receiveFromBlock(Transaction transaction, StoredBlock block, AbstractBlockChain.NewBlockType blockType, int relativityOffset) throws VerificationException {
+            transactionInBlock(transaction.getHashAsString(), block, blockType);
+        }
+
+        @Override
+        public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, AbstractBlockChain.NewBlockType blockType, int relativityOffset) throws VerificationException {
+            transactionInBlock(txHash.toString(), block, blockType);
+
+            // we don't know if it is relevant, the wallets tell the chain.
+            return false;
+        }
+
+        private void transactionInBlock(String transactionHash, StoredBlock block, AbstractBlockChain.NewBlockType blockType) {
+            if (blockType == AbstractBlockChain.NewBlockType.SIDE_CHAIN) {
+                List<String> transactions = sideChainTransactions.get(block.getHeader().getHash());
+                if (transactions == null) {
+                    transactions = new ArrayList<>();
+                    sideChainTransactions.put(block.getHeader().getHash(), transactions);
+                }
+                transactions.add(transactionHash);
+                return;
+            }
+
+            // shards share their event manager, which ignores the transaction the second time.
+            for (IncomingEvent incomingEvent : incomingEvents.values())
+                confirmTransaction(incomingEvent.eventNotificationManager, transactionHash, block.getHeight());
+        }
+
+        /**
+         * Moves the events of the transactions above the split point to their height in the new chain, or back to unconfirmed if the
+         * new chain doesn't have them. The events of the transactions of the new chain are confirmed.
+         * @param splitPoint the last block both chains have in common.
+         * @param newBlocks the blocks of the new chain, newest first.
+         */
+        void reorganize(StoredBlock splitPoint, List<StoredBlock> newBlocks) {
+            Map<String, Integer> newChain = new HashMap<>();
+            for (StoredBlock newBlock : newBlocks){
+                List<String> transactions = sideChainTransactions.remove(newBlock.getHeader().getHash());
+                if (transactions == null)
+                    continue;
+
+                for (String transactionHash : transactions)
+                    newChain.put(transactionHash, newBlock.getHeight());
+            }
+
+            Set<EventNotificationManager> managers = new HashSet<>();
+            for (IncomingEvent incomingEvent : incomingEvents.values())
+                managers.add(incomingEvent.eventNotificationManager);
+
+            for (EventNotificationManager eventNotificationManager : managers){
+                try {
+                    for (String transactionHash : eventNotificationManager.getTransactionsAbove(splitPoint.getHeight())){
+                        Integer height = newChain.get(transactionHash);
+                        eventNotificationManager.transactionReorganized(transactionHash, height == null ? -1 : height);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+
+                for (Map.Entry<String, Integer> entry : newChain.entrySet())
+                    confirmTransaction(eventNotificationManager, entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Block chain listener that lets the event managers reverse the events of transactions that are no longer in the best chain.
+     * It runs on the block chain thread right after the wallets reorganized. The events are moved on the user thread, after the
+     * transactions of the new chain blocks were given to {@link BlockTransactions}
+     */
+    private class ChainReorganization implements ReorganizeListener {
+        @Override
+        public void reorganize(final StoredBlock splitPoint, List<StoredBlock> oldBlocks, final List<StoredBlock> newBlocks) throws VerificationException {
+            logger.info("Reorganization of " + oldBlocks.size() + " blocks at height " + splitPoint.getHeight());
+            BlockCache cache = blockCache;
+            if (cache != null) {
+                try {
+                    cache.truncate(splitPoint.getHeight());
+                } catch (IOException e) {
+                    logger.warn("Unable to truncate the block cache.", e);
+                }
+            }
+            Threading.USER_THREAD.execute(new Runnable() {
+                @Override
+                public void run() {
+                    blockTransactions.reorganize(splitPoint, newBlocks);
+                }
+            });
+        }
+    }
 
     /**
      * The incoming blockchainj event declaration class
      */
-    private class IncomingEvent implements WalletCoinsReceivedEventListener{
+    private class IncomingEvent implements WalletCoinsReceivedEventListener, TransactionConfidenceEventListener, ScriptsChangeEventListener{
+        private final EventNotificationManager eventNotificationManager; // the event manager of the watch only wallet this listener belongs to.
+        private final ExecutorService executor; // the thread of the shard, or null if the wallet is not sharded.
+        private final WatchedAddressIndex index = new WatchedAddressIndex(); // the watched addresses of the wallet, kept updated on imports.
+        private final NetworkParameters params = context.getParams();
+        private final NetworkType networkType = WatchOnlyWallet.getNetworkType(context.getParams());
+
+        IncomingEvent(EventNotificationManager eventNotificationManager, ExecutorService executor) {
+            this.eventNotificationManager = eventNotificationManager;
+            this.executor = executor;
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            for (Script script : scripts){
+                if (isAddingScripts)
+                    index.add(script);
+                else
+                    index.remove(script);
+            }
+        }
+
         /**
          * When a blockchainj coinsReceived event is triggered, I'm triggering the IncomingTransaction Event for every
-         * watched address and let the listeners know.
+         * watched address and let the listeners know. Outputs are matched by the hash160 in their script bytes, so only
+         * the outputs to watched addresses allocate anything.
          * @param wallet this wallet.
          * @param transaction the incoming transaction
          * @param coin current coints
          * @param coin1 new balance coins
          */
         public void onCoinsReceived(Wallet wallet, Transaction transaction, Coin coin, Coin coin1) {
+            // a transaction seen unconfirmed may arrive again with its block if the wallet dropped it, as compact wallets do. Its events
+            // are confirmed first, so they are found below instead of added again.
+            TransactionConfidence confidence = transaction.getConfidence();
+            int height = confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING ? confidence.getAppearedAtChainHeight() : -1;
+            if (height >= 0)
+                confirmTransaction(eventNotificationManager, transaction.getHashAsString(), height);
+
             // create a new event for every coin sent to a watched only address of the wallet.
-            for (TransactionOutput output : transaction.getOutputs()){
-                if (output.isWatched(wallet)){
-                    //event definition
-                    IncomingTransactionEvent event = new IncomingTransactionEvent(
-                            this,
-                            output.getAddressFromP2PKHScript(context.getParams()).toBase58(),
-                            WatchOnlyWallet.getNetworkType(context.getParams()),
-                            coin1.getValue(),
-                            transaction.getHashAsString());
-                    try {
-                        // I will add this event if not added before
-                        if (!eventNotificationManager.getPendingNotificationEvents().contains(event))
-                            eventNotificationManager.addNewEvent(event);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+            List<TransactionOutput> outputs = transaction.getOutputs();
+            for (int i = 0; i < outputs.size(); i++){
+                byte[] script = outputs.get(i).getScriptBytes();
+                int offset = WatchedAddressIndex.getHash160Offset(script);
+                if (offset < 0 || !index.contains(script, offset))
+                    continue;
+
+                //event definition, transactions seen on the network are unconfirmed until they are in a block.
+                int version = offset == 3 ? params.getAddressHeader() : params.getP2SHHeader();
+                IncomingTransactionEvent event = new IncomingTransactionEvent(
+                        this,
+                        new Address(params, version, Arrays.copyOfRange(script, offset, offset + Address.LENGTH)).toBase58(),
+                        networkType,
+                        coin1.getValue(),
+                        transaction.getHashAsString(),
+                        height);
+                try {
+                    // I will add this event if not added before, acknowledged or not. Shards may be adding events at the same time.
+                    if (eventNotificationManager.addEventIfAbsent(event) && event.getStage() != IncomingTransactionEvent.Stage.UNCONFIRMED)
+                        blockEvents.incrementAndGet();
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
             }
         }
+
+        /**
+         * Wallet transactions change their confidence when they are included in a block, and their depth on every block after that.
+         * Inclusion in a block is taken from the block itself by {@link BlockTransactions}, since compact wallets don't keep their
+         * transactions. We only look for double spends of transactions with unconfirmed events.
+         * @param wallet this wallet.
+         * @param transaction the transaction whose confidence changed.
+         */
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction transaction) {
+            if (!eventNotificationManager.hasUnconfirmedEvents()
+                    || transaction.getConfidence().getConfidenceType() != TransactionConfidence.ConfidenceType.DEAD)
+                return;
+
+            try {
+                eventNotificationManager.transactionDead(transaction.getHashAsString());
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -179,15 +1145,11 @@ public class IoPBlockchain implements  Blockchain{
      * @return true if we have all blocks from the blockchain. If false, there might be transactions which we haven't heard off yet.
      */
     public boolean isSynced() {
-        if (!this.isConnected())
+        SyncStatus status = syncStatus.get();
+        if (status.getPeerCount() == 0)
             return false;
 
-        // lets check the current blockheight againts what peers have to send me
-        for (Peer peer : peerGroup.getConnectedPeers()){
-            if (peer.getPeerBlockHeightDifference() > 10)
-                return false;
-        }
-
-        return  true;
+        // lets check the current blockheight againts what the best peer has to send me
+        return status.getLag() <= syncedThreshold;
     }
 }
@@ -0,0 +1,261 @@
+package fermatOrg.network;
+
+import com.google.common.base.Preconditions;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.*;
+
+/**
+ * Scored table of the IoP peers we have connected to in the past. It is stored next to the block store so that
+ * after a restart we can reconnect to the fastest and most reliable peers first, instead of starting peer discovery from scratch.
+ * Discovered peers are added to the table with no history, so they are only used when the known peers are not enough.
+ */
+public class PeerDatabase {
+    //class variables
+    private Map<String, PeerRecord> peers;
+    private boolean dirty;
+
+    //class constants
+    private final File peersDB; // the file that will save the peer table.
+    private static final int MAX_PEERS = 1000; // we keep at most this amount of peers, the worst scored ones are removed.
+
+    /**
+     * constructor. Loads the peer table from the specified file if it exists.
+     * @param peersDB the file in which the peer table is stored.
+     */
+    public PeerDatabase(File peersDB) {
+        Preconditions.checkNotNull(peersDB);
+
+        this.peersDB = peersDB;
+        this.peers = new HashMap<>();
+
+        if (peersDB.exists()) {
+            try {
+                this.peers = load();
+            } catch (IOException e) {
+                // a corrupted table is not critical, we will discover peers again.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Adds a peer to the table if it is not already there. Used to top up the table with discovered peers.
+     * @param address the peer ip address
+     * @param port the peer port
+     */
+    public synchronized void addPeer(InetAddress address, int port) {
+        String key = getKey(address, port);
+        if (!peers.containsKey(key)) {
+            peers.put(key, new PeerRecord(address.getHostAddress(), port));
+            dirty = true;
+        }
+    }
+
+    /**
+     * Records a successful connection to the peer.
+     * @param address the peer ip address
+     * @param port the peer port
+     * @param connectedAt the time in milliseconds when the connection was established.
+     */
+    public synchronized void peerConnected(InetAddress address, int port, long connectedAt) {
+        PeerRecord record = getOrCreate(address, port);
+        record.connections++;
+        record.lastConnected = connectedAt;
+        dirty = true;
+    }
+
+    /**
+     * Records the end of a connection that was established before.
+     * @param address the peer ip address
+     * @param port the peer port
+     * @param uptime the amount of milliseconds we were connected to the peer.
+     * @param latency the average ping time of the peer in milliseconds, or a negative value if unknown.
+     */
+    public synchronized void peerDisconnected(InetAddress address, int port, long uptime, long latency) {
+        PeerRecord record = getOrCreate(address, port);
+        record.uptime = record.uptime + Math.max(0, uptime);
+        if (latency >= 0)
+            record.latency = latency;
+        dirty = true;
+    }
+
+    /**
+     * Records a failed connection attempt to the peer.
+     * @param address the peer ip address
+     * @param port the peer port
+     */
+    public synchronized void peerFailed(InetAddress address, int port) {
+        PeerRecord record = getOrCreate(address, port);
+        record.failures++;
+        dirty = true;
+    }
+
+    /**
+     * Gets the best scored peers of the table, best first.
+     * @param amount the maximun amount of peers to return.
+     * @return a list of peer records ordered by score.
+     */
+    public synchronized List<PeerRecord> getBestPeers(int amount) {
+        List<PeerRecord> sorted = getSortedPeers();
+        return new ArrayList<>(sorted.subList(0, Math.min(amount, sorted.size())));
+    }
+
+    /**
+     * returns the amount of peers in the table.
+     * @return the amount of known peers.
+     */
+    public synchronized int size() {
+        return peers.size();
+    }
+
+    /**
+     * Saves the table to disk if it changed since the last save. Only the best {@link #MAX_PEERS} peers are kept.
+     * @throws IOException an IO error during save
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+
+        // removes the worst peers if the table is too big.
+        if (peers.size() > MAX_PEERS) {
+            List<PeerRecord> sorted = getSortedPeers();
+            for (PeerRecord record : sorted.subList(MAX_PEERS, sorted.size()))
+                peers.remove(record.getHost() + ":" + record.getPort());
+        }
+
+        // we write to a temporary file first so that a crash during save doesn't corrupt the table.
+        File tempFile = new File(peersDB.getPath() + ".tmp");
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            oos.writeObject(new HashMap<>(peers));
+        } finally {
+            if (oos != null)
+                oos.close();
+        }
+
+        if (!tempFile.renameTo(peersDB)) {
+            peersDB.delete();
+            if (!tempFile.renameTo(peersDB))
+                throw new IOException("Unable to replace peers file " + peersDB.toString());
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * Loads the peer table from the file.
+     * @return the peer table stored in the file.
+     * @throws IOException in case there is an IO error during loading.
+     */
+    private Map<String, PeerRecord> load() throws IOException {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(peersDB)));
+            return (Map<String, PeerRecord>) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("The peers file " + peersDB.toString() + " is not valid.", e);
+        } finally {
+            if (ois != null)
+                ois.close();
+        }
+    }
+
+    private PeerRecord getOrCreate(InetAddress address, int port) {
+        String key = getKey(address, port);
+        PeerRecord record = peers.get(key);
+        if (record == null) {
+            record = new PeerRecord(address.getHostAddress(), port);
+            peers.put(key, record);
+        }
+        return record;
+    }
+
+    private List<PeerRecord> getSortedPeers() {
+        List<PeerRecord> sorted = new ArrayList<>(peers.values());
+        Collections.sort(sorted, new Comparator<PeerRecord>() {
+            @Override
+            public int compare(PeerRecord a, PeerRecord b) {
+                return Double.compare(b.getScore(), a.getScore());
+            }
+        });
+        return sorted;
+    }
+
+    private static String getKey(InetAddress address, int port) {
+        return address.getHostAddress() + ":" + port;
+    }
+
+    /**
+     * The history of a single peer. The score combines the connection success rate, the ping latency and the accumulated uptime.
+     */
+    public static class PeerRecord implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String host;
+        private final int port;
+        private int connections;
+        private int failures;
+        private long uptime; // accumulated milliseconds connected.
+        private long latency = -1; // last known average ping in milliseconds, negative if unknown.
+        private long lastConnected;
+
+        PeerRecord(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        /**
+         * A value between 0 and 2. Higher is better.
+         * Peers we never connected to (discovered peers) get a neutral success rate and latency, so they are
+         * preferred over peers that keep failing but not over peers that worked well in the past.
+         * @return the score of this peer.
+         */
+        public double getScore() {
+            double reliability = (connections + 1.0) / (connections + failures + 2.0);
+            double speed = latency < 0 ? 0.5 : 1000.0 / (1000.0 + latency);
+            double stability = 1.0 + Math.min(uptime, 24 * 60 * 60 * 1000L) / (24 * 60 * 60 * 1000.0);
+            return reliability * speed * stability;
+        }
+
+        /**
+         * the peer address.
+         * @return the resolved internet address of the peer.
+         * @throws UnknownHostException if the stored address is not valid.
+         */
+        public InetAddress getAddress() throws UnknownHostException {
+            return InetAddress.getByName(host);
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getConnections() {
+            return connections;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public long getUptime() {
+            return uptime;
+        }
+
+        public long getLatency() {
+            return latency;
+        }
+
+        public long getLastConnected() {
+            return lastConnected;
+        }
+    }
+}
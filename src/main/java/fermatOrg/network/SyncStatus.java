@@ -0,0 +1,81 @@
+package fermatOrg.network;
+
+/**
+ * Immutable snapshot of the synchronization state of the {@link IoPBlockchain}.
+ * A new snapshot is published each time a new best block arrives or a peer connects or disconnects, so reading it
+ * never blocks and never touches the peer group.
+ */
+public class SyncStatus {
+    //class constants
+    private final int localHeight;
+    private final long bestPeerHeight;
+    private final long lastBlockTime;
+    private final int peerCount;
+
+    public SyncStatus(int localHeight, long bestPeerHeight, long lastBlockTime, int peerCount) {
+        this.localHeight = localHeight;
+        this.bestPeerHeight = bestPeerHeight;
+        this.lastBlockTime = lastBlockTime;
+        this.peerCount = peerCount;
+    }
+
+    /**
+     * The height of the best block we have downloaded.
+     * @return the local chain height.
+     */
+    public int getLocalHeight() {
+        return localHeight;
+    }
+
+    /**
+     * The highest chain height claimed by any of the connected peers.
+     * @return the best peer height, or the local height if no peer claimed a higher one.
+     */
+    public long getBestPeerHeight() {
+        return Math.max(bestPeerHeight, localHeight);
+    }
+
+    /**
+     * The amount of blocks we are missing compared to the best connected peer.
+     * @return zero if we have all the blocks the peers announced.
+     */
+    public long getLag() {
+        return getBestPeerHeight() - localHeight;
+    }
+
+    /**
+     * The time of the best block we have downloaded.
+     * @return the block time in seconds since the epoch, zero if unknown.
+     */
+    public long getLastBlockTime() {
+        return lastBlockTime;
+    }
+
+    /**
+     * The amount of peers we were connected to when this snapshot was taken.
+     * @return the amount of connected peers.
+     */
+    public int getPeerCount() {
+        return peerCount;
+    }
+
+    /**
+     * creates a copy of this snapshot with a new best block.
+     */
+    SyncStatus withBestBlock(int height, long blockTime) {
+        return new SyncStatus(height, bestPeerHeight, blockTime, peerCount);
+    }
+
+    /**
+     * creates a copy of this snapshot with new peer information.
+     */
+    SyncStatus withPeers(long bestPeerHeight, int peerCount) {
+        return new SyncStatus(localHeight, bestPeerHeight, lastBlockTime, peerCount);
+    }
+
+    @Override
+    public String toString() {
+        return "SyncStatus{localHeight=" + localHeight + ", bestPeerHeight=" + getBestPeerHeight() + ", lag=" + getLag() +
+                ", lastBlockTime=" + lastBlockTime + ", peerCount=" + peerCount + "}";
+    }
+}
@@ -0,0 +1,208 @@
+package fermatOrg.network;
+
+import com.google.common.base.Preconditions;
+import org.blockchainj.script.Script;
+
+import java.util.List;
+
+/**
+ * The hash160 of the watched addresses in primitive arrays, so that transaction outputs are matched straight from their script
+ * bytes with no allocation. Only matched outputs need an address or an event.
+ * <p>
+ *     It is an open addressing hash table with linear probing. Each hash160 is split in two longs and an int.
+ * </p>
+ */
+public class WatchedAddressIndex {
+    //class variables
+    private long[] first; // bytes 0 to 7 of each hash160
+    private long[] second; // bytes 8 to 15
+    private int[] third; // bytes 16 to 19
+    private boolean[] used;
+    private int size;
+
+    //class constants
+    private static final int HASH_LENGTH = 20;
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Creates an empty index.
+     */
+    public WatchedAddressIndex() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates an index with the watched P2PKH and P2SH scripts, other scripts are ignored.
+     * @param scripts the watched scripts of a wallet.
+     */
+    public WatchedAddressIndex(List<Script> scripts) {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, scripts.size()) * 2) * 2));
+        for (Script script : scripts)
+            add(script);
+    }
+
+    /**
+     * Gets the position of the hash160 in a pay to address or pay to script hash output script.
+     * @param script the script bytes of the output.
+     * @return the offset of the hash160, or -1 if the script is of another type.
+     */
+    public static int getHash160Offset(byte[] script) {
+        if (script == null)
+            return -1;
+
+        // OP_DUP OP_HASH160 <20 bytes> OP_EQUALVERIFY OP_CHECKSIG
+        if (script.length == 25 && (script[0] & 0xff) == 0x76 && (script[1] & 0xff) == 0xa9 && script[2] == HASH_LENGTH
+                && (script[23] & 0xff) == 0x88 && (script[24] & 0xff) == 0xac)
+            return 3;
+
+        // OP_HASH160 <20 bytes> OP_EQUAL
+        if (script.length == 23 && (script[0] & 0xff) == 0xa9 && script[1] == HASH_LENGTH && (script[22] & 0xff) == 0x87)
+            return 2;
+
+        return -1;
+    }
+
+    /**
+     * @param script the script bytes of an output.
+     * @return true if the output pays to a watched address.
+     */
+    public boolean matches(byte[] script) {
+        int offset = getHash160Offset(script);
+        return offset >= 0 && contains(script, offset);
+    }
+
+    /**
+     * @param bytes the bytes with the hash160.
+     * @param offset the position of the hash160.
+     * @return true if the hash160 is in the index.
+     */
+    public synchronized boolean contains(byte[] bytes, int offset) {
+        return find(readLong(bytes, offset), readLong(bytes, offset + 8), readInt(bytes, offset + 16)) >= 0;
+    }
+
+    /**
+     * Adds the hash160 of a watched script.
+     * @param script a P2PKH or P2SH script. Scripts of other types are ignored.
+     */
+    public void add(Script script) {
+        if (script.isSentToAddress() || script.isPayToScriptHash())
+            add(script.getPubKeyHash());
+    }
+
+    /**
+     * Removes the hash160 of a script that is no longer watched.
+     * @param script a P2PKH or P2SH script. Scripts of other types are ignored.
+     */
+    public void remove(Script script) {
+        if (script.isSentToAddress() || script.isPayToScriptHash())
+            remove(script.getPubKeyHash());
+    }
+
+    /**
+     * @param hash160 the hash160 to add.
+     */
+    public synchronized void add(byte[] hash160) {
+        Preconditions.checkArgument(hash160.length == HASH_LENGTH);
+
+        long a = readLong(hash160, 0), b = readLong(hash160, 8);
+        int c = readInt(hash160, 16);
+        if (find(a, b, c) >= 0)
+            return;
+
+        // the table is kept at most half full, so probing stays short.
+        if ((size + 1) * 2 > used.length)
+            resize(used.length * 2);
+        insert(a, b, c);
+        size++;
+    }
+
+    /**
+     * @param hash160 the hash160 to remove.
+     */
+    public synchronized void remove(byte[] hash160) {
+        Preconditions.checkArgument(hash160.length == HASH_LENGTH);
+
+        int slot = find(readLong(hash160, 0), readLong(hash160, 8), readInt(hash160, 16));
+        if (slot < 0)
+            return;
+
+        // entries after the removed one are shifted back, so that no probing sequence is broken.
+        int mask = used.length - 1;
+        used[slot] = false;
+        size--;
+        int next = (slot + 1) & mask;
+        while (used[next]){
+            used[next] = false;
+            insert(first[next], second[next], third[next]);
+            next = (next + 1) & mask;
+        }
+    }
+
+    /**
+     * @return the amount of hash160 in the index.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private int find(long a, long b, int c) {
+        int mask = used.length - 1;
+        int slot = hash(a, b, c) & mask;
+        while (used[slot]){
+            if (first[slot] == a && second[slot] == b && third[slot] == c)
+                return slot;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long a, long b, int c) {
+        int mask = used.length - 1;
+        int slot = hash(a, b, c) & mask;
+        while (used[slot])
+            slot = (slot + 1) & mask;
+
+        first[slot] = a;
+        second[slot] = b;
+        third[slot] = c;
+        used[slot] = true;
+    }
+
+    private void resize(int capacity) {
+        long[] oldFirst = first, oldSecond = second;
+        int[] oldThird = third;
+        boolean[] oldUsed = used;
+
+        allocate(capacity);
+        for (int i = 0; i < oldUsed.length; i++){
+            if (oldUsed[i])
+                insert(oldFirst[i], oldSecond[i], oldThird[i]);
+        }
+    }
+
+    private void allocate(int capacity) {
+        first = new long[capacity];
+        second = new long[capacity];
+        third = new int[capacity];
+        used = new boolean[capacity];
+    }
+
+    /**
+     * hash160 are already uniformly distributed, we just mix the words.
+     */
+    private static int hash(long a, long b, int c) {
+        long h = a ^ (b * 31) ^ c;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (bytes[offset + i] & 0xff);
+        return value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+}
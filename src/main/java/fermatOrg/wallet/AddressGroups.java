@@ -0,0 +1,227 @@
+package fermatOrg.wallet;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The group, or account, of each address that has one. Many deposit addresses of the same customer share a group, so its balance
+ * and its incoming transactions are followed without going through every address.
+ * <p>
+ *     The groups are stored next to the wallet file, one address and its group per line. Changes are appended, the last line of an
+ *     address wins and an empty group removes it from its group. The file is rewritten when it has many more lines than addresses.
+ * </p>
+ */
+public class AddressGroups {
+    //class variables
+    private Writer log;
+    private long records; // the lines in the file, to know when to compact it.
+
+    //class constants
+    private final File groupsFile;
+    private final Map<String, String> groupByAddress = new HashMap<>();
+    private final Map<String, Set<String>> addressesByGroup = new HashMap<>();
+
+    /**
+     * constructor. Loads the groups from the specified file if it exists, like the groups file of a wallet.
+     * @param groupsFile the file in which the groups are stored.
+     */
+    public AddressGroups(File groupsFile) {
+        Preconditions.checkNotNull(groupsFile);
+        this.groupsFile = groupsFile;
+
+        if (groupsFile.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static File getGroupsFile(File walletFile){
+        return new File(walletFile.getPath() + ".groups");
+    }
+
+    /**
+     * @param address a base58 address.
+     * @return the group of the address, or null if it has none.
+     */
+    public synchronized String getGroup(String address) {
+        return groupByAddress.get(address);
+    }
+
+    /**
+     * @param group the name of the group.
+     * @return the addresses of the group, empty if there is no such group.
+     */
+    public synchronized Set<String> getAddresses(String group) {
+        Set<String> addresses = addressesByGroup.get(group);
+        return addresses == null ? new HashSet<String>() : new HashSet<>(addresses);
+    }
+
+    /**
+     * @return the names of the groups with any address.
+     */
+    public synchronized Set<String> getGroups() {
+        return new HashSet<>(addressesByGroup.keySet());
+    }
+
+    /**
+     * Sets the group of an address, or removes it from its group. Not saved until {@link #save()}
+     * @param address a base58 address.
+     * @param group the name of the group, or null to leave the address without group. See {@link #checkGroupName(String)}
+     * @return the previous group of the address, or null.
+     * @throws IOException if the change can't be written.
+     */
+    synchronized String setGroup(String address, String group) throws IOException {
+        if (group != null)
+            checkGroupName(group);
+        String previous = apply(address, group);
+        if (previous == null ? group != null : !previous.equals(group)) {
+            Writer out = getLog();
+            writeLine(out, address, group);
+            records++;
+        }
+        return previous;
+    }
+
+    /**
+     * Checks the name of a group can be written to the file and read back. An empty name is read as no group, and a line break
+     * would split the line of the address.
+     * @param group the name of the group.
+     * @throws IllegalArgumentException if the name is empty or has a line break.
+     */
+    static void checkGroupName(String group) {
+        Preconditions.checkNotNull(group);
+        Preconditions.checkArgument(!group.isEmpty(), "The group name can't be empty.");
+        Preconditions.checkArgument(group.indexOf('\n') < 0 && group.indexOf('\r') < 0, "The group name can't have line breaks.");
+    }
+
+    private String apply(String address, String group) {
+        String previous = group == null ? groupByAddress.remove(address) : groupByAddress.put(address, group);
+        if (previous != null) {
+            Set<String> addresses = addressesByGroup.get(previous);
+            addresses.remove(address);
+            if (addresses.isEmpty())
+                addressesByGroup.remove(previous);
+        }
+        if (group != null) {
+            Set<String> addresses = addressesByGroup.get(group);
+            if (addresses == null) {
+                addresses = new HashSet<>();
+                addressesByGroup.put(group, addresses);
+            }
+            addresses.add(address);
+        }
+        return previous;
+    }
+
+    /**
+     * @return the amount of addresses with a group.
+     */
+    public synchronized int size() {
+        return groupByAddress.size();
+    }
+
+    /**
+     * Writes the changes that are still in the log buffer, and rewrites the file if it has many more lines than addresses.
+     * @throws IOException if the file can't be written.
+     */
+    synchronized void save() throws IOException {
+        if (records > groupByAddress.size() * 2L + 1000)
+            compact();
+        else if (log != null)
+            log.flush();
+    }
+
+    /**
+     * rewrites the file with only the current groups.
+     */
+    private void compact() throws IOException {
+        if (log != null) {
+            log.close();
+            log = null;
+        }
+
+        // we write to a temporary file first so that a crash while saving doesn't lose the groups.
+        File tempFile = new File(groupsFile.getPath() + ".tmp");
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+        try {
+            for (Map.Entry<String, String> entry : groupByAddress.entrySet())
+                writeLine(writer, entry.getKey(), entry.getValue());
+        } finally {
+            writer.close();
+        }
+
+        if (!tempFile.renameTo(groupsFile)) {
+            groupsFile.delete();
+            if (!tempFile.renameTo(groupsFile))
+                throw new IOException("Unable to replace groups file " + groupsFile.toString());
+        }
+        records = groupByAddress.size();
+    }
+
+    private static void writeLine(Writer writer, String address, String group) throws IOException {
+        writer.write(address);
+        writer.write('\t');
+        if (group != null)
+            writer.write(group);
+        writer.write('\n');
+    }
+
+    private Writer getLog() throws IOException {
+        if (log == null)
+            log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(groupsFile, true), "UTF-8"));
+        return log;
+    }
+
+    /**
+     * replays the lines of the file. An incomplete line at the end, from a crash while it was written, is dropped.
+     */
+    private void load() throws IOException {
+        long complete = 0;
+        long length = groupsFile.length();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(groupsFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null){
+                long end = complete + line.getBytes("UTF-8").length + 1;
+                if (end > length)
+                    break;
+
+                int separator = line.indexOf('\t');
+                if (separator > 0) {
+                    String group = line.substring(separator + 1);
+                    apply(line.substring(0, separator), group.isEmpty() ? null : group);
+                }
+                complete = end;
+                records++;
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (complete < length) {
+            RandomAccessFile file = new RandomAccessFile(groupsFile, "rw");
+            try {
+                file.setLength(complete);
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
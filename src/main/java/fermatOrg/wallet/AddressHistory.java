@@ -0,0 +1,896 @@
+package fermatOrg.wallet;
+
+import com.google.common.base.Preconditions;
+import fermatOrg.network.WatchedAddressIndex;
+import org.blockchainj.core.Address;
+import org.blockchainj.core.Coin;
+import org.blockchainj.core.NetworkParameters;
+import org.blockchainj.core.Sha256Hash;
+import org.blockchainj.core.Transaction;
+import org.blockchainj.core.TransactionConfidence;
+import org.blockchainj.core.TransactionInput;
+import org.blockchainj.core.TransactionOutPoint;
+import org.blockchainj.core.TransactionOutput;
+import org.blockchainj.core.listeners.TransactionConfidenceEventListener;
+import org.blockchainj.utils.Threading;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.blockchainj.wallet.listeners.WalletCoinsSentEventListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The outputs received by each watched address, sorted by height, so that the history of an address is found without going through
+ * the wallet transactions. It is updated by the wallets as transactions arrive and change their confidence.
+ * The confirmed, unconfirmed and spent amounts of each address and of the whole wallet are kept as outputs are added, confirmed and spent,
+ * and so are their balance changes by height in a {@link BalanceLedger}, to get the balance at any past height.
+ * The amounts of each {@link AddressGroups} group are the sum of its addresses, kept as their outputs change and as addresses change group.
+ * <p>
+ *     The history is stored next to the wallet file as a log of added and removed outputs, which is replayed when the wallet is loaded.
+ *     A height change is logged as the output added again. The outputs of removed addresses are logged one by one.
+ *     The log is rewritten when it has many more records than outputs.
+ * </p>
+ */
+public class AddressHistory implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener, TransactionConfidenceEventListener {
+    //class variables
+    private DataOutputStream log;
+    private long records; // the records in the log, to know when to compact it.
+    private int size;
+
+    //class constants
+    private final File historyFile;
+    private final AddressGroups groups;
+    private final Map<String, List<Entry>> byAddress = new HashMap<>(); // the outputs of each address, sorted by height.
+    private final Map<Sha256Hash, List<Entry>> byTransaction = new HashMap<>(); // the outputs of each transaction, to update their height.
+    private final Map<String, Balance> balances = new HashMap<>(); // the ledger of each address.
+    private final Balance total = new Balance(); // the ledger of the wallet.
+    private final BalanceLedger ledger = new BalanceLedger(); // the balance changes by height.
+    private final Map<String, Balance> groupBalances = new HashMap<>(); // the ledger of each group.
+    private final Set<String> changedAddresses = new HashSet<>(); // the addresses whose ledger changed since the last state.
+    private static final byte ADD_RECORD = 1;
+    private static final byte REMOVE_RECORD = 2;
+    private static final byte REMOVE_OUTPUT_RECORD = 3;
+    private static final Comparator<Entry> HEIGHT_ORDER = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+            int firstHeight = first.getSortHeight();
+            int secondHeight = second.getSortHeight();
+            if (firstHeight != secondHeight)
+                return firstHeight < secondHeight ? -1 : 1;
+
+            int comparison = first.transactionHash.compareTo(second.transactionHash);
+            if (comparison != 0)
+                return comparison;
+            return first.index < second.index ? -1 : (first.index == second.index ? 0 : 1);
+        }
+    };
+
+    /**
+     * constructor. Loads the history from the specified file if it exists.
+     * @param historyFile the file in which the history is stored.
+     * @param groups the groups of the addresses, to keep the amounts of each group.
+     */
+    AddressHistory(File historyFile, AddressGroups groups) {
+        Preconditions.checkNotNull(historyFile);
+        Preconditions.checkNotNull(groups);
+        this.historyFile = historyFile;
+        this.groups = groups;
+
+        if (historyFile.exists()) {
+            try {
+                load();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    static File getHistoryFile(File walletFile){
+        return new File(walletFile.getPath() + ".history");
+    }
+
+    /**
+     * Starts listening to the wallets. Their transactions that are not in the history yet, because the history is new or the wallet
+     * was saved after it, are added first.
+     * @param shards the blockchainj wallets with the watched addresses.
+     */
+    void addWallets(List<Wallet> shards) {
+        for (Wallet shard : shards){
+            // the history is updated before the transactions are notified to anyone else.
+            shard.addCoinsReceivedEventListener(Threading.SAME_THREAD, this);
+            shard.addCoinsSentEventListener(Threading.SAME_THREAD, this);
+            shard.addTransactionConfidenceEventListener(Threading.SAME_THREAD, this);
+
+            for (Transaction transaction : shard.getTransactions(false)){
+                boolean known;
+                synchronized (this) {
+                    known = byTransaction.containsKey(transaction.getHash());
+                }
+                if (!known)
+                    update(shard, transaction);
+            }
+        }
+    }
+
+    /**
+     * Stops listening to the wallets.
+     * @param shards the blockchainj wallets with the watched addresses.
+     */
+    void removeWallets(List<Wallet> shards) {
+        for (Wallet shard : shards){
+            shard.removeCoinsReceivedEventListener(this);
+            shard.removeCoinsSentEventListener(this);
+            shard.removeTransactionConfidenceEventListener(this);
+        }
+    }
+
+    @Override
+    public void onCoinsReceived(Wallet wallet, Transaction transaction, Coin prevBalance, Coin newBalance) {
+        update(wallet, transaction);
+    }
+
+    @Override
+    public void onCoinsSent(Wallet wallet, Transaction transaction, Coin prevBalance, Coin newBalance) {
+        update(wallet, transaction);
+    }
+
+    @Override
+    public void onTransactionConfidenceChanged(Wallet wallet, Transaction transaction) {
+        // every block changes the depth of every transaction, only a new height or a double spend changes the history.
+        TransactionConfidence confidence = transaction.getConfidence();
+        if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.DEAD) {
+            int height = getHeight(confidence);
+            synchronized (this) {
+                List<Entry> entries = byTransaction.get(transaction.getHash());
+                if ((entries == null || entries.get(0).height == height) && !isSpentAtOtherHeight(transaction, height))
+                    return;
+            }
+        }
+        update(wallet, transaction);
+    }
+
+    /**
+     * @return true if the transaction spends an output we have, and we don't have it spent by the transaction at its height.
+     */
+    private boolean isSpentAtOtherHeight(Transaction transaction, int height) {
+        if (transaction.isCoinBase())
+            return false;
+
+        String transactionHash = transaction.getHashAsString();
+        for (TransactionInput input : transaction.getInputs()){
+            TransactionOutPoint outpoint = input.getOutpoint();
+            Entry entry = getEntry(outpoint.getHash(), outpoint.getIndex());
+            if (entry != null && (!transactionHash.equals(entry.spentBy) || entry.spentHeight != height))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Marks an output as spent. Used by compact wallets, whose wallets don't have the transactions of the spent outputs anymore.
+     * @param transactionHash the transaction of the output.
+     * @param index the index of the output.
+     * @param spentBy the transaction that spends it.
+     * @param height the height of the spending transaction, -1 if it is unconfirmed.
+     */
+    synchronized void outputSpent(Sha256Hash transactionHash, long index, Sha256Hash spentBy, int height) {
+        setSpentBy(transactionHash, index, spentBy.toString(), height, null);
+        flushLog();
+    }
+
+    /**
+     * Marks an output as unspent again if it was spent by the specified transaction. Used by compact wallets when the block of the
+     * spending transaction is reorganized.
+     * @param transactionHash the transaction of the output.
+     * @param index the index of the output.
+     * @param spentBy the transaction that no longer spends it.
+     */
+    synchronized void outputReleased(Sha256Hash transactionHash, long index, Sha256Hash spentBy) {
+        setSpentBy(transactionHash, index, null, -1, spentBy.toString());
+        flushLog();
+    }
+
+    /**
+     * Adds an output received by a transaction the wallets never saw, as the ones compact wallets rescan from the block cache.
+     * @param transactionHash the transaction of the output.
+     * @param index the index of the output.
+     * @param address the base58 address it pays to.
+     * @param value the value of the output.
+     * @param height the height of the transaction.
+     */
+    synchronized void outputReceived(Sha256Hash transactionHash, int index, String address, long value, int height) {
+        Entry entry = new Entry(transactionHash.toString(), index, address, value, height, null, -1);
+        add(transactionHash, entry);
+        writeAdd(entry);
+        flushLog();
+    }
+
+    /**
+     * @param transactionHash the transaction of the output.
+     * @param index the index of the output.
+     * @return true if we have the output, spent or not.
+     */
+    synchronized boolean contains(Sha256Hash transactionHash, long index) {
+        return getEntry(transactionHash, index) != null;
+    }
+
+    /**
+     * adds the watched outputs of the transaction with its current height and marks the outputs it spends, or removes them and
+     * releases the spent outputs if it was double spent.
+     */
+    private void update(Wallet wallet, Transaction transaction) {
+        boolean dead = transaction.getConfidence().getConfidenceType() == TransactionConfidence.ConfidenceType.DEAD;
+        int height = getHeight(transaction.getConfidence());
+        NetworkParameters params = wallet.getParams();
+        List<Entry> entries = new ArrayList<>();
+        List<TransactionOutput> outputs = dead ? new ArrayList<TransactionOutput>() : transaction.getOutputs();
+        for (int i = 0; i < outputs.size(); i++){
+            TransactionOutput output = outputs.get(i);
+            byte[] script = output.getScriptBytes();
+            int offset = WatchedAddressIndex.getHash160Offset(script);
+            if (offset < 0 || !output.isWatched(wallet))
+                continue;
+
+            int version = offset == 3 ? params.getAddressHeader() : params.getP2SHHeader();
+            String address = new Address(params, version, Arrays.copyOfRange(script, offset, offset + Address.LENGTH)).toBase58();
+            // the wallet knows the spending transaction if it arrived before this one was updated, as when loading.
+            TransactionInput spentBy = output.getSpentBy();
+            Transaction spender = spentBy == null ? null : spentBy.getParentTransaction();
+            entries.add(new Entry(transaction.getHashAsString(), i, address, output.getValue().getValue(), height,
+                    spender == null ? null : spender.getHashAsString(), spender == null ? -1 : getHeight(spender.getConfidence())));
+        }
+
+        synchronized (this) {
+            if (!transaction.isCoinBase()) {
+                String transactionHash = transaction.getHashAsString();
+                for (TransactionInput input : transaction.getInputs()){
+                    TransactionOutPoint outpoint = input.getOutpoint();
+                    if (dead)
+                        setSpentBy(outpoint.getHash(), outpoint.getIndex(), null, -1, transactionHash);
+                    else
+                        setSpentBy(outpoint.getHash(), outpoint.getIndex(), transactionHash, height, null);
+                }
+            }
+
+            if (dead) {
+                if (remove(transaction.getHash()))
+                    writeRemove(transaction.getHash());
+            } else {
+                // the outputs keep the transaction that spent them when their height changes, compact wallets don't know it.
+                for (Entry entry : entries){
+                    Entry previous = getEntry(transaction.getHash(), entry.index);
+                    if (entry.spentBy == null && previous != null && previous.spentBy != null)
+                        entry = entry.withSpentBy(previous.spentBy, previous.spentHeight);
+                    add(transaction.getHash(), entry);
+                    writeAdd(entry);
+                }
+            }
+            flushLog();
+        }
+    }
+
+    private Entry getEntry(Sha256Hash transactionHash, long index) {
+        List<Entry> transactionEntries = byTransaction.get(transactionHash);
+        if (transactionEntries == null)
+            return null;
+
+        for (Entry entry : transactionEntries){
+            if (entry.index == index)
+                return entry;
+        }
+        return null;
+    }
+
+    /**
+     * sets the transaction that spends an output we have and its height. If expected is not null, it is only changed if it was spent
+     * by that transaction.
+     */
+    private void setSpentBy(Sha256Hash transactionHash, long index, String spentBy, int spentHeight, String expected) {
+        Entry entry = getEntry(transactionHash, index);
+        if (entry == null || (expected != null && !expected.equals(entry.spentBy)))
+            return;
+        if ((spentBy == null ? entry.spentBy == null : spentBy.equals(entry.spentBy)) && spentHeight == entry.spentHeight)
+            return;
+
+        Entry spent = entry.withSpentBy(spentBy, spentHeight);
+        add(transactionHash, spent);
+        writeAdd(spent);
+    }
+
+    private static int getHeight(TransactionConfidence confidence) {
+        return confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING ? confidence.getAppearedAtChainHeight() : -1;
+    }
+
+    private void add(Sha256Hash transactionHash, Entry entry) {
+        List<Entry> transactionEntries = byTransaction.get(transactionHash);
+        if (transactionEntries == null) {
+            transactionEntries = new ArrayList<>(1);
+            byTransaction.put(transactionHash, transactionEntries);
+        }
+        for (int i = 0; i < transactionEntries.size(); i++){
+            if (transactionEntries.get(i).index == entry.index) {
+                removeFromAddress(transactionEntries.remove(i));
+                size--;
+                break;
+            }
+        }
+        transactionEntries.add(entry);
+
+        List<Entry> addressEntries = byAddress.get(entry.address);
+        if (addressEntries == null) {
+            addressEntries = new ArrayList<>();
+            byAddress.put(entry.address, addressEntries);
+        }
+        int position = Collections.binarySearch(addressEntries, entry, HEIGHT_ORDER);
+        addressEntries.add(position < 0 ? -position - 1 : position, entry);
+        size++;
+
+        Balance balance = balances.get(entry.address);
+        if (balance == null) {
+            balance = new Balance();
+            balances.put(entry.address, balance);
+        }
+        balance.add(entry, 1);
+        changedAddresses.add(entry.address);
+        total.add(entry, 1);
+        ledger.add(entry, 1);
+        String group = groups.getGroup(entry.address);
+        if (group != null)
+            getGroupBalance(group).add(entry, 1);
+    }
+
+    /**
+     * removes the outputs of a transaction.
+     * @return true if it had any.
+     */
+    private boolean remove(Sha256Hash transactionHash) {
+        List<Entry> transactionEntries = byTransaction.remove(transactionHash);
+        if (transactionEntries == null)
+            return false;
+
+        for (Entry entry : transactionEntries){
+            removeFromAddress(entry);
+            size--;
+        }
+        return true;
+    }
+
+    /**
+     * removes an output of a transaction, the other outputs stay.
+     */
+    private void removeOutput(Sha256Hash transactionHash, int index) {
+        List<Entry> transactionEntries = byTransaction.get(transactionHash);
+        if (transactionEntries == null)
+            return;
+
+        for (int i = 0; i < transactionEntries.size(); i++){
+            if (transactionEntries.get(i).index == index) {
+                removeFromAddress(transactionEntries.remove(i));
+                size--;
+                break;
+            }
+        }
+        if (transactionEntries.isEmpty())
+            byTransaction.remove(transactionHash);
+    }
+
+    private void removeFromAddress(Entry entry) {
+        List<Entry> addressEntries = byAddress.get(entry.address);
+        int position = Collections.binarySearch(addressEntries, entry, HEIGHT_ORDER);
+        if (position >= 0)
+            addressEntries.remove(position);
+        balances.get(entry.address).add(entry, -1);
+        changedAddresses.add(entry.address);
+        total.add(entry, -1);
+        ledger.add(entry, -1);
+        String group = groups.getGroup(entry.address);
+        if (group != null)
+            getGroupBalance(group).add(entry, -1);
+        if (addressEntries.isEmpty()) {
+            byAddress.remove(entry.address);
+            balances.remove(entry.address);
+        }
+    }
+
+    /**
+     * Gets the outputs received by an address, oldest first. Unconfirmed outputs are the newest ones.
+     * To get the next page, use {@link #getHistory(String, String, int)} with the cursor of the last output.
+     * @param address a base58 address.
+     * @param fromHeight the first height to return.
+     * @param limit the maximum amount of outputs to return.
+     * @return the outputs of the address from the height.
+     */
+    public synchronized List<Entry> getHistory(String address, long fromHeight, int limit) {
+        Preconditions.checkArgument(limit >= 0);
+        List<Entry> addressEntries = byAddress.get(address);
+        if (addressEntries == null)
+            return new ArrayList<>();
+
+        // the first output at the height, with a binary search.
+        int low = 0;
+        int high = addressEntries.size();
+        while (low < high){
+            int middle = (low + high) >>> 1;
+            if (addressEntries.get(middle).getSortHeight() < fromHeight)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return new ArrayList<>(addressEntries.subList(low, Math.min(addressEntries.size(), low + limit)));
+    }
+
+    /**
+     * Gets the outputs received by an address after a cursor, in the same order as {@link #getHistory(String, long, int)}
+     * Outputs are ordered by height, transaction and index, so pages don't repeat or skip outputs of the same height.
+     * @param address a base58 address.
+     * @param after the cursor of the last output of the previous page, see {@link Entry#getCursor()}, or null for the first page.
+     * @param limit the maximum amount of outputs to return.
+     * @return the outputs of the address after the cursor.
+     * @throws IllegalArgumentException if the cursor is not valid.
+     */
+    public synchronized List<Entry> getHistory(String address, String after, int limit) {
+        Preconditions.checkArgument(limit >= 0);
+        if (after == null)
+            return getHistory(address, 0, limit);
+
+        Entry cursor = Entry.fromCursor(after);
+        List<Entry> addressEntries = byAddress.get(address);
+        if (addressEntries == null)
+            return new ArrayList<>();
+
+        // the cursor output may have been removed, then the next one is where it would be.
+        int position = Collections.binarySearch(addressEntries, cursor, HEIGHT_ORDER);
+        int first = position < 0 ? -position - 1 : position + 1;
+        return new ArrayList<>(addressEntries.subList(first, Math.min(addressEntries.size(), first + limit)));
+    }
+
+    /**
+     * Gets an amount of the ledger of an address.
+     * @param address a base58 address.
+     * @param balanceType the amount to get.
+     * @return the amount, zero if the address received nothing.
+     */
+    public synchronized long getBalance(String address, BalanceType balanceType) {
+        Preconditions.checkNotNull(balanceType);
+        Balance balance = balances.get(address);
+        return balance == null ? 0 : balance.get(balanceType);
+    }
+
+    /**
+     * Gets an amount of the ledger of all the addresses.
+     * @param balanceType the amount to get.
+     * @return the amount.
+     */
+    public synchronized long getBalance(BalanceType balanceType) {
+        Preconditions.checkNotNull(balanceType);
+        return total.get(balanceType);
+    }
+
+    /**
+     * Copies the ledger of the watched addresses into a new state. The states after it are derived with {@link #getState(WalletState, Map, int)}
+     * @param addresses the base58 addresses being watched, addresses no longer watched are left out.
+     * @param syncHeight the height of the last block seen by the wallet.
+     * @return the state, which doesn't change with the history.
+     */
+    synchronized WalletState getState(Collection<String> addresses, int syncHeight) {
+        changedAddresses.clear();
+        Map<String, long[]> state = new HashMap<>(addresses.size() * 4 / 3 + 1);
+        for (String address : addresses)
+            state.put(address, getStateBalance(address));
+        return new WalletState(BalanceMap.of(state), syncHeight);
+    }
+
+    /**
+     * Derives a new state from the previous one with the addresses whose ledger changed since then, and the addresses that started or
+     * stopped being watched. The rest of the state is shared with the previous one.
+     * @param previous the last state built by this history.
+     * @param watched the base58 addresses that changed since the previous state, true if they are watched now and false if they are not.
+     * @param syncHeight the height of the last block seen by the wallet.
+     * @return the new state.
+     */
+    synchronized WalletState getState(WalletState previous, Map<String, Boolean> watched, int syncHeight) {
+        BalanceMap state = previous.getBalances();
+        for (Map.Entry<String, Boolean> address : watched.entrySet())
+            state = state.with(address.getKey(), address.getValue() ? getStateBalance(address.getKey()) : null);
+
+        // only the watched addresses are in the state.
+        for (String address : changedAddresses){
+            if (state.get(address) != null)
+                state = state.with(address, getStateBalance(address));
+        }
+        changedAddresses.clear();
+        return new WalletState(state, syncHeight);
+    }
+
+    private long[] getStateBalance(String address) {
+        Balance balance = balances.get(address);
+        return balance == null ? WalletState.getEmptyBalance() : new long[]{balance.confirmed, balance.unconfirmed, balance.spent};
+    }
+
+    /**
+     * Gets an amount of the ledger of a group, the sum of the amounts of its addresses.
+     * @param group the name of the group.
+     * @param balanceType the amount to get.
+     * @return the amount, zero if the group has no address or they received nothing.
+     */
+    public synchronized long getGroupBalance(String group, BalanceType balanceType) {
+        Preconditions.checkNotNull(balanceType);
+        Balance balance = groupBalances.get(group);
+        return balance == null ? 0 : balance.get(balanceType);
+    }
+
+    /**
+     * Removes the outputs and the group of addresses that are no longer watched. Outputs of the same transactions to other addresses stay.
+     * @param addresses the base58 addresses.
+     * @throws IOException if the groups can't be saved.
+     */
+    synchronized void removeAddresses(Collection<String> addresses) throws IOException {
+        Map<String, String> ungrouped = new HashMap<>();
+        for (String address : addresses){
+            List<Entry> addressEntries = byAddress.get(address);
+            if (addressEntries != null) {
+                for (Entry entry : new ArrayList<>(addressEntries)){
+                    Sha256Hash transactionHash = Sha256Hash.wrap(entry.transactionHash);
+                    removeOutput(transactionHash, entry.index);
+                    writeRemoveOutput(transactionHash, entry.index);
+                }
+            }
+            if (groups.getGroup(address) != null)
+                ungrouped.put(address, null);
+        }
+        flushLog();
+
+        if (!ungrouped.isEmpty())
+            setGroups(ungrouped);
+    }
+
+    /**
+     * Moves addresses to other groups, with the amounts they have, and saves the groups.
+     * @param assignments the new group of each base58 address, null to leave it without group.
+     * @throws IOException if the groups can't be saved.
+     */
+    synchronized void setGroups(Map<String, String> assignments) throws IOException {
+        for (Map.Entry<String, String> assignment : assignments.entrySet()){
+            String address = assignment.getKey();
+            String group = assignment.getValue();
+            String previous = groups.setGroup(address, group);
+            Balance balance = balances.get(address);
+            if (balance == null || (previous == null ? group == null : previous.equals(group)))
+                continue;
+
+            if (previous != null)
+                getGroupBalance(previous).add(balance, -1);
+            if (group != null)
+                getGroupBalance(group).add(balance, 1);
+        }
+        groups.save();
+    }
+
+    private Balance getGroupBalance(String group) {
+        Balance balance = groupBalances.get(group);
+        if (balance == null) {
+            balance = new Balance();
+            groupBalances.put(group, balance);
+        }
+        return balance;
+    }
+
+    /**
+     * Gets the confirmed balance of an address at a past height, from the last checkpoint before it and the changes since then.
+     * @param address a base58 address.
+     * @param height the height of the block, its transactions included.
+     * @return the unspent outputs received up to the height and not spent up to the height.
+     */
+    public synchronized long getBalanceAt(String address, int height) {
+        return ledger.getBalanceAt(address, height);
+    }
+
+    /**
+     * Gets the confirmed balance of all the addresses at a past height.
+     * @param height the height of the block, its transactions included.
+     * @return the unspent outputs received up to the height and not spent up to the height.
+     */
+    public synchronized long getBalanceAt(int height) {
+        return ledger.getBalanceAt(height);
+    }
+
+    /**
+     * @return the amount of outputs in the history.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void writeAdd(Entry entry) {
+        try {
+            DataOutputStream out = getLog();
+            out.writeByte(ADD_RECORD);
+            out.write(Sha256Hash.wrap(entry.transactionHash).getBytes());
+            out.writeInt(entry.index);
+            out.writeUTF(entry.address);
+            out.writeLong(entry.value);
+            out.writeInt(entry.height);
+            out.writeUTF(entry.spentBy == null ? "" : entry.spentBy);
+            out.writeInt(entry.spentHeight);
+            records++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeRemove(Sha256Hash transactionHash) {
+        try {
+            DataOutputStream out = getLog();
+            out.writeByte(REMOVE_RECORD);
+            out.write(transactionHash.getBytes());
+            records++;
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void writeRemoveOutput(Sha256Hash transactionHash, int index) {
+        try {
+            DataOutputStream out = getLog();
+            out.writeByte(REMOVE_OUTPUT_RECORD);
+            out.write(transactionHash.getBytes());
+            out.writeInt(index);
+            records++;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void flushLog() {
+        try {
+            if (log != null)
+                log.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private DataOutputStream getLog() throws IOException {
+        if (log == null)
+            log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(historyFile, true)));
+        return log;
+    }
+
+    /**
+     * Writes the outputs that are still in the log buffer.
+     * @throws IOException if the log can't be written.
+     */
+    public synchronized void save() throws IOException {
+        if (log != null)
+            log.flush();
+    }
+
+    /**
+     * replays the log. An incomplete record at the end, from a crash while it was written, is dropped.
+     */
+    private void load() throws IOException {
+        long complete = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(historyFile)));
+        try {
+            while (true){
+                byte type = in.readByte();
+                // the hash wraps the array, each record needs its own.
+                byte[] hash = new byte[32];
+                in.readFully(hash);
+                Sha256Hash transactionHash = Sha256Hash.wrap(hash);
+                if (type == ADD_RECORD) {
+                    int index = in.readInt();
+                    String address = in.readUTF();
+                    long value = in.readLong();
+                    int height = in.readInt();
+                    String spentBy = in.readUTF();
+                    int spentHeight = in.readInt();
+                    add(transactionHash, new Entry(transactionHash.toString(), index, address, value, height, spentBy.isEmpty() ? null : spentBy, spentHeight));
+                    complete += 1 + hash.length + 4 + 2 + address.length() + 8 + 4 + 2 + spentBy.length() + 4;
+                } else if (type == REMOVE_RECORD) {
+                    remove(transactionHash);
+                    complete += 1 + hash.length;
+                } else if (type == REMOVE_OUTPUT_RECORD) {
+                    removeOutput(transactionHash, in.readInt());
+                    complete += 1 + hash.length + 4;
+                } else
+                    break;
+                records++;
+            }
+        } catch (EOFException e) {
+            // the end of the log.
+        } finally {
+            in.close();
+        }
+
+        if (complete < historyFile.length()) {
+            RandomAccessFile file = new RandomAccessFile(historyFile, "rw");
+            try {
+                file.setLength(complete);
+            } finally {
+                file.close();
+            }
+        }
+
+        if (records > size * 2L + 1000)
+            compact();
+    }
+
+    /**
+     * rewrites the log with only the current outputs.
+     */
+    private void compact() throws IOException {
+        // we write to a temporary file first so that a crash during compaction doesn't corrupt the history.
+        File tempFile = new File(historyFile.getPath() + ".tmp");
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        records = 0;
+        try {
+            for (List<Entry> addressEntries : byAddress.values()){
+                for (Entry entry : addressEntries)
+                    writeAdd(entry);
+            }
+        } finally {
+            log.close();
+            log = null;
+        }
+
+        if (!tempFile.renameTo(historyFile)) {
+            historyFile.delete();
+            if (!tempFile.renameTo(historyFile))
+                throw new IOException("Unable to replace history file " + historyFile.toString());
+        }
+    }
+
+    /**
+     * An output received by a watched address.
+     */
+    public static class Entry {
+        private final String transactionHash;
+        private final int index;
+        private final String address;
+        private final long value;
+        private final int height;
+        private final String spentBy;
+        private final int spentHeight;
+
+        Entry(String transactionHash, int index, String address, long value, int height, String spentBy, int spentHeight) {
+            this.transactionHash = transactionHash;
+            this.index = index;
+            this.address = address;
+            this.value = value;
+            this.height = height;
+            this.spentBy = spentBy;
+            this.spentHeight = spentHeight;
+        }
+
+        private Entry withSpentBy(String spentBy, int spentHeight) {
+            return new Entry(transactionHash, index, address, value, height, spentBy, spentHeight);
+        }
+
+        public String getTransactionHash() {
+            return transactionHash;
+        }
+
+        /**
+         * @return the index of the output in the transaction.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        /**
+         * @return the height of the block that included the transaction, or -1 if it is unconfirmed.
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return the hash of the transaction that spends the output, confirmed or not, or null if it is unspent.
+         */
+        public String getSpentBy() {
+            return spentBy;
+        }
+
+        /**
+         * @return the height of the block that included the spending transaction, or -1 if it is unspent or the spend is unconfirmed.
+         */
+        public int getSpentHeight() {
+            return spentHeight;
+        }
+
+        /**
+         * @return the position of this output in the history of its address, to get the outputs after it.
+         */
+        public String getCursor() {
+            return height + ":" + transactionHash + ":" + index;
+        }
+
+        /**
+         * an entry with only the fields of a cursor, to find its position.
+         */
+        private static Entry fromCursor(String cursor) {
+            String[] fields = cursor.split(":");
+            Preconditions.checkArgument(fields.length == 3 && fields[1].length() == 64, "Invalid cursor: " + cursor);
+            try {
+                return new Entry(fields[1], Integer.parseInt(fields[2]), null, 0, Integer.parseInt(fields[0]), null, -1);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+            }
+        }
+
+        /**
+         * unconfirmed outputs are sorted after all the confirmed ones.
+         */
+        private int getSortHeight() {
+            return height < 0 ? Integer.MAX_VALUE : height;
+        }
+    }
+
+    /**
+     * The amounts of an address, or of the wallet.
+     */
+    private static class Balance {
+        private long confirmed; // unspent outputs in a block.
+        private long unconfirmed; // unspent outputs not in a block yet.
+        private long spent;
+
+        void add(Balance balance, int sign) {
+            confirmed = confirmed + sign * balance.confirmed;
+            unconfirmed = unconfirmed + sign * balance.unconfirmed;
+            spent = spent + sign * balance.spent;
+        }
+
+        void add(Entry entry, int sign) {
+            if (entry.spentBy != null)
+                spent = spent + sign * entry.value;
+            else if (entry.height >= 0)
+                confirmed = confirmed + sign * entry.value;
+            else
+                unconfirmed = unconfirmed + sign * entry.value;
+        }
+
+        long get(BalanceType balanceType) {
+            switch (balanceType){
+                case CONFIRMED:
+                    return confirmed;
+                case UNCONFIRMED:
+                    return unconfirmed;
+                case ESTIMATED:
+                    return confirmed + unconfirmed;
+                case SPENT:
+                    return spent;
+                default:
+                    return confirmed + unconfirmed + spent;
+            }
+        }
+    }
+}
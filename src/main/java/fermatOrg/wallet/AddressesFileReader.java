@@ -46,4 +46,14 @@ class AddressesFileReader {
 
         return lines;
     }
+
+    /**
+     * Splits a line of the input file in the address and, if there is one, the group of the address.
+     * Columns are separated by spaces, tabs or a comma.
+     * @param line a line of the input file.
+     * @return the address, and the group if the line has one.
+     */
+    static String[] getColumns(String line) {
+        return line.trim().split("\\s*[\\s,]\\s*", 2);
+    }
 }
@@ -0,0 +1,116 @@
+package fermatOrg.wallet;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * The balance changes of each address and of the wallet at each block height, with a checkpoint of the balance every
+ * {@link #CHECKPOINT_INTERVAL} blocks, so the balance at any height is the previous checkpoint plus the changes of less than an interval.
+ * It is kept by the {@link AddressHistory} as outputs are confirmed and spent, it is not thread safe.
+ */
+class BalanceLedger {
+    //class constants
+    private final Map<String, Ledger> addresses = new HashMap<>();
+    private final Ledger total = new Ledger();
+    static final int CHECKPOINT_INTERVAL = 1000;
+
+    /**
+     * adds or removes the balance changes of an output, received at its height and spent at the height of its spending transaction.
+     * @param entry the output.
+     * @param sign 1 to add the output, -1 to remove it.
+     */
+    void add(AddressHistory.Entry entry, int sign) {
+        if (entry.getHeight() >= 0)
+            add(entry.getAddress(), entry.getHeight(), sign * entry.getValue());
+        if (entry.getSpentBy() != null && entry.getSpentHeight() >= 0)
+            add(entry.getAddress(), entry.getSpentHeight(), -sign * entry.getValue());
+    }
+
+    private void add(String address, int height, long change) {
+        Ledger ledger = addresses.get(address);
+        if (ledger == null) {
+            ledger = new Ledger();
+            addresses.put(address, ledger);
+        }
+        ledger.add(height, change);
+        if (ledger.isEmpty())
+            addresses.remove(address);
+        total.add(height, change);
+    }
+
+    /**
+     * @return the confirmed balance of the address at the end of the block at the height.
+     */
+    long getBalanceAt(String address, int height) {
+        Ledger ledger = addresses.get(address);
+        return ledger == null ? 0 : ledger.getBalanceAt(height);
+    }
+
+    /**
+     * @return the confirmed balance of the wallet at the end of the block at the height.
+     */
+    long getBalanceAt(int height) {
+        return total.getBalanceAt(height);
+    }
+
+    /**
+     * The changes by height, and the balance at the end of each interval that had any change.
+     * An interval without changes has the balance of the previous checkpoint.
+     */
+    private static class Ledger {
+        private final TreeMap<Integer, Long> changes = new TreeMap<>();
+        private final TreeMap<Integer, Long> checkpoints = new TreeMap<>();
+
+        void add(int height, long change) {
+            if (change == 0)
+                return;
+
+            Long previous = changes.get(height);
+            long sum = previous == null ? change : previous + change;
+            if (sum == 0)
+                changes.remove(height);
+            else
+                changes.put(height, sum);
+
+            // the checkpoint of the interval is created with the balance before it, then every checkpoint from the height gets the change.
+            int checkpoint = getCheckpoint(height);
+            if (!checkpoints.containsKey(checkpoint)) {
+                Map.Entry<Integer, Long> before = checkpoints.lowerEntry(checkpoint);
+                checkpoints.put(checkpoint, before == null ? 0 : before.getValue());
+            }
+            for (Map.Entry<Integer, Long> entry : checkpoints.tailMap(checkpoint, true).entrySet())
+                entry.setValue(entry.getValue() + change);
+
+            // an interval left without changes goes back to the previous checkpoint.
+            if (changes.subMap(checkpoint - CHECKPOINT_INTERVAL, false, checkpoint, true).isEmpty())
+                checkpoints.remove(checkpoint);
+        }
+
+        long getBalanceAt(int height) {
+            if (height < 0)
+                return 0;
+
+            // the last checkpoint before the interval of the height, and the changes of the interval up to the height.
+            int checkpoint = getCheckpoint(height) - CHECKPOINT_INTERVAL;
+            Map.Entry<Integer, Long> before = checkpoints.floorEntry(checkpoint);
+            long balance = before == null ? 0 : before.getValue();
+            NavigableMap<Integer, Long> interval = changes.subMap(checkpoint, false, height, true);
+            for (long change : interval.values())
+                balance = balance + change;
+            return balance;
+        }
+
+        boolean isEmpty() {
+            return changes.isEmpty();
+        }
+
+        /**
+         * @return the last height of the interval of the height.
+         */
+        private static int getCheckpoint(int height) {
+            return (height / CHECKPOINT_INTERVAL) * CHECKPOINT_INTERVAL + CHECKPOINT_INTERVAL - 1;
+        }
+    }
+}
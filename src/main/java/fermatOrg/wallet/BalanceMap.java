@@ -0,0 +1,256 @@
+package fermatOrg.wallet;
+
+import com.google.common.base.Preconditions;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map of the confirmed, unconfirmed and spent amounts of each address, and of their total.
+ * <p>
+ *     It is a trie of 32 children by the bits of the address hash code, so a changed address only copies the nodes on its path and the
+ *     new map shares the rest with the one it was derived from. A new {@link WalletState} costs the addresses that changed, not all of them.
+ * </p>
+ */
+final class BalanceMap {
+    //class constants
+    private final Object[] root; // the children by the lowest bits of the hash, a node, a leaf or null.
+    private final int size;
+    private final long[] total;
+    private static final int BITS = 5;
+    private static final int WIDTH = 1 << BITS;
+    private static final int MASK = WIDTH - 1;
+    static final BalanceMap EMPTY = new BalanceMap(new Object[WIDTH], 0, new long[3]);
+
+    private BalanceMap(Object[] root, int size, long[] total) {
+        this.root = root;
+        this.size = size;
+        this.total = total;
+    }
+
+    /**
+     * builds the map of the specified amounts at once, without copying nodes.
+     * @param balances the amounts of each address. The arrays are not copied, must not be changed afterwards.
+     */
+    static BalanceMap of(Map<String, long[]> balances) {
+        Object[] root = new Object[WIDTH];
+        long[] total = new long[3];
+        for (Map.Entry<String, long[]> balance : balances.entrySet()){
+            root = put(root, 0, balance.getKey().hashCode(), balance.getKey(), balance.getValue(), true);
+            add(total, balance.getValue(), 1);
+        }
+        return new BalanceMap(root, balances.size(), total);
+    }
+
+    /**
+     * @param address a base58 address.
+     * @return the amounts of the address, or null if it is not in the map.
+     */
+    long[] get(String address) {
+        int hash = address.hashCode();
+        Object[] node = root;
+        for (int shift = 0; ; shift = shift + BITS){
+            Object child = node[(hash >>> shift) & MASK];
+            if (child instanceof Object[])
+                node = (Object[]) child;
+            else
+                return child == null ? null : ((Leaf) child).get(hash, address);
+        }
+    }
+
+    /**
+     * @param address a base58 address.
+     * @param balance the new amounts of the address, or null to remove it. Not copied, must not be changed afterwards.
+     * @return a new map with the address changed, this one if nothing changed.
+     */
+    BalanceMap with(String address, long[] balance) {
+        Preconditions.checkNotNull(address);
+        long[] previous = get(address);
+        if (previous == balance)
+            return this;
+
+        long[] newTotal = total.clone();
+        if (previous != null)
+            add(newTotal, previous, -1);
+        if (balance != null)
+            add(newTotal, balance, 1);
+        int newSize = size + (previous == null ? 1 : 0) - (balance == null ? 1 : 0);
+        return new BalanceMap(put(root, 0, address.hashCode(), address, balance, false), newSize, newTotal);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the sum of the amounts of all the addresses. Must not be changed.
+     */
+    long[] getTotal() {
+        return total;
+    }
+
+    /**
+     * @return the addresses of the map, unmodifiable.
+     */
+    Set<String> keySet() {
+        return new AbstractSet<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new KeyIterator(root);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public boolean contains(Object address) {
+                return address instanceof String && get((String) address) != null;
+            }
+        };
+    }
+
+    /**
+     * sets the amounts of an address on a copy of the node, or on the node itself while building a new map.
+     */
+    private static Object[] put(Object[] node, int shift, int hash, String address, long[] balance, boolean inPlace) {
+        Object[] copy = inPlace ? node : node.clone();
+        int slot = (hash >>> shift) & MASK;
+        Object child = node[slot];
+        if (child instanceof Object[]) {
+            copy[slot] = put((Object[]) child, shift + BITS, hash, address, balance, inPlace);
+        } else if (child == null) {
+            copy[slot] = balance == null ? null : new Leaf(hash, new String[]{address}, new long[][]{balance});
+        } else if (((Leaf) child).hash == hash) {
+            copy[slot] = ((Leaf) child).with(address, balance);
+        } else if (balance != null) {
+            // two hashes always differ in the bits of some level, the last one takes the two highest bits.
+            Leaf leaf = (Leaf) child;
+            Object[] split = new Object[WIDTH];
+            split[(leaf.hash >>> (shift + BITS)) & MASK] = leaf;
+            copy[slot] = put(split, shift + BITS, hash, address, balance, true);
+        }
+        return copy;
+    }
+
+    private static void add(long[] total, long[] balance, int sign) {
+        for (int i = 0; i < total.length; i++)
+            total[i] = total[i] + sign * balance[i];
+    }
+
+    /**
+     * the addresses with the same hash code, almost always one.
+     */
+    private static final class Leaf {
+        private final int hash;
+        private final String[] addresses;
+        private final long[][] balances;
+
+        Leaf(int hash, String[] addresses, long[][] balances) {
+            this.hash = hash;
+            this.addresses = addresses;
+            this.balances = balances;
+        }
+
+        long[] get(int hash, String address) {
+            if (hash != this.hash)
+                return null;
+            for (int i = 0; i < addresses.length; i++){
+                if (addresses[i].equals(address))
+                    return balances[i];
+            }
+            return null;
+        }
+
+        /**
+         * @return a new leaf with the address changed, or null if it has no address left.
+         */
+        Leaf with(String address, long[] balance) {
+            List<String> newAddresses = new ArrayList<>(addresses.length + 1);
+            List<long[]> newBalances = new ArrayList<>(addresses.length + 1);
+            for (int i = 0; i < addresses.length; i++){
+                if (!addresses[i].equals(address)) {
+                    newAddresses.add(addresses[i]);
+                    newBalances.add(balances[i]);
+                }
+            }
+            if (balance != null) {
+                newAddresses.add(address);
+                newBalances.add(balance);
+            }
+            if (newAddresses.isEmpty())
+                return null;
+            return new Leaf(hash, newAddresses.toArray(new String[newAddresses.size()]), newBalances.toArray(new long[newBalances.size()][]));
+        }
+    }
+
+    /**
+     * goes through the nodes depth first, with the position in each node of the path.
+     */
+    private static final class KeyIterator implements Iterator<String> {
+        private final List<Object[]> nodes = new ArrayList<>();
+        private final List<Integer> positions = new ArrayList<>();
+        private Leaf leaf;
+        private int leafPosition;
+
+        KeyIterator(Object[] root) {
+            nodes.add(root);
+            positions.add(0);
+            advance();
+        }
+
+        /**
+         * moves to the next leaf, or leaves it null at the end.
+         */
+        private void advance() {
+            leaf = null;
+            leafPosition = 0;
+            while (!nodes.isEmpty()){
+                int last = nodes.size() - 1;
+                Object[] node = nodes.get(last);
+                int position = positions.get(last);
+                if (position == WIDTH) {
+                    nodes.remove(last);
+                    positions.remove(last);
+                    continue;
+                }
+
+                positions.set(last, position + 1);
+                Object child = node[position];
+                if (child instanceof Object[]) {
+                    nodes.add((Object[]) child);
+                    positions.add(0);
+                } else if (child != null) {
+                    leaf = (Leaf) child;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return leaf != null;
+        }
+
+        @Override
+        public String next() {
+            if (leaf == null)
+                throw new NoSuchElementException();
+            String address = leaf.addresses[leafPosition++];
+            if (leafPosition == leaf.addresses.length)
+                advance();
+            return address;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+package fermatOrg.wallet;
+
+/**
+ * The amounts of the ledger of an address or of the wallet.
+ */
+public enum BalanceType {
+    /**
+     * everything ever received, spent or not. The amount returned by {@link WatchOnlyWallet#getAddressBalance(String)}
+     */
+    RECEIVED,
+    /**
+     * the unspent outputs included in a block.
+     */
+    CONFIRMED,
+    /**
+     * the unspent outputs not included in a block yet.
+     */
+    UNCONFIRMED,
+    /**
+     * the confirmed and unconfirmed unspent outputs.
+     */
+    ESTIMATED,
+    /**
+     * the outputs spent by a transaction, confirmed or not.
+     */
+    SPENT
+}
@@ -10,7 +10,9 @@ import fermatOrg.network.NetworkType;
 import fermatOrg.wallet.event.IncomingTransactionListener;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Created by rodrigo on 11/3/16.
@@ -32,6 +34,37 @@ interface IoPWallet {
      */
     void importAddress(String address) throws AddressFormatException;
 
+    /**
+     * Stops watching the addresses, with one wallet lock, one filter recalculation and one save for the whole batch.
+     * @param addresses the base58 addresses to remove.
+     * @param dropHistory true to also remove the history, balances, group and events of the addresses.
+     * @return the amount of addresses removed.
+     */
+    int removeAddresses(Collection<String> addresses, boolean dropHistory) throws IoWalletException, AddressFormatException;
+
+    /**
+     * Stops watching the addresses listed in the input file.
+     * @param inputFile The file with the list of addresses to remove.
+     * @param dropHistory true to also remove the history, balances, group and events of the addresses.
+     * @return the amount of addresses removed.
+     */
+    int removeAddresses(File inputFile, boolean dropHistory) throws IoWalletException, AddressFormatException;
+
+    /**
+     * Imports a watch only address into the wallet as part of a group, or moves it to the group if it was already imported.
+     * @param address a valid Base58 string address on the selected network
+     * @param group the name of the group (account) of the address.
+     */
+    void importAddress(String address, String group) throws AddressFormatException, IoWalletException;
+
+    /**
+     * Gets an amount of the ledger of a group, the sum of all its addresses, kept as their outputs change.
+     * @param group the name of the group.
+     * @param balanceType the amount we want.
+     * @return the amount of IoP-satoshis, zero if the group has no address.
+     */
+    long getGroupBalance(String group, BalanceType balanceType);
+
     /**
      * Calculates and return the amount of IoPs sent to the specified address.
      * @param address the address we want to get the balance from. Must already be imported in the wallet and be valid.
@@ -39,12 +72,60 @@ interface IoPWallet {
      */
     long getAddressBalance(String address) throws AddressFormatException;
 
+    /**
+     * Gets an amount of the ledger of an address, kept as transactions arrive, are confirmed and spent.
+     * @param address the address we want to get the balance from.
+     * @param balanceType the amount we want.
+     * @return the amount of IoP-satoshis, zero if the address received nothing.
+     */
+    long getAddressBalance(String address, BalanceType balanceType) throws AddressFormatException;
+
+    /**
+     * Gets the confirmed balance an address had at a past block height.
+     * @param address the address we want to get the balance from.
+     * @param height the height of the block, its transactions included.
+     * @return the amount of IoP-satoshis.
+     */
+    long getAddressBalanceAt(String address, int height) throws AddressFormatException;
+
+    /**
+     * Gets the outputs received by an address, oldest first, from an indexed history that doesn't go through the wallet transactions.
+     * @param address the address we want the history of.
+     * @param fromHeight the first block height to return, unconfirmed outputs are returned after all the confirmed ones.
+     * @param limit the maximum amount of outputs to return.
+     * @return the received outputs.
+     */
+    List<AddressHistory.Entry> getAddressHistory(String address, long fromHeight, int limit) throws AddressFormatException;
+
+    /**
+     * Gets the outputs received by an address after the last output of the previous page.
+     * @param address the address we want the history of.
+     * @param after the cursor of the last output already returned, or null for the first page.
+     * @param limit the maximum amount of outputs to return.
+     * @return the received outputs after the cursor.
+     */
+    List<AddressHistory.Entry> getAddressHistory(String address, String after, int limit) throws AddressFormatException;
+
     /**
      * Calculates and returns the total amount of IoPs sent to any of the addresses imported into the wallet.
      * @return a long value with the total amounf of IoP-satoshis on the wallet. The long value express IoP-satoshis 10000000 = 1 IoP
      */
     long getWalletBalance();
 
+    /**
+     * Gets an amount of the ledger of all the imported addresses.
+     * @param balanceType the amount we want.
+     * @return the amount of IoP-satoshis.
+     */
+    long getWalletBalance(BalanceType balanceType);
+
+    /**
+     * Gets the confirmed balance of all the imported addresses at a past block height.
+     * @param height the height of the block, its transactions included.
+     * @return the amount of IoP-satoshis.
+     */
+    long getWalletBalanceAt(int height);
+
     /**
      * It returns all the succesfully imported address on the wallet. All the returned addresses are being monitored on the network.
      * @return a list of string representing the imported addresses
@@ -58,6 +139,12 @@ interface IoPWallet {
      */
     int getAddressesSize();
 
+    /**
+     * Gets the balances, addresses and sync height of the wallet without taking any lock. It is rebuilt after each change of the wallet.
+     * @return the last published state of the wallet.
+     */
+    WalletState getState();
+
 
     /**
      * Confirms and received and consumed an incoming transaction event. If you respond to the Java Event or where notified on the incoming
@@ -66,6 +153,22 @@ interface IoPWallet {
      */
     void confirmEventReception(IncomingTransactionEvent incomingTransactionEvent);
 
+    /**
+     * Confirms the reception of many events at once, they are saved once instead of once per event.
+     * @param incomingTransactionEvents the events received and consumed.
+     */
+    void confirmEventReception(Collection<IncomingTransactionEvent> incomingTransactionEvents);
+
+    /**
+     * Finds a pending event by its transaction, address, stage and height, for clients that only keep those fields of the event.
+     * @param transactionHash the hash of the transaction of the event.
+     * @param address the base58 address of the event.
+     * @param stage the stage of the event.
+     * @param height the height of the event, -1 if it is unconfirmed.
+     * @return the pending event, or null if there is none.
+     */
+    IncomingTransactionEvent getPendingNotificationEvent(String transactionHash, String address, IncomingTransactionEvent.Stage stage, int height);
+
     /**
      * The file where this wallet is stored. The wallet will auto save when needed, so there are no actions to perform.
      * @return the File object representing the wallet file.
@@ -86,6 +189,43 @@ interface IoPWallet {
      */
     IoPBlockchain connect() throws IoPBlockchainException;
 
+    /**
+     * Connects the current WatchOnly wallet to a blockchain connection shared with other wallets of the same network. All attached wallets
+     * use the same peers and block download.
+     * @param sharedBlockchain the shared blockchain connection.
+     * @return the shared IoP Blockchain object
+     * @throws IoPBlockchainException if there is an error connecting to the IoP blockchain.
+     */
+    IoPBlockchain connect(IoPBlockchain sharedBlockchain) throws IoPBlockchainException;
+
+    /**
+     * Detaches this wallet from its blockchain connection. If the connection is shared, it stays up for the rest of the attached wallets.
+     */
+    void detach();
+
+    /**
+     * Sets the false positive rate of the bloom filter sent to peers. With many watched addresses, lower rates mean bigger filters but
+     * less irrelevant transactions to download and process.
+     * @param rate a value between 0 and 1.
+     */
+    void setBloomFilterFalsePositiveRate(double rate);
+
+    /**
+     * Switches the wallet from the full one second autosave to incremental persistence. Only the changed transactions are written
+     * every flush interval, and the full wallet every snapshot interval.
+     * @param flushInterval how often changed transactions are written.
+     * @param snapshotInterval how often the full wallet is written.
+     * @param timeUnit the unit of both intervals.
+     * @throws IoWalletException if the first snapshot can't be written.
+     */
+    void setIncrementalPersistence(long flushInterval, long snapshotInterval, TimeUnit timeUnit) throws IoWalletException;
+
+    /**
+     * Writes the pending changes of the wallet.
+     * @throws IoWalletException if the wallet can't be written.
+     */
+    void flush() throws IoWalletException;
+
     /**
      * Adds a new Listener for the Incoming Transaction Event. Listeners will be notified when a new transaction is detected on the network.
      * @param incomingTransactionListener
@@ -98,6 +238,20 @@ interface IoPWallet {
      */
     void removeIncomingTransactionListener(IncomingTransactionListener incomingTransactionListener);
 
+    /**
+     * Adds a new Listener for the Incoming Transaction Events of the addresses of a group.
+     * @param group the name of the group.
+     * @param incomingTransactionListener the listener.
+     */
+    void addIncomingTransactionListener(String group, IncomingTransactionListener incomingTransactionListener);
+
+    /**
+     * Removes a listener of the events of a group.
+     * @param group the name of the group.
+     * @param incomingTransactionListener the listener.
+     */
+    void removeIncomingTransactionListener(String group, IncomingTransactionListener incomingTransactionListener);
+
     /**
      * {@link IncomingTransactionEvent} event is triggered when a new transaction is detected that sends IoPs to any of the imported addresses on the wallet.
      * Those events must be confirmed by {@link #confirmEventReception(IncomingTransactionEvent)}. Events that have not been yet confirmed reception are returned by this method.
@@ -0,0 +1,668 @@
+package fermatOrg.wallet;
+
+import com.google.common.base.Preconditions;
+import org.blockchainj.core.*;
+import org.blockchainj.core.listeners.NewBestBlockListener;
+import org.blockchainj.core.listeners.OnTransactionBroadcastListener;
+import org.blockchainj.core.listeners.ReorganizeListener;
+import org.blockchainj.core.listeners.TransactionReceivedInBlockListener;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletTransaction;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The unspent outputs of the watched addresses of a compact wallet, with the total received by each address and an optional
+ * bounded window of recent history. Outputs are added and spent from the transactions of each best chain block, and the outpoints are
+ * added to the filter sent to peers so that spends are received even after the wallet transactions are pruned.
+ * The changes of the last blocks are kept so that a reorganization undoes them and applies the transactions of the new best chain blocks.
+ * The set is stored next to the wallet file and saved on each block that changes it.
+ */
+public class UtxoSet implements TransactionReceivedInBlockListener, NewBestBlockListener, ReorganizeListener, OnTransactionBroadcastListener, PeerFilterProvider {
+    //class variables
+    private State state;
+    private boolean dirty;
+    private boolean filterChanged;
+    private volatile PeerGroup peerGroup; // the peer group that gets the new filter when outpoints are added.
+    private volatile AddressHistory history; // the address history that gets the spent outputs, the wallets don't see them in compact mode.
+
+    //class constants
+    private final List<Wallet> shards; // the wallets with the watched addresses.
+    private final NetworkParameters params;
+    private final File utxoDB; // the file that will save the set.
+    private final Map<Sha256Hash, Transaction> pending = new LinkedHashMap<Sha256Hash, Transaction>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+            return size() > MAX_PENDING;
+        }
+    }; // relevant transactions seen before their block, peers only send their hash in the filtered block.
+    private final Map<Sha256Hash, List<Transaction>> sideChain = new LinkedHashMap<Sha256Hash, List<Transaction>>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, List<Transaction>> eldest) {
+            return size() > MAX_UNDO_BLOCKS;
+        }
+    }; // the transactions of side chain blocks, applied if their chain becomes the best one.
+    private static final int MAX_PENDING = 10000;
+    private static final int MAX_UNDO_BLOCKS = 100; // the deepest reorganization we can undo.
+
+    /**
+     * constructor. Loads the set from the specified file if it exists.
+     * @param shards the blockchainj wallets with the watched addresses.
+     * @param utxoDB the file in which the set is stored.
+     * @param historySize the amount of recent history entries to keep, zero for none.
+     */
+    UtxoSet(List<Wallet> shards, File utxoDB, int historySize) {
+        this(shards, utxoDB);
+        Preconditions.checkArgument(historySize >= 0);
+        setHistorySize(historySize);
+    }
+
+    /**
+     * constructor. Loads the set from the specified file if it exists, with the history size it was saved with.
+     * @param shards the blockchainj wallets with the watched addresses.
+     * @param utxoDB the file in which the set is stored.
+     */
+    UtxoSet(List<Wallet> shards, File utxoDB) {
+        Preconditions.checkNotNull(shards);
+        Preconditions.checkArgument(!shards.isEmpty());
+        Preconditions.checkNotNull(utxoDB);
+
+        this.shards = shards;
+        this.params = shards.get(0).getParams();
+        this.utxoDB = utxoDB;
+        this.state = new State();
+
+        if (utxoDB.exists()) {
+            try {
+                this.state = load();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Adds the unspent outputs of the transactions already in the wallets. Used when a wallet with history is switched to compact mode.
+     */
+    synchronized void addWalletTransactions() {
+        for (Wallet shard : shards){
+            for (Transaction transaction : shard.getTransactions(false)){
+                if (transaction.getConfidence().getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING)
+                    continue;
+
+                int height = transaction.getConfidence().getAppearedAtChainHeight();
+                for (TransactionOutput output : transaction.getOutputs()){
+                    // spent outputs only count as received.
+                    if (output.isWatched(shard))
+                        addOutput(transaction, output, height, output.isAvailableForSpending());
+                }
+            }
+
+            if (shard.getLastBlockSeenHeight() > state.height) {
+                state.height = shard.getLastBlockSeenHeight();
+                state.blockHash = shard.getLastBlockSeenHash() == null ? null : shard.getLastBlockSeenHash().toString();
+            }
+        }
+        dirty = true;
+        filterChanged = true;
+    }
+
+    /**
+     * Removes the unspent outputs and the received amount of addresses that are no longer watched. Not saved until {@link #save()}
+     * @param addresses the base58 addresses.
+     * @return the amount of unspent outputs removed.
+     */
+    synchronized int removeAddresses(Set<String> addresses) {
+        int removed = 0;
+        Iterator<Utxo> iterator = state.unspent.values().iterator();
+        while (iterator.hasNext()){
+            Utxo utxo = iterator.next();
+            if (addresses.contains(utxo.address)) {
+                iterator.remove();
+                state.unspentValue = state.unspentValue - utxo.value;
+                removed++;
+            }
+        }
+        for (String address : addresses)
+            state.received.remove(address);
+
+        dirty = true;
+        if (removed > 0)
+            filterChanged = true;
+        return removed;
+    }
+
+    /**
+     * sets the amount of recent history entries we keep. Older entries are removed.
+     */
+    synchronized void setHistorySize(int historySize) {
+        state.historySize = historySize;
+        while (state.history.size() > historySize)
+            state.history.removeFirst();
+    }
+
+    /**
+     * sets the peer group that will resend the filter when outputs are added.
+     */
+    public void setPeerGroup(PeerGroup peerGroup) {
+        this.peerGroup = peerGroup;
+    }
+
+    /**
+     * @return the sum of all unspent outputs.
+     */
+    public synchronized long getBalance() {
+        return state.unspentValue;
+    }
+
+    /**
+     * @param address a base58 address.
+     * @return the total amount received by the address, spent or not.
+     */
+    public synchronized long getReceived(String address) {
+        Long received = state.received.get(address);
+        return received == null ? 0 : received;
+    }
+
+    /**
+     * @return the amount of unspent outputs.
+     */
+    public synchronized int size() {
+        return state.unspent.size();
+    }
+
+    /**
+     * @return the height of the last block applied to the set.
+     */
+    public synchronized int getHeight() {
+        return state.height;
+    }
+
+    /**
+     * @return the recent history, oldest first.
+     */
+    public synchronized List<HistoryEntry> getHistory() {
+        return new ArrayList<>(state.history);
+    }
+
+    @Override
+    public synchronized void onTransaction(Peer peer, Transaction transaction) {
+        if (isRelevant(transaction))
+            pending.put(transaction.getHash(), transaction);
+    }
+
+    @Override
+    public synchronized void receiveFromBlock(Transaction transaction, StoredBlock block, AbstractBlockChain.NewBlockType blockType, int relativityOffset) throws VerificationException {
+        if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN)
+            apply(transaction, block, false);
+        else
+            addSideChain(transaction, block);
+    }
+
+    /**
+     * Applies a transaction found by a rescan of the block cache. Outputs the set or the address history already have are skipped,
+     * and so are the spends of outputs that are not unspent, so rescanning the same blocks again changes nothing. The history gets
+     * the new outputs, since the wallets never see the transaction.
+     * @param transaction the transaction, it may only have the outpoints it spends and its outputs to addresses.
+     * @param block the block of the transaction.
+     * @return true if the transaction added or spent any output.
+     */
+    public synchronized boolean applyRescanned(Transaction transaction, StoredBlock block) {
+        return apply(transaction, block, true);
+    }
+
+    @Override
+    public synchronized boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block, AbstractBlockChain.NewBlockType blockType, int relativityOffset) throws VerificationException {
+        Transaction transaction = pending.get(txHash);
+        if (transaction == null)
+            return false;
+
+        if (blockType == AbstractBlockChain.NewBlockType.BEST_CHAIN)
+            apply(transaction, block, false);
+        else
+            addSideChain(transaction, block);
+        return true;
+    }
+
+    private void addSideChain(Transaction transaction, StoredBlock block) {
+        List<Transaction> transactions = sideChain.get(block.getHeader().getHash());
+        if (transactions == null) {
+            transactions = new ArrayList<>();
+            sideChain.put(block.getHeader().getHash(), transactions);
+        }
+        transactions.add(transaction);
+    }
+
+    @Override
+    public void notifyNewBestBlock(StoredBlock block) throws VerificationException {
+        synchronized (this) {
+            setBestBlock(block);
+        }
+
+        // the wallets only keep the transactions until the block is processed, our set has everything we need.
+        for (Wallet shard : shards)
+            clearConfirmedTransactions(shard);
+
+        recalculateFilter();
+    }
+
+    @Override
+    public void reorganize(StoredBlock splitPoint, List<StoredBlock> oldBlocks, List<StoredBlock> newBlocks) throws VerificationException {
+        synchronized (this) {
+            // the old blocks are newest first, so each undo finds the set as its block left it.
+            for (StoredBlock oldBlock : oldBlocks){
+                BlockChanges changes = state.getBlocks().remove(oldBlock.getHeader().getHashAsString());
+                if (changes != null)
+                    undo(changes);
+            }
+
+            for (ListIterator<StoredBlock> iterator = newBlocks.listIterator(newBlocks.size()); iterator.hasPrevious();){
+                StoredBlock newBlock = iterator.previous();
+                List<Transaction> transactions = sideChain.remove(newBlock.getHeader().getHash());
+                if (transactions != null) {
+                    for (Transaction transaction : transactions)
+                        apply(transaction, newBlock, false);
+                }
+            }
+            setBestBlock(newBlocks.get(0));
+        }
+        recalculateFilter();
+    }
+
+    /**
+     * sets the last block applied to the set, forgets the changes of blocks too deep to be reorganized and saves the set if it changed.
+     */
+    private void setBestBlock(StoredBlock block) {
+        state.height = block.getHeight();
+        state.blockHash = block.getHeader().getHashAsString();
+
+        // rescans add the changes of old blocks, so all of them are checked.
+        Iterator<BlockChanges> iterator = state.getBlocks().values().iterator();
+        while (iterator.hasNext()){
+            if (iterator.next().height <= block.getHeight() - MAX_UNDO_BLOCKS) {
+                iterator.remove();
+                dirty = true;
+            }
+        }
+
+        if (dirty) {
+            try {
+                save();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * removes the transactions of a wallet that are confirmed or dead. Pending transactions stay so that the wallet notifies when they
+     * are confirmed or double spent.
+     */
+    private static void clearConfirmedTransactions(Wallet wallet) {
+        List<Transaction> pendingTransactions = new ArrayList<>();
+        boolean confirmed = false;
+        for (Transaction transaction : wallet.getTransactions(true)){
+            if (wallet.poolContainsTxHash(WalletTransaction.Pool.PENDING, transaction.getHash()))
+                pendingTransactions.add(transaction);
+            else
+                confirmed = true;
+        }
+        if (!confirmed)
+            return;
+
+        // the wallet can only clear all its pools, so the pending transactions are added back.
+        wallet.clearTransactions(0);
+        for (Transaction transaction : pendingTransactions){
+            if (wallet.getTransaction(transaction.getHash()) == null)
+                wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, transaction));
+        }
+    }
+
+    private void recalculateFilter() {
+        PeerGroup currentPeerGroup = peerGroup;
+        boolean recalculate;
+        synchronized (this) {
+            recalculate = filterChanged;
+            filterChanged = false;
+        }
+        if (recalculate && currentPeerGroup != null)
+            currentPeerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+    }
+
+    /**
+     * sets the address history that is told about the outputs spent by the transactions of this set.
+     */
+    void setHistory(AddressHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * Adds the outputs paid to watched addresses and removes the spent ones, keeping the changes to undo them if the block is reorganized.
+     * Rescanned outputs are also looked for in the history, and added to it.
+     * @return true if any output was added or spent.
+     */
+    private boolean apply(Transaction transaction, StoredBlock block, boolean rescanned) {
+        pending.remove(transaction.getHash());
+        int height = block.getHeight();
+        BlockChanges changes = null;
+        AddressHistory addressHistory = history;
+
+        for (TransactionInput input : transaction.getInputs()){
+            if (input.isCoinBase())
+                continue;
+
+            TransactionOutPoint outpoint = input.getOutpoint();
+            Utxo utxo = state.unspent.remove(getKey(outpoint.getHash(), outpoint.getIndex()));
+            if (utxo != null) {
+                state.unspentValue = state.unspentValue - utxo.value;
+                addHistory(new HistoryEntry(transaction.getHashAsString(), utxo.address, -utxo.value, height));
+                changes = getChanges(changes, block);
+                changes.spent.add(new Spend(utxo, transaction.getHashAsString()));
+                dirty = true;
+                if (addressHistory != null)
+                    addressHistory.outputSpent(outpoint.getHash(), outpoint.getIndex(), transaction.getHash(), height);
+            }
+        }
+
+        for (TransactionOutput output : transaction.getOutputs()){
+            if (!isWatched(output) || state.unspent.containsKey(getKey(transaction.getHash(), output.getIndex())))
+                continue;
+            if (rescanned && addressHistory != null && addressHistory.contains(transaction.getHash(), output.getIndex()))
+                continue;
+
+            Utxo utxo = addOutput(transaction, output, height, true);
+            addHistory(new HistoryEntry(transaction.getHashAsString(), utxo.address, utxo.value, height));
+            changes = getChanges(changes, block);
+            changes.added.add(utxo);
+            dirty = true;
+            filterChanged = true;
+            if (rescanned && addressHistory != null)
+                addressHistory.outputReceived(transaction.getHash(), output.getIndex(), utxo.address, utxo.value, height);
+        }
+        return changes != null;
+    }
+
+    private BlockChanges getChanges(BlockChanges changes, StoredBlock block) {
+        if (changes != null)
+            return changes;
+
+        String blockHash = block.getHeader().getHashAsString();
+        changes = state.getBlocks().get(blockHash);
+        if (changes == null) {
+            changes = new BlockChanges(block.getHeight());
+            state.getBlocks().put(blockHash, changes);
+        }
+        return changes;
+    }
+
+    /**
+     * restores the outputs spent by a block and removes the ones it added, with their received amounts and history.
+     */
+    private void undo(BlockChanges changes) {
+        for (int i = changes.spent.size() - 1; i >= 0; i--){
+            Spend spend = changes.spent.get(i);
+            Utxo utxo = spend.utxo;
+            state.unspent.put(getKey(Sha256Hash.wrap(utxo.transactionHash), utxo.index), utxo);
+            state.unspentValue = state.unspentValue + utxo.value;
+            AddressHistory addressHistory = history;
+            if (addressHistory != null)
+                addressHistory.outputReleased(Sha256Hash.wrap(utxo.transactionHash), utxo.index, Sha256Hash.wrap(spend.spentBy));
+        }
+
+        for (int i = changes.added.size() - 1; i >= 0; i--){
+            Utxo utxo = changes.added.get(i);
+            if (state.unspent.remove(getKey(Sha256Hash.wrap(utxo.transactionHash), utxo.index)) != null)
+                state.unspentValue = state.unspentValue - utxo.value;
+
+            Long received = state.received.get(utxo.address);
+            if (received != null)
+                state.received.put(utxo.address, received - utxo.value);
+        }
+
+        Iterator<HistoryEntry> iterator = state.history.iterator();
+        while (iterator.hasNext()){
+            if (iterator.next().height == changes.height)
+                iterator.remove();
+        }
+
+        dirty = true;
+        filterChanged = true;
+    }
+
+    private Utxo addOutput(Transaction transaction, TransactionOutput output, int height, boolean unspent) {
+        String address = output.getScriptPubKey().getToAddress(params).toBase58();
+        Utxo utxo = new Utxo(transaction.getHashAsString(), output.getIndex(), address, output.getValue().getValue(), height);
+        if (unspent) {
+            state.unspent.put(getKey(transaction.getHash(), output.getIndex()), utxo);
+            state.unspentValue = state.unspentValue + utxo.value;
+        }
+
+        Long received = state.received.get(address);
+        state.received.put(address, (received == null ? 0 : received) + utxo.value);
+        return utxo;
+    }
+
+    private void addHistory(HistoryEntry entry) {
+        if (state.historySize == 0)
+            return;
+
+        state.history.addLast(entry);
+        if (state.history.size() > state.historySize)
+            state.history.removeFirst();
+    }
+
+    private boolean isWatched(TransactionOutput output) {
+        for (Wallet shard : shards){
+            if (output.isWatched(shard))
+                return true;
+        }
+        return false;
+    }
+
+    private boolean isRelevant(Transaction transaction) {
+        for (TransactionOutput output : transaction.getOutputs()){
+            if (isWatched(output))
+                return true;
+        }
+
+        for (TransactionInput input : transaction.getInputs()){
+            if (!input.isCoinBase() && state.unspent.containsKey(getKey(input.getOutpoint().getHash(), input.getOutpoint().getIndex())))
+                return true;
+        }
+        return false;
+    }
+
+    private static String getKey(Sha256Hash hash, long index) {
+        return hash.toString() + ":" + index;
+    }
+
+    @Override
+    public long getEarliestKeyCreationTime() {
+        // the wallets define the fast catch up time.
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public void beginBloomFilterCalculation() {
+    }
+
+    @Override
+    public synchronized int getBloomFilterElementCount() {
+        return state.unspent.size();
+    }
+
+    @Override
+    public synchronized BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak);
+        for (Utxo utxo : state.unspent.values())
+            filter.insert(new TransactionOutPoint(params, utxo.index, Sha256Hash.wrap(utxo.transactionHash)).unsafeBitcoinSerialize());
+        return filter;
+    }
+
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        return false;
+    }
+
+    @Override
+    public void endBloomFilterCalculation() {
+    }
+
+    /**
+     * Saves the set to disk if it changed since the last save.
+     * @throws IOException an IO error during save
+     */
+    public synchronized void save() throws IOException {
+        if (!dirty)
+            return;
+
+        // we write to a temporary file first so that a crash during save doesn't corrupt the set.
+        File tempFile = new File(utxoDB.getPath() + ".tmp");
+        ObjectOutputStream oos = null;
+        try {
+            oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            oos.writeObject(state);
+        } finally {
+            if (oos != null)
+                oos.close();
+        }
+
+        if (!tempFile.renameTo(utxoDB)) {
+            utxoDB.delete();
+            if (!tempFile.renameTo(utxoDB))
+                throw new IOException("Unable to replace unspent outputs file " + utxoDB.toString());
+        }
+
+        dirty = false;
+    }
+
+    /**
+     * Loads the set from the file.
+     * @return the set stored in the file.
+     * @throws IOException in case there is an IO error during loading.
+     */
+    private State load() throws IOException {
+        ObjectInputStream ois = null;
+        try {
+            ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(utxoDB)));
+            return (State) ois.readObject();
+        } catch (ClassNotFoundException | ClassCastException e) {
+            throw new IOException("The unspent outputs file " + utxoDB.toString() + " is not valid.", e);
+        } finally {
+            if (ois != null)
+                ois.close();
+        }
+    }
+
+    /**
+     * The stored part of the set.
+     */
+    private static class State implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Map<String, Utxo> unspent = new HashMap<>();
+        private final Map<String, Long> received = new HashMap<>();
+        private final ArrayDeque<HistoryEntry> history = new ArrayDeque<>();
+        private long unspentValue;
+        private int historySize;
+        private int height = -1;
+        private String blockHash;
+        private LinkedHashMap<String, BlockChanges> blocks; // the changes of the last blocks by hash.
+
+        /**
+         * sets with no changes were saved before reorganizations were handled.
+         */
+        private LinkedHashMap<String, BlockChanges> getBlocks() {
+            if (blocks == null)
+                blocks = new LinkedHashMap<>();
+            return blocks;
+        }
+    }
+
+    /**
+     * The outputs added and spent by the transactions of a block.
+     */
+    private static class BlockChanges implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int height;
+        private final List<Utxo> added = new ArrayList<>();
+        private final List<Spend> spent = new ArrayList<>();
+
+        BlockChanges(int height) {
+            this.height = height;
+        }
+    }
+
+    /**
+     * An output removed from the set and the transaction that spent it.
+     */
+    private static class Spend implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final Utxo utxo;
+        private final String spentBy;
+
+        Spend(Utxo utxo, String spentBy) {
+            this.utxo = utxo;
+            this.spentBy = spentBy;
+        }
+    }
+
+    /**
+     * An unspent output of a watched address.
+     */
+    private static class Utxo implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String transactionHash;
+        private final long index;
+        private final String address;
+        private final long value;
+        private final int height;
+
+        Utxo(String transactionHash, long index, String address, long value, int height) {
+            this.transactionHash = transactionHash;
+            this.index = index;
+            this.address = address;
+            this.value = value;
+            this.height = height;
+        }
+    }
+
+    /**
+     * A change on the balance of a watched address. Received amounts are positive, spent amounts negative.
+     */
+    public static class HistoryEntry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String transactionHash;
+        private final String address;
+        private final long value;
+        private final int height;
+
+        HistoryEntry(String transactionHash, String address, long value, int height) {
+            this.transactionHash = transactionHash;
+            this.address = address;
+            this.value = value;
+            this.height = height;
+        }
+
+        public String getTransactionHash() {
+            return transactionHash;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public long getValue() {
+            return value;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+    }
+}
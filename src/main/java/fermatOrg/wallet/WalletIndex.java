@@ -0,0 +1,201 @@
+package fermatOrg.wallet;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.UnsignedBytes;
+import org.blockchainj.core.Address;
+import org.blockchainj.core.NetworkParameters;
+import org.blockchainj.core.Transaction;
+import org.blockchainj.core.TransactionOutput;
+import org.blockchainj.wallet.Wallet;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.*;
+
+/**
+ * A read only snapshot of the wallet that can be memory mapped, so that it is usable right after opening the file, with no parsing.
+ * It has the sync height, the wallet balance and the addresses sorted by hash160 with the amount received by each one, which is
+ * found with a binary search.
+ * <p>
+ *     Layout: magic, version, sync height, wallet balance, shard count, address count, network id and then one fixed size
+ *     record per address with its hash160 and the received amount.
+ * </p>
+ */
+class WalletIndex {
+    //class constants
+    private final MappedByteBuffer buffer;
+    private final int syncHeight;
+    private final long walletBalance;
+    private final int shardCount;
+    private final int addressCount;
+    private final String networkId;
+    private final int recordsOffset;
+    private static final int MAGIC = 0x494f5049; // IOPI
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 20;
+    private static final int RECORD_LENGTH = HASH_LENGTH + 8;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Maps the index file in memory.
+     * @param indexFile the index file.
+     * @throws IOException if the file can't be mapped or is not a valid index.
+     */
+    WalletIndex(File indexFile) throws IOException {
+        Preconditions.checkNotNull(indexFile);
+
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+        } finally {
+            // the mapping stays valid after closing the file.
+            file.close();
+        }
+
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+            throw new IOException("The index file " + indexFile.toString() + " is not valid.");
+
+        syncHeight = buffer.getInt();
+        walletBalance = buffer.getLong();
+        shardCount = buffer.getInt();
+        addressCount = buffer.getInt();
+        byte[] id = new byte[buffer.getShort()];
+        buffer.get(id);
+        networkId = new String(id, UTF8);
+        recordsOffset = buffer.position();
+
+        if (buffer.limit() != recordsOffset + (long) addressCount * RECORD_LENGTH)
+            throw new IOException("The index file " + indexFile.toString() + " is incomplete.");
+    }
+
+    static File getIndexFile(File walletFile){
+        return new File(walletFile.getPath() + ".index");
+    }
+
+    int getSyncHeight() {
+        return syncHeight;
+    }
+
+    long getWalletBalance() {
+        return walletBalance;
+    }
+
+    int getShardCount() {
+        return shardCount;
+    }
+
+    int getAddressCount() {
+        return addressCount;
+    }
+
+    String getNetworkId() {
+        return networkId;
+    }
+
+    /**
+     * finds the address with a binary search over the mapped records.
+     * @param hash160 the hash160 of the address.
+     * @return the amount received by the address, or zero if it is not in the index.
+     */
+    long getReceived(byte[] hash160) {
+        ByteBuffer records = buffer.duplicate();
+        byte[] current = new byte[HASH_LENGTH];
+        Comparator<byte[]> comparator = UnsignedBytes.lexicographicalComparator();
+
+        int low = 0;
+        int high = addressCount - 1;
+        while (low <= high){
+            int middle = (low + high) >>> 1;
+            records.position(recordsOffset + middle * RECORD_LENGTH);
+            records.get(current);
+            int comparison = comparator.compare(current, hash160);
+            if (comparison < 0)
+                low = middle + 1;
+            else if (comparison > 0)
+                high = middle - 1;
+            else
+                return records.getLong();
+        }
+        return 0;
+    }
+
+    /**
+     * @param params the network of the addresses.
+     * @return all the addresses of the index, in hash160 order.
+     */
+    List<String> getAddresses(NetworkParameters params) {
+        ByteBuffer records = buffer.duplicate();
+        records.position(recordsOffset);
+
+        List<String> addresses = new ArrayList<>(addressCount);
+        for (int i = 0; i < addressCount; i++){
+            byte[] hash160 = new byte[HASH_LENGTH];
+            records.get(hash160);
+            records.getLong();
+            addresses.add(new Address(params, hash160).toBase58());
+        }
+        return addresses;
+    }
+
+    /**
+     * Writes the index of the wallet shards. The received amount of each address is calculated in a single pass over the transactions.
+     * @param indexFile the index file.
+     * @param shards the blockchainj wallets.
+     * @param utxoSet the unspent outputs of a compact wallet, that has the received amounts instead of the wallets, or null.
+     * @param walletBalance the balance of the wallet.
+     * @throws IOException if the file can't be written.
+     */
+    static void write(File indexFile, List<Wallet> shards, UtxoSet utxoSet, long walletBalance) throws IOException {
+        NetworkParameters params = shards.get(0).getParams();
+        int syncHeight = Integer.MAX_VALUE;
+        TreeMap<byte[], Long> received = new TreeMap<>(UnsignedBytes.lexicographicalComparator());
+        for (Wallet shard : shards){
+            syncHeight = Math.min(syncHeight, shard.getLastBlockSeenHeight());
+            for (Address address : shard.getWatchedAddresses())
+                received.put(address.getHash160(), utxoSet == null ? 0 : utxoSet.getReceived(address.toBase58()));
+
+            if (utxoSet != null)
+                continue;
+
+            for (Transaction transaction : shard.getTransactions(false)){
+                for (TransactionOutput output : transaction.getOutputs()){
+                    if (output.isWatched(shard)) {
+                        Address address = output.getScriptPubKey().getToAddress(params);
+                        Long amount = received.get(address.getHash160());
+                        received.put(address.getHash160(), (amount == null ? 0 : amount) + output.getValue().getValue());
+                    }
+                }
+            }
+        }
+
+        // we write to a temporary file first so that a crash during save doesn't corrupt the index.
+        File tempFile = new File(indexFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            byte[] id = params.getId().getBytes(UTF8);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(syncHeight);
+            out.writeLong(walletBalance);
+            out.writeInt(shards.size());
+            out.writeInt(received.size());
+            out.writeShort(id.length);
+            out.write(id);
+            for (Map.Entry<byte[], Long> entry : received.entrySet()){
+                out.write(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        } finally {
+            out.close();
+        }
+
+        if (!tempFile.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tempFile.renameTo(indexFile))
+                throw new IOException("Unable to replace index file " + indexFile.toString());
+        }
+    }
+}
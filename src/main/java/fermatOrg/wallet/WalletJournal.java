@@ -0,0 +1,479 @@
+package fermatOrg.wallet;
+
+import com.google.common.base.Preconditions;
+import com.google.common.primitives.Longs;
+import com.google.protobuf.ByteString;
+import org.blockchainj.core.Coin;
+import org.blockchainj.core.Sha256Hash;
+import org.blockchainj.core.Transaction;
+import org.blockchainj.core.TransactionConfidence;
+import org.blockchainj.core.TransactionInput;
+import org.blockchainj.core.TransactionOutput;
+import org.blockchainj.core.listeners.TransactionConfidenceEventListener;
+import org.blockchainj.script.Script;
+import org.blockchainj.utils.Threading;
+import org.blockchainj.wallet.Protos;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletProtobufSerializer;
+import org.blockchainj.wallet.WalletTransaction;
+import org.blockchainj.wallet.listeners.ScriptsChangeEventListener;
+import org.blockchainj.wallet.listeners.WalletCoinsReceivedEventListener;
+import org.blockchainj.wallet.listeners.WalletCoinsSentEventListener;
+import org.blockchainj.wallet.listeners.WalletReorganizeEventListener;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Incremental persistence of a blockchainj wallet. The wallet file is a snapshot with the watched addresses and all the transactions,
+ * written every snapshot interval or when the journal grows bigger than it. In between, only the watched addresses added or removed,
+ * the transactions that changed and the last seen block are appended to a journal file next to the wallet file, which is replayed
+ * over the snapshot when the wallet is loaded.
+ * <p>
+ *     The wallet listeners keep the transactions that may have changed, so a flush only looks at those. Depth changes are not
+ *     persisted, so the transactions that only got one more block are not kept. After a reorganization every transaction is checked.
+ * </p>
+ */
+class WalletJournal {
+    //class variables
+    private long generation; // the generation of the last snapshot. A journal only applies to the snapshot of its generation.
+    private int lastBlockHeight; // the last seen block height written to the journal.
+    private DataOutputStream journal;
+    private FileOutputStream journalStream;
+    private Wallet scratch; // holds copies of the changed transactions, so they are serialized exactly as in the wallet file.
+    private volatile boolean fullScan = true; // if every transaction must be checked on the next flush.
+
+    //class constants
+    private final Wallet wallet;
+    private final File walletFile;
+    private final File journalFile;
+    private final Map<Sha256Hash, Integer> fingerprints = new HashMap<>(); // the state of each transaction when it was last written.
+    private final Map<Sha256Hash, WalletTransaction> changes = new ConcurrentHashMap<>(); // transactions that may have changed, with their pool.
+    private final Queue<ScriptChange> scriptChanges = new ConcurrentLinkedQueue<>(); // watched scripts added or removed, in order.
+    private final ChangeListener changeListener = new ChangeListener();
+    private final WalletProtobufSerializer serializer = new WalletProtobufSerializer();
+    static final String GENERATION_TAG = "fermatOrg.journal";
+    private static final byte TRANSACTION_RECORD = 1;
+    private static final byte BLOCK_RECORD = 2;
+    private static final byte COMMIT_RECORD = 3; // records are only replayed up to the last complete flush.
+    private static final byte WATCH_RECORD = 4;
+    private static final byte UNWATCH_RECORD = 5;
+    private static final long MIN_SNAPSHOT_SIZE = 1024 * 1024; // journals smaller than this never trigger a snapshot.
+
+    /**
+     * constructor
+     * @param wallet the blockchainj wallet to persist.
+     * @param walletFile the file of the wallet snapshot. The journal is stored next to it.
+     */
+    WalletJournal(Wallet wallet, File walletFile) {
+        Preconditions.checkNotNull(wallet);
+        Preconditions.checkNotNull(walletFile);
+
+        this.wallet = wallet;
+        this.walletFile = walletFile;
+        this.journalFile = getJournalFile(walletFile);
+        this.generation = getGeneration(wallet.maybeGetTag(GENERATION_TAG));
+
+        // the listeners run under the wallet lock, so the pools they read are consistent. They never take the journal lock.
+        wallet.addCoinsReceivedEventListener(Threading.SAME_THREAD, changeListener);
+        wallet.addCoinsSentEventListener(Threading.SAME_THREAD, changeListener);
+        wallet.addTransactionConfidenceEventListener(Threading.SAME_THREAD, changeListener);
+        wallet.addReorganizeEventListener(Threading.SAME_THREAD, changeListener);
+        wallet.addScriptChangeEventListener(Threading.SAME_THREAD, changeListener);
+    }
+
+    static File getJournalFile(File walletFile){
+        return new File(walletFile.getPath() + ".journal");
+    }
+
+    /**
+     * Writes the full wallet to the wallet file and starts a new, empty journal.
+     * @throws IOException if the wallet or the journal can't be written.
+     */
+    synchronized void snapshot() throws IOException {
+        closeJournal();
+
+        // the fingerprints are taken before saving, so any change made while saving is written again on the next flush.
+        changes.clear();
+        scriptChanges.clear();
+        fullScan = false;
+        fingerprints.clear();
+        for (WalletTransaction walletTransaction : wallet.getWalletTransactions())
+            fingerprints.put(walletTransaction.getTransaction().getHash(), getFingerprint(walletTransaction));
+        lastBlockHeight = wallet.getLastBlockSeenHeight();
+
+        generation++;
+        wallet.setTag(GENERATION_TAG, ByteString.copyFrom(Longs.toByteArray(generation)));
+        wallet.saveToFile(walletFile);
+
+        journalStream = new FileOutputStream(journalFile, false);
+        journal = new DataOutputStream(new BufferedOutputStream(journalStream));
+        journal.writeLong(generation);
+        journal.flush();
+    }
+
+    /**
+     * Appends to the journal the watched addresses added or removed, the transactions that changed and the last seen block since the
+     * previous flush. A new snapshot is written instead once the journal is bigger than the last one.
+     * @throws IOException if the journal can't be written.
+     */
+    synchronized void flush() throws IOException {
+        if (journal == null) {
+            snapshot();
+            return;
+        }
+
+        // a reorganization changes transactions without notifying each one.
+        Iterable<WalletTransaction> candidates;
+        if (fullScan) {
+            fullScan = false;
+            changes.clear();
+            candidates = wallet.getWalletTransactions();
+        } else {
+            List<WalletTransaction> changedTransactions = new ArrayList<>();
+            for (Sha256Hash hash : changes.keySet()){
+                WalletTransaction walletTransaction = changes.remove(hash);
+                if (walletTransaction != null)
+                    changedTransactions.add(walletTransaction);
+            }
+            candidates = changedTransactions;
+        }
+
+        List<WalletTransaction> changed = new ArrayList<>();
+        for (WalletTransaction walletTransaction : candidates){
+            Integer fingerprint = getFingerprint(walletTransaction);
+            if (!fingerprint.equals(fingerprints.put(walletTransaction.getTransaction().getHash(), fingerprint)))
+                changed.add(walletTransaction);
+        }
+
+        int blockHeight = wallet.getLastBlockSeenHeight();
+        if (changed.isEmpty() && blockHeight == lastBlockHeight && scriptChanges.isEmpty())
+            return;
+
+        ScriptChange scriptChange;
+        while ((scriptChange = scriptChanges.poll()) != null){
+            journal.writeByte(scriptChange.added ? WATCH_RECORD : UNWATCH_RECORD);
+            journal.writeInt(scriptChange.program.length);
+            journal.write(scriptChange.program);
+            journal.writeLong(scriptChange.creationTime);
+        }
+
+        if (!changed.isEmpty()) {
+            if (scratch == null)
+                scratch = new Wallet(wallet.getContext());
+
+            for (WalletTransaction walletTransaction : changed)
+                scratch.addWalletTransaction(new WalletTransaction(walletTransaction.getPool(), copy(walletTransaction.getTransaction())));
+
+            for (Protos.Transaction transactionProto : serializer.walletToProto(scratch).getTransactionList()){
+                byte[] data = transactionProto.toByteArray();
+                journal.writeByte(TRANSACTION_RECORD);
+                journal.writeInt(data.length);
+                journal.write(data);
+            }
+            scratch.clearTransactions(0);
+        }
+
+        Sha256Hash blockHash = wallet.getLastBlockSeenHash();
+        if (blockHash != null && blockHeight != lastBlockHeight) {
+            journal.writeByte(BLOCK_RECORD);
+            journal.write(blockHash.getBytes());
+            journal.writeInt(blockHeight);
+            journal.writeLong(wallet.getLastBlockSeenTimeSecs());
+            lastBlockHeight = blockHeight;
+        }
+
+        journal.writeByte(COMMIT_RECORD);
+        journal.flush();
+        journalStream.getFD().sync();
+
+        // replaying a journal bigger than the snapshot costs more than writing a new one.
+        if (journalStream.getChannel().position() > Math.max(MIN_SNAPSHOT_SIZE, walletFile.length()))
+            snapshot();
+    }
+
+    /**
+     * closes the journal file and stops listening to the wallet. Changes after the last flush are not written.
+     */
+    synchronized void close() {
+        wallet.removeCoinsReceivedEventListener(changeListener);
+        wallet.removeCoinsSentEventListener(changeListener);
+        wallet.removeTransactionConfidenceEventListener(changeListener);
+        wallet.removeReorganizeEventListener(changeListener);
+        wallet.removeScriptChangeEventListener(changeListener);
+        closeJournal();
+    }
+
+    private void closeJournal() {
+        if (journal == null)
+            return;
+
+        try {
+            journal.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        journal = null;
+        journalStream = null;
+    }
+
+    /**
+     * A copy of the transaction with the same outputs spent, so that the serialization of the copy is the same as the original.
+     * The confidence is shared, since it belongs to the transaction hash.
+     */
+    private Transaction copy(Transaction transaction) {
+        Transaction copy = wallet.getParams().getDefaultSerializer().makeTransaction(transaction.bitcoinSerialize());
+        copy.setUpdateTime(transaction.getUpdateTime());
+        copy.setPurpose(transaction.getPurpose());
+
+        Map<Sha256Hash, Integer> appearsInHashes = transaction.getAppearsInHashes();
+        if (appearsInHashes != null)
+            for (Map.Entry<Sha256Hash, Integer> entry : appearsInHashes.entrySet())
+                copy.addBlockAppearance(entry.getKey(), entry.getValue());
+
+        for (int i = 0; i < transaction.getOutputs().size(); i++){
+            TransactionInput spentBy = transaction.getOutput(i).getSpentBy();
+            if (spentBy != null)
+                copy.getOutput(i).markAsSpent(spentBy);
+        }
+
+        return copy;
+    }
+
+    /**
+     * A hash of the state of the transaction we persist: pool, confidence, block appearances and spent outputs.
+     * The depth is left out because it changes for every transaction on each block and can be calculated from the appearance height.
+     */
+    private static int getFingerprint(WalletTransaction walletTransaction) {
+        Transaction transaction = walletTransaction.getTransaction();
+        TransactionConfidence confidence = transaction.getConfidence();
+
+        int fingerprint = walletTransaction.getPool().hashCode();
+        fingerprint = 31 * fingerprint + confidence.getConfidenceType().hashCode();
+        if (confidence.getConfidenceType() == TransactionConfidence.ConfidenceType.BUILDING)
+            fingerprint = 31 * fingerprint + confidence.getAppearedAtChainHeight();
+
+        Map<Sha256Hash, Integer> appearsInHashes = transaction.getAppearsInHashes();
+        if (appearsInHashes != null)
+            fingerprint = 31 * fingerprint + appearsInHashes.hashCode();
+
+        for (TransactionOutput output : transaction.getOutputs()){
+            TransactionInput spentBy = output.getSpentBy();
+            fingerprint = 31 * fingerprint + (spentBy == null ? 0 : spentBy.getParentTransaction().getHash().hashCode());
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * keeps a transaction that may have changed with its current pool. The outputs it spends changed too.
+     */
+    private void transactionChanged(Wallet wallet, Transaction transaction) {
+        keepChange(wallet, transaction);
+        for (TransactionInput input : transaction.getInputs()){
+            Transaction spent = wallet.getTransaction(input.getOutpoint().getHash());
+            if (spent != null)
+                keepChange(wallet, spent);
+        }
+    }
+
+    private void keepChange(Wallet wallet, Transaction transaction) {
+        Sha256Hash hash = transaction.getHash();
+        for (WalletTransaction.Pool pool : WalletTransaction.Pool.values()){
+            if (wallet.getTransactionPool(pool).containsKey(hash)) {
+                changes.put(hash, new WalletTransaction(pool, transaction));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Wallet listener that keeps the transactions and watched scripts that changed. It runs on the wallet thread with the wallet locked.
+     */
+    private class ChangeListener implements WalletCoinsReceivedEventListener, WalletCoinsSentEventListener, TransactionConfidenceEventListener,
+            WalletReorganizeEventListener, ScriptsChangeEventListener {
+        @Override
+        public void onCoinsReceived(Wallet wallet, Transaction transaction, Coin prevBalance, Coin newBalance) {
+            transactionChanged(wallet, transaction);
+        }
+
+        @Override
+        public void onCoinsSent(Wallet wallet, Transaction transaction, Coin prevBalance, Coin newBalance) {
+            transactionChanged(wallet, transaction);
+        }
+
+        @Override
+        public void onTransactionConfidenceChanged(Wallet wallet, Transaction transaction) {
+            // every transaction in a block gets deeper on each new block, which is not persisted.
+            TransactionConfidence confidence = transaction.getConfidence();
+            if (confidence.getConfidenceType() != TransactionConfidence.ConfidenceType.BUILDING || confidence.getDepthInBlocks() <= 1)
+                transactionChanged(wallet, transaction);
+        }
+
+        @Override
+        public void onReorganize(Wallet wallet) {
+            fullScan = true;
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            for (Script script : scripts)
+                scriptChanges.add(new ScriptChange(script.getProgram(), script.getCreationTimeSeconds(), isAddingScripts));
+        }
+    }
+
+    /**
+     * a watched script added to or removed from the wallet.
+     */
+    private static class ScriptChange {
+        private final byte[] program;
+        private final long creationTime; // in seconds.
+        private final boolean added;
+
+        ScriptChange(byte[] program, long creationTime, boolean added) {
+            this.program = program;
+            this.creationTime = creationTime;
+            this.added = added;
+        }
+    }
+
+    private static long getGeneration(ByteString tag) {
+        return tag == null ? 0 : Longs.fromByteArray(tag.toByteArray());
+    }
+
+    /**
+     * Applies the journal of a wallet file over its snapshot. Journals of a previous snapshot are ignored, and so are the records
+     * of an incomplete flush.
+     * @param snapshot the wallet read from the wallet file.
+     * @param walletFile the wallet file.
+     * @return the wallet with the journal applied, or the same snapshot if there is no journal for it.
+     * @throws IOException if the journal can't be read.
+     */
+    static Protos.Wallet replay(Protos.Wallet snapshot, File walletFile) throws IOException {
+        File journalFile = getJournalFile(walletFile);
+        if (!journalFile.exists())
+            return snapshot;
+
+        long snapshotGeneration = 0;
+        for (Protos.Tag tag : snapshot.getTagsList()){
+            if (tag.getTag().equals(GENERATION_TAG))
+                snapshotGeneration = getGeneration(tag.getData());
+        }
+
+        Map<ByteString, Protos.Transaction> transactions = new LinkedHashMap<>();
+        for (Protos.Transaction transactionProto : snapshot.getTransactionList())
+            transactions.put(transactionProto.getHash(), transactionProto);
+        Map<ByteString, Protos.Script> watchedScripts = new LinkedHashMap<>();
+        for (Protos.Script scriptProto : snapshot.getWatchedScriptList())
+            watchedScripts.put(scriptProto.getProgram(), scriptProto);
+        Protos.Wallet.Builder builder = snapshot.toBuilder();
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        try {
+            if (in.readLong() != snapshotGeneration)
+                return snapshot;
+
+            List<Protos.Transaction> pending = new ArrayList<>();
+            List<Protos.Script> pendingWatched = new ArrayList<>();
+            List<Boolean> pendingAdded = new ArrayList<>();
+            byte[] pendingBlockHash = null;
+            int pendingBlockHeight = 0;
+            long pendingBlockTime = 0;
+            int type;
+            while ((type = in.read()) != -1){
+                switch (type) {
+                    case TRANSACTION_RECORD:
+                        byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        pending.add(Protos.Transaction.parseFrom(data));
+                        break;
+                    case BLOCK_RECORD:
+                        pendingBlockHash = new byte[32];
+                        in.readFully(pendingBlockHash);
+                        pendingBlockHeight = in.readInt();
+                        pendingBlockTime = in.readLong();
+                        break;
+                    case WATCH_RECORD:
+                    case UNWATCH_RECORD:
+                        byte[] program = new byte[in.readInt()];
+                        in.readFully(program);
+                        pendingWatched.add(Protos.Script.newBuilder().setProgram(ByteString.copyFrom(program))
+                                .setCreationTimestamp(in.readLong() * 1000).build());
+                        pendingAdded.add(type == WATCH_RECORD);
+                        break;
+                    case COMMIT_RECORD:
+                        for (int i = 0; i < pendingWatched.size(); i++){
+                            if (pendingAdded.get(i))
+                                watchedScripts.put(pendingWatched.get(i).getProgram(), pendingWatched.get(i));
+                            else
+                                watchedScripts.remove(pendingWatched.get(i).getProgram());
+                        }
+                        pendingWatched.clear();
+                        pendingAdded.clear();
+                        for (Protos.Transaction transactionProto : pending)
+                            transactions.put(transactionProto.getHash(), transactionProto);
+                        pending.clear();
+                        if (pendingBlockHash != null) {
+                            builder.setLastSeenBlockHash(ByteString.copyFrom(pendingBlockHash));
+                            builder.setLastSeenBlockHeight(pendingBlockHeight);
+                            builder.setLastSeenBlockTimeSecs(pendingBlockTime);
+                            pendingBlockHash = null;
+                        }
+                        break;
+                    default:
+                        throw new IOException("Unknown journal record " + type + " in " + journalFile.toString());
+                }
+            }
+        } catch (EOFException e) {
+            // the last flush was interrupted, we keep the complete ones.
+        } finally {
+            in.close();
+        }
+
+        builder.clearWatchedScript();
+        builder.addAllWatchedScript(watchedScripts.values());
+
+        // depths are not journaled, they are calculated from the last seen block.
+        builder.clearTransaction();
+        for (Protos.Transaction transactionProto : transactions.values()){
+            Protos.TransactionConfidence confidence = transactionProto.getConfidence();
+            if (builder.getLastSeenBlockHeight() != snapshot.getLastSeenBlockHeight() && confidence.hasAppearedAtHeight())
+                transactionProto = transactionProto.toBuilder().setConfidence(confidence.toBuilder()
+                        .setDepth(builder.getLastSeenBlockHeight() - confidence.getAppearedAtHeight() + 1)).build();
+            builder.addTransaction(transactionProto);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Saves a wallet loaded with a journal as a new snapshot and removes the journal, so it's never replayed again over a newer wallet file.
+     * @param wallet the loaded wallet.
+     * @param walletFile the wallet file.
+     * @throws IOException if the wallet can't be saved.
+     */
+    static void compact(Wallet wallet, File walletFile) throws IOException {
+        File journalFile = getJournalFile(walletFile);
+        if (!journalFile.exists())
+            return;
+
+        wallet.setTag(GENERATION_TAG, ByteString.copyFrom(Longs.toByteArray(getGeneration(wallet.maybeGetTag(GENERATION_TAG)) + 1)));
+        wallet.saveToFile(walletFile);
+        if (!journalFile.delete())
+            throw new IOException("Unable to delete the journal " + journalFile.toString());
+    }
+}
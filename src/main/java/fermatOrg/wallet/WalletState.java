@@ -0,0 +1,130 @@
+package fermatOrg.wallet;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Set;
+
+/**
+ * An immutable view of the balances and addresses of a wallet at one point in time. The wallet derives a new one on its own thread
+ * after every change and swaps it in, so reading it never waits for the blockchainj wallet lock, which is held while blocks are processed.
+ * A new state only copies the addresses that changed, the rest is shared with the previous one, see {@link BalanceMap}.
+ * <p>
+ *     The amounts are those of the ledger of each address, see {@link BalanceType}. Only the watched addresses are included.
+ * </p>
+ */
+public final class WalletState {
+    //class constants
+    private final BalanceMap balances; // the confirmed, unconfirmed and spent amounts of each watched address.
+    private final int syncHeight;
+    private final long time;
+    private static final long[] EMPTY = new long[3];
+
+    /**
+     * @param balances the confirmed, unconfirmed and spent amounts of each watched address.
+     * @param syncHeight the height of the last block seen by the wallet.
+     */
+    WalletState(BalanceMap balances, int syncHeight) {
+        Preconditions.checkNotNull(balances);
+
+        this.balances = balances;
+        this.syncHeight = syncHeight;
+        this.time = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the amounts of each watched address, to derive the next state from.
+     */
+    BalanceMap getBalances() {
+        return balances;
+    }
+
+    static long[] getEmptyBalance() {
+        return EMPTY;
+    }
+
+    /**
+     * @param address a base58 address.
+     * @param balanceType the amount to get.
+     * @return the amount of IoP-satoshis, zero if the address is not watched or received nothing.
+     */
+    public long getAddressBalance(String address, BalanceType balanceType) {
+        Preconditions.checkNotNull(balanceType);
+        long[] balance = balances.get(address);
+        return balance == null ? 0 : get(balance, balanceType);
+    }
+
+    /**
+     * @param address a base58 address.
+     * @return the amount received by the address, as {@link WatchOnlyWallet#getAddressBalance(String)}
+     */
+    public long getAddressBalance(String address) {
+        return getAddressBalance(address, BalanceType.RECEIVED);
+    }
+
+    /**
+     * @param balanceType the amount to get.
+     * @return the amount of all the watched addresses.
+     */
+    public long getWalletBalance(BalanceType balanceType) {
+        Preconditions.checkNotNull(balanceType);
+        return get(balances.getTotal(), balanceType);
+    }
+
+    /**
+     * @return the unspent amount of all the watched addresses, confirmed or not.
+     */
+    public long getWalletBalance() {
+        return getWalletBalance(BalanceType.ESTIMATED);
+    }
+
+    /**
+     * @return the watched addresses, unmodifiable.
+     */
+    public Set<String> getAddresses() {
+        return balances.keySet();
+    }
+
+    /**
+     * @param address a base58 address.
+     * @return true if the address was watched.
+     */
+    public boolean isWatched(String address) {
+        return balances.get(address) != null;
+    }
+
+    /**
+     * @return the amount of watched addresses.
+     */
+    public int getAddressCount() {
+        return balances.size();
+    }
+
+    /**
+     * @return the height of the last block seen by the wallet, the lowest one of its shards.
+     */
+    public int getSyncHeight() {
+        return syncHeight;
+    }
+
+    /**
+     * @return the time in milliseconds at which this state was built.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    private static long get(long[] balance, BalanceType balanceType) {
+        switch (balanceType){
+            case CONFIRMED:
+                return balance[0];
+            case UNCONFIRMED:
+                return balance[1];
+            case ESTIMATED:
+                return balance[0] + balance[1];
+            case SPENT:
+                return balance[2];
+            default:
+                return balance[0] + balance[1] + balance[2];
+        }
+    }
+}
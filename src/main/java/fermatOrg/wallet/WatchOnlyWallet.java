@@ -3,9 +3,11 @@ package fermatOrg.wallet;
 import ch.qos.logback.classic.Level;
 import ch.qos.logback.classic.Logger;
 import com.google.common.base.Preconditions;
+import com.google.protobuf.ByteString;
 import fermatOrg.exceptions.AddressFormatException;
 import fermatOrg.exceptions.IoPBlockchainException;
 import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.metrics.Metrics;
 import fermatOrg.wallet.event.EventNotificationManager;
 import fermatOrg.wallet.event.IncomingTransactionEvent;
 import fermatOrg.network.IoPBlockchain;
@@ -15,14 +17,38 @@ import org.blockchainj.core.*;
 import org.blockchainj.params.IoP.IoP_MainNetParams;
 import org.blockchainj.params.IoP.IoP_RegTestParams;
 import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.utils.ContextPropagatingThreadFactory;
+import org.blockchainj.utils.Threading;
+import org.blockchainj.wallet.Protos;
 import org.blockchainj.wallet.UnreadableWalletException;
 import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletProtobufSerializer;
+import org.blockchainj.wallet.listeners.ScriptsChangeEventListener;
+import org.blockchainj.wallet.listeners.WalletChangeEventListener;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by rodrigo on 11/1/16.
@@ -39,42 +65,142 @@ import java.util.concurrent.TimeUnit;
  *     Each time a new transaction is detected on the network a new {@link IncomingTransactionEvent} event is triggered. Additionally, to make sure no event is missed,
  *     the wallet keep tracks of fired events until reception is confirmed with {@link #confirmEventReception(IncomingTransactionEvent)}.
  * </p>
+ * <p>
+ *     Many wallets, even of different networks, can run in the same process. Each one keeps its events, blocks and peers files in its own
+ *     data directory, prefixed with the wallet file name, and logs to its own logger.
+ * </p>
  */
 public class WatchOnlyWallet implements IoPWallet{
     //class variables
     private IoPBlockchain ioPBlockchain; //the IoP blockchain connection
+    private boolean ownBlockchain; // if the connection was created by this wallet instead of shared with others.
     private EventNotificationManager eventNotificationManager; // deals with event and event notification
+    private double bloomFilterFalsePositiveRate = PeerGroup.DEFAULT_BLOOM_FILTER_FP_RATE; // the rate of the filter sent to peers.
+    private List<WalletJournal> journals; // the journal of each shard, only with incremental persistence.
+    private ScheduledExecutorService persistenceExecutor; // flushes the journals and writes the snapshots.
+    private UtxoSet utxoSet; // the unspent outputs of the watched addresses, only in compact mode.
+    private boolean blockCacheEnabled; // if the blocks are kept locally for rescans.
+    private volatile WalletState state; // the last published state, read without any lock.
 
     // static members
     private static Logger logger = (Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME);
+    private static boolean logLevelSet = false; // the default log level is only applied once, so wallets don't override each other.
+    private static final Map<NetworkParameters, Context> contexts = new HashMap<>(); // one blockchainj context per network, shared by its wallets.
+
+    static {
+        // all IoP networks use the same blockchain definition, so we only set it once.
+        NetworkParametersGetter.setSupportedBlockchain(SupportedBlockchain.INTERNET_OF_PEOPLE);
+        NetworkParameters.setSupportedBlockchain(SupportedBlockchain.INTERNET_OF_PEOPLE);
+    }
 
     // class constants
-    private final Wallet wallet; // the actual blockchainj wallet
+    private volatile Wallet wallet; // the actual blockchainj wallet. In sharded mode, the first shard.
+    private volatile List<Wallet> shards; // all the blockchainj wallets, addresses are spread among them by hash160 prefix. Null until loaded.
+    private volatile WalletIndex index; // the memory mapped snapshot that answers queries until the wallets are loaded.
+    private final AddressGroups groups; // the group of each address.
+    private final AddressHistory history; // the outputs received by each address.
+    private final AtomicBoolean statePending = new AtomicBoolean(false); // if a new state is already waiting to be built.
+    private final Map<String, Boolean> watchedChanges = new HashMap<>(); // addresses imported or removed since the last state, true if imported.
+    private final ExecutorService stateExecutor = Executors.newSingleThreadExecutor(new ContextPropagatingThreadFactory("IoP wallet state")); // builds the states of this wallet.
+    private final AtomicBoolean indexChanged = new AtomicBoolean(true); // if the wallets changed since the snapshot was written.
+    private final StateListener stateListener = new StateListener();
+    private final FutureTask<List<Wallet>> shardsLoader; // loads the wallets of a wallet opened from its snapshot, or null.
     private final Context context; // the context to be used that will be maintained throught the entire life cycle of the wallet.
     private final File walletFile; // the wallet file we used to save it's data.
+    private final File dataDirectory; // the directory of the events, blocks and peers files of this wallet.
+    private final Logger walletLogger; // the logger of this wallet.
+    private static final String SHARDS_TAG = "fermatOrg.shards"; // tag of the first shard that stores the amount of shards.
 
     /**
      * @apiDescription
      * Private constructor used for loading existing wallets.
      * @param walletFile the File where the wallet is stored.
-     * @param wallet the blockchainj wallet loaded from file.
+     * @param shards the blockchainj wallets loaded from file, one per shard.
+     * @param dataDirectory the directory of the events, blocks and peers files of this wallet.
      */
-    private WatchOnlyWallet(File walletFile, Wallet wallet){
+    private WatchOnlyWallet(File walletFile, List<Wallet> shards, File dataDirectory){
         //check preconditions
         Preconditions.checkNotNull(walletFile);
-        Preconditions.checkNotNull(wallet);
+        Preconditions.checkNotNull(shards);
+        Preconditions.checkArgument(!shards.isEmpty());
+        Preconditions.checkNotNull(dataDirectory);
 
         //set constants values
         this.walletFile = walletFile;
-        this.wallet = wallet;
-        NetworkParametersGetter.setSupportedBlockchain(SupportedBlockchain.INTERNET_OF_PEOPLE);
+        this.shards = Collections.unmodifiableList(shards);
+        this.wallet = shards.get(0);
+        this.shardsLoader = null;
         this.context = wallet.getContext();
+        this.dataDirectory = dataDirectory;
+        this.walletLogger = getWalletLogger(walletFile);
+        this.groups = new AddressGroups(AddressGroups.getGroupsFile(walletFile));
+        this.history = new AddressHistory(AddressHistory.getHistoryFile(walletFile), groups);
+        history.addWallets(shards);
+        trackState(shards);
 
         // initiate the event manager
-        this.eventNotificationManager = new EventNotificationManager();
+        migrateLegacyFiles();
+        this.eventNotificationManager = new EventNotificationManager(getDataFile("events"));
+        eventNotificationManager.setAddressGroups(groups);
 
         //default log level to OFF
-        logger.setLevel(Level.OFF);
+        setDefaultLogLevel();
+        walletLogger.info("Loaded wallet " + walletFile.toString() + " with " + shards.size() + " shards on " + getNetworkType());
+    }
+
+    /**
+     * @apiDescription
+     * Private constructor used for opening wallets from their snapshot. The blockchainj wallets are loaded later.
+     * @param walletFile the File where the wallet is stored.
+     * @param index the memory mapped snapshot of the wallet.
+     * @param dataDirectory the directory of the events, blocks and peers files of this wallet.
+     * @param background true to start loading the blockchainj wallets right away on another thread, false to load them when first needed.
+     */
+    private WatchOnlyWallet(final File walletFile, WalletIndex index, File dataDirectory, boolean background){
+        //check preconditions
+        Preconditions.checkNotNull(walletFile);
+        Preconditions.checkNotNull(index);
+        Preconditions.checkNotNull(dataDirectory);
+
+        //set constants values
+        this.walletFile = walletFile;
+        this.index = index;
+        this.context = getNetworkContext(getNetworkType(NetworkParameters.fromID(index.getNetworkId())));
+        this.dataDirectory = dataDirectory;
+        this.walletLogger = getWalletLogger(walletFile);
+        this.groups = new AddressGroups(AddressGroups.getGroupsFile(walletFile));
+        this.history = new AddressHistory(AddressHistory.getHistoryFile(walletFile), groups);
+        this.state = history.getState(index.getAddresses(context.getParams()), index.getSyncHeight());
+        this.indexChanged.set(false);
+        this.shardsLoader = new FutureTask<>(new Callable<List<Wallet>>() {
+            @Override
+            public List<Wallet> call() throws Exception {
+                return loadShards(walletFile);
+            }
+        });
+
+        // initiate the event manager
+        migrateLegacyFiles();
+        this.eventNotificationManager = new EventNotificationManager(getDataFile("events"));
+        eventNotificationManager.setAddressGroups(groups);
+
+        //default log level to OFF
+        setDefaultLogLevel();
+        walletLogger.info("Opened wallet " + walletFile.toString() + " snapshot with " + index.getAddressCount() + " addresses at height " + index.getSyncHeight());
+
+        // the loader thread also swaps the loaded wallets in, so the first query after the load doesn't wait for it.
+        if (background) {
+            new ContextPropagatingThreadFactory("IoP wallet loader").newThread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        getShards();
+                    } catch (IllegalStateException e) {
+                        walletLogger.error("Unable to load the wallet " + walletFile.toString() + " on the background.", e);
+                    }
+                }
+            }).start();
+        }
     }
 
     /**
@@ -84,9 +210,39 @@ public class WatchOnlyWallet implements IoPWallet{
      * @throws IoWalletException if the file is incorrect, already exists or is unreachable.
      */
     public WatchOnlyWallet(File walletFile, NetworkType networkType) throws IoWalletException{
+        this(walletFile, networkType, 1);
+    }
+
+    /**
+     * Creates a new empty IoP watch only wallet that spreads its addresses among many internal wallets (shards) by the address hash160 prefix.
+     * Each shard is saved to its own file and processes its incoming transactions on its own thread, which keeps wallets with millions
+     * of addresses responsive. Shards are transparent to the caller, all methods aggregate across them.
+     * To load an existing wallet from a previous file, use static method {@link #loadFromFile(File)}.
+     * @param walletFile the file that will be use to store the first shard. The other shards are stored next to it.
+     * @param networkType the network type this wallet will be working on. It supports all three IoP network types, production, testnet and regtest.
+     * @param shardCount the amount of shards, between 1 and 256. One means a regular, not sharded wallet.
+     * @throws IoWalletException if the file is incorrect, already exists or is unreachable.
+     */
+    public WatchOnlyWallet(File walletFile, NetworkType networkType, int shardCount) throws IoWalletException{
+        this(walletFile, networkType, shardCount, getDefaultDataDirectory(walletFile));
+    }
+
+    /**
+     * Creates a new empty IoP watch only wallet that keeps its events, blocks and peers files in the specified directory.
+     * Wallets with different data directories, or different wallet file names, never share any file, so they can run side by side in the same process.
+     * To load an existing wallet from a previous file, use static method {@link #loadFromFile(File, File)}.
+     * @param walletFile the file that will be use to store the first shard. The other shards are stored next to it.
+     * @param networkType the network type this wallet will be working on. It supports all three IoP network types, production, testnet and regtest.
+     * @param shardCount the amount of shards, between 1 and 256. One means a regular, not sharded wallet.
+     * @param dataDirectory the directory of the events, blocks and peers files of this wallet. It must exist.
+     * @throws IoWalletException if the file is incorrect, already exists or is unreachable.
+     */
+    public WatchOnlyWallet(File walletFile, NetworkType networkType, int shardCount, File dataDirectory) throws IoWalletException{
         //check Preconditions
         Preconditions.checkNotNull(walletFile);
         Preconditions.checkNotNull(networkType);
+        Preconditions.checkArgument(shardCount >= 1 && shardCount <= 256);
+        Preconditions.checkNotNull(dataDirectory);
 
         // make sure we are not overwriting any wallet.
         if (walletFile.exists())
@@ -94,22 +250,45 @@ public class WatchOnlyWallet implements IoPWallet{
 
         // set constants
         this.walletFile = walletFile;
-        this.context = new Context(getNetworkParameters(networkType));
-        this.wallet = new Wallet(context);
+        this.dataDirectory = dataDirectory;
+        this.walletLogger = getWalletLogger(walletFile);
+        this.context = getNetworkContext(networkType);
+        List<Wallet> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++){
+            if (getShardFile(walletFile, i).exists())
+                throw new IoWalletException("The shard file " + getShardFile(walletFile, i).toString() + " already exists. Can't overwrite wallets. Use static method loadFromFile instead.", null);
+            shards.add(new Wallet(context));
+        }
+        this.shards = Collections.unmodifiableList(shards);
+        this.wallet = shards.get(0);
+        this.shardsLoader = null;
+        AddressHistory.getHistoryFile(walletFile).delete();
+        AddressGroups.getGroupsFile(walletFile).delete();
+        this.groups = new AddressGroups(AddressGroups.getGroupsFile(walletFile));
+        this.history = new AddressHistory(AddressHistory.getHistoryFile(walletFile), groups);
+        history.addWallets(shards);
+        trackState(shards);
+        if (shardCount > 1)
+            this.wallet.setTag(SHARDS_TAG, ByteString.copyFromUtf8(String.valueOf(shardCount)));
 
-        // set wallet properties and save
+        // set wallet properties and save, each shard is saved on its own.
         try {
-            this.wallet.autosaveToFile(walletFile, 1, TimeUnit.SECONDS, null);
-            this.wallet.saveToFile(walletFile);
+            for (int i = 0; i < shardCount; i++){
+                File shardFile = getShardFile(walletFile, i);
+                shards.get(i).autosaveToFile(shardFile, 1, TimeUnit.SECONDS, null);
+                shards.get(i).saveToFile(shardFile);
+            }
         } catch (Exception e) {
             throw new IoWalletException("There was an error executing the initial save of your wallet. Check that you have permissions on the specified walletFile", e);
         }
 
         // initiate the event manager
-        this.eventNotificationManager = new EventNotificationManager();
+        this.eventNotificationManager = new EventNotificationManager(getDataFile("events"));
+        eventNotificationManager.setAddressGroups(groups);
 
         //default log level to OFF
-        logger.setLevel(Level.OFF);
+        setDefaultLogLevel();
+        walletLogger.info("Created wallet " + walletFile.toString() + " with " + shardCount + " shards on " + networkType);
     }
 
     /**
@@ -120,15 +299,27 @@ public class WatchOnlyWallet implements IoPWallet{
      * the walletFile and create a new one reimporting the addresses.
      */
     public static WatchOnlyWallet loadFromFile(File walletFile) throws IoWalletException{
+        return loadFromFile(walletFile, getDefaultDataDirectory(walletFile));
+    }
+
+    /**
+     * Loads from an existing file a previously created IoP watch only wallet that keeps its events, blocks and peers files in the specified directory.
+     * @param walletFile the file used to load the wallet from. It must exists and be reachable.
+     * @param dataDirectory the directory of the events, blocks and peers files of this wallet.
+     * @return an IoP WatchOnly wallet. To import addresses call {@link #importAddresses(File)}
+     * @throws IoWalletException if the file doesn't exists or there was an error while trying to load the wallet.
+     */
+    public static WatchOnlyWallet loadFromFile(File walletFile, File dataDirectory) throws IoWalletException{
         //pre validations
         Preconditions.checkNotNull(walletFile);
         Preconditions.checkArgument(walletFile.exists());
+        Preconditions.checkNotNull(dataDirectory);
 
-        Wallet wallet = null;
+        List<Wallet> shards;
         try {
-            NetworkParametersGetter.setSupportedBlockchain(SupportedBlockchain.INTERNET_OF_PEOPLE);
-            NetworkParameters.setSupportedBlockchain(SupportedBlockchain.INTERNET_OF_PEOPLE);
-            wallet = Wallet.loadFromFile(walletFile);
+            shards = loadShards(walletFile);
+        } catch (IoWalletException e) {
+            throw e;
         } catch (UnreadableWalletException e) {
             throw new IoWalletException("There was an error trying to load an existing wallet. Consider creating a new Wallet and reimporting the addresses", e);
         } catch (Exception exception){
@@ -136,7 +327,290 @@ public class WatchOnlyWallet implements IoPWallet{
         }
 
         // at this point the wallet was loaded sucessfully
-        return new WatchOnlyWallet(walletFile, wallet);
+        WatchOnlyWallet watchOnlyWallet = new WatchOnlyWallet(walletFile, shards, dataDirectory);
+        if (getUtxoFile(walletFile).exists()) {
+            watchOnlyWallet.utxoSet = new UtxoSet(shards, getUtxoFile(walletFile));
+            watchOnlyWallet.utxoSet.setHistory(watchOnlyWallet.history);
+        }
+        return watchOnlyWallet;
+    }
+
+    /**
+     * Opens a previously created IoP watch only wallet from its memory mapped snapshot, written each time the wallet is flushed with {@link #flush()}.
+     * The snapshot has the addresses, the amount received by each one, the wallet balance and the sync height, so {@link #getAddressBalance(String)},
+     * {@link #getWalletBalance()}, {@link #getAddresses()} and {@link #getAddressesSize()} are answered right away, as of the last flush, while
+     * the full wallet is loaded. Any other operation, like importing addresses or connecting, waits for the full wallet.
+     * If there is no snapshot, the wallet is fully loaded as with {@link #loadFromFile(File)}
+     * @param walletFile the file used to load the wallet from. It must exists and be reachable.
+     * @param background true to load the full wallet right away on another thread, false to load it when first needed, usually when connecting.
+     * @return an IoP WatchOnly wallet.
+     * @throws IoWalletException if the file doesn't exists or there was an error while trying to load the wallet.
+     */
+    public static WatchOnlyWallet loadFromSnapshot(File walletFile, boolean background) throws IoWalletException{
+        return loadFromSnapshot(walletFile, getDefaultDataDirectory(walletFile), background);
+    }
+
+    /**
+     * Opens a previously created IoP watch only wallet from its memory mapped snapshot, keeping its events, blocks and peers files in the specified directory.
+     * @param walletFile the file used to load the wallet from. It must exists and be reachable.
+     * @param dataDirectory the directory of the events, blocks and peers files of this wallet.
+     * @param background true to load the full wallet right away on another thread, false to load it when first needed.
+     * @return an IoP WatchOnly wallet.
+     * @throws IoWalletException if the file doesn't exists or there was an error while trying to load the wallet.
+     */
+    public static WatchOnlyWallet loadFromSnapshot(File walletFile, File dataDirectory, boolean background) throws IoWalletException{
+        //pre validations
+        Preconditions.checkNotNull(walletFile);
+        Preconditions.checkArgument(walletFile.exists());
+        Preconditions.checkNotNull(dataDirectory);
+
+        File indexFile = WalletIndex.getIndexFile(walletFile);
+        if (indexFile.exists()) {
+            try {
+                return new WatchOnlyWallet(walletFile, new WalletIndex(indexFile), dataDirectory, background);
+            } catch (IOException e) {
+                // an invalid snapshot is not critical, we load the full wallet and write a new one.
+                logger.warn("Unable to open the wallet snapshot " + indexFile.toString(), e);
+            }
+        }
+
+        WatchOnlyWallet watchOnlyWallet = loadFromFile(walletFile, dataDirectory);
+        watchOnlyWallet.saveIndex();
+        return watchOnlyWallet;
+    }
+
+    /**
+     * Loads all the shards of a wallet and sets their autosave.
+     * @param walletFile the file of the first shard.
+     * @return the blockchainj wallets of the shards.
+     * @throws Exception if any shard is missing or can't be loaded.
+     */
+    private static List<Wallet> loadShards(File walletFile) throws Exception{
+        List<Wallet> shards = new ArrayList<>();
+        Wallet wallet = loadWallet(walletFile);
+        shards.add(wallet);
+
+        // a sharded wallet stores the amount of shards in the first one.
+        ByteString shardsTag = wallet.maybeGetTag(SHARDS_TAG);
+        int shardCount = shardsTag == null ? 1 : Integer.parseInt(shardsTag.toStringUtf8());
+        for (int i = 1; i < shardCount; i++){
+            File shardFile = getShardFile(walletFile, i);
+            if (!shardFile.exists())
+                throw new IoWalletException("The shard file " + shardFile.toString() + " is missing. The wallet can't be loaded without all its shards.");
+            shards.add(loadWallet(shardFile));
+        }
+
+        for (int i = 0; i < shardCount; i++)
+            shards.get(i).autosaveToFile(getShardFile(walletFile, i), 1, TimeUnit.SECONDS, null);
+
+        return shards;
+    }
+
+    /**
+     * Gets the blockchainj wallets, waiting for them to be loaded if the wallet was opened from its snapshot.
+     * @return the blockchainj wallets of the shards.
+     */
+    private List<Wallet> getShards(){
+        List<Wallet> loaded = shards;
+        if (loaded != null)
+            return loaded;
+
+        // runs the loader on this thread, unless it is already running on the background.
+        shardsLoader.run();
+        synchronized (shardsLoader) {
+            if (shards == null) {
+                try {
+                    List<Wallet> loadedShards = shardsLoader.get();
+                    if (getUtxoFile(walletFile).exists()) {
+                        utxoSet = new UtxoSet(loadedShards, getUtxoFile(walletFile));
+                        utxoSet.setHistory(history);
+                    }
+                    history.addWallets(loadedShards);
+                    wallet = loadedShards.get(0);
+                    // the listeners are registered before the wallets are published, so no change made through them is missed.
+                    trackState(loadedShards);
+                    shards = Collections.unmodifiableList(loadedShards);
+                    index = null;
+                    walletLogger.info("Loaded wallet " + walletFile.toString() + " with " + loadedShards.size() + " shards.");
+                } catch (Exception e) {
+                    throw new IllegalStateException("Unable to load the wallet " + walletFile.toString(), e);
+                }
+            }
+            return shards;
+        }
+    }
+
+    /**
+     * true once the full wallet is loaded. Wallets opened with {@link #loadFromSnapshot(File, boolean)} answer queries from the snapshot until then.
+     * @return true if the blockchainj wallets are loaded.
+     */
+    public boolean isLoaded(){
+        return shards != null;
+    }
+
+    /**
+     * writes the memory mapped snapshot used by {@link #loadFromSnapshot(File, boolean)}
+     */
+    private void saveIndex() throws IoWalletException{
+        // changes made while the snapshot is written mark it again, so the next flush writes them.
+        if (!indexChanged.getAndSet(false))
+            return;
+
+        try {
+            WalletIndex.write(WalletIndex.getIndexFile(walletFile), getShards(), utxoSet, getWalletBalance());
+        } catch (IOException e) {
+            indexChanged.set(true);
+            throw new IoWalletException("Unable to write the wallet snapshot.", e);
+        }
+    }
+
+    /**
+     * Loads a blockchainj wallet with the context of its own network, so wallets of other networks loaded or created before on the same
+     * thread don't interfere.
+     * @param file the blockchainj wallet file.
+     * @return the loaded wallet.
+     * @throws UnreadableWalletException if the file is not a valid wallet.
+     */
+    private static Wallet loadWallet(File file) throws Exception{
+        Protos.Wallet walletProto;
+        InputStream stream = new BufferedInputStream(new FileInputStream(file));
+        try {
+            // transactions changed after the last snapshot are on the journal, if the wallet used incremental persistence.
+            walletProto = WalletJournal.replay(WalletProtobufSerializer.parseToProto(stream), file);
+        } finally {
+            stream.close();
+        }
+
+        NetworkParameters params = NetworkParameters.fromID(walletProto.getNetworkIdentifier());
+        if (params == null)
+            throw new UnreadableWalletException("Unknown network parameters ID " + walletProto.getNetworkIdentifier());
+
+        getNetworkContext(getNetworkType(params));
+        Wallet wallet = new WalletProtobufSerializer().readWallet(params, null, walletProto);
+        WalletJournal.compact(wallet, file);
+        return wallet;
+    }
+
+    /**
+     * Gets the blockchainj context of a network and sets it as the context of the current thread. All the wallets of a network share the same context.
+     * @param networkType the network of the context.
+     * @return the context of the network.
+     */
+    public static synchronized Context getNetworkContext(NetworkType networkType){
+        NetworkParameters params = getNetworkParameters(networkType);
+        Context networkContext = contexts.get(params);
+        if (networkContext == null) {
+            networkContext = new Context(params);
+            contexts.put(params, networkContext);
+        }
+
+        Context.propagate(networkContext);
+        return networkContext;
+    }
+
+    /**
+     * The default data directory is the directory of the wallet file.
+     */
+    private static File getDefaultDataDirectory(File walletFile){
+        Preconditions.checkNotNull(walletFile);
+        return walletFile.getAbsoluteFile().getParentFile();
+    }
+
+    /**
+     * A file of this wallet in its data directory, prefixed with the wallet file name so that many wallets can share the same directory.
+     * @param name the name of the file.
+     * @return the file in the data directory.
+     */
+    private File getDataFile(String name){
+        return new File(dataDirectory, walletFile.getName() + "." + name);
+    }
+
+    /**
+     * Before the data directory, the events, blocks and peers files were kept in the working directory with no prefix. A loaded wallet
+     * that doesn't have its own files yet takes them over, so it keeps its pending events and doesn't download the blocks again.
+     */
+    private void migrateLegacyFiles(){
+        String blockchainName = context.getParams().getId();
+        migrateLegacyFile(new File("events"), getDataFile("events"));
+        migrateLegacyFile(new File(blockchainName), getDataFile(blockchainName));
+        migrateLegacyFile(new File(blockchainName + ".peers"), getDataFile(blockchainName + ".peers"));
+    }
+
+    private void migrateLegacyFile(File legacyFile, File dataFile){
+        if (dataFile.exists() || !legacyFile.isFile())
+            return;
+
+        if (legacyFile.renameTo(dataFile))
+            walletLogger.info("Moved " + legacyFile.toString() + " to " + dataFile.toString());
+        else
+            walletLogger.warn("Unable to move " + legacyFile.toString() + " to " + dataFile.toString());
+    }
+
+    /**
+     * The directory in which this wallet stores its events, blocks and peers files.
+     * @return the data directory of this wallet.
+     */
+    public File getDataDirectory(){
+        return dataDirectory;
+    }
+
+    private static Logger getWalletLogger(File walletFile){
+        return (Logger) LoggerFactory.getLogger(WatchOnlyWallet.class.getName() + "." + walletFile.getName());
+    }
+
+    /**
+     * sets the log level to OFF the first time a wallet is created, unless it was already set with {@link #setLogLevel(Level)}
+     */
+    private static synchronized void setDefaultLogLevel(){
+        if (!logLevelSet) {
+            logger.setLevel(Level.OFF);
+            logLevelSet = true;
+        }
+    }
+
+    /**
+     * The file of a shard. The first shard is stored in the wallet file and the rest next to it.
+     * @param walletFile the wallet file.
+     * @param shard the shard index.
+     * @return the file in which the shard is stored.
+     */
+    private static File getShardFile(File walletFile, int shard){
+        if (shard == 0)
+            return walletFile;
+
+        return new File(walletFile.getPath() + ".shard" + shard);
+    }
+
+    /**
+     * Gets the shard that watches the given address, selected by the first byte of its hash160.
+     * @param address a valid address.
+     * @return the blockchainj wallet that watches or will watch the address.
+     */
+    private Wallet getShard(Address address){
+        return getShards().get(getShardIndex(address));
+    }
+
+    /**
+     * @return the index of the shard that watches the given address.
+     */
+    private int getShardIndex(Address address){
+        int shardCount = getShardCount();
+        if (shardCount == 1)
+            return 0;
+
+        return (address.getHash160()[0] & 0xff) % shardCount;
+    }
+
+    /**
+     * The amount of internal wallets the addresses are spread among.
+     * @return the amount of shards, one if the wallet is not sharded.
+     */
+    public int getShardCount(){
+        WalletIndex snapshot = index;
+        if (shards == null && snapshot != null)
+            return snapshot.getShardCount();
+
+        return getShards().size();
     }
 
     /**
@@ -144,8 +618,7 @@ public class WatchOnlyWallet implements IoPWallet{
      * @param networkType any valid enum value, production, testnet or regtest.
      * @return the matching blockchainj network type of IoP.
      */
-    private static NetworkParameters getNetworkParameters(NetworkType networkType){
-        NetworkParametersGetter.setSupportedBlockchain(SupportedBlockchain.INTERNET_OF_PEOPLE);
+    public static NetworkParameters getNetworkParameters(NetworkType networkType){
         switch (networkType){
             case PRODUCTION:
                 return IoP_MainNetParams.get();
@@ -162,8 +635,9 @@ public class WatchOnlyWallet implements IoPWallet{
      * changes the log level of the output-
      * @param level default is ERROR
      */
-    public static void setLogLevel(Level level){
+    public static synchronized void setLogLevel(Level level){
         logger.setLevel(level);
+        logLevelSet = true;
     }
 
     /**
@@ -174,6 +648,22 @@ public class WatchOnlyWallet implements IoPWallet{
         return logger.getLevel();
     }
 
+    /**
+     * changes the log level of this wallet only. Wallet loggers are named after the wallet class and the wallet file name.
+     * @param level the new level, or null to inherit the level of {@link #setLogLevel(Level)}
+     */
+    public void setWalletLogLevel(Level level){
+        walletLogger.setLevel(level);
+    }
+
+    /**
+     * gets the log level of this wallet.
+     * @return the log level of this wallet, inherited from the global level if not set.
+     */
+    public Level getWalletLogLevel(){
+        return walletLogger.getEffectiveLevel();
+    }
+
     /**
      * translates the IoP blockchain parameter into a valid NetworkType
      * @param networkParameters a valid blockchainj networkparameter on IoP network.
@@ -197,6 +687,8 @@ public class WatchOnlyWallet implements IoPWallet{
     /**
      * Imports new addresses from the input file into the Watch Only wallet. If any address on the file is already imported, then it will be skipped.
      * When new addresses are added to an existing input file, you need to call this method to add the new added addresses.
+     * Each line may have a second column, separated by spaces, a tab or a comma, with the group (account) of the address. Addresses already
+     * imported are moved to the group of the file. See {@link #getGroupBalance(String, BalanceType)}
      * @param inputFile The file with the list of addresses to monitor on the network.
      * @throws IoWalletException if the specified file doesn't exists or can't be read.
      * @throws AddressFormatException if one or many addresses in the input file is not valid in the wallet network.
@@ -206,18 +698,48 @@ public class WatchOnlyWallet implements IoPWallet{
             throw new IoWalletException("Provided input file does not exists. Verify you have access.");
 
         AddressesFileReader fileReader = new AddressesFileReader(inputFile);
+        List<Wallet> shards = getShards();
 
+        long start = System.nanoTime();
+        int imported = 0;
         try {
+            // addresses are grouped by shard so that each shard is updated only once.
+            List<List<Address>> addressesByShard = new ArrayList<>();
+            for (int i = 0; i < shards.size(); i++)
+                addressesByShard.add(new ArrayList<Address>());
+
+            Map<String, String> assignments = new HashMap<>();
             for (String line : fileReader.importAddresses()){
+                String[] columns = AddressesFileReader.getColumns(line);
                 try{
-                    this.wallet.addWatchedAddress(getAddress(line), 1475280000);
+                    Address address = getAddress(columns[0]);
+                    int shard = getShardIndex(address);
+                    // already imported addresses are skipped.
+                    if (!shards.get(shard).isAddressWatched(address))
+                        addressesByShard.get(shard).add(address);
+                    if (columns.length > 1)
+                        assignments.put(address.toBase58(), columns[1]);
                 } catch (AddressFormatException e){
                     throw new AddressFormatException("Imported address " + line + " is not a valid base58 IoP address." , e);
                 }
             }
+
+            for (int i = 0; i < shards.size(); i++){
+                if (!addressesByShard.get(i).isEmpty()) {
+                    imported += shards.get(i).addWatchedAddresses(addressesByShard.get(i), 1475280000);
+                    saveWatchedAddresses(i);
+                }
+            }
+            if (!assignments.isEmpty())
+                history.setGroups(assignments);
         } catch (Exception e) {
             throw new IoWalletException("There was an IO error importing addresses from the input file. Verify the input file is readable.", e);
         }
+
+        Metrics.getRegistry().increment(Metrics.IMPORTED_ADDRESSES, imported);
+        long elapsed = System.nanoTime() - start;
+        if (imported > 0 && elapsed > 0)
+            Metrics.getRegistry().record(Metrics.IMPORT_RATE, imported * 1000000000L / elapsed);
     }
 
     /**
@@ -226,7 +748,309 @@ public class WatchOnlyWallet implements IoPWallet{
      * @throws AddressFormatException in case the provided address is not valid in the network.
      */
     public void importAddress(String address) throws AddressFormatException{
-        this.wallet.addWatchedAddress(getAddress(address), 1475280000);
+        Address blockchainAddress = getAddress(address);
+        if (getShard(blockchainAddress).isAddressWatched(blockchainAddress))
+            return;
+
+        getShard(blockchainAddress).addWatchedAddress(blockchainAddress, 1475280000);
+        Metrics.getRegistry().increment(Metrics.IMPORTED_ADDRESSES, 1);
+        try {
+            saveWatchedAddresses(getShardIndex(blockchainAddress));
+        } catch (IOException e) {
+            walletLogger.error("Unable to save the imported address " + address, e);
+        }
+    }
+
+    /**
+     * Stops watching the addresses listed in the input file, one per line with an optional group column as in {@link #importAddresses(File)}
+     * @param inputFile The file with the list of addresses to remove.
+     * @param dropHistory true to also remove the history, balances, group and events of the addresses.
+     * @return the amount of addresses that were watched and are removed.
+     * @throws IoWalletException if the specified file doesn't exists or can't be read, or the wallet can't be saved.
+     * @throws AddressFormatException if one or many addresses in the input file is not valid in the wallet network.
+     */
+    public int removeAddresses(File inputFile, boolean dropHistory) throws IoWalletException, AddressFormatException{
+        if (!inputFile.exists())
+            throw new IoWalletException("Provided input file does not exists. Verify you have access.");
+
+        List<String> addresses = new ArrayList<>();
+        try {
+            for (String line : new AddressesFileReader(inputFile).importAddresses())
+                addresses.add(AddressesFileReader.getColumns(line)[0]);
+        } catch (IOException e) {
+            throw new IoWalletException("There was an IO error reading the input file. Verify the input file is readable.", e);
+        }
+        return removeAddresses(addresses, dropHistory);
+    }
+
+    /**
+     * Stops watching the addresses. The whole batch is removed from each shard at once, so the wallet lock is taken, the peers filter
+     * is recalculated and the wallet is saved once, not once per address. Addresses that are not watched are skipped.
+     * The received outputs of the addresses are kept in the history, unless dropHistory is set.
+     * @param addresses the base58 addresses to remove.
+     * @param dropHistory true to also remove the history, balances, group and events of the addresses.
+     * @return the amount of addresses that were watched and are removed.
+     * @throws IoWalletException if the wallet can't be saved.
+     * @throws AddressFormatException if one or many addresses are not valid in the wallet network.
+     */
+    public int removeAddresses(Collection<String> addresses, boolean dropHistory) throws IoWalletException, AddressFormatException{
+        Preconditions.checkNotNull(addresses);
+        List<Wallet> shards = getShards();
+
+        // addresses are grouped by shard so that each shard is updated only once.
+        List<List<Address>> addressesByShard = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++)
+            addressesByShard.add(new ArrayList<Address>());
+        Set<String> removed = new HashSet<>();
+        for (String address : addresses){
+            Address blockchainAddress = getAddress(address);
+            int shard = getShardIndex(blockchainAddress);
+            if (shards.get(shard).isAddressWatched(blockchainAddress) && removed.add(blockchainAddress.toBase58()))
+                addressesByShard.get(shard).add(blockchainAddress);
+        }
+
+        try {
+            // the unspent outputs go first, so the filter recalculated when the wallets change doesn't have them.
+            UtxoSet compactSet = utxoSet;
+            if (compactSet != null && !removed.isEmpty()) {
+                compactSet.removeAddresses(removed);
+                compactSet.save();
+            }
+
+            for (int i = 0; i < shards.size(); i++){
+                if (!addressesByShard.get(i).isEmpty()) {
+                    shards.get(i).removeWatchedAddresses(addressesByShard.get(i));
+                    saveWatchedAddresses(i);
+                }
+            }
+
+            if (dropHistory && !removed.isEmpty()) {
+                history.removeAddresses(removed);
+                eventNotificationManager.removeEvents(removed);
+            }
+        } catch (IOException e) {
+            throw new IoWalletException("There was an error saving the wallet after removing addresses.", e);
+        }
+
+        walletLogger.info("Removed " + removed.size() + " addresses from wallet " + walletFile.toString());
+        return removed.size();
+    }
+
+    /**
+     * Stops watching the addresses, keeping their history. See {@link #removeAddresses(Collection, boolean)}
+     * @param addresses the base58 addresses to remove.
+     * @return the amount of addresses that were watched and are removed.
+     * @throws IoWalletException if the wallet can't be saved.
+     * @throws AddressFormatException if one or many addresses are not valid in the wallet network.
+     */
+    public int removeAddresses(Collection<String> addresses) throws IoWalletException, AddressFormatException{
+        return removeAddresses(addresses, false);
+    }
+
+    /**
+     * Imports a watch only address into the wallet as part of a group, or moves it to the group if it was already imported.
+     * @param address a valid Base58 string address on the selected network
+     * @param group the name of the group (account) of the address.
+     * @throws AddressFormatException in case the provided address is not valid in the network.
+     * @throws IoWalletException if the groups can't be saved.
+     * @throws IllegalArgumentException if the name of the group is empty or has a line break.
+     */
+    public void importAddress(String address, String group) throws AddressFormatException, IoWalletException{
+        // an invalid name doesn't import the address either.
+        AddressGroups.checkGroupName(group);
+        importAddress(address);
+        try {
+            history.setGroups(Collections.singletonMap(getAddress(address).toBase58(), group));
+        } catch (IOException e) {
+            throw new IoWalletException("Unable to save the groups file of " + walletFile.toString(), e);
+        }
+    }
+
+    /**
+     * @param address a base58 address.
+     * @return the group of the address, or null if it has none.
+     * @throws AddressFormatException if the passed base58 string address is not valid on the current network.
+     */
+    public String getGroup(String address) throws AddressFormatException{
+        return groups.getGroup(getAddress(address).toBase58());
+    }
+
+    /**
+     * @param group the name of the group.
+     * @return the addresses of the group, empty if there is no such group.
+     */
+    public Set<String> getGroupAddresses(String group){
+        return groups.getAddresses(group);
+    }
+
+    /**
+     * Gets an amount of the ledger of a group, the sum of all its addresses. It is kept as the outputs of its addresses change, so it
+     * costs the same no matter how many addresses the group has.
+     * @param group the name of the group.
+     * @param balanceType the amount we want.
+     * @return the amount of IoP-satoshis, zero if the group has no address.
+     */
+    public long getGroupBalance(String group, BalanceType balanceType){
+        Preconditions.checkNotNull(group);
+        Preconditions.checkNotNull(balanceType);
+        return history.getGroupBalance(group, balanceType);
+    }
+
+    /**
+     * With incremental persistence, the imported or removed addresses are appended to the journal right away, so they are not lost
+     * until the next flush. With autosave, the wallet saves itself.
+     */
+    private synchronized void saveWatchedAddresses(int shard) throws IOException {
+        if (journals != null)
+            journals.get(shard).flush();
+    }
+
+    /**
+     * Switches the wallet from the default one second autosave, which writes the full wallet on every change, to incremental persistence.
+     * The wallet file becomes a snapshot with the watched addresses and the transactions, written every snapshot interval or when the
+     * journal gets bigger than the snapshot. In between, only the transactions that changed and the last seen block are appended to a
+     * journal next to the wallet file every flush interval, and imported or removed addresses right away. The journal is applied when
+     * the wallet is loaded with {@link #loadFromFile(File)}
+     * Calling it again changes the intervals.
+     * @param flushInterval how often changed transactions are written to the journal.
+     * @param snapshotInterval how often the full wallet is written and the journal started again.
+     * @param timeUnit the unit of both intervals.
+     * @throws IoWalletException if the first snapshot can't be written.
+     */
+    public synchronized void setIncrementalPersistence(long flushInterval, long snapshotInterval, TimeUnit timeUnit) throws IoWalletException{
+        Preconditions.checkArgument(flushInterval > 0);
+        Preconditions.checkArgument(snapshotInterval >= flushInterval);
+        Preconditions.checkNotNull(timeUnit);
+
+        if (persistenceExecutor != null)
+            persistenceExecutor.shutdown();
+
+        if (journals == null) {
+            List<Wallet> shards = getShards();
+            List<WalletJournal> shardJournals = new ArrayList<>();
+            try {
+                for (int i = 0; i < shards.size(); i++){
+                    shards.get(i).shutdownAutosaveAndWait();
+                    WalletJournal journal = new WalletJournal(shards.get(i), getShardFile(walletFile, i));
+                    journal.snapshot();
+                    shardJournals.add(journal);
+                }
+            } catch (IOException e) {
+                throw new IoWalletException("Unable to write the wallet snapshot.", e);
+            }
+            journals = shardJournals;
+        }
+
+        Context.propagate(context);
+        persistenceExecutor = Executors.newSingleThreadScheduledExecutor(new ContextPropagatingThreadFactory("IoP wallet persistence"));
+        persistenceExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (IoWalletException e) {
+                    walletLogger.error("Unable to flush the wallet journal.", e);
+                }
+            }
+        }, flushInterval, flushInterval, timeUnit);
+        persistenceExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (WalletJournal journal : journals){
+                    try {
+                        journal.snapshot();
+                    } catch (IOException e) {
+                        walletLogger.error("Unable to write the wallet snapshot.", e);
+                    }
+                }
+            }
+        }, snapshotInterval, snapshotInterval, timeUnit);
+        walletLogger.info("Incremental persistence every " + flushInterval + " " + timeUnit + ", snapshots every " + snapshotInterval + " " + timeUnit);
+    }
+
+    /**
+     * Switches the wallet to compact mode. Only the unspent outputs of the watched addresses are kept, with the total received by each
+     * address and optionally a bounded window of recent history. Wallet transactions are pruned after each block, so memory, load time and
+     * save size stay flat no matter how long the history is. Balances only include confirmed transactions, and incoming transaction
+     * events are still fired. The unspent outputs are stored next to the wallet file.
+     * Calling it again changes the history size. The wallet stays in compact mode after being loaded.
+     * @param historySize the amount of recent balance changes to keep, zero for none. See {@link #getRecentHistory()}
+     * @throws IoWalletException if the unspent outputs can't be saved.
+     */
+    public synchronized void setCompactMode(int historySize) throws IoWalletException{
+        Preconditions.checkArgument(historySize >= 0);
+
+        List<Wallet> shards = getShards();
+        if (utxoSet != null) {
+            utxoSet.setHistorySize(historySize);
+            return;
+        }
+
+        File utxoFile = getUtxoFile(walletFile);
+        boolean exists = utxoFile.exists();
+        UtxoSet compactSet = new UtxoSet(getShards(), utxoFile, historySize);
+        if (!exists)
+            compactSet.addWalletTransactions();
+        compactSet.setHistory(history);
+
+        try {
+            compactSet.save();
+        } catch (IOException e) {
+            throw new IoWalletException("Unable to save the unspent outputs file " + utxoFile.toString(), e);
+        }
+
+        this.utxoSet = compactSet;
+        indexChanged.set(true);
+        if (ioPBlockchain != null)
+            ioPBlockchain.addUtxoSet(compactSet);
+        walletLogger.info("Compact mode with " + compactSet.size() + " unspent outputs and " + historySize + " history entries.");
+    }
+
+    /**
+     * @return true if the wallet is in compact mode.
+     */
+    public boolean isCompactMode(){
+        return utxoSet != null;
+    }
+
+    /**
+     * The recent balance changes of the watched addresses in compact mode, oldest first.
+     * @return the recent history, or an empty list if the wallet is not in compact mode.
+     */
+    public List<UtxoSet.HistoryEntry> getRecentHistory(){
+        if (utxoSet == null)
+            return Collections.emptyList();
+
+        return utxoSet.getHistory();
+    }
+
+    private static File getUtxoFile(File walletFile){
+        return new File(walletFile.getPath() + ".utxo");
+    }
+
+    /**
+     * Writes the pending changes of the wallet. With incremental persistence only the changed transactions are written to the journal,
+     * otherwise the full wallet is saved.
+     * @throws IoWalletException if the wallet can't be written.
+     */
+    public void flush() throws IoWalletException{
+        try {
+            if (journals != null) {
+                for (WalletJournal journal : journals)
+                    journal.flush();
+            } else {
+                List<Wallet> shards = getShards();
+                for (int i = 0; i < shards.size(); i++)
+                    shards.get(i).saveToFile(getShardFile(walletFile, i));
+            }
+
+            if (utxoSet != null)
+                utxoSet.save();
+            history.save();
+            saveIndex();
+        } catch (IOException e) {
+            throw new IoWalletException("Unable to save the wallet.", e);
+        }
     }
 
     /**
@@ -240,10 +1064,20 @@ public class WatchOnlyWallet implements IoPWallet{
         // if not valid address then 0 is the balance.
         Address blockchainAddress =  getAddress(address);
 
-        // we iterate the recorded transactions searching for coins sent to the specified address to calculate the balance.
-        for (Transaction transaction : wallet.getTransactions(false)){
+        // until the wallet is loaded, we answer from the snapshot.
+        WalletIndex snapshot = index;
+        if (shards == null && snapshot != null)
+            return snapshot.getReceived(blockchainAddress.getHash160());
+
+        // in compact mode the wallet has no history, the received amount is kept on the unspent outputs set.
+        Wallet shard = getShard(blockchainAddress);
+        if (utxoSet != null)
+            return utxoSet.getReceived(blockchainAddress.toBase58());
+
+        // we iterate the recorded transactions of the address shard searching for coins sent to the specified address to calculate the balance.
+        for (Transaction transaction : shard.getTransactions(false)){
             for (TransactionOutput output : transaction.getOutputs()){
-                if (output.isWatched(this.wallet) && output.getAddressFromP2PKHScript(wallet.getNetworkParameters()).equals(blockchainAddress))
+                if (output.isWatched(shard) && output.getAddressFromP2PKHScript(shard.getNetworkParameters()).equals(blockchainAddress))
                     balance = balance + output.getValue().getValue();
             }
         }
@@ -251,6 +1085,82 @@ public class WatchOnlyWallet implements IoPWallet{
         return balance;
     }
 
+    /**
+     * Gets an amount of the ledger of an address. The ledger is kept with the address history as transactions arrive, are confirmed
+     * and spend our outputs, so it is answered without going through the wallet transactions, also in compact mode and while the wallet loads.
+     * @param address the address we want to get the balance from.
+     * @param balanceType the amount we want, {@link BalanceType#RECEIVED} is what {@link #getAddressBalance(String)} returns.
+     * @return the amount of IoP-satoshis, zero if the address received nothing.
+     * @throws AddressFormatException if the passed base58 string address is not valid on the current network.
+     */
+    public long getAddressBalance(String address, BalanceType balanceType) throws AddressFormatException {
+        Preconditions.checkNotNull(balanceType);
+        return history.getBalance(getAddress(address).toBase58(), balanceType);
+    }
+
+    /**
+     * Gets an amount of the ledger of all the imported addresses.
+     * @param balanceType the amount we want. Unlike {@link #getWalletBalance()}, {@link BalanceType#CONFIRMED} leaves out the unconfirmed funds.
+     * @return the amount of IoP-satoshis.
+     */
+    public long getWalletBalance(BalanceType balanceType) {
+        Preconditions.checkNotNull(balanceType);
+        return history.getBalance(balanceType);
+    }
+
+    /**
+     * Gets the confirmed balance an address had at a past block height: the outputs received up to that block that were not spent up to it.
+     * Balance changes are kept by height with a checkpoint every {@link BalanceLedger#CHECKPOINT_INTERVAL} blocks, so a query reads
+     * one checkpoint and the changes of less than an interval, no matter how far back the height is.
+     * @param address the address we want to get the balance from.
+     * @param height the height of the block, its transactions included.
+     * @return the amount of IoP-satoshis.
+     * @throws AddressFormatException if the passed base58 string address is not valid on the current network.
+     */
+    public long getAddressBalanceAt(String address, int height) throws AddressFormatException {
+        Preconditions.checkArgument(height >= 0);
+        return history.getBalanceAt(getAddress(address).toBase58(), height);
+    }
+
+    /**
+     * Gets the confirmed balance of all the imported addresses at a past block height.
+     * @param height the height of the block, its transactions included.
+     * @return the amount of IoP-satoshis.
+     */
+    public long getWalletBalanceAt(int height) {
+        Preconditions.checkArgument(height >= 0);
+        return history.getBalanceAt(height);
+    }
+
+    /**
+     * Gets the outputs received by an address, oldest first. The history is indexed by address and kept updated as transactions arrive,
+     * so a page costs the same on wallets with millions of transactions. It is also kept in compact mode, in which the wallet has no transactions.
+     * To get the next page, use {@link #getAddressHistory(String, String, int)} with the cursor of the last output.
+     * @param address the address we want the history of.
+     * @param fromHeight the first block height to return, unconfirmed outputs are returned after all the confirmed ones.
+     * @param limit the maximum amount of outputs to return.
+     * @return the received outputs, with their transaction and height.
+     * @throws AddressFormatException if the passed base58 string address is not valid on the current network.
+     */
+    public List<AddressHistory.Entry> getAddressHistory(String address, long fromHeight, int limit) throws AddressFormatException {
+        Preconditions.checkArgument(limit >= 0);
+        return history.getHistory(getAddress(address).toBase58(), fromHeight, limit);
+    }
+
+    /**
+     * Gets the outputs received by an address after the last output of the previous page, so many outputs at the same height are
+     * neither repeated nor skipped.
+     * @param address the address we want the history of.
+     * @param after the cursor of the last output already returned, see {@link AddressHistory.Entry#getCursor()}, or null for the first page.
+     * @param limit the maximum amount of outputs to return.
+     * @return the received outputs after the cursor.
+     * @throws AddressFormatException if the passed base58 string address is not valid on the current network.
+     */
+    public List<AddressHistory.Entry> getAddressHistory(String address, String after, int limit) throws AddressFormatException {
+        Preconditions.checkArgument(limit >= 0);
+        return history.getHistory(getAddress(address).toBase58(), after, limit);
+    }
+
     /**
      * returns a blockchainj address valid in the current IoP network.
      * @param address a base58 String representing an address
@@ -271,7 +1181,19 @@ public class WatchOnlyWallet implements IoPWallet{
      * @return a long value with the total amounf of IoP-satoshis on the wallet. The long value express IoP-satoshis 10000000 = 1 IoP
      */
     public long getWalletBalance(){
-        return wallet.getBalance(Wallet.BalanceType.ESTIMATED).getValue();
+        WalletIndex snapshot = index;
+        if (shards == null && snapshot != null)
+            return snapshot.getWalletBalance();
+
+        List<Wallet> shards = getShards();
+        if (utxoSet != null)
+            return utxoSet.getBalance();
+
+        long balance = 0;
+        for (Wallet shard : shards)
+            balance = balance + shard.getBalance(Wallet.BalanceType.ESTIMATED).getValue();
+
+        return balance;
     }
 
     /**
@@ -279,9 +1201,15 @@ public class WatchOnlyWallet implements IoPWallet{
      * @return a list of string representing the imported addresses
      */
     public List<String> getAddresses(){
+        WalletIndex snapshot = index;
+        if (shards == null && snapshot != null)
+            return snapshot.getAddresses(context.getParams());
+
         List<String> addressesList = new ArrayList<>();
-        for (Address address : wallet.getWatchedAddresses()){
-            addressesList.add(address.toBase58());
+        for (Wallet shard : getShards()){
+            for (Address address : shard.getWatchedAddresses()){
+                addressesList.add(address.toBase58());
+            }
         }
 
         return addressesList;
@@ -293,7 +1221,133 @@ public class WatchOnlyWallet implements IoPWallet{
      * @return an integer value that counts how many addresses we are monitoring.
      */
     public int getAddressesSize(){
-        return getAddresses().size();
+        WalletIndex snapshot = index;
+        if (shards == null && snapshot != null)
+            return snapshot.getAddressCount();
+
+        int size = 0;
+        for (Wallet shard : getShards())
+            size = size + shard.getWatchedScripts().size();
+
+        return size;
+    }
+
+    /**
+     * Gets the balances, addresses and sync height of the wallet without taking any lock, so it can be called at any rate while blocks
+     * are processed. A new state is built on another thread after each change of the wallets, so it may lag a change by the time that takes.
+     * @return the last published state of the wallet.
+     */
+    public WalletState getState(){
+        return state;
+    }
+
+    /**
+     * publishes the first state of the shards and derives a new one every time they change. The listeners are registered first, so the
+     * addresses imported or removed while the first state is built are applied again to the next one.
+     */
+    private void trackState(List<Wallet> shards){
+        for (Wallet shard : shards){
+            shard.addChangeEventListener(Threading.SAME_THREAD, stateListener);
+            shard.addScriptChangeEventListener(Threading.SAME_THREAD, stateListener);
+        }
+        publishState(shards);
+    }
+
+    /**
+     * schedules a new state, unless one is already waiting to be built. Changes that arrive while it is built schedule another one.
+     */
+    private void stateChanged(){
+        if (stateExecutor.isShutdown() || !statePending.compareAndSet(false, true))
+            return;
+
+        try {
+            stateExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    statePending.set(false);
+                    List<Wallet> loaded = shards;
+                    if (loaded != null)
+                        deriveState(loaded);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the wallet was closed in between, no more states are built.
+        }
+    }
+
+    /**
+     * builds the state from all the watched addresses and the ledger of the history, and swaps it in.
+     */
+    private void publishState(List<Wallet> shards){
+        try {
+            synchronized (watchedChanges) {
+                watchedChanges.clear();
+            }
+            List<String> addresses = new ArrayList<>();
+            for (Wallet shard : shards){
+                for (Address address : shard.getWatchedAddresses())
+                    addresses.add(address.toBase58());
+            }
+            state = history.getState(addresses, getSyncHeight(shards));
+        } catch (RuntimeException e) {
+            walletLogger.error("Unable to build the state of the wallet.", e);
+        }
+    }
+
+    /**
+     * derives the state from the last one with the addresses imported, removed or whose ledger changed since then, and swaps it in.
+     * Only called on the state thread, so states are derived one after the other.
+     */
+    private void deriveState(List<Wallet> shards){
+        WalletState previous = state;
+        if (previous == null)
+            return;
+
+        try {
+            int syncHeight = getSyncHeight(shards);
+            Map<String, Boolean> changes;
+            synchronized (watchedChanges) {
+                changes = new HashMap<>(watchedChanges);
+                watchedChanges.clear();
+            }
+            state = history.getState(previous, changes, syncHeight);
+        } catch (RuntimeException e) {
+            walletLogger.error("Unable to build the state of the wallet.", e);
+        }
+    }
+
+    private static int getSyncHeight(List<Wallet> shards){
+        int syncHeight = Integer.MAX_VALUE;
+        for (Wallet shard : shards)
+            syncHeight = Math.min(syncHeight, shard.getLastBlockSeenHeight());
+        return syncHeight;
+    }
+
+    /**
+     * builds a new state and marks the snapshot as outdated when a transaction or block changes a wallet, or when addresses are
+     * imported or removed.
+     */
+    private class StateListener implements WalletChangeEventListener, ScriptsChangeEventListener {
+        @Override
+        public void onWalletChanged(Wallet wallet) {
+            indexChanged.set(true);
+            stateChanged();
+        }
+
+        @Override
+        public void onScriptsChanged(Wallet wallet, List<Script> scripts, boolean isAddingScripts) {
+            indexChanged.set(true);
+            synchronized (watchedChanges) {
+                for (Script script : scripts){
+                    try {
+                        watchedChanges.put(script.getToAddress(wallet.getParams()).toBase58(), isAddingScripts);
+                    } catch (ScriptException e) {
+                        // only address scripts are watched.
+                    }
+                }
+            }
+            stateChanged();
+        }
     }
 
 
@@ -306,6 +1360,27 @@ public class WatchOnlyWallet implements IoPWallet{
         eventNotificationManager.confirmEventNotification(incomingTransactionEvent);
     }
 
+    /**
+     * Confirms the reception of many events at once, they are saved once instead of once per event.
+     * @param incomingTransactionEvents the events received and consumed.
+     */
+    public void confirmEventReception(Collection<IncomingTransactionEvent> incomingTransactionEvents){
+        eventNotificationManager.confirmEventNotifications(incomingTransactionEvents);
+    }
+
+    /**
+     * Finds a pending event by its transaction, address, stage and height, for clients that only keep those fields of the event.
+     * The event is found with one lookup of its transaction, to confirm it with {@link #confirmEventReception(IncomingTransactionEvent)}
+     * @param transactionHash the hash of the transaction of the event.
+     * @param address the base58 address of the event.
+     * @param stage the stage of the event.
+     * @param height the height of the event, -1 if it is unconfirmed.
+     * @return the pending event, or null if there is none.
+     */
+    public IncomingTransactionEvent getPendingNotificationEvent(String transactionHash, String address, IncomingTransactionEvent.Stage stage, int height){
+        return eventNotificationManager.getPendingEvent(transactionHash, address, stage, height);
+    }
+
     /**
      * The file where this wallet is stored. The wallet will auto save when needed, so there are no actions to perform.
      * @return the File object representing the wallet file.
@@ -329,8 +1404,41 @@ public class WatchOnlyWallet implements IoPWallet{
      * @throws IoPBlockchainException if there is an error connecting to the IoP blockchain.
      */
     public IoPBlockchain connect() throws IoPBlockchainException {
-        if (ioPBlockchain == null)
-            ioPBlockchain = new IoPBlockchain(this.wallet, eventNotificationManager);
+        if (ioPBlockchain == null) {
+            ioPBlockchain = new IoPBlockchain(getShards(), eventNotificationManager, getDataFile(context.getParams().getId()));
+            ownBlockchain = true;
+            ioPBlockchain.setBloomFilterFalsePositiveRate(bloomFilterFalsePositiveRate);
+            if (blockCacheEnabled)
+                ioPBlockchain.setBlockCacheEnabled(true);
+            if (utxoSet != null)
+                ioPBlockchain.addUtxoSet(utxoSet);
+        }
+
+        if (!ioPBlockchain.isConnected())
+            ioPBlockchain.connect();
+
+        return ioPBlockchain;
+    }
+
+    /**
+     * Connects the current WatchOnly wallet to a blockchain connection shared with other wallets of the same network. All attached wallets
+     * use the same peers and block download, so running many wallets in the same process costs a single sync.
+     * If the shared connection is not connected yet, it is connected.
+     * @param sharedBlockchain a blockchain created with {@link IoPBlockchain#IoPBlockchain(NetworkType, File)}
+     * @return the shared IoP Blockchain object
+     * @throws IoPBlockchainException if there is an error connecting to the IoP blockchain.
+     */
+    public IoPBlockchain connect(IoPBlockchain sharedBlockchain) throws IoPBlockchainException {
+        Preconditions.checkNotNull(sharedBlockchain);
+        Preconditions.checkState(ioPBlockchain == null || ioPBlockchain == sharedBlockchain, "The wallet is already connected to another blockchain. Detach it first.");
+
+        if (ioPBlockchain == null) {
+            sharedBlockchain.addWallets(getShards(), eventNotificationManager);
+            if (utxoSet != null)
+                sharedBlockchain.addUtxoSet(utxoSet);
+            ioPBlockchain = sharedBlockchain;
+            ownBlockchain = false;
+        }
 
         if (!ioPBlockchain.isConnected())
             ioPBlockchain.connect();
@@ -338,6 +1446,136 @@ public class WatchOnlyWallet implements IoPWallet{
         return ioPBlockchain;
     }
 
+    /**
+     * Detaches this wallet from its blockchain connection. If the connection is shared, it stays up for the rest of the attached wallets.
+     * The wallet stops receiving transactions until it is connected again.
+     */
+    public void detach(){
+        if (ioPBlockchain == null)
+            return;
+
+        ioPBlockchain.removeWallets(getShards());
+        if (utxoSet != null)
+            ioPBlockchain.removeUtxoSet(utxoSet);
+        ioPBlockchain = null;
+    }
+
+    /**
+     * Closes the wallet. The connection it created is closed, or it is detached from a shared one, the pending changes are written and
+     * the threads and metrics of the wallet are released. The wallet can't be used afterwards.
+     * @throws IoWalletException if the pending changes can't be written.
+     */
+    public synchronized void close() throws IoWalletException{
+        if (ioPBlockchain != null && ownBlockchain) {
+            ioPBlockchain.close();
+            ioPBlockchain = null;
+        } else
+            detach();
+
+        if (persistenceExecutor != null) {
+            persistenceExecutor.shutdown();
+            persistenceExecutor = null;
+        }
+        stateExecutor.shutdown();
+
+        // a wallet opened from its snapshot and never loaded has nothing to write.
+        try {
+            if (shards != null)
+                flush();
+        } finally {
+            if (journals != null) {
+                for (WalletJournal journal : journals)
+                    journal.close();
+            }
+            eventNotificationManager.close();
+        }
+    }
+
+    /**
+     * Sets the false positive rate of the bloom filter sent to peers. With many watched addresses, lower rates mean bigger filters but
+     * less irrelevant transactions to download and process. If the wallet is connected, the new filter is sent to peers right away.
+     * The observed rate can be checked with {@link IoPBlockchain#getBloomFilterStats()}
+     * @param rate a value between 0 and 1.
+     */
+    public void setBloomFilterFalsePositiveRate(double rate){
+        Preconditions.checkArgument(rate > 0 && rate < 1);
+        this.bloomFilterFalsePositiveRate = rate;
+
+        if (ioPBlockchain != null)
+            ioPBlockchain.setBloomFilterFalsePositiveRate(rate);
+    }
+
+    /**
+     * Keeps a local copy of the blocks downloaded from now on, so that addresses imported after their payments were downloaded can
+     * be found with {@link #rescanFrom(Collection, int)} instead of deleting the blocks file and downloading everything again.
+     * The wallet downloads every transaction instead of filtered blocks while it is enabled. Wallets on a shared connection
+     * enable it with {@link IoPBlockchain#setBlockCacheEnabled(boolean)}
+     * @param enabled true to keep the blocks.
+     * @throws IoPBlockchainException if the cache file can't be opened.
+     */
+    public void setBlockCacheEnabled(boolean enabled) throws IoPBlockchainException{
+        this.blockCacheEnabled = enabled;
+
+        if (ioPBlockchain != null)
+            ioPBlockchain.setBlockCacheEnabled(enabled);
+    }
+
+    /**
+     * Looks for the transactions of all the watched addresses in the cached blocks from a height, see {@link #setBlockCacheEnabled(boolean)}
+     * Transactions the wallet didn't have are added as if they were received with their blocks, and their events are triggered.
+     * @param height the first height to rescan.
+     * @return the amount of transactions added to the wallet.
+     * @throws IoPBlockchainException if the cached blocks can't be read, or the blocks of the transactions can't be downloaded.
+     * @throws IoWalletException if the wallet can't be saved after the rescan.
+     */
+    public int rescanFrom(int height) throws IoPBlockchainException, IoWalletException{
+        return rescan(null, height);
+    }
+
+    /**
+     * Looks for the transactions of recently imported addresses in the cached blocks from a height, see {@link #setBlockCacheEnabled(boolean)}
+     * Only the given addresses are looked for, so rescanning a new batch is as fast as the cache can be read.
+     * @param addresses the imported addresses to rescan.
+     * @param height the first height to rescan.
+     * @return the amount of transactions added to the wallet.
+     * @throws IoPBlockchainException if the cached blocks can't be read, or the blocks of the transactions can't be downloaded.
+     * @throws IoWalletException if the wallet can't be saved after the rescan.
+     * @throws AddressFormatException if any address is not valid on the wallet network.
+     */
+    public int rescanFrom(Collection<String> addresses, int height) throws IoPBlockchainException, IoWalletException, AddressFormatException{
+        Preconditions.checkNotNull(addresses);
+        List<byte[]> hash160s = new ArrayList<>();
+        for (String address : addresses)
+            hash160s.add(getAddress(address).getHash160());
+        return rescan(hash160s, height);
+    }
+
+    private int rescan(List<byte[]> hash160s, int height) throws IoPBlockchainException, IoWalletException{
+        Preconditions.checkState(ioPBlockchain != null, "The wallet must be connected to rescan its blocks.");
+
+        int replayed = ioPBlockchain.rescanFrom(getShards(), hash160s, utxoSet, height);
+        if (replayed > 0)
+            flush();
+        return replayed;
+    }
+
+    /**
+     * Sets the amount of confirmations at which incoming transactions are credited. Listeners get each event when the transaction
+     * is seen on the network, when it is included in a block and when it reaches this depth, see {@link IncomingTransactionEvent#getStage()}
+     * The depth is not stored with the wallet, it must be set each time the wallet is opened.
+     * @param depth the amount of blocks, counting the one that included the transaction. Defaults to {@link EventNotificationManager#DEFAULT_CONFIRMATION_DEPTH}
+     */
+    public void setConfirmationDepth(int depth){
+        eventNotificationManager.setConfirmationDepth(depth);
+    }
+
+    /**
+     * @return the amount of confirmations at which incoming transactions are credited.
+     */
+    public int getConfirmationDepth(){
+        return eventNotificationManager.getConfirmationDepth();
+    }
+
     /**
      * Adds a new Listener for the Incoming Transaction Event. Listeners will be notified when a new transaction is detected on the network.
      * @param incomingTransactionListener
@@ -354,6 +1592,24 @@ public class WatchOnlyWallet implements IoPWallet{
         eventNotificationManager.removeIncomingTransactionListener(incomingTransactionListener);
     }
 
+    /**
+     * Adds a new Listener for the Incoming Transaction Events of the addresses of a group. Events of other addresses are not passed to it.
+     * @param group the name of the group.
+     * @param incomingTransactionListener the listener.
+     */
+    public void addIncomingTransactionListener(String group, IncomingTransactionListener incomingTransactionListener){
+        eventNotificationManager.addIncomingTransactionListener(group, incomingTransactionListener);
+    }
+
+    /**
+     * Removes a listener of the events of a group.
+     * @param group the name of the group.
+     * @param incomingTransactionListener the listener.
+     */
+    public void removeIncomingTransactionListener(String group, IncomingTransactionListener incomingTransactionListener){
+        eventNotificationManager.removeIncomingTransactionListener(group, incomingTransactionListener);
+    }
+
     /**
      * {@link IncomingTransactionEvent} event is triggered when a new transaction is detected that sends IoPs to any of the imported addresses on the wallet.
      * Those events must be confirmed by {@link #confirmEventReception(IncomingTransactionEvent)}. Events that have not been yet confirmed reception are returned by this method.
@@ -1,26 +1,85 @@
 package fermatOrg.wallet.event;
 
 import com.google.common.base.Preconditions;
+import fermatOrg.metrics.Gauge;
+import fermatOrg.metrics.Metrics;
+import fermatOrg.wallet.AddressGroups;
 import fermatOrg.wallet.event.IncomingTransactionEvent;
 import fermatOrg.wallet.event.IncomingTransactionListener;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Created by rodrigo on 11/7/16.
+ * Stores the incoming transaction events and notifies them to listeners until their reception is confirmed.
+ * <p>
+ *     Events are notified again on every {@link IncomingTransactionEvent.Stage} of their transaction. Unconfirmed events are kept by
+ *     transaction hash and confirmed ones by the height at which they reach the confirmation depth, so a new block only
+ *     looks at the events that are credited on it. Events in blocks are also kept by block height, so a reorganization only
+ *     looks at the events above the split point.
+ * </p>
+ * <p>
+ *     Credited, invalidated and reversed events are dropped once their listeners confirmed them and they are {@link #PRUNE_DEPTH} blocks
+ *     deep, so the file only keeps the events that can still change. The transaction and address of pruned deposits are kept in a
+ *     separate log, so the same deposit found again is not added twice.
+ * </p>
+ * <p>
+ *     Listeners of a group only get the events of the addresses of that group, found with one lookup of the event address.
+ * </p>
+ * <p>
+ *     It is safe to use from the blockchain threads, the agent thread and the application threads at once. Listeners are copy on write
+ *     lists and events a concurrent queue indexed by transaction, so notifying, listing pending events and confirming their reception
+ *     take no lock.
+ *     Only stage changes are serialized, to keep the stage indexes consistent. The file is saved and listeners are called after they
+ *     are done, so a slow disk doesn't hold back the other threads.
+ * </p>
  */
 public class EventNotificationManager {
     //class variables
-    private List<IncomingTransactionListener> listeners;
-    private List<IncomingTransactionEvent> events;
-    private EventNotificationAgent agent;
+    private volatile AddressGroups addressGroups; // the group of each address, for the group listeners.
+    private int confirmationDepth = DEFAULT_CONFIRMATION_DEPTH;
+    private int bestHeight = -1; // the height of the last best block, or -1 if we didn't get any yet.
+    private final Map<String, List<IncomingTransactionEvent>> unconfirmedEvents = new HashMap<>(); // by transaction hash.
+    private final TreeMap<Integer, List<IncomingTransactionEvent>> confirmedEvents = new TreeMap<>(); // by the height they are credited at.
+    private final TreeMap<Integer, List<IncomingTransactionEvent>> blockEvents = new TreeMap<>(); // confirmed and credited events by block height.
+    private final Map<String, List<IncomingTransactionEvent>> transactionEvents = new HashMap<>(); // valid events by transaction hash.
+    private final TreeMap<Integer, List<IncomingTransactionEvent>> settledEvents = new TreeMap<>(); // credited, invalidated and reversed events by block height.
+    private final Set<String> prunedDeposits = new HashSet<>(); // the transaction hash and address of the pruned credited events.
 
     //class constants
+    private final List<IncomingTransactionListener> listeners = new CopyOnWriteArrayList<>();
+    private final ConcurrentMap<String, List<IncomingTransactionListener>> groupListeners = new ConcurrentHashMap<>(); // the listeners of each address group.
+    private final Queue<IncomingTransactionEvent> events = new ConcurrentLinkedQueue<>(); // every event, in the order they were created.
+    private final ConcurrentMap<String, List<IncomingTransactionEvent>> eventsByTransaction = new ConcurrentHashMap<>(); // every event by transaction hash, read without lock.
+    private final AtomicInteger pendingCount = new AtomicInteger(); // the events pending notification, read by the gauge.
+    private final EventNotificationAgent agent = new EventNotificationAgent();
+    private final ReentrantLock saveLock = new ReentrantLock(); // only one thread writes the file at a time.
     private final File eventsDB; // the file that will save all events.
-    private final String eventsDBName = "events"; // the file name in which we are writting to.
-    private static int ITERATION_DELAY = 60; //defaults to 60 seconds.
+    private final File prunedDB; // the log of pruned deposits, one transaction hash and address per line.
+    private static volatile int ITERATION_DELAY = 60; //defaults to 60 seconds.
+    public static final int DEFAULT_CONFIRMATION_DEPTH = 6;
+    public static final int PRUNE_DEPTH = 100; // the deepest reorganization we handle, settled events below it never change again.
 
 
     /**
@@ -36,32 +95,65 @@ public class EventNotificationManager {
      * default constructor
      */
     public EventNotificationManager() {
-        this.eventsDB = new File(eventsDBName);
+        this(new File("events"));
+    }
 
-        //initialize objects
-        this.events = new ArrayList<>();
+    /**
+     * constructor with the file in which events are stored. Each wallet uses its own file, so many wallets can run in the same process.
+     * @param eventsDB the file that will save all events.
+     */
+    public EventNotificationManager(File eventsDB) {
+        Preconditions.checkNotNull(eventsDB);
+        this.eventsDB = eventsDB;
+        this.prunedDB = new File(eventsDB.getPath() + ".pruned");
 
         // stats the monitoring agent on a new thread if the file exists.
-        agent = new EventNotificationAgent(ITERATION_DELAY);
         startMonitoring();
+
+        // the backlog of events waiting for the confirmation of the listeners.
+        Metrics.getRegistry().register(Metrics.getGaugeName(Metrics.PENDING_EVENTS, eventsDB), new Gauge() {
+            @Override
+            public long getValue() {
+                return pendingCount.get();
+            }
+        });
+    }
+
+    /**
+     * Removes the metrics of this manager and stops the agent. Events are not notified after the manager is closed.
+     */
+    public void close() {
+        agent.stop();
+        Metrics.getRegistry().unregister(Metrics.getGaugeName(Metrics.PENDING_EVENTS, eventsDB));
     }
 
     /**
-     * Starts the agent monitoring on a new thread if the file already exists.
-     * The file exists only after an event has been saved.
+     * Loads the events and starts the agent monitoring on a new thread if the file already exists.
+     * The file exists only after an event has been saved, the agent is started then.
      */
-    private void startMonitoring() {
+    private synchronized void startMonitoring() {
         if (!eventsDB.exists())
             return;
 
         // will make the initial load of events from disk.
+        List<IncomingTransactionEvent> loaded = null;
         try {
-            events = loadEvents();
+            loaded = loadEvents();
         } catch (IOException e) {
             e.printStackTrace();
         }
-        Thread agentThread = new Thread(agent);
-        agentThread.start();
+        if (loaded != null) {
+            for (IncomingTransactionEvent event : loaded){
+                addEvent(event);
+                trackStage(event);
+            }
+        }
+        try {
+            loadPrunedDeposits();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        agent.start();
     }
 
     /**
@@ -69,26 +161,60 @@ public class EventNotificationManager {
      * @param newListener the new listener to add
      */
     public void addIncomingTransactionListener(IncomingTransactionListener newListener){
-        if (listeners == null)
-            listeners = new ArrayList<>();
-
+        Preconditions.checkNotNull(newListener);
         listeners.add(newListener);
     }
 
 
     /**
-     * Removes an existing listener. Removed listener won't be notified of new or pending events.
+     * Adds a new listener of the events of the addresses of a group. Events of other addresses are never passed to it.
+     * @param group the name of the group.
+     * @param newListener the new listener to add
+     */
+    public void addIncomingTransactionListener(String group, IncomingTransactionListener newListener){
+        Preconditions.checkNotNull(group);
+        Preconditions.checkNotNull(newListener);
+
+        List<IncomingTransactionListener> listenersOfGroup = groupListeners.get(group);
+        if (listenersOfGroup == null) {
+            List<IncomingTransactionListener> created = new CopyOnWriteArrayList<>();
+            listenersOfGroup = groupListeners.putIfAbsent(group, created);
+            if (listenersOfGroup == null)
+                listenersOfGroup = created;
+        }
+        listenersOfGroup.add(newListener);
+    }
+
+    /**
+     * Removes an existing listener of a group.
+     * @param group the name of the group.
      * @param listener the listener to remove
      */
-    public void removeIncomingTransactionListener(IncomingTransactionListener listener){
+    public void removeIncomingTransactionListener(String group, IncomingTransactionListener listener){
+        Preconditions.checkNotNull(group);
         Preconditions.checkNotNull(listener);
 
-        if (listeners == null)
-            listeners = new ArrayList<>();
+        // the list of the group stays, removing it could lose a listener added at the same time.
+        List<IncomingTransactionListener> listenersOfGroup = groupListeners.get(group);
+        if (listenersOfGroup != null)
+            listenersOfGroup.remove(listener);
+    }
 
+    /**
+     * Sets the groups of the addresses, used to pass the events to the listeners of each group.
+     * @param addressGroups the group of each address.
+     */
+    public void setAddressGroups(AddressGroups addressGroups){
+        this.addressGroups = addressGroups;
+    }
 
+    /**
+     * Removes an existing listener. Removed listener won't be notified of new or pending events.
+     * @param listener the listener to remove
+     */
+    public void removeIncomingTransactionListener(IncomingTransactionListener listener){
+        Preconditions.checkNotNull(listener);
         listeners.remove(listener);
-
     }
 
     /**
@@ -97,11 +223,446 @@ public class EventNotificationManager {
      * @throws IOException
      */
     public void addNewEvent(IncomingTransactionEvent event) throws IOException {
-        this.events.add(event);
-        saveEvents();
+        List<IncomingTransactionEvent> changed = new ArrayList<>();
+        synchronized (this) {
+            addEvent(event);
+            trackStage(event);
+            changed.add(event);
+
+            // a transaction that arrives already deep in the chain is credited right away.
+            creditEvents(changed);
+        }
+        saveStageChange(changed);
 
         //once added, let's notify it
-        triggerEvent(event);
+        notifyStageChange(changed);
+    }
+
+    /**
+     * Adds a new event unless its transaction already has a valid event for the same address, acknowledged or not. The check and the
+     * addition are done at once, so the same transaction arriving on many threads, or again after its event was confirmed or pruned, adds one event.
+     * @param event the event to add.
+     * @return true if the event was added.
+     * @throws IOException if the events can't be saved.
+     */
+    public boolean addEventIfAbsent(IncomingTransactionEvent event) throws IOException {
+        Preconditions.checkNotNull(event);
+
+        List<IncomingTransactionEvent> changed = new ArrayList<>();
+        synchronized (this) {
+            if (prunedDeposits.contains(getDepositKey(event)))
+                return false;
+
+            List<IncomingTransactionEvent> valid = transactionEvents.get(event.getTransactionHash());
+            if (valid != null) {
+                for (IncomingTransactionEvent existing : valid){
+                    if (existing.getAddress().equals(event.getAddress()))
+                        return false;
+                }
+            }
+
+            addEvent(event);
+            trackStage(event);
+            changed.add(event);
+            creditEvents(changed);
+        }
+        saveStageChange(changed);
+        notifyStageChange(changed);
+        return true;
+    }
+
+    /**
+     * Sets the amount of confirmations at which events move to {@link IncomingTransactionEvent.Stage#CREDITED}
+     * @param depth the amount of blocks, counting the one that included the transaction. Defaults to {@link #DEFAULT_CONFIRMATION_DEPTH}
+     */
+    public void setConfirmationDepth(int depth) {
+        Preconditions.checkArgument(depth > 0);
+
+        List<IncomingTransactionEvent> changed = new ArrayList<>();
+        try {
+            synchronized (this) {
+                this.confirmationDepth = depth;
+
+                // confirmed events are indexed by the height they are credited at, which depends on the depth.
+                List<IncomingTransactionEvent> confirmed = new ArrayList<>();
+                for (List<IncomingTransactionEvent> heightEvents : confirmedEvents.values())
+                    confirmed.addAll(heightEvents);
+                confirmedEvents.clear();
+                for (IncomingTransactionEvent event : confirmed)
+                    getEventList(confirmedEvents, event.getHeight() + confirmationDepth - 1).add(event);
+
+                creditEvents(changed);
+            }
+            saveStageChange(changed);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        notifyStageChange(changed);
+    }
+
+    /**
+     * @return the amount of confirmations at which events are credited.
+     */
+    public synchronized int getConfirmationDepth() {
+        return confirmationDepth;
+    }
+
+    /**
+     * @return true if there are events of transactions that are not in a block yet.
+     */
+    public synchronized boolean hasUnconfirmedEvents() {
+        return !unconfirmedEvents.isEmpty();
+    }
+
+    /**
+     * Moves the events of an unconfirmed transaction to {@link IncomingTransactionEvent.Stage#CONFIRMED} and notifies them.
+     * Transactions with no unconfirmed events are ignored.
+     * @param transactionHash the hash of the transaction included in a block.
+     * @param height the height of the block.
+     * @throws IOException if the events can't be saved.
+     */
+    public void transactionConfirmed(String transactionHash, int height) throws IOException {
+        List<IncomingTransactionEvent> changed = new ArrayList<>();
+        synchronized (this) {
+            List<IncomingTransactionEvent> confirmed = unconfirmedEvents.remove(transactionHash);
+            if (confirmed == null)
+                return;
+
+            for (IncomingTransactionEvent event : confirmed){
+                untrackStage(event);
+                changeStage(event, IncomingTransactionEvent.Stage.CONFIRMED, height, 1);
+                trackStage(event);
+                changed.add(event);
+            }
+            creditEvents(changed);
+        }
+        saveStageChange(changed);
+        notifyStageChange(changed);
+    }
+
+    /**
+     * The transactions with events in blocks above the given height, which may have changed with a reorganization.
+     * @param height the height of the split point of the reorganization.
+     * @return the transaction hashes.
+     */
+    public synchronized Set<String> getTransactionsAbove(int height) {
+        Set<String> transactions = new LinkedHashSet<>();
+        for (List<IncomingTransactionEvent> heightEvents : blockEvents.tailMap(height, false).values()){
+            for (IncomingTransactionEvent event : heightEvents)
+                transactions.add(event.getTransactionHash());
+        }
+        return transactions;
+    }
+
+    /**
+     * Reverses the events of a transaction whose block is no longer in the best chain, and creates new events at its current stage.
+     * Nothing changes if the transaction is still at the same height.
+     * @param transactionHash the hash of the transaction.
+     * @param height the height of the block that includes the transaction now, or -1 if it is unconfirmed again.
+     * @throws IOException if the events can't be saved.
+     */
+    public void transactionReorganized(String transactionHash, int height) throws IOException {
+        List<IncomingTransactionEvent> notified = new ArrayList<>();
+        synchronized (this) {
+            List<IncomingTransactionEvent> valid = transactionEvents.get(transactionHash);
+            if (valid == null)
+                return;
+
+            boolean changed = false;
+            for (IncomingTransactionEvent event : valid){
+                boolean unconfirmed = event.getStage() == IncomingTransactionEvent.Stage.UNCONFIRMED;
+                if (height < 0 ? !unconfirmed : (unconfirmed || event.getHeight() != height))
+                    changed = true;
+            }
+            if (!changed)
+                return;
+
+            for (IncomingTransactionEvent event : new ArrayList<>(valid)){
+                notified.add(reverseEvent(event));
+
+                // the deposit starts again at the stage of its transaction in the new chain.
+                IncomingTransactionEvent replacement = new IncomingTransactionEvent(this, event.getAddress(), event.getNetworkType(),
+                        event.getValue(), transactionHash, height);
+                addEvent(replacement);
+                trackStage(replacement);
+                notified.add(replacement);
+            }
+            creditEvents(notified);
+        }
+        saveStageChange(notified);
+        notifyStageChange(notified);
+    }
+
+    /**
+     * Reverses the events of a transaction that was double spent.
+     * @param transactionHash the hash of the dead transaction.
+     * @throws IOException if the events can't be saved.
+     */
+    public void transactionDead(String transactionHash) throws IOException {
+        List<IncomingTransactionEvent> reversals = new ArrayList<>();
+        synchronized (this) {
+            List<IncomingTransactionEvent> valid = transactionEvents.get(transactionHash);
+            if (valid == null)
+                return;
+
+            for (IncomingTransactionEvent event : new ArrayList<>(valid))
+                reversals.add(reverseEvent(event));
+        }
+        saveStageChange(reversals);
+        notifyStageChange(reversals);
+    }
+
+    /**
+     * invalidates the event, so it is not notified anymore, and creates the event that compensates it.
+     */
+    private IncomingTransactionEvent reverseEvent(IncomingTransactionEvent event) {
+        untrackStage(event);
+        IncomingTransactionEvent reversal = new IncomingTransactionEvent(this, event);
+        event.setStage(IncomingTransactionEvent.Stage.INVALIDATED, event.getHeight(), event.getConfirmations());
+        setStatus(event, IncomingTransactionEvent.Status.NOTIFICATION_COMPLETED);
+        trackStage(event);
+        addEvent(reversal);
+        trackStage(reversal);
+        return reversal;
+    }
+
+    /**
+     * adds the event to the list of events, counting it if it is pending notification.
+     */
+    private void addEvent(IncomingTransactionEvent event) {
+        events.add(event);
+        String key = getTransactionKey(event.getTransactionHash());
+        List<IncomingTransactionEvent> transactionList = eventsByTransaction.get(key);
+        if (transactionList == null) {
+            transactionList = new CopyOnWriteArrayList<>();
+            eventsByTransaction.put(key, transactionList);
+        }
+        transactionList.add(event);
+        if (event.getStatus() == IncomingTransactionEvent.Status.PENDING_NOTIFICATION)
+            pendingCount.incrementAndGet();
+    }
+
+    /**
+     * changes the status of a stored event and the count of pending events. Confirmations take no lock, so the event is the lock.
+     */
+    private void setStatus(IncomingTransactionEvent event, IncomingTransactionEvent.Status status) {
+        synchronized (event) {
+            if (event.getStatus() == status)
+                return;
+            event.setStatus(status);
+        }
+        pendingCount.addAndGet(status == IncomingTransactionEvent.Status.PENDING_NOTIFICATION ? 1 : -1);
+    }
+
+    /**
+     * Removes every event of the addresses, notified or not, and saves the events once. Used when the addresses are no longer watched.
+     * @param addresses the base58 addresses.
+     * @return the amount of events removed.
+     * @throws IOException if the events can't be saved.
+     */
+    public int removeEvents(Set<String> addresses) throws IOException {
+        Preconditions.checkNotNull(addresses);
+
+        int removed = 0;
+        boolean removedDeposits = false;
+        synchronized (this) {
+            // the deposits of an address watched again are new to it.
+            Iterator<String> deposits = prunedDeposits.iterator();
+            while (deposits.hasNext()){
+                String deposit = deposits.next();
+                if (addresses.contains(deposit.substring(deposit.indexOf('\t') + 1))) {
+                    deposits.remove();
+                    removedDeposits = true;
+                }
+            }
+
+            Iterator<IncomingTransactionEvent> iterator = events.iterator();
+            while (iterator.hasNext()){
+                IncomingTransactionEvent event = iterator.next();
+                if (addresses.contains(event.getAddress())) {
+                    untrackStage(event);
+                    iterator.remove();
+                    removeEvent(eventsByTransaction, getTransactionKey(event.getTransactionHash()), event);
+                    if (event.getStatus() == IncomingTransactionEvent.Status.PENDING_NOTIFICATION)
+                        pendingCount.decrementAndGet();
+                    removed++;
+                }
+            }
+        }
+
+        if (removedDeposits)
+            savePrunedDeposits();
+        if (removed > 0)
+            saveEvents();
+        return removed;
+    }
+
+    /**
+     * Credits the confirmed events that reach the confirmation depth with this block, and prunes the settled events that are deep enough.
+     * @param height the height of the new best block.
+     * @throws IOException if the events can't be saved.
+     */
+    public void newBestBlock(int height) throws IOException {
+        List<IncomingTransactionEvent> credited = new ArrayList<>();
+        List<IncomingTransactionEvent> pruned;
+        synchronized (this) {
+            this.bestHeight = height;
+            creditEvents(credited);
+            pruned = pruneEvents();
+        }
+
+        // the deposits are logged before the events are saved without them, so a crash in between doesn't lose them.
+        if (!pruned.isEmpty()) {
+            appendPrunedDeposits(pruned);
+            if (credited.isEmpty())
+                saveEvents();
+        }
+        saveStageChange(credited);
+        notifyStageChange(credited);
+    }
+
+    /**
+     * removes the settled events whose reception was confirmed and that no reorganization we handle can reach.
+     * @return the pruned events.
+     */
+    private List<IncomingTransactionEvent> pruneEvents() {
+        List<IncomingTransactionEvent> pruned = new ArrayList<>();
+        if (bestHeight < PRUNE_DEPTH)
+            return pruned;
+
+        // events of transactions that never got in a block have height -1 and are pruned as well.
+        for (List<IncomingTransactionEvent> heightEvents : settledEvents.headMap(bestHeight - PRUNE_DEPTH, false).values()){
+            for (IncomingTransactionEvent event : heightEvents){
+                if (event.getStatus() == IncomingTransactionEvent.Status.NOTIFICATION_COMPLETED)
+                    pruned.add(event);
+            }
+        }
+        if (pruned.isEmpty())
+            return pruned;
+
+        Set<IncomingTransactionEvent> prunedSet = Collections.newSetFromMap(new IdentityHashMap<IncomingTransactionEvent, Boolean>());
+        for (IncomingTransactionEvent event : pruned){
+            untrackStage(event);
+            removeEvent(eventsByTransaction, getTransactionKey(event.getTransactionHash()), event);
+            if (event.getStage() == IncomingTransactionEvent.Stage.CREDITED)
+                prunedDeposits.add(getDepositKey(event));
+            prunedSet.add(event);
+        }
+        events.removeAll(prunedSet);
+        return pruned;
+    }
+
+    /**
+     * indexes an event by its stage, so it is found when its transaction is confirmed or when it reaches the confirmation depth.
+     */
+    private void trackStage(IncomingTransactionEvent event) {
+        IncomingTransactionEvent.Stage stage = event.getStage();
+        if (stage == IncomingTransactionEvent.Stage.INVALIDATED || stage == IncomingTransactionEvent.Stage.REVERSED) {
+            getEventList(settledEvents, event.getHeight()).add(event);
+            return;
+        }
+
+        getEventList(transactionEvents, event.getTransactionHash()).add(event);
+        if (stage == IncomingTransactionEvent.Stage.UNCONFIRMED) {
+            getEventList(unconfirmedEvents, event.getTransactionHash()).add(event);
+            return;
+        }
+
+        // events stored before stages existed don't know their block.
+        if (event.getHeight() >= 0)
+            getEventList(blockEvents, event.getHeight()).add(event);
+        if (stage == IncomingTransactionEvent.Stage.CONFIRMED)
+            getEventList(confirmedEvents, event.getHeight() + confirmationDepth - 1).add(event);
+        if (stage == IncomingTransactionEvent.Stage.CREDITED)
+            getEventList(settledEvents, event.getHeight()).add(event);
+    }
+
+    /**
+     * removes the event from every index before it changes stage.
+     */
+    private void untrackStage(IncomingTransactionEvent event) {
+        removeEvent(transactionEvents, event.getTransactionHash(), event);
+        removeEvent(unconfirmedEvents, event.getTransactionHash(), event);
+        removeEvent(blockEvents, event.getHeight(), event);
+        removeEvent(confirmedEvents, event.getHeight() + confirmationDepth - 1, event);
+        removeEvent(settledEvents, event.getHeight(), event);
+    }
+
+    private static <K> void removeEvent(Map<K, List<IncomingTransactionEvent>> index, K key, IncomingTransactionEvent event) {
+        List<IncomingTransactionEvent> list = index.get(key);
+        if (list == null)
+            return;
+
+        // the same event, not an equal one.
+        for (int i = 0; i < list.size(); i++){
+            if (list.get(i) == event) {
+                list.remove(i);
+                break;
+            }
+        }
+        if (list.isEmpty())
+            index.remove(key);
+    }
+
+    private static <K> List<IncomingTransactionEvent> getEventList(Map<K, List<IncomingTransactionEvent>> index, K key) {
+        List<IncomingTransactionEvent> list = index.get(key);
+        if (list == null) {
+            list = new ArrayList<>();
+            index.put(key, list);
+        }
+        return list;
+    }
+
+    /**
+     * moves the confirmed events that are deep enough to the credited stage.
+     * @param credited the list that gets the credited events, to notify them.
+     */
+    private void creditEvents(List<IncomingTransactionEvent> credited) {
+        if (bestHeight < 0)
+            return;
+
+        SortedMap<Integer, List<IncomingTransactionEvent>> due = confirmedEvents.headMap(bestHeight, true);
+        if (due.isEmpty())
+            return;
+
+        for (List<IncomingTransactionEvent> heightEvents : due.values()){
+            for (IncomingTransactionEvent event : heightEvents){
+                changeStage(event, IncomingTransactionEvent.Stage.CREDITED, event.getHeight(), bestHeight - event.getHeight() + 1);
+                getEventList(settledEvents, event.getHeight()).add(event);
+                credited.add(event);
+            }
+        }
+        due.clear();
+    }
+
+    /**
+     * the event is pending notification again, until the listeners confirm they got the new stage.
+     */
+    private void changeStage(IncomingTransactionEvent event, IncomingTransactionEvent.Stage stage, int height, int confirmations) {
+        event.setStage(stage, height, confirmations);
+        setStatus(event, IncomingTransactionEvent.Status.PENDING_NOTIFICATION);
+    }
+
+    /**
+     * saves the events once if any changed stage, before they are notified. Called without holding the lock of the stages, the events
+     * are copied inside the lock of the file, so the last one to save writes the newest stages.
+     */
+    private void saveStageChange(List<IncomingTransactionEvent> changed) throws IOException {
+        if (changed.isEmpty())
+            return;
+
+        long start = System.nanoTime();
+        saveEvents();
+        Metrics.recordTime(Metrics.EVENT_PERSISTENCE_TIME, start);
+    }
+
+    /**
+     * notifies the events that changed stage. Called without holding the lock of the stages, so slow listeners don't hold back
+     * the blockchain threads.
+     */
+    private void notifyStageChange(List<IncomingTransactionEvent> changed) {
+        for (IncomingTransactionEvent event : changed)
+            triggerEvent(event);
     }
 
     /**
@@ -109,25 +670,98 @@ public class EventNotificationManager {
      * @throws IOException an IO error during save
      */
     private void saveEvents() throws IOException {
-        ObjectOutputStream oos = null;
-        FileOutputStream fout = null;
-        try{
-            fout = new FileOutputStream(eventsDB);
-            oos = new ObjectOutputStream(fout);
-            oos.writeObject(events);
-        } catch (Exception ex) {
-            ex.printStackTrace();
-        } finally {
-            if(oos  != null){
+        saveLock.lock();
+        try {
+            // we write to a temporary file first so that a crash while saving doesn't lose the events.
+            File tempFile = new File(eventsDB.getPath() + ".tmp");
+            ObjectOutputStream oos = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            try {
+                oos.writeObject(new ArrayList<>(events));
+            } finally {
                 oos.close();
             }
+
+            if (!tempFile.renameTo(eventsDB)) {
+                eventsDB.delete();
+                if (!tempFile.renameTo(eventsDB))
+                    throw new IOException("Unable to replace events file " + eventsDB.toString());
+            }
+        } finally {
+            saveLock.unlock();
         }
 
-        /**
-         * In case this is the first save, will start the agent if it is not running
-         */
-        if (!agent.isRunning)
-            startMonitoring();
+        // in case this is the first save, the agent starts with the events we have. A closed manager doesn't start it again.
+        agent.start();
+    }
+
+    /**
+     * adds the pruned deposits to the end of their log, the file is never written again but when addresses are removed.
+     */
+    private void appendPrunedDeposits(List<IncomingTransactionEvent> pruned) throws IOException {
+        saveLock.lock();
+        try {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(prunedDB, true), "UTF-8"));
+            try {
+                for (IncomingTransactionEvent event : pruned){
+                    if (event.getStage() == IncomingTransactionEvent.Stage.CREDITED)
+                        writer.write(getDepositKey(event) + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * writes the log of pruned deposits again with the deposits we still have.
+     */
+    private void savePrunedDeposits() throws IOException {
+        saveLock.lock();
+        try {
+            // copied inside the lock of the file, so a deposit pruned meanwhile is written by one of the two.
+            List<String> deposits;
+            synchronized (this) {
+                deposits = new ArrayList<>(prunedDeposits);
+            }
+
+            File tempFile = new File(prunedDB.getPath() + ".tmp");
+            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8"));
+            try {
+                for (String deposit : deposits)
+                    writer.write(deposit + "\n");
+            } finally {
+                writer.close();
+            }
+
+            if (!tempFile.renameTo(prunedDB)) {
+                prunedDB.delete();
+                if (!tempFile.renameTo(prunedDB))
+                    throw new IOException("Unable to replace pruned deposits file " + prunedDB.toString());
+            }
+        } finally {
+            saveLock.unlock();
+        }
+    }
+
+    /**
+     * reads the log of pruned deposits. A line torn by a crash doesn't match any deposit.
+     */
+    private void loadPrunedDeposits() throws IOException {
+        if (!prunedDB.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(prunedDB), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null){
+                if (line.indexOf('\t') >= 0)
+                    prunedDeposits.add(line);
+            }
+        } finally {
+            reader.close();
+        }
     }
 
     /**
@@ -135,14 +769,32 @@ public class EventNotificationManager {
      * @param event the event to notify
      */
     private void triggerEvent(IncomingTransactionEvent event){
-        // no listeners registered, don't neet to trigger
-        if (listeners == null)
-            return;
-
+        for (IncomingTransactionListener listener : listeners)
+            dispatch(listener, event);
+
+        // only the listeners of the group of the address.
+        AddressGroups groups = addressGroups;
+        if (groups != null && !groupListeners.isEmpty()) {
+            String group = groups.getGroup(event.getAddress());
+            List<IncomingTransactionListener> listenersOfGroup = group == null ? null : groupListeners.get(group);
+            if (listenersOfGroup != null) {
+                for (IncomingTransactionListener listener : listenersOfGroup)
+                    dispatch(listener, event);
+            }
+        }
+    }
 
-        for (IncomingTransactionListener listener : listeners){
+    /**
+     * a failing listener doesn't keep the others from getting the event.
+     */
+    private void dispatch(IncomingTransactionListener listener, IncomingTransactionEvent event){
+        long start = System.nanoTime();
+        try {
             listener.incomingEvent(event);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
         }
+        Metrics.recordTime(Metrics.LISTENER_DISPATCH_TIME, start);
     }
 
     /**
@@ -188,17 +840,92 @@ public class EventNotificationManager {
      * @param event the event to mark as notified.
      */
     public void confirmEventNotification(IncomingTransactionEvent event){
-        if (this.events.contains(event)){
-            events.remove(event);
-            event.setStatus(IncomingTransactionEvent.Status.NOTIFICATION_COMPLETED);
-            events.add(event);
-            try {
-                this.saveEvents();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        confirmEventNotifications(Collections.singletonList(event));
+    }
+
+    /**
+     * marks many events as notified and saves the events once, for listeners that consume events in batches.
+     * @param confirmed the events to mark as notified.
+     */
+    public void confirmEventNotifications(Collection<IncomingTransactionEvent> confirmed){
+        Preconditions.checkNotNull(confirmed);
+
+        boolean found = false;
+        for (IncomingTransactionEvent event : confirmed){
+            IncomingTransactionEvent stored = findEvent(event);
+            if (stored == null)
+                continue;
+
+            setStatus(stored, IncomingTransactionEvent.Status.NOTIFICATION_COMPLETED);
+            if (stored != event)
+                event.setStatus(IncomingTransactionEvent.Status.NOTIFICATION_COMPLETED);
+            found = true;
         }
+        if (!found)
+            return;
+
+        try {
+            this.saveEvents();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Finds a pending event by what tells it apart from the other events of its transaction, with one lookup of the transaction.
+     * Used by clients that only keep those fields, to confirm the reception with {@link #confirmEventNotification(IncomingTransactionEvent)}
+     * @param transactionHash the hash of the transaction of the event.
+     * @param address the base58 address of the event.
+     * @param stage the stage of the event.
+     * @param height the height of the event, -1 if it is unconfirmed.
+     * @return the pending event, or null if there is none.
+     */
+    public IncomingTransactionEvent getPendingEvent(String transactionHash, String address, IncomingTransactionEvent.Stage stage, int height){
+        Preconditions.checkNotNull(address);
+        Preconditions.checkNotNull(stage);
+
+        List<IncomingTransactionEvent> transactionList = eventsByTransaction.get(getTransactionKey(transactionHash));
+        if (transactionList == null)
+            return null;
+
+        for (IncomingTransactionEvent stored : transactionList){
+            if (stored.getStatus() == IncomingTransactionEvent.Status.PENDING_NOTIFICATION && stored.getAddress().equals(address)
+                    && stored.getStage() == stage && stored.getHeight() == height)
+                return stored;
+        }
+        return null;
+    }
+
+    /**
+     * the stored instance of the event, which is the one notified unless the caller deserialized it again.
+     */
+    private IncomingTransactionEvent findEvent(IncomingTransactionEvent event){
+        List<IncomingTransactionEvent> transactionList = eventsByTransaction.get(getTransactionKey(event.getTransactionHash()));
+        if (transactionList == null)
+            return null;
+
+        IncomingTransactionEvent equal = null;
+        for (IncomingTransactionEvent stored : transactionList){
+            if (stored == event)
+                return stored;
+            if (equal == null && stored.equals(event))
+                equal = stored;
+        }
+        return equal;
+    }
+
+    /**
+     * events stored before transaction hashes were kept have none, the concurrent index doesn't take null keys.
+     */
+    private static String getTransactionKey(String transactionHash){
+        return transactionHash == null ? "" : transactionHash;
+    }
 
+    /**
+     * the deposit of an event, as it is kept in the log of pruned deposits.
+     */
+    private static String getDepositKey(IncomingTransactionEvent event){
+        return getTransactionKey(event.getTransactionHash()) + "\t" + event.getAddress();
     }
 
     /**
@@ -206,32 +933,49 @@ public class EventNotificationManager {
      * new notification to registered listeners.
      */
     private class EventNotificationAgent implements Runnable{
-        private final int seconds;
-        private boolean isRunning;
+        private final AtomicBoolean running = new AtomicBoolean(false);
+        private volatile boolean stopped = false; // set once the manager is closed, the agent never starts again.
+        private Thread agentThread;
 
         /**
-         * constructor
-         * @param seconds the time in seconds to iterate the pending notification events.
+         * starts the agent on a new thread, unless it is already running or was stopped.
          */
-        public EventNotificationAgent(int seconds) {
-            this.seconds = seconds;
-            this.isRunning = false;
+        synchronized void start() {
+            if (stopped || !running.compareAndSet(false, true))
+                return;
+
+            agentThread = new Thread(this, "IoP event notification agent");
+            agentThread.setDaemon(true);
+            agentThread.start();
+        }
+
+        /**
+         * stops the agent for good, interrupting its thread if it is waiting for the next iteration.
+         */
+        synchronized void stop() {
+            stopped = true;
+            running.set(false);
+            if (agentThread != null)
+                agentThread.interrupt();
         }
 
         @Override
         public void run() {
-            // sets the running flag
-            isRunning = true;
-
-            // for each listener, I raise the event.
-            for (IncomingTransactionEvent pendingEvent : getPendingNotificationEvents())
-                triggerEvent(pendingEvent);
-
-            try {
-                Thread.sleep(seconds * 1000);
-            } catch (InterruptedException e) {
-                isRunning = false;
-                e.printStackTrace();
+            while (running.get() && !stopped) {
+                // the count also corrects events whose status was set on the event itself instead of with confirmEventNotification.
+                List<IncomingTransactionEvent> pendingEvents = getPendingNotificationEvents();
+                pendingCount.set(pendingEvents.size());
+
+                // for each listener, I raise the event.
+                for (IncomingTransactionEvent pendingEvent : pendingEvents)
+                    triggerEvent(pendingEvent);
+
+                try {
+                    Thread.sleep(ITERATION_DELAY * 1000L);
+                } catch (InterruptedException e) {
+                    running.set(false);
+                    return;
+                }
             }
         }
 
@@ -240,7 +984,7 @@ public class EventNotificationManager {
          * @return true if running. False otherwise.
          */
         public boolean isRunning() {
-            return isRunning;
+            return running.get();
         }
     }
 }
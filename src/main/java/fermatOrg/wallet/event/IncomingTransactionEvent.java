@@ -2,15 +2,30 @@ package fermatOrg.wallet.event;
 
 import fermatOrg.network.NetworkType;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.EventObject;
+import java.util.Objects;
 
 /**
  * Created by rodrigo on 11/3/16.
+ * An incoming transaction to a watched address. The event is notified again on each {@link Stage} the transaction goes through:
+ * when it is first seen, when it is included in a block and when it reaches the confirmation depth of the wallet.
+ * If the block is reorganized away or the transaction is double spent, the event is invalidated and a {@link Stage#REVERSED}
+ * event is notified in its place.
  */
 public class IncomingTransactionEvent extends EventObject implements Serializable{
-    //class variables
-    private Status status;
+    // events stored before stages were added are still loaded.
+    private static final long serialVersionUID = 5586527330293189644L;
+
+    //class variables, read by the listeners while the event manager changes them.
+    private volatile Status status;
+    private volatile Stage stage;
+    private volatile int height; // the height of the block that included the transaction, or -1 if it is not confirmed yet.
+    private volatile int confirmations;
+    private volatile Stage reversedStage; // the stage the reversed event had reached, only for reversal events.
 
     //class constants
     private final String address;
@@ -23,7 +38,29 @@ public class IncomingTransactionEvent extends EventObject implements Serializabl
         PENDING_NOTIFICATION, NOTIFICATION_COMPLETED
     }
 
+    /**
+     * The confirmation stages of the transaction. Each one is notified once.
+     */
+    public enum Stage{
+        UNCONFIRMED, // seen on the network, not included in a block yet.
+        CONFIRMED, // included in a block, but not as deep as the confirmation depth.
+        CREDITED, // reached the confirmation depth, it is safe to credit the deposit.
+        INVALIDATED, // the block was reorganized away or the transaction double spent. The event is not notified anymore.
+        REVERSED // compensates an invalidated event, whatever was done with it must be undone.
+    }
+
+    /**
+     * Creates an event of an unconfirmed transaction.
+     */
     public IncomingTransactionEvent(Object source, String address, NetworkType networkType, long value, String transactionHash) {
+        this(source, address, networkType, value, transactionHash, -1);
+    }
+
+    /**
+     * Creates an event of a transaction that may already be included in a block.
+     * @param height the height of the block that included the transaction, or -1 if it is not confirmed yet.
+     */
+    public IncomingTransactionEvent(Object source, String address, NetworkType networkType, long value, String transactionHash, int height) {
         super(source);
 
         this.address = address;
@@ -31,6 +68,27 @@ public class IncomingTransactionEvent extends EventObject implements Serializabl
         this.value = value;
         this.transactionHash = transactionHash;
         this.status = Status.PENDING_NOTIFICATION;
+        this.stage = height < 0 ? Stage.UNCONFIRMED : Stage.CONFIRMED;
+        this.height = height < 0 ? -1 : height;
+        this.confirmations = height < 0 ? 0 : 1;
+    }
+
+    /**
+     * Creates the event that compensates an invalidated one, with its address, value and transaction.
+     * @param reversed the invalidated event.
+     */
+    IncomingTransactionEvent(Object source, IncomingTransactionEvent reversed) {
+        super(source);
+
+        this.address = reversed.getAddress();
+        this.networkType = reversed.getNetworkType();
+        this.value = reversed.getValue();
+        this.transactionHash = reversed.getTransactionHash();
+        this.status = Status.PENDING_NOTIFICATION;
+        this.stage = Stage.REVERSED;
+        this.height = reversed.getHeight();
+        this.confirmations = reversed.getConfirmations();
+        this.reversedStage = reversed.getStage();
     }
 
     /**
@@ -74,6 +132,48 @@ public class IncomingTransactionEvent extends EventObject implements Serializabl
     }
 
 
+    /**
+     * The confirmation stage of the transaction when the event was notified.
+     * @return the current stage.
+     */
+    public Stage getStage() {
+        return stage;
+    }
+
+    /**
+     * The height of the block that included the transaction.
+     * @return the block height, or -1 if the transaction is unconfirmed or the event was stored before stages existed.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * The amount of confirmations the transaction had when the stage changed. It is not updated on every block, only
+     * when the transaction is confirmed and when it reaches the confirmation depth.
+     * @return 0 if unconfirmed, 1 when confirmed and the confirmation depth once credited.
+     */
+    public int getConfirmations() {
+        return confirmations;
+    }
+
+    /**
+     * The stage a {@link Stage#REVERSED} event compensates, so that consumers know if the deposit was already credited.
+     * @return the stage of the invalidated event, or null if this is not a reversal.
+     */
+    public Stage getReversedStage() {
+        return reversedStage;
+    }
+
+    /**
+     * Moves the event to a new stage. The event manager notifies it again.
+     */
+    synchronized void setStage(Stage stage, int height, int confirmations) {
+        this.stage = stage;
+        this.height = height;
+        this.confirmations = confirmations;
+    }
+
     /**
      * The transaction hash on which this event was detected-
      * @return a string representing the transaction hash
@@ -86,6 +186,7 @@ public class IncomingTransactionEvent extends EventObject implements Serializabl
     public int hashCode() {
         int hash = 3;
         hash = 53 * hash + this.getAddress().hashCode();
+        hash = 53 * hash + (this.getTransactionHash() == null ? 0 : this.getTransactionHash().hashCode());
         return hash;
     }
 
@@ -97,11 +198,32 @@ public class IncomingTransactionEvent extends EventObject implements Serializabl
         if (!IncomingTransactionEvent.class.isAssignableFrom(obj.getClass()))
             return false;
 
+        // the status is left out, it changes when the reception is confirmed.
         final IncomingTransactionEvent other = (IncomingTransactionEvent) obj;
-        if (this.getStatus() == other.getStatus() && this.getValue() == other.getValue() && this.getAddress() == other.getAddress() && this.getTransactionHash() == other.getTransactionHash())
+        if (this.getValue() == other.getValue() && this.getAddress().equals(other.getAddress()) && this.getStage() == other.getStage()
+                && this.getHeight() == other.getHeight() && Objects.equals(this.getTransactionHash(), other.getTransactionHash()))
             return true;
         else
             return false;
     }
-}
 
+    /**
+     * events are saved while their stage may change, the stage, height and confirmations are written together.
+     */
+    private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+    }
+
+    /**
+     * events stored before stages existed don't know their block. The ones whose reception was confirmed were handled already, so they
+     * are taken as credited and never notified again. The rest are taken as unconfirmed, and move on when their transaction is in a block.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (stage == null) {
+            stage = status == Status.NOTIFICATION_COMPLETED ? Stage.CREDITED : Stage.UNCONFIRMED;
+            height = -1;
+            confirmations = 0;
+        }
+    }
+}
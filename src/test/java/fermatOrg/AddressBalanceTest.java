@@ -0,0 +1,146 @@
+package fermatOrg;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.BalanceType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.*;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletTransaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class AddressBalanceTest {
+    private final File walletFile;
+
+    public AddressBalanceTest() {
+        walletFile = new File("addressBalanceTest");
+        cleanUp();
+    }
+
+    /**
+     * The ledger separates confirmed, unconfirmed and spent outputs, and is kept after the wallet transactions are gone.
+     */
+    @Test
+    public void ledgerTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address address = new ECKey().toAddress(params);
+        Address other = new ECKey().toAddress(params);
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(address, 1475280000);
+        wallet.addWatchedAddress(other, 1475280000);
+
+        Transaction spent = createTransaction(address, 1100);
+        spent.getConfidence().setAppearedAtChainHeight(100);
+        Transaction spend = new Transaction(params);
+        spend.addInput(spent.getOutput(0));
+        spend.addOutput(Coin.valueOf(1000), new ECKey().toAddress(params));
+        spend.getConfidence().setAppearedAtChainHeight(101);
+        spent.getOutput(0).markAsSpent(spend.getInput(0));
+        Transaction confirmed = createTransaction(address, 1200);
+        confirmed.getConfidence().setAppearedAtChainHeight(102);
+        Transaction pending = createTransaction(address, 1000);
+        pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        Transaction otherPayment = createTransaction(other, 500);
+        otherPayment.getConfidence().setAppearedAtChainHeight(102);
+
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, spent));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, spend));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, confirmed));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, pending));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, otherPayment));
+        wallet.saveToFile(walletFile);
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        checkLedger(watchOnlyWallet, address);
+        Assert.assertEquals(watchOnlyWallet.getAddressBalance(address.toBase58()), watchOnlyWallet.getAddressBalance(address.toBase58(), BalanceType.RECEIVED));
+        Assert.assertEquals(0, watchOnlyWallet.getAddressBalance(new ECKey().toAddress(params).toBase58(), BalanceType.ESTIMATED));
+        Assert.assertEquals(1700, watchOnlyWallet.getWalletBalance(BalanceType.CONFIRMED));
+        Assert.assertEquals(2700, watchOnlyWallet.getWalletBalance(BalanceType.ESTIMATED));
+        Assert.assertEquals(1100, watchOnlyWallet.getWalletBalance(BalanceType.SPENT));
+        watchOnlyWallet.flush();
+
+        // the ledger is read from the history file, the wallet has no transactions anymore.
+        wallet.clearTransactions(0);
+        wallet.saveToFile(walletFile);
+        checkLedger(WatchOnlyWallet.loadFromFile(walletFile), address);
+    }
+
+    /**
+     * The balance at a past height counts the outputs received and spent up to it, across checkpoint intervals.
+     */
+    @Test
+    public void balanceAtTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address address = new ECKey().toAddress(params);
+        Address other = new ECKey().toAddress(params);
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(address, 1475280000);
+        wallet.addWatchedAddress(other, 1475280000);
+
+        Transaction spent = createTransaction(address, 1100);
+        spent.getConfidence().setAppearedAtChainHeight(100);
+        Transaction spend = new Transaction(params);
+        spend.addInput(spent.getOutput(0));
+        spend.addOutput(Coin.valueOf(1000), new ECKey().toAddress(params));
+        spend.getConfidence().setAppearedAtChainHeight(2500);
+        spent.getOutput(0).markAsSpent(spend.getInput(0));
+        Transaction confirmed = createTransaction(address, 1200);
+        confirmed.getConfidence().setAppearedAtChainHeight(1500);
+        Transaction otherPayment = createTransaction(other, 500);
+        otherPayment.getConfidence().setAppearedAtChainHeight(102);
+
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.SPENT, spent));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, spend));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, confirmed));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, otherPayment));
+        wallet.saveToFile(walletFile);
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        String base58 = address.toBase58();
+        Assert.assertEquals(0, watchOnlyWallet.getAddressBalanceAt(base58, 99));
+        Assert.assertEquals(1100, watchOnlyWallet.getAddressBalanceAt(base58, 100));
+        Assert.assertEquals(1100, watchOnlyWallet.getAddressBalanceAt(base58, 1499));
+        Assert.assertEquals(2300, watchOnlyWallet.getAddressBalanceAt(base58, 1500));
+        Assert.assertEquals(2300, watchOnlyWallet.getAddressBalanceAt(base58, 2499));
+        Assert.assertEquals(1200, watchOnlyWallet.getAddressBalanceAt(base58, 2500));
+        Assert.assertEquals(1200, watchOnlyWallet.getAddressBalanceAt(base58, 10000));
+        Assert.assertEquals(1600, watchOnlyWallet.getWalletBalanceAt(102));
+        Assert.assertEquals(2800, watchOnlyWallet.getWalletBalanceAt(2000));
+        Assert.assertEquals(1700, watchOnlyWallet.getWalletBalanceAt(2500));
+        watchOnlyWallet.flush();
+
+        // the spend heights are kept in the history file.
+        wallet.clearTransactions(0);
+        wallet.saveToFile(walletFile);
+        watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        Assert.assertEquals(2300, watchOnlyWallet.getAddressBalanceAt(base58, 2499));
+        Assert.assertEquals(1200, watchOnlyWallet.getAddressBalanceAt(base58, 2500));
+    }
+
+    private void checkLedger(WatchOnlyWallet watchOnlyWallet, Address address) throws Exception {
+        Assert.assertEquals(3300, watchOnlyWallet.getAddressBalance(address.toBase58(), BalanceType.RECEIVED));
+        Assert.assertEquals(1200, watchOnlyWallet.getAddressBalance(address.toBase58(), BalanceType.CONFIRMED));
+        Assert.assertEquals(1000, watchOnlyWallet.getAddressBalance(address.toBase58(), BalanceType.UNCONFIRMED));
+        Assert.assertEquals(2200, watchOnlyWallet.getAddressBalance(address.toBase58(), BalanceType.ESTIMATED));
+        Assert.assertEquals(1100, watchOnlyWallet.getAddressBalance(address.toBase58(), BalanceType.SPENT));
+    }
+
+    private Transaction createTransaction(Address address, int value) {
+        Transaction transaction = new Transaction(address.getParameters());
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new Script(new byte[0]));
+        transaction.addOutput(Coin.valueOf(value), address);
+        return transaction;
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        new File(walletFile.getName() + ".history").delete();
+        new File(walletFile.getName() + ".index").delete();
+        new File(walletFile.getName() + ".events").delete();
+    }
+}
@@ -0,0 +1,206 @@
+package fermatOrg;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.AddressGroups;
+import fermatOrg.wallet.BalanceType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.blockchainj.core.*;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletTransaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AddressGroupTest {
+    private final File walletFile;
+    private final File inputFile;
+    private final File eventsFile;
+
+    public AddressGroupTest() {
+        walletFile = new File("addressGroupTest");
+        inputFile = new File("addressGroupTest.txt");
+        eventsFile = new File("addressGroupTest.testevents");
+        cleanUp();
+    }
+
+    /**
+     * Groups are assigned from the second column of the input file and keep the sum of their addresses, also when an address moves.
+     */
+    @Test
+    public void groupBalanceTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address first = new ECKey().toAddress(params);
+        Address second = new ECKey().toAddress(params);
+        Address third = new ECKey().toAddress(params);
+        Address fourth = new ECKey().toAddress(params);
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(first, 1475280000);
+        wallet.addWatchedAddress(second, 1475280000);
+        addTransaction(wallet, first, 1000, 100);
+        addTransaction(wallet, second, 2000, 101);
+        addTransaction(wallet, second, 500, -1);
+        wallet.saveToFile(walletFile);
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        FileWriter writer = new FileWriter(inputFile);
+        writer.write(first.toBase58() + " customer1\n");
+        writer.write(second.toBase58() + ",customer1\n");
+        writer.write(third.toBase58() + "\tcustomer2\n");
+        writer.write(fourth.toBase58() + "\n");
+        writer.close();
+        watchOnlyWallet.importAddresses(inputFile);
+
+        Assert.assertEquals(4, watchOnlyWallet.getAddressesSize());
+        Assert.assertEquals("customer1", watchOnlyWallet.getGroup(second.toBase58()));
+        Assert.assertNull(watchOnlyWallet.getGroup(fourth.toBase58()));
+        Assert.assertEquals(2, watchOnlyWallet.getGroupAddresses("customer1").size());
+        Assert.assertEquals(3000, watchOnlyWallet.getGroupBalance("customer1", BalanceType.CONFIRMED));
+        Assert.assertEquals(3500, watchOnlyWallet.getGroupBalance("customer1", BalanceType.ESTIMATED));
+        Assert.assertEquals(0, watchOnlyWallet.getGroupBalance("customer2", BalanceType.ESTIMATED));
+
+        // the address moves with its funds.
+        watchOnlyWallet.importAddress(second.toBase58(), "customer2");
+        Assert.assertEquals(1000, watchOnlyWallet.getGroupBalance("customer1", BalanceType.ESTIMATED));
+        Assert.assertEquals(2500, watchOnlyWallet.getGroupBalance("customer2", BalanceType.ESTIMATED));
+        watchOnlyWallet.flush();
+
+        WatchOnlyWallet loaded = WatchOnlyWallet.loadFromFile(walletFile);
+        Assert.assertEquals("customer2", loaded.getGroup(second.toBase58()));
+        Assert.assertEquals(2000, loaded.getGroupBalance("customer2", BalanceType.CONFIRMED));
+        Assert.assertEquals(1000, loaded.getGroupBalance("customer1", BalanceType.CONFIRMED));
+    }
+
+    /**
+     * Group listeners only get the events of the addresses of their group.
+     */
+    @Test
+    public void groupListenerTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address first = new ECKey().toAddress(params);
+        Address second = new ECKey().toAddress(params);
+        WatchOnlyWallet watchOnlyWallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        watchOnlyWallet.importAddress(first.toBase58(), "customer1");
+        watchOnlyWallet.importAddress(second.toBase58(), "customer2");
+
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        eventNotificationManager.setAddressGroups(new AddressGroups(new File(walletFile.getPath() + ".groups")));
+        GroupListener listener = new GroupListener();
+        eventNotificationManager.addIncomingTransactionListener("customer1", listener);
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, first.toBase58(), NetworkType.TEST, 1000, "hash"));
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, second.toBase58(), NetworkType.TEST, 1000, "other"));
+        waitForAgent();
+        // the agent may pass the pending events again, but never the ones of other groups.
+        Assert.assertFalse(listener.events.isEmpty());
+        for (IncomingTransactionEvent event : listener.events)
+            Assert.assertEquals(first.toBase58(), event.getAddress());
+
+        eventNotificationManager.removeIncomingTransactionListener("customer1", listener);
+        int notified = listener.events.size();
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, first.toBase58(), NetworkType.TEST, 1000, "third"));
+        Assert.assertEquals(notified, listener.events.size());
+    }
+
+    /**
+     * Group changes are appended to the groups file, the last line of an address wins and a torn last line is dropped.
+     */
+    @Test
+    public void groupsLogTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address first = new ECKey().toAddress(params);
+        Address second = new ECKey().toAddress(params);
+        WatchOnlyWallet watchOnlyWallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        watchOnlyWallet.importAddress(first.toBase58(), "customer1");
+        watchOnlyWallet.importAddress(second.toBase58(), "customer1");
+        watchOnlyWallet.importAddress(second.toBase58(), "customer2");
+        watchOnlyWallet.importAddress(second.toBase58(), "customer2");
+
+        File groupsFile = new File(walletFile.getPath() + ".groups");
+        Assert.assertEquals(3, Files.readAllLines(groupsFile.toPath(), StandardCharsets.UTF_8).size());
+        FileWriter writer = new FileWriter(groupsFile, true);
+        writer.write(first.toBase58() + "\tcust");
+        writer.close();
+
+        AddressGroups groups = new AddressGroups(groupsFile);
+        Assert.assertEquals("customer1", groups.getGroup(first.toBase58()));
+        Assert.assertEquals("customer2", groups.getGroup(second.toBase58()));
+        Assert.assertEquals(1, groups.getAddresses("customer1").size());
+        Assert.assertEquals(3, Files.readAllLines(groupsFile.toPath(), StandardCharsets.UTF_8).size());
+    }
+
+    /**
+     * Empty group names and names with line breaks are rejected, since the groups file couldn't read them back, and the address is not imported.
+     */
+    @Test
+    public void invalidGroupNameTest() throws Exception {
+        Address address = new ECKey().toAddress(IoP_TestNet3Params.get());
+        WatchOnlyWallet watchOnlyWallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        for (String group : new String[]{"", "customer\n1", "customer\r1"}){
+            try {
+                watchOnlyWallet.importAddress(address.toBase58(), group);
+                Assert.fail("the group name \"" + group + "\" was accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(0, watchOnlyWallet.getAddressesSize());
+        Assert.assertNull(watchOnlyWallet.getGroup(address.toBase58()));
+
+        watchOnlyWallet.importAddress(address.toBase58(), "customer 1");
+        Assert.assertEquals("customer 1", new AddressGroups(new File(walletFile.getPath() + ".groups")).getGroup(address.toBase58()));
+    }
+
+    /**
+     * the agent notifies the pending events once it starts.
+     */
+    private void waitForAgent() {
+        try {
+            Thread.sleep(500);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void addTransaction(Wallet wallet, Address address, int value, int height) {
+        Transaction transaction = new Transaction(address.getParameters());
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new Script(new byte[0]));
+        transaction.addOutput(Coin.valueOf(value), address);
+        if (height < 0) {
+            transaction.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, transaction));
+        } else {
+            transaction.getConfidence().setAppearedAtChainHeight(height);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, transaction));
+        }
+    }
+
+    private static class GroupListener implements IncomingTransactionListener {
+        private final List<IncomingTransactionEvent> events = new ArrayList<>();
+
+        @Override
+        public synchronized void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+            events.add(incomingTransactionEvent);
+        }
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        inputFile.delete();
+        eventsFile.delete();
+        new File(walletFile.getName() + ".history").delete();
+        new File(walletFile.getName() + ".groups").delete();
+        new File(walletFile.getName() + ".index").delete();
+        new File(walletFile.getName() + ".events").delete();
+    }
+}
@@ -0,0 +1,119 @@
+package fermatOrg;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.AddressHistory;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.*;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletTransaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class AddressHistoryTest {
+    private final File walletFile;
+
+    public AddressHistoryTest() {
+        walletFile = new File("addressHistoryTest");
+        cleanUp();
+    }
+
+    /**
+     * The history of an address is paged by height, with the unconfirmed outputs last, and is kept after the wallet transactions are gone.
+     */
+    @Test
+    public void historyTest() throws Exception {
+        Address address = new ECKey().toAddress(IoP_TestNet3Params.get());
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(address, 1475280000);
+        for (int height = 100; height < 110; height++){
+            Transaction transaction = createTransaction(address, height);
+            transaction.getConfidence().setAppearedAtChainHeight(height);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, transaction));
+        }
+        Transaction pending = createTransaction(address, 0);
+        pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, pending));
+        wallet.saveToFile(walletFile);
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        List<AddressHistory.Entry> page = watchOnlyWallet.getAddressHistory(address.toBase58(), 0, 4);
+        Assert.assertEquals(4, page.size());
+        Assert.assertEquals(100, page.get(0).getHeight());
+        Assert.assertEquals(103, page.get(3).getHeight());
+        Assert.assertEquals(address.toBase58(), page.get(0).getAddress());
+
+        page = watchOnlyWallet.getAddressHistory(address.toBase58(), 104, 100);
+        Assert.assertEquals(7, page.size());
+        Assert.assertEquals(-1, page.get(6).getHeight());
+        Assert.assertEquals(pending.getHashAsString(), page.get(6).getTransactionHash());
+        Assert.assertTrue(watchOnlyWallet.getAddressHistory(new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58(), 0, 10).isEmpty());
+        watchOnlyWallet.flush();
+
+        // the history is read from its own file, the wallet has no transactions anymore.
+        wallet.clearTransactions(0);
+        wallet.saveToFile(walletFile);
+        WatchOnlyWallet loaded = WatchOnlyWallet.loadFromFile(walletFile);
+        Assert.assertEquals(11, loaded.getAddressHistory(address.toBase58(), 0, 100).size());
+    }
+
+    /**
+     * Pages that go on from the cursor of their last output neither repeat nor skip outputs of the same height.
+     */
+    @Test
+    public void cursorTest() throws Exception {
+        Address address = new ECKey().toAddress(IoP_TestNet3Params.get());
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(address, 1475280000);
+        for (int i = 0; i < 10; i++){
+            Transaction transaction = createTransaction(address, i);
+            transaction.getConfidence().setAppearedAtChainHeight(i < 8 ? 100 : 101);
+            wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, transaction));
+        }
+        wallet.saveToFile(walletFile);
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        Set<String> seen = new HashSet<>();
+        String cursor = null;
+        int pages = 0;
+        List<AddressHistory.Entry> page;
+        while (!(page = watchOnlyWallet.getAddressHistory(address.toBase58(), cursor, 3)).isEmpty()){
+            for (AddressHistory.Entry entry : page)
+                Assert.assertTrue(seen.add(entry.getTransactionHash()));
+            cursor = page.get(page.size() - 1).getCursor();
+            pages++;
+        }
+        Assert.assertEquals(10, seen.size());
+        Assert.assertEquals(4, pages);
+        Assert.assertEquals(101, watchOnlyWallet.getAddressHistory(address.toBase58(), (String) null, 10).get(9).getHeight());
+
+        try {
+            watchOnlyWallet.getAddressHistory(address.toBase58(), "100:abc", 3);
+            Assert.fail("The cursor is not valid.");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().contains("cursor"));
+        }
+    }
+
+    private Transaction createTransaction(Address address, int value) {
+        NetworkParameters params = address.getParameters();
+        Transaction transaction = new Transaction(params);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new Script(new byte[0]));
+        transaction.addOutput(Coin.valueOf(1000 + value), address);
+        return transaction;
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        new File(walletFile.getName() + ".history").delete();
+        new File(walletFile.getName() + ".index").delete();
+        new File(walletFile.getName() + ".events").delete();
+    }
+}
@@ -0,0 +1,151 @@
+package fermatOrg;
+
+import fermatOrg.exceptions.IoPBlockchainException;
+import fermatOrg.network.BlockCache;
+import fermatOrg.network.IoPBlockchain;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.EventNotificationManager;
+import org.blockchainj.core.*;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BlockCacheTest {
+    private final File directory;
+    private final NetworkParameters params;
+    private final Address watched;
+    private final Transaction payment;
+    private final Transaction spend;
+
+    public BlockCacheTest() {
+        directory = new File("blockCacheTest");
+        cleanUp();
+        directory.mkdirs();
+
+        params = WatchOnlyWallet.getNetworkParameters(NetworkType.PRODUCTION);
+        watched = new ECKey().toAddress(params);
+
+        payment = new Transaction(params);
+        payment.addInput(Sha256Hash.of(new byte[]{1}), 0, new Script(new byte[0]));
+        payment.addOutput(Coin.valueOf(100000), watched);
+
+        spend = new Transaction(params);
+        spend.addInput(payment.getOutput(0));
+        spend.addOutput(Coin.valueOf(90000), new ECKey().toAddress(params));
+    }
+
+    /**
+     * Transactions are found by the addresses they pay to and the outputs they spend, also after the cache is opened again.
+     */
+    @Test
+    public void findTest() throws IOException {
+        BlockCache blockCache = new BlockCache(new File(directory, "test.cache"));
+        addBlocks(blockCache);
+
+        List<BlockCache.CachedTransaction> outputs = blockCache.findOutputs(Collections.singletonList(watched.getHash160()), 100);
+        Assert.assertEquals(1, outputs.size());
+        Assert.assertEquals(100, outputs.get(0).getHeight());
+        Assert.assertEquals(payment.getHash(), outputs.get(0).getTransaction(params).getHash());
+        Assert.assertTrue(blockCache.findOutputs(Collections.singletonList(watched.getHash160()), 101).isEmpty());
+
+        List<BlockCache.CachedTransaction> spends = blockCache.findSpends(Collections.singletonList(BlockCache.getOutpointKey(payment.getHash(), 0)), 100);
+        Assert.assertEquals(1, spends.size());
+        Assert.assertEquals(102, spends.get(0).getHeight());
+        Assert.assertEquals(spend.getHash(), spends.get(0).getTransaction(params).getHash());
+        blockCache.close();
+
+        // a new block at a height we already have replaces it and drops the ones above.
+        blockCache = new BlockCache(new File(directory, "test.cache"));
+        Assert.assertEquals(3, blockCache.getBlockCount());
+        blockCache.add(createBlock(randomTransaction()), 101);
+        Assert.assertEquals(2, blockCache.getBlockCount());
+        Assert.assertEquals(101, blockCache.getLastHeight());
+        Assert.assertTrue(blockCache.findSpends(Collections.singletonList(BlockCache.getOutpointKey(payment.getHash(), 0)), 100).isEmpty());
+        blockCache.close();
+    }
+
+    /**
+     * Wallets that keep their transactions need the blocks of the matches from a peer, so nothing is rescanned without one.
+     */
+    @Test
+    public void rescanWithoutPeerTest() throws Exception {
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.PRODUCTION));
+        wallet.setLastBlockSeenHeight(105);
+        IoPBlockchain ioPBlockchain = new IoPBlockchain(NetworkType.PRODUCTION, directory);
+        ioPBlockchain.addWallets(Collections.singletonList(wallet), new EventNotificationManager(new File(directory, "events")));
+        ioPBlockchain.setBlockCacheEnabled(true);
+        addBlocks(ioPBlockchain.getBlockCache());
+
+        wallet.addWatchedAddress(watched, 1475280000);
+        try {
+            ioPBlockchain.rescanFrom(Collections.singletonList(wallet), null, null, 100);
+            Assert.fail("The blocks of the matches can't be downloaded.");
+        } catch (IoPBlockchainException e) {
+            Assert.assertNull(wallet.getTransaction(payment.getHash()));
+        }
+        ioPBlockchain.setBlockCacheEnabled(false);
+    }
+
+    /**
+     * The cache only keeps the outputs to addresses and the spent outpoints, and it can't be scanned once it is closed.
+     */
+    @Test
+    public void partialTransactionTest() throws IOException {
+        BlockCache blockCache = new BlockCache(new File(directory, "test.cache"));
+        addBlocks(blockCache);
+
+        BlockCache.CachedTransaction cached = blockCache.findSpends(Collections.singletonList(BlockCache.getOutpointKey(payment.getHash(), 0)), 100).get(0);
+        Transaction transaction = cached.getTransaction(params);
+        Assert.assertEquals(spend.getHash(), cached.getHash());
+        Assert.assertEquals(spend.getHash(), transaction.getHash());
+        Assert.assertEquals(payment.getHash(), transaction.getInput(0).getOutpoint().getHash());
+        Assert.assertEquals(0, transaction.getInput(0).getScriptBytes().length);
+        Assert.assertEquals(spend.getOutput(0).getValue(), transaction.getOutput(0).getValue());
+        Assert.assertArrayEquals(spend.getOutput(0).getScriptBytes(), transaction.getOutput(0).getScriptBytes());
+
+        blockCache.close();
+        try {
+            blockCache.findOutputs(Collections.singletonList(watched.getHash160()), 100);
+            Assert.fail("The cache is closed.");
+        } catch (IOException e) {
+            Assert.assertTrue(e.getMessage().contains("closed"));
+        }
+    }
+
+    private void addBlocks(BlockCache blockCache) throws IOException {
+        blockCache.add(createBlock(randomTransaction(), payment), 100);
+        blockCache.add(createBlock(randomTransaction()), 101);
+        blockCache.add(createBlock(spend, randomTransaction()), 102);
+    }
+
+    private Transaction randomTransaction() {
+        Transaction transaction = new Transaction(params);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new Script(new byte[0]));
+        transaction.addOutput(Coin.valueOf(5000), new ECKey().toAddress(params));
+        return transaction;
+    }
+
+    private Block createBlock(Transaction... transactions) {
+        return new Block(params, Block.BLOCK_VERSION_GENESIS, Sha256Hash.of(new ECKey().getPubKey()), Sha256Hash.ZERO_HASH,
+                System.currentTimeMillis() / 1000, params.getGenesisBlock().getDifficultyTarget(), 0, new ArrayList<>(Arrays.asList(transactions)));
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+}
@@ -0,0 +1,53 @@
+package fermatOrg;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class CompactModeTest {
+    private final File walletFile;
+    private final File utxoFile;
+
+    public CompactModeTest() {
+        walletFile = new File("compactWalletTest");
+        utxoFile = new File("compactWalletTest.utxo");
+        cleanUp();
+    }
+
+    /**
+     * A compact wallet keeps its unspent outputs on its own file and stays compact after being loaded.
+     */
+    @Test
+    public void compactModeTest() throws IoWalletException, AddressFormatException {
+        WatchOnlyWallet wallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        String address = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+        wallet.importAddress(address);
+
+        Assert.assertFalse(wallet.isCompactMode());
+        wallet.setCompactMode(10);
+        Assert.assertTrue(wallet.isCompactMode());
+        Assert.assertTrue(utxoFile.exists());
+        Assert.assertEquals(0, wallet.getWalletBalance());
+        Assert.assertEquals(0, wallet.getAddressBalance(address));
+        Assert.assertTrue(wallet.getRecentHistory().isEmpty());
+
+        wallet.flush();
+        WatchOnlyWallet loaded = WatchOnlyWallet.loadFromFile(walletFile);
+        Assert.assertTrue(loaded.isCompactMode());
+        Assert.assertTrue(loaded.getAddresses().contains(address));
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        utxoFile.delete();
+        new File(walletFile.getName() + ".events").delete();
+    }
+}
@@ -0,0 +1,199 @@
+package fermatOrg;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ConfirmationStagesTest {
+    private final File eventsFile;
+
+    public ConfirmationStagesTest() {
+        eventsFile = new File("confirmationStagesTest.events");
+        cleanUp();
+    }
+
+    /**
+     * A transaction seen on the network is notified when seen, when included in a block and when it reaches the confirmation depth.
+     */
+    @Test
+    public void stagesTest() throws IOException {
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        StageListener listener = new StageListener();
+        eventNotificationManager.addIncomingTransactionListener(listener);
+        Assert.assertEquals(EventNotificationManager.DEFAULT_CONFIRMATION_DEPTH, eventNotificationManager.getConfirmationDepth());
+
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash"));
+        Assert.assertTrue(listener.stages.contains(IncomingTransactionEvent.Stage.UNCONFIRMED));
+        Assert.assertTrue(eventNotificationManager.hasUnconfirmedEvents());
+
+        eventNotificationManager.newBestBlock(99);
+        eventNotificationManager.transactionConfirmed("hash", 100);
+        Assert.assertTrue(listener.stages.contains(IncomingTransactionEvent.Stage.CONFIRMED));
+        Assert.assertTrue(eventNotificationManager.hasUnconfirmedEvents() == false);
+
+        // not deep enough yet.
+        eventNotificationManager.newBestBlock(104);
+        Assert.assertTrue(listener.stages.contains(IncomingTransactionEvent.Stage.CREDITED) == false);
+
+        eventNotificationManager.newBestBlock(105);
+        IncomingTransactionEvent event = listener.getLastEvent();
+        Assert.assertEquals(IncomingTransactionEvent.Stage.CREDITED, event.getStage());
+        Assert.assertEquals(100, event.getHeight());
+        Assert.assertEquals(6, event.getConfirmations());
+        Assert.assertEquals(IncomingTransactionEvent.Status.PENDING_NOTIFICATION, event.getStatus());
+    }
+
+    /**
+     * Confirmed events are credited after the events are loaded again, and the depth can be changed at any time.
+     */
+    @Test
+    public void reloadAndDepthTest() throws IOException {
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash", 200));
+        Assert.assertEquals(IncomingTransactionEvent.Stage.CONFIRMED, eventNotificationManager.getPendingNotificationEvents().get(0).getStage());
+
+        EventNotificationManager reloaded = new EventNotificationManager(eventsFile);
+        StageListener listener = new StageListener();
+        reloaded.addIncomingTransactionListener(listener);
+        reloaded.newBestBlock(201);
+        Assert.assertTrue(listener.stages.contains(IncomingTransactionEvent.Stage.CREDITED) == false);
+
+        // the transaction already has two confirmations.
+        reloaded.setConfirmationDepth(2);
+        IncomingTransactionEvent event = listener.getLastEvent();
+        Assert.assertEquals(IncomingTransactionEvent.Stage.CREDITED, event.getStage());
+        Assert.assertEquals(2, event.getConfirmations());
+    }
+
+    /**
+     * Events stored before stages existed are credited if their reception was confirmed, so they are not notified again.
+     */
+    @Test
+    public void legacyEventsTest() throws Exception {
+        IncomingTransactionEvent completed = new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "completed");
+        completed.setStatus(IncomingTransactionEvent.Status.NOTIFICATION_COMPLETED);
+        IncomingTransactionEvent pending = new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "pending");
+        Field stage = IncomingTransactionEvent.class.getDeclaredField("stage");
+        stage.setAccessible(true);
+        stage.set(completed, null);
+        stage.set(pending, null);
+
+        ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(eventsFile));
+        oos.writeObject(new ArrayList<>(Arrays.asList(completed, pending)));
+        oos.close();
+
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        StageListener listener = new StageListener();
+        eventNotificationManager.addIncomingTransactionListener(listener);
+        List<IncomingTransactionEvent> pendingEvents = eventNotificationManager.getPendingNotificationEvents();
+        Assert.assertEquals(1, pendingEvents.size());
+        Assert.assertEquals("pending", pendingEvents.get(0).getTransactionHash());
+        Assert.assertEquals(IncomingTransactionEvent.Stage.UNCONFIRMED, pendingEvents.get(0).getStage());
+
+        eventNotificationManager.transactionConfirmed("completed", 100);
+        eventNotificationManager.transactionConfirmed("pending", 100);
+        // the agent may notify the pending event too, the completed one is never notified.
+        Assert.assertFalse(listener.stages.contains(IncomingTransactionEvent.Stage.CREDITED));
+        Assert.assertEquals("pending", listener.getLastEvent().getTransactionHash());
+        Assert.assertEquals(IncomingTransactionEvent.Stage.CONFIRMED, listener.getLastEvent().getStage());
+        Assert.assertTrue(eventNotificationManager.getTransactionsAbove(0).contains("completed") == false);
+    }
+
+    private static class StageListener implements IncomingTransactionListener {
+        private final List<IncomingTransactionEvent.Stage> stages = new CopyOnWriteArrayList<>();
+        private volatile IncomingTransactionEvent lastEvent;
+
+        @Override
+        public void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+            stages.add(incomingTransactionEvent.getStage());
+            lastEvent = incomingTransactionEvent;
+        }
+
+        IncomingTransactionEvent getLastEvent() {
+            return lastEvent;
+        }
+    }
+
+    /**
+     * The events confirmed together are completed and stay completed after loading them again, the others stay pending.
+     */
+    @Test
+    public void bulkConfirmationTest() throws IOException {
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        for (int i = 0; i < 3; i++)
+            eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address" + i, NetworkType.PRODUCTION, 1000, "hash" + i));
+
+        List<IncomingTransactionEvent> pending = eventNotificationManager.getPendingNotificationEvents();
+        eventNotificationManager.confirmEventNotifications(pending.subList(0, 2));
+        Assert.assertEquals(1, eventNotificationManager.getPendingNotificationEvents().size());
+        eventNotificationManager.close();
+
+        EventNotificationManager reloaded = new EventNotificationManager(eventsFile);
+        Assert.assertEquals(1, reloaded.getPendingNotificationEvents().size());
+        Assert.assertEquals("hash2", reloaded.getPendingNotificationEvents().get(0).getTransactionHash());
+        reloaded.close();
+    }
+
+    /**
+     * Credited events whose reception was confirmed are pruned once they are deep enough, and their deposit is not added again.
+     */
+    @Test
+    public void pruneTest() throws Exception {
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        eventNotificationManager.newBestBlock(1000);
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash", 1000));
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "other", NetworkType.PRODUCTION, 1000, "other", 1000));
+        eventNotificationManager.newBestBlock(1005);
+        List<IncomingTransactionEvent> pending = eventNotificationManager.getPendingNotificationEvents();
+        Assert.assertEquals(2, pending.size());
+        Assert.assertEquals(IncomingTransactionEvent.Stage.CREDITED, pending.get(0).getStage());
+
+        // only the confirmed one is pruned, and not before it is deep enough.
+        eventNotificationManager.confirmEventNotification(pending.get(0));
+        eventNotificationManager.newBestBlock(1000 + EventNotificationManager.PRUNE_DEPTH);
+        Assert.assertEquals(2, getEvents(eventNotificationManager).size());
+        eventNotificationManager.newBestBlock(1001 + EventNotificationManager.PRUNE_DEPTH);
+        Assert.assertEquals(1, getEvents(eventNotificationManager).size());
+        Assert.assertEquals("other", getEvents(eventNotificationManager).get(0).getTransactionHash());
+        Assert.assertFalse(eventNotificationManager.addEventIfAbsent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash", 1000)));
+        eventNotificationManager.close();
+
+        EventNotificationManager reloaded = new EventNotificationManager(eventsFile);
+        Assert.assertEquals(1, getEvents(reloaded).size());
+        Assert.assertFalse(reloaded.addEventIfAbsent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash", 1000)));
+
+        // an address watched again gets its deposits again.
+        reloaded.removeEvents(Collections.singleton("address"));
+        reloaded.close();
+        reloaded = new EventNotificationManager(eventsFile);
+        Assert.assertTrue(reloaded.addEventIfAbsent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash", 1000)));
+        reloaded.close();
+    }
+
+    private List<IncomingTransactionEvent> getEvents(EventNotificationManager eventNotificationManager) throws Exception {
+        Field events = EventNotificationManager.class.getDeclaredField("events");
+        events.setAccessible(true);
+        return new ArrayList<>((Collection<IncomingTransactionEvent>) events.get(eventNotificationManager));
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        eventsFile.delete();
+        new File(eventsFile.getPath() + ".pruned").delete();
+    }
+}
@@ -0,0 +1,212 @@
+package fermatOrg;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class EventConcurrencyTest {
+    private static final int PRODUCERS = 4;
+    private static final int EVENTS_PER_PRODUCER = 50;
+
+    private final File eventsFile;
+
+    public EventConcurrencyTest() {
+        eventsFile = new File("eventConcurrencyTest.events");
+        cleanUp();
+    }
+
+    /**
+     * Events added, confirmed and blocks received from many threads at once while listeners come and go. No event is lost
+     * and every confirmed event stays confirmed after loading them again.
+     */
+    @Test
+    public void concurrentTest() throws Exception {
+        final EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        final Queue<IncomingTransactionEvent> received = new ConcurrentLinkedQueue<>();
+        final AtomicInteger notifications = new AtomicInteger();
+        eventNotificationManager.addIncomingTransactionListener(new IncomingTransactionListener() {
+            @Override
+            public void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+                notifications.incrementAndGet();
+                received.add(incomingTransactionEvent);
+            }
+        });
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch producersDone = new CountDownLatch(PRODUCERS);
+        final AtomicInteger confirmed = new AtomicInteger();
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int i = 0; i < PRODUCERS; i++){
+            final int producer = i;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < EVENTS_PER_PRODUCER; j++){
+                            String hash = producer + "-" + j;
+                            eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address" + producer, NetworkType.PRODUCTION, 1000, hash));
+                            eventNotificationManager.transactionConfirmed(hash, 100 + j);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    } finally {
+                        producersDone.countDown();
+                    }
+                }
+            }));
+        }
+
+        // confirms the reception of what the listener gets, until the producers are done and nothing is left.
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    while (producersDone.getCount() > 0 || !received.isEmpty()){
+                        IncomingTransactionEvent event = received.poll();
+                        if (event == null) {
+                            Thread.sleep(1);
+                        } else if (event.getStatus() == IncomingTransactionEvent.Status.PENDING_NOTIFICATION) {
+                            eventNotificationManager.confirmEventNotification(event);
+                            confirmed.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        }));
+
+        // blocks, pending event queries and listeners changing at the same time.
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    start.await();
+                    int height = 100;
+                    while (producersDone.getCount() > 0){
+                        eventNotificationManager.newBestBlock(height++);
+                        eventNotificationManager.getPendingNotificationEvents();
+                        IncomingTransactionListener listener = new IncomingTransactionListener() {
+                            @Override
+                            public void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+                            }
+                        };
+                        eventNotificationManager.addIncomingTransactionListener(listener);
+                        eventNotificationManager.removeIncomingTransactionListener(listener);
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }
+        }));
+
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join(60000);
+
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertTrue(confirmed.get() > 0);
+        Assert.assertTrue(eventNotificationManager.hasUnconfirmedEvents() == false);
+
+        // each event was notified when seen and when confirmed.
+        Assert.assertTrue(notifications.get() >= 2 * PRODUCERS * EVENTS_PER_PRODUCER);
+
+        // the events credited at the end may still be pending, once confirmed nothing is left after loading them again.
+        for (IncomingTransactionEvent event : eventNotificationManager.getPendingNotificationEvents())
+            eventNotificationManager.confirmEventNotification(event);
+        Assert.assertTrue(eventNotificationManager.getPendingNotificationEvents().isEmpty());
+        EventNotificationManager reloaded = new EventNotificationManager(eventsFile);
+        Assert.assertTrue(reloaded.getPendingNotificationEvents().isEmpty());
+        Assert.assertTrue(reloaded.hasUnconfirmedEvents() == false);
+    }
+
+    /**
+     * The same transaction added from many threads, and again after its event was confirmed, only has one event.
+     */
+    @Test
+    public void addIfAbsentTest() throws Exception {
+        final EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger added = new AtomicInteger();
+        final Queue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < PRODUCERS; i++){
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        if (eventNotificationManager.addEventIfAbsent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash")))
+                            added.incrementAndGet();
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join(60000);
+
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        Assert.assertEquals(1, added.get());
+        Assert.assertEquals(1, eventNotificationManager.getPendingNotificationEvents().size());
+
+        // acknowledged and then confirmed, the transaction arrives again with its block.
+        eventNotificationManager.confirmEventNotification(eventNotificationManager.getPendingNotificationEvents().get(0));
+        eventNotificationManager.transactionConfirmed("hash", 100);
+        Assert.assertFalse(eventNotificationManager.addEventIfAbsent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash", 100)));
+        Assert.assertEquals(1, eventNotificationManager.getPendingNotificationEvents().size());
+        Assert.assertEquals(IncomingTransactionEvent.Stage.CONFIRMED, eventNotificationManager.getPendingNotificationEvents().get(0).getStage());
+
+        // other addresses of the same transaction have their own events.
+        Assert.assertTrue(eventNotificationManager.addEventIfAbsent(new IncomingTransactionEvent(this, "other", NetworkType.PRODUCTION, 1000, "hash", 100)));
+        eventNotificationManager.close();
+    }
+
+    /**
+     * A closed manager doesn't start the agent when it saves the events, so pending events are only notified when they change.
+     */
+    @Test
+    public void closeTest() throws Exception {
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        final AtomicInteger notifications = new AtomicInteger();
+        eventNotificationManager.addIncomingTransactionListener(new IncomingTransactionListener() {
+            @Override
+            public void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+                notifications.incrementAndGet();
+            }
+        });
+        eventNotificationManager.close();
+
+        // a running agent notifies the pending event again as soon as it starts.
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash"));
+        Thread.sleep(500);
+        Assert.assertEquals(1, notifications.get());
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        eventsFile.delete();
+        new File(eventsFile.getPath() + ".pruned").delete();
+    }
+}
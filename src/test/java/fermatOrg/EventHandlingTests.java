@@ -81,11 +81,11 @@ public class EventHandlingTests {
     @org.junit.After
     public void cleanUp(){
         this.walletFile.delete();
-        File blockchain = new File("org.IoP.production");
+        File blockchain = new File(walletFile.getName() + ".org.IoP.production");
         if (blockchain.exists())
             blockchain.delete();
 
-        File events = new File("events");
+        File events = new File(walletFile.getName() + ".events");
         if (events.exists())
             events.delete();
 
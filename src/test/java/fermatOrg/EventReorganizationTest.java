@@ -0,0 +1,113 @@
+package fermatOrg;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class EventReorganizationTest {
+    private final File eventsFile;
+
+    public EventReorganizationTest() {
+        eventsFile = new File("eventReorganizationTest.events");
+        cleanUp();
+    }
+
+    /**
+     * A credited deposit whose block is reorganized away is reversed, and notified again as unconfirmed.
+     */
+    @Test
+    public void reorganizedTest() throws IOException {
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        eventNotificationManager.setConfirmationDepth(2);
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash", 100));
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 2000, "other", 90));
+        eventNotificationManager.newBestBlock(101);
+
+        // only transactions above the split point are checked.
+        Assert.assertTrue(eventNotificationManager.getTransactionsAbove(95).contains("hash"));
+        Assert.assertTrue(eventNotificationManager.getTransactionsAbove(95).contains("other") == false);
+
+        // still in the new chain at the same height, nothing changes.
+        StageListener listener = new StageListener(eventNotificationManager.getPendingNotificationEvents());
+        eventNotificationManager.addIncomingTransactionListener(listener);
+        eventNotificationManager.transactionReorganized("hash", 100);
+        Assert.assertTrue(listener.events.isEmpty());
+
+        eventNotificationManager.transactionReorganized("hash", -1);
+        Assert.assertEquals(2, listener.events.size());
+        IncomingTransactionEvent reversal = listener.events.get(0);
+        Assert.assertEquals(IncomingTransactionEvent.Stage.REVERSED, reversal.getStage());
+        Assert.assertEquals(IncomingTransactionEvent.Stage.CREDITED, reversal.getReversedStage());
+        Assert.assertEquals(1000, reversal.getValue());
+        Assert.assertEquals(IncomingTransactionEvent.Stage.UNCONFIRMED, listener.events.get(1).getStage());
+        Assert.assertTrue(eventNotificationManager.getTransactionsAbove(95).contains("hash") == false);
+
+        // the invalidated event is not notified anymore.
+        for (IncomingTransactionEvent event : eventNotificationManager.getPendingNotificationEvents())
+            Assert.assertTrue(event.getStage() != IncomingTransactionEvent.Stage.INVALIDATED);
+
+        // mined again on the new chain.
+        eventNotificationManager.transactionConfirmed("hash", 102);
+        Assert.assertEquals(IncomingTransactionEvent.Stage.CONFIRMED, listener.events.get(2).getStage());
+        Assert.assertEquals(102, listener.events.get(2).getHeight());
+    }
+
+    /**
+     * A double spent deposit is reversed and never notified again.
+     */
+    @Test
+    public void doubleSpentTest() throws IOException {
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash"));
+        StageListener listener = new StageListener(eventNotificationManager.getPendingNotificationEvents());
+        eventNotificationManager.addIncomingTransactionListener(listener);
+
+        eventNotificationManager.transactionDead("hash");
+        Assert.assertEquals(1, listener.events.size());
+        Assert.assertEquals(IncomingTransactionEvent.Stage.REVERSED, listener.events.get(0).getStage());
+        Assert.assertEquals(IncomingTransactionEvent.Stage.UNCONFIRMED, listener.events.get(0).getReversedStage());
+        Assert.assertTrue(eventNotificationManager.hasUnconfirmedEvents() == false);
+
+        // it is already reversed.
+        eventNotificationManager.transactionDead("hash");
+        eventNotificationManager.transactionConfirmed("hash", 100);
+        Assert.assertEquals(1, listener.events.size());
+    }
+
+    /**
+     * records the events of the stage changes. The agent notifies the pending events when it starts, at any time, so the events that
+     * were already pending when the listener was added are left out while they keep their stage.
+     */
+    private static class StageListener implements IncomingTransactionListener {
+        private final List<IncomingTransactionEvent> events = new ArrayList<>();
+        private final Map<IncomingTransactionEvent, IncomingTransactionEvent.Stage> notified = new IdentityHashMap<>();
+
+        StageListener(List<IncomingTransactionEvent> pendingEvents) {
+            for (IncomingTransactionEvent event : pendingEvents)
+                notified.put(event, event.getStage());
+        }
+
+        @Override
+        public synchronized void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+            if (notified.get(incomingTransactionEvent) == incomingTransactionEvent.getStage())
+                return;
+
+            events.add(incomingTransactionEvent);
+        }
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        eventsFile.delete();
+    }
+}
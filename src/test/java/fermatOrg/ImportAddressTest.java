@@ -101,7 +101,7 @@ public class ImportAddressTest {
         this.inputFile.delete();
         this.walletFile.delete();
 
-        File event = new File("events");
+        File event = new File(walletFile.getName() + ".events");
         if (event.exists())
             event.delete();
 
@@ -0,0 +1,74 @@
+package fermatOrg;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class IncrementalPersistenceTest {
+    private final File walletFile;
+    private final File journalFile;
+
+    public IncrementalPersistenceTest() {
+        walletFile = new File("incrementalWalletTest");
+        journalFile = new File("incrementalWalletTest.journal");
+        cleanUp();
+    }
+
+    /**
+     * Imported addresses are written on the snapshot, and a wallet with a journal is loaded and compacted.
+     */
+    @Test
+    public void snapshotAndJournalTest() throws IoWalletException, AddressFormatException {
+        WatchOnlyWallet wallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        wallet.setIncrementalPersistence(1, 60, TimeUnit.MINUTES);
+        Assert.assertTrue(journalFile.exists());
+
+        String address = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+        wallet.importAddress(address);
+        wallet.flush();
+
+        WatchOnlyWallet loaded = WatchOnlyWallet.loadFromFile(walletFile);
+        Assert.assertTrue(loaded.getAddresses().contains(address));
+        Assert.assertFalse(journalFile.exists()); // the journal is applied to a new snapshot when loading.
+    }
+
+    /**
+     * Imported and removed addresses are appended to the journal without writing a new snapshot.
+     */
+    @Test
+    public void watchedAddressesJournalTest() throws Exception {
+        WatchOnlyWallet wallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        wallet.setIncrementalPersistence(1, 60, TimeUnit.MINUTES);
+        byte[] snapshot = Files.readAllBytes(walletFile.toPath());
+
+        String first = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+        String second = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+        wallet.importAddress(first);
+        wallet.importAddress(second);
+        wallet.removeAddresses(Collections.singletonList(first));
+        Assert.assertTrue(Arrays.equals(snapshot, Files.readAllBytes(walletFile.toPath())));
+
+        WatchOnlyWallet loaded = WatchOnlyWallet.loadFromFile(walletFile);
+        Assert.assertEquals(Collections.singletonList(second), loaded.getAddresses());
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        journalFile.delete();
+        new File(walletFile.getName() + ".events").delete();
+        new File(walletFile.getName() + ".history").delete();
+        new File(walletFile.getName() + ".groups").delete();
+    }
+}
@@ -40,7 +40,7 @@ public class LogLevelTest {
         if (walletFile.exists())
             walletFile.delete();
 
-        File blockchain = new File("org.IoP.production");
+        File blockchain = new File(walletFile.getName() + ".org.IoP.production");
         if (blockchain.exists())
             blockchain.delete();
 
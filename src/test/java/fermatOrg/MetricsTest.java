@@ -0,0 +1,161 @@
+package fermatOrg;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.metrics.Gauge;
+import fermatOrg.metrics.JmxMetricsRegistry;
+import fermatOrg.metrics.Metrics;
+import fermatOrg.metrics.MetricsRegistry;
+import fermatOrg.network.IoPBlockchain;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import fermatOrg.wallet.event.IncomingTransactionListener;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.params.IoP.IoP_MainNetParams;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class MetricsTest {
+    private final File walletFile;
+    private final File eventsFile;
+    private final File blockchainDirectory;
+
+    public MetricsTest() {
+        walletFile = new File("metricsWalletTest");
+        eventsFile = new File("metricsTest.events");
+        blockchainDirectory = new File("metricsTestBlocks");
+        cleanUp();
+    }
+
+    /**
+     * Imported addresses are counted and visible through JMX with the default registry.
+     */
+    @Test
+    public void jmxImportTest() throws Exception {
+        Assert.assertTrue(Metrics.getRegistry() instanceof JmxMetricsRegistry);
+        JmxMetricsRegistry registry = (JmxMetricsRegistry) Metrics.getRegistry();
+        long imported = registry.getCounter(Metrics.IMPORTED_ADDRESSES).getCount();
+
+        WatchOnlyWallet wallet = new WatchOnlyWallet(walletFile, NetworkType.PRODUCTION);
+        String address = new ECKey().toAddress(IoP_MainNetParams.get()).toBase58();
+        wallet.importAddress(address);
+        wallet.importAddress(new ECKey().toAddress(IoP_MainNetParams.get()).toBase58());
+
+        // already imported addresses are not counted.
+        wallet.importAddress(address);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        Assert.assertEquals(imported + 2, server.getAttribute(registry.getObjectName(Metrics.IMPORTED_ADDRESSES), "Count"));
+    }
+
+    /**
+     * A custom registry receives the event persistence and listener dispatch times and the pending events backlog.
+     */
+    @Test
+    public void pluggableRegistryTest() throws IOException, AddressFormatException, IoWalletException {
+        MetricsRegistry defaultRegistry = Metrics.getRegistry();
+        RecordingRegistry registry = new RecordingRegistry();
+        Metrics.setRegistry(registry);
+        try {
+            EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+            eventNotificationManager.addIncomingTransactionListener(new IncomingTransactionListener() {
+                @Override
+                public void incomingEvent(IncomingTransactionEvent incomingTransactionEvent) {
+                }
+            });
+
+            Gauge pending = registry.gauges.get(Metrics.getGaugeName(Metrics.PENDING_EVENTS, eventsFile));
+            Assert.assertNotNull(pending);
+            Assert.assertEquals(0, pending.getValue());
+
+            IncomingTransactionEvent event = new IncomingTransactionEvent(this, "address", NetworkType.PRODUCTION, 1000, "hash");
+            eventNotificationManager.addNewEvent(event);
+            Assert.assertEquals(1, pending.getValue());
+            Assert.assertEquals(1, registry.getSamples(Metrics.EVENT_PERSISTENCE_TIME).size());
+            Assert.assertEquals(1, registry.getSamples(Metrics.LISTENER_DISPATCH_TIME).size());
+
+            eventNotificationManager.confirmEventNotification(eventNotificationManager.getPendingNotificationEvents().get(0));
+            Assert.assertEquals(0, pending.getValue());
+
+            // confirming twice doesn't count it twice.
+            eventNotificationManager.confirmEventNotification(event);
+            Assert.assertEquals(0, pending.getValue());
+
+            eventNotificationManager.close();
+            Assert.assertFalse(registry.gauges.containsKey(Metrics.getGaugeName(Metrics.PENDING_EVENTS, eventsFile)));
+        } finally {
+            Metrics.setRegistry(defaultRegistry);
+        }
+    }
+
+    /**
+     * Closed wallets and blockchain connections remove their gauges, so the registry doesn't keep them.
+     */
+    @Test
+    public void closeTest() throws IoWalletException {
+        MetricsRegistry defaultRegistry = Metrics.getRegistry();
+        RecordingRegistry registry = new RecordingRegistry();
+        Metrics.setRegistry(registry);
+        try {
+            WatchOnlyWallet wallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+            IoPBlockchain blockchain = new IoPBlockchain(NetworkType.TEST, blockchainDirectory);
+            Assert.assertEquals(3, registry.gauges.size());
+
+            blockchain.close();
+            Assert.assertEquals(1, registry.gauges.size());
+            wallet.close();
+            Assert.assertTrue(registry.gauges.isEmpty());
+        } finally {
+            Metrics.setRegistry(defaultRegistry);
+        }
+    }
+
+    private static class RecordingRegistry implements MetricsRegistry {
+        private final Map<String, List<Long>> samples = new ConcurrentHashMap<>();
+        private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+
+        @Override
+        public synchronized void record(String name, long value) {
+            getSamples(name).add(value);
+        }
+
+        @Override
+        public void increment(String name, long amount) {
+        }
+
+        @Override
+        public void register(String name, Gauge gauge) {
+            gauges.put(name, gauge);
+        }
+
+        @Override
+        public void unregister(String name) {
+            gauges.remove(name);
+        }
+
+        synchronized List<Long> getSamples(String name) {
+            if (!samples.containsKey(name))
+                samples.put(name, new ArrayList<Long>());
+            return samples.get(name);
+        }
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        new File(walletFile.getName() + ".events").delete();
+        eventsFile.delete();
+        blockchainDirectory.delete();
+    }
+}
@@ -0,0 +1,88 @@
+package fermatOrg;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.params.IoP.IoP_MainNetParams;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class MultiNetworkWalletTest {
+    private final File productionWalletFile;
+    private final File testWalletFile;
+    private final File dataDirectory;
+    private final File legacyEventsFile;
+    private final File legacyBlocksFile;
+
+    public MultiNetworkWalletTest() {
+        productionWalletFile = new File("productionWalletTest");
+        testWalletFile = new File("testWalletTest");
+        dataDirectory = new File("multiNetworkData");
+        legacyEventsFile = new File("events");
+        legacyBlocksFile = new File(WatchOnlyWallet.getNetworkParameters(NetworkType.TEST).getId());
+        cleanUp();
+        dataDirectory.mkdir();
+    }
+
+    /**
+     * A production and a test wallet can be created and loaded in any order on the same thread, each one with its own data directory.
+     */
+    @Test
+    public void productionAndTestWalletsTest() throws IoWalletException, AddressFormatException {
+        WatchOnlyWallet productionWallet = new WatchOnlyWallet(productionWalletFile, NetworkType.PRODUCTION, 1, dataDirectory);
+        String address = new ECKey().toAddress(IoP_MainNetParams.get()).toBase58();
+        productionWallet.importAddress(address);
+
+        WatchOnlyWallet testWallet = new WatchOnlyWallet(testWalletFile, NetworkType.TEST);
+        Assert.assertEquals(NetworkType.TEST, testWallet.getNetworkType());
+        Assert.assertEquals(dataDirectory, productionWallet.getDataDirectory());
+        Assert.assertEquals(productionWalletFile.getAbsoluteFile().getParentFile(), testWallet.getDataDirectory());
+
+        // loading wallets of alternating networks on the same thread.
+        WatchOnlyWallet loadedProduction = WatchOnlyWallet.loadFromFile(productionWalletFile, dataDirectory);
+        WatchOnlyWallet loadedTest = WatchOnlyWallet.loadFromFile(testWalletFile);
+        Assert.assertEquals(NetworkType.PRODUCTION, loadedProduction.getNetworkType());
+        Assert.assertEquals(NetworkType.TEST, loadedTest.getNetworkType());
+        Assert.assertTrue(loadedProduction.getAddresses().contains(address));
+    }
+
+    /**
+     * A wallet loaded for the first time since the data directory existed takes over the events and blocks files of the working directory.
+     */
+    @Test
+    public void legacyFilesTest() throws IoWalletException, IOException {
+        new WatchOnlyWallet(testWalletFile, NetworkType.TEST, 1, dataDirectory);
+        new EventNotificationManager(legacyEventsFile).addNewEvent(new IncomingTransactionEvent(this, "address", NetworkType.TEST, 1000, "hash", 100));
+        FileOutputStream out = new FileOutputStream(legacyBlocksFile);
+        out.write(new byte[16]);
+        out.close();
+
+        WatchOnlyWallet wallet = WatchOnlyWallet.loadFromFile(testWalletFile, dataDirectory);
+        Assert.assertEquals(1, wallet.getPendingNotificationEvents().size());
+        Assert.assertEquals("hash", wallet.getPendingNotificationEvents().get(0).getTransactionHash());
+        Assert.assertTrue(!legacyEventsFile.exists() && !legacyBlocksFile.exists());
+        Assert.assertTrue(new File(dataDirectory, testWalletFile.getName() + "." + legacyBlocksFile.getName()).exists());
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        productionWalletFile.delete();
+        testWalletFile.delete();
+        legacyEventsFile.delete();
+        legacyBlocksFile.delete();
+
+        File[] files = dataDirectory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dataDirectory.delete();
+    }
+}
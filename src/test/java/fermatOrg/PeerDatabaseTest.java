@@ -0,0 +1,68 @@
+package fermatOrg;
+
+import fermatOrg.network.PeerDatabase;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.List;
+
+public class PeerDatabaseTest {
+    private final File peersFile;
+
+    public PeerDatabaseTest() {
+        peersFile = new File("peersTest");
+        if (peersFile.exists())
+            peersFile.delete();
+    }
+
+    /**
+     * The best peers must survive a restart, ordered by their score.
+     */
+    @Test
+    public void bestPeersAreKeptAfterRestart() throws IOException {
+        InetAddress fastPeer = InetAddress.getByName("10.0.0.1");
+        InetAddress slowPeer = InetAddress.getByName("10.0.0.2");
+        InetAddress failingPeer = InetAddress.getByName("10.0.0.3");
+
+        PeerDatabase peerDatabase = new PeerDatabase(peersFile);
+        peerDatabase.peerConnected(fastPeer, 4877, System.currentTimeMillis());
+        peerDatabase.peerDisconnected(fastPeer, 4877, 60 * 60 * 1000, 50);
+        peerDatabase.peerConnected(slowPeer, 4877, System.currentTimeMillis());
+        peerDatabase.peerDisconnected(slowPeer, 4877, 60 * 1000, 2000);
+        peerDatabase.peerFailed(failingPeer, 4877);
+        peerDatabase.peerFailed(failingPeer, 4877);
+        peerDatabase.save();
+
+        PeerDatabase loaded = new PeerDatabase(peersFile);
+        Assert.assertEquals(3, loaded.size());
+
+        List<PeerDatabase.PeerRecord> best = loaded.getBestPeers(2);
+        Assert.assertEquals(2, best.size());
+        Assert.assertEquals("10.0.0.1", best.get(0).getHost());
+        Assert.assertEquals("10.0.0.2", best.get(1).getHost());
+        Assert.assertEquals(60 * 60 * 1000, best.get(0).getUptime());
+    }
+
+    /**
+     * Discovered peers are added once, with no history.
+     */
+    @Test
+    public void discoveredPeersTopUpTheTable() throws IOException {
+        PeerDatabase peerDatabase = new PeerDatabase(peersFile);
+        InetAddress discovered = InetAddress.getByName("10.0.0.4");
+        peerDatabase.addPeer(discovered, 4877);
+        peerDatabase.addPeer(discovered, 4877);
+
+        Assert.assertEquals(1, peerDatabase.size());
+        Assert.assertEquals(0, peerDatabase.getBestPeers(1).get(0).getConnections());
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        if (peersFile.exists())
+            peersFile.delete();
+    }
+}
@@ -0,0 +1,111 @@
+package fermatOrg;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.BalanceType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import org.blockchainj.core.*;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletTransaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class RemoveAddressesTest {
+    private final File walletFile;
+    private final File inputFile;
+    private final File eventsFile;
+
+    public RemoveAddressesTest() {
+        walletFile = new File("removeAddressesTest");
+        inputFile = new File("removeAddressesTest.txt");
+        eventsFile = new File("removeAddressesTest.testevents");
+        cleanUp();
+    }
+
+    /**
+     * Removed addresses are no longer watched, and their history is kept or dropped as requested.
+     */
+    @Test
+    public void removeTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address kept = new ECKey().toAddress(params);
+        Address retired = new ECKey().toAddress(params);
+        Address dropped = new ECKey().toAddress(params);
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddresses(Arrays.asList(kept, retired, dropped), 1475280000);
+
+        // one transaction pays to all of them.
+        Transaction transaction = new Transaction(params);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new Script(new byte[0]));
+        transaction.addOutput(Coin.valueOf(1000), kept);
+        transaction.addOutput(Coin.valueOf(2000), retired);
+        transaction.addOutput(Coin.valueOf(4000), dropped);
+        transaction.getConfidence().setAppearedAtChainHeight(100);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, transaction));
+        wallet.saveToFile(walletFile);
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        watchOnlyWallet.importAddress(dropped.toBase58(), "customer");
+        Assert.assertEquals(7000, watchOnlyWallet.getWalletBalance(BalanceType.CONFIRMED));
+
+        FileWriter writer = new FileWriter(inputFile);
+        writer.write(retired.toBase58() + "\n");
+        writer.close();
+        Assert.assertEquals(1, watchOnlyWallet.removeAddresses(inputFile, false));
+        Assert.assertEquals(1, watchOnlyWallet.removeAddresses(Arrays.asList(dropped.toBase58(), retired.toBase58()), true));
+        Assert.assertEquals(0, watchOnlyWallet.removeAddresses(Collections.singletonList(dropped.toBase58())));
+
+        Assert.assertEquals(1, watchOnlyWallet.getAddressesSize());
+        Assert.assertEquals(kept.toBase58(), watchOnlyWallet.getAddresses().get(0));
+        Assert.assertEquals(0, watchOnlyWallet.getAddressBalance(retired.toBase58()));
+
+        // the retired address keeps its history, the dropped one loses it with its group.
+        Assert.assertEquals(1, watchOnlyWallet.getAddressHistory(retired.toBase58(), 0, 10).size());
+        Assert.assertTrue(watchOnlyWallet.getAddressHistory(dropped.toBase58(), 0, 10).isEmpty());
+        Assert.assertEquals(3000, watchOnlyWallet.getWalletBalance(BalanceType.CONFIRMED));
+        Assert.assertEquals(0, watchOnlyWallet.getGroupBalance("customer", BalanceType.CONFIRMED));
+        Assert.assertNull(watchOnlyWallet.getGroup(dropped.toBase58()));
+        watchOnlyWallet.flush();
+
+        WatchOnlyWallet loaded = WatchOnlyWallet.loadFromFile(walletFile);
+        Assert.assertEquals(1, loaded.getAddressesSize());
+        Assert.assertTrue(loaded.getAddressHistory(dropped.toBase58(), 0, 10).isEmpty());
+        Assert.assertEquals(1, loaded.getAddressHistory(kept.toBase58(), 0, 10).size());
+        Assert.assertEquals(3000, loaded.getWalletBalance(BalanceType.CONFIRMED));
+    }
+
+    /**
+     * The events of removed addresses are gone, the others are still pending.
+     */
+    @Test
+    public void removeEventsTest() throws Exception {
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(eventsFile);
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "kept", NetworkType.TEST, 1000, "hash"));
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "dropped", NetworkType.TEST, 1000, "hash"));
+        eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "dropped", NetworkType.TEST, 1000, "other", 100));
+
+        Assert.assertEquals(2, eventNotificationManager.removeEvents(Collections.singleton("dropped")));
+        Assert.assertEquals(1, eventNotificationManager.getPendingNotificationEvents().size());
+        Assert.assertEquals("kept", eventNotificationManager.getPendingNotificationEvents().get(0).getAddress());
+        Assert.assertTrue(eventNotificationManager.getTransactionsAbove(0).isEmpty());
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        inputFile.delete();
+        eventsFile.delete();
+        new File(walletFile.getName() + ".history").delete();
+        new File(walletFile.getName() + ".groups").delete();
+        new File(walletFile.getName() + ".index").delete();
+        new File(walletFile.getName() + ".events").delete();
+    }
+}
@@ -0,0 +1,72 @@
+package fermatOrg;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class ShardedWalletTest {
+    private static final int SHARDS = 4;
+    private final File walletFile;
+    private final File inputFile;
+
+    public ShardedWalletTest() {
+        walletFile = new File("shardedWalletTest");
+        inputFile = new File("shardedInputFile.txt");
+        cleanUp();
+    }
+
+    /**
+     * Addresses are spread among shards and all public methods aggregate across them.
+     */
+    @Test
+    public void importAndAggregateTest() throws IoWalletException, AddressFormatException, IOException {
+        WatchOnlyWallet wallet = new WatchOnlyWallet(walletFile, NetworkType.TEST, SHARDS);
+        Assert.assertEquals(SHARDS, wallet.getShardCount());
+
+        // random addresses, so they end up in different shards.
+        List<String> addresses = new ArrayList<>();
+        FileWriter writer = new FileWriter(inputFile);
+        for (int i = 0; i < 100; i++){
+            String address = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+            addresses.add(address);
+            writer.write(address + System.lineSeparator());
+        }
+        writer.close();
+
+        wallet.importAddresses(inputFile);
+        String manualAddress = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+        wallet.importAddress(manualAddress);
+
+        Assert.assertEquals(101, wallet.getAddressesSize());
+        Assert.assertTrue(wallet.getAddresses().containsAll(addresses));
+        Assert.assertTrue(wallet.getAddresses().contains(manualAddress));
+        Assert.assertEquals(0, wallet.getAddressBalance(manualAddress));
+        Assert.assertEquals(0, wallet.getWalletBalance());
+
+        // each shard is saved on its own file.
+        for (int i = 1; i < SHARDS; i++)
+            Assert.assertTrue(new File(walletFile.getPath() + ".shard" + i).exists());
+
+        WatchOnlyWallet loaded = WatchOnlyWallet.loadFromFile(walletFile);
+        Assert.assertEquals(SHARDS, loaded.getShardCount());
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        inputFile.delete();
+        for (int i = 1; i < SHARDS; i++)
+            new File(walletFile.getPath() + ".shard" + i).delete();
+    }
+}
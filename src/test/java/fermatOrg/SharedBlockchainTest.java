@@ -0,0 +1,70 @@
+package fermatOrg;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoPBlockchainException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.network.IoPBlockchain;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class SharedBlockchainTest {
+    private final File firstWalletFile;
+    private final File secondWalletFile;
+    private final File directory;
+    private WatchOnlyWallet firstWallet;
+    private WatchOnlyWallet secondWallet;
+
+    public SharedBlockchainTest() throws IoWalletException, AddressFormatException {
+        firstWalletFile = new File("firstWalletTest");
+        secondWalletFile = new File("secondWalletTest");
+        directory = new File(".");
+        cleanUp();
+
+        firstWallet = new WatchOnlyWallet(firstWalletFile, NetworkType.PRODUCTION);
+        firstWallet.importAddress("pRo2xwwWF2mKC78kwUCZiYaLeVUn4yCpbo"); //randomly selectec address from mainnet
+
+        secondWallet = new WatchOnlyWallet(secondWalletFile, NetworkType.PRODUCTION);
+        secondWallet.importAddress("p6YdVrQFGfp8AuhpnaqgAVHibNVd3LxbTU"); //zero balance address
+    }
+
+    /**
+     * Both wallets sync with a single connection, and detaching one keeps the other connected.
+     */
+    @Test
+    public void sharedConnectionTest() throws IoPBlockchainException, AddressFormatException {
+        IoPBlockchain sharedBlockchain = new IoPBlockchain(NetworkType.PRODUCTION, directory);
+
+        Assert.assertSame(sharedBlockchain, firstWallet.connect(sharedBlockchain));
+        Assert.assertSame(sharedBlockchain, secondWallet.connect(sharedBlockchain));
+        Assert.assertEquals(2, sharedBlockchain.getWalletCount());
+        Assert.assertTrue(sharedBlockchain.isConnected());
+        Assert.assertTrue(sharedBlockchain.isSynced());
+
+        Assert.assertTrue(firstWallet.getAddressBalance("pRo2xwwWF2mKC78kwUCZiYaLeVUn4yCpbo") != 0); //this address has funds.
+        Assert.assertTrue(secondWallet.getAddressBalance("p6YdVrQFGfp8AuhpnaqgAVHibNVd3LxbTU") == 0); //this address has no funds.
+
+        secondWallet.detach();
+        Assert.assertEquals(1, sharedBlockchain.getWalletCount());
+        Assert.assertTrue(sharedBlockchain.isConnected());
+
+        sharedBlockchain.disconnect();
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        firstWalletFile.delete();
+        secondWalletFile.delete();
+
+        File blockchain = new File(directory, "org.IoP.production");
+        if (blockchain.exists())
+            blockchain.delete();
+
+        File peers = new File(directory, "org.IoP.production.peers");
+        if (peers.exists())
+            peers.delete();
+    }
+}
@@ -0,0 +1,96 @@
+package fermatOrg;
+
+import fermatOrg.exceptions.AddressFormatException;
+import fermatOrg.exceptions.IoWalletException;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SnapshotLoadTest {
+    private final File walletFile;
+    private final File inputFile;
+    private final File indexFile;
+
+    public SnapshotLoadTest() {
+        walletFile = new File("snapshotWalletTest");
+        inputFile = new File("snapshotInputFile.txt");
+        indexFile = new File("snapshotWalletTest.index");
+        cleanUp();
+    }
+
+    /**
+     * A wallet opened from its snapshot answers queries before the full wallet is loaded, and loads it when needed.
+     */
+    @Test
+    public void loadFromSnapshotTest() throws IoWalletException, AddressFormatException, IOException {
+        WatchOnlyWallet wallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        List<String> addresses = new ArrayList<>();
+        FileWriter writer = new FileWriter(inputFile);
+        for (int i = 0; i < 50; i++){
+            String address = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+            addresses.add(address);
+            writer.write(address + System.lineSeparator());
+        }
+        writer.close();
+        wallet.importAddresses(inputFile);
+        wallet.flush();
+        Assert.assertTrue(indexFile.exists());
+
+        WatchOnlyWallet opened = WatchOnlyWallet.loadFromSnapshot(walletFile, false);
+        Assert.assertFalse(opened.isLoaded());
+        Assert.assertEquals(50, opened.getAddressesSize());
+        Assert.assertTrue(opened.getAddresses().containsAll(addresses));
+        Assert.assertEquals(0, opened.getWalletBalance());
+        Assert.assertEquals(0, opened.getAddressBalance(addresses.get(0)));
+        Assert.assertFalse(opened.isLoaded());
+
+        // importing needs the full wallet.
+        String address = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+        opened.importAddress(address);
+        Assert.assertTrue(opened.isLoaded());
+        Assert.assertEquals(51, opened.getAddressesSize());
+    }
+
+    /**
+     * A wallet loaded on the background swaps the full wallet in when the load ends, and an unchanged wallet doesn't write its snapshot again.
+     */
+    @Test
+    public void backgroundLoadTest() throws IoWalletException, AddressFormatException, InterruptedException {
+        WatchOnlyWallet wallet = new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        String address = new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58();
+        wallet.importAddress(address);
+        wallet.flush();
+
+        WatchOnlyWallet opened = WatchOnlyWallet.loadFromSnapshot(walletFile, true);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!opened.isLoaded() && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        Assert.assertTrue(opened.isLoaded());
+        Assert.assertTrue(opened.getAddresses().contains(address));
+
+        Assert.assertTrue(indexFile.setLastModified(0));
+        opened.flush();
+        Assert.assertEquals(0, indexFile.lastModified());
+
+        opened.importAddress(new ECKey().toAddress(IoP_TestNet3Params.get()).toBase58());
+        opened.flush();
+        Assert.assertNotEquals(0, indexFile.lastModified());
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        inputFile.delete();
+        indexFile.delete();
+        new File(walletFile.getName() + ".events").delete();
+    }
+}
@@ -0,0 +1,31 @@
+package fermatOrg;
+
+import fermatOrg.network.IoPBlockchain;
+import fermatOrg.network.SyncStatus;
+import fermatOrg.wallet.event.EventNotificationManager;
+import org.blockchainj.core.Context;
+import org.blockchainj.params.IoP.IoP_MainNetParams;
+import org.blockchainj.wallet.Wallet;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SyncStatusTest {
+
+    /**
+     * The sync state must be readable before connecting to the blockchain.
+     */
+    @Test
+    public void syncStatusBeforeConnectTest() {
+        Wallet wallet = new Wallet(new Context(IoP_MainNetParams.get()));
+        IoPBlockchain blockchain = new IoPBlockchain(wallet, new EventNotificationManager());
+
+        SyncStatus status = blockchain.getSyncStatus();
+        Assert.assertNotNull(status);
+        Assert.assertEquals(0, status.getPeerCount());
+        Assert.assertEquals(0, status.getLag());
+
+        Assert.assertEquals(wallet.getLastBlockSeenHeight(), blockchain.getBlockchainHeight());
+        Assert.assertFalse(blockchain.isConnected());
+        Assert.assertFalse(blockchain.isSynced());
+    }
+}
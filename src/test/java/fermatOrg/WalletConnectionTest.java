@@ -64,7 +64,7 @@ public class WalletConnectionTest {
     public void cleanUp(){
         this.walletFile.delete();
 
-        File blockchain = new File("org.IoP.production");
+        File blockchain = new File(walletFile.getName() + ".org.IoP.production");
         if (blockchain.exists())
             blockchain.delete();
 
@@ -0,0 +1,173 @@
+package fermatOrg;
+
+import fermatOrg.http.WalletServer;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import org.blockchainj.core.*;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletTransaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+
+public class WalletServerTest {
+    private final File walletFile;
+    private static final String TOKEN = "walletServerTestToken";
+
+    public WalletServerTest() {
+        walletFile = new File("walletServerTest");
+        cleanUp();
+    }
+
+    /**
+     * A batch of calls is answered in order, with an error for the calls that fail. Pending events are polled and confirmed.
+     */
+    @Test
+    public void serverTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address address = new ECKey().toAddress(params);
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(address, 1475280000);
+        Transaction payment = new Transaction(params);
+        payment.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new Script(new byte[0]));
+        payment.addOutput(Coin.valueOf(1500), address);
+        payment.getConfidence().setAppearedAtChainHeight(100);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, payment));
+        wallet.saveToFile(walletFile);
+
+        // an event waiting for its confirmation when the wallet is opened.
+        new EventNotificationManager(new File(walletFile.getName() + ".events")).addNewEvent(new IncomingTransactionEvent(this,
+                address.toBase58(), NetworkType.TEST, 1500, payment.getHashAsString(), 100));
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        WalletServer server = new WalletServer(watchOnlyWallet, new InetSocketAddress("127.0.0.1", 0), 2);
+        server.setAuthToken(TOKEN);
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            String responses = post(url + "/api", "[" +
+                    "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"getWalletBalance\"}," +
+                    "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"getAddressBalance\",\"params\":{\"address\":\"" + address.toBase58() + "\"}}," +
+                    "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"getAddressesSize\"}," +
+                    "{\"jsonrpc\":\"2.0\",\"id\":4,\"method\":\"getAddressBalance\",\"params\":{\"address\":\"invalid\"}}," +
+                    "{\"jsonrpc\":\"2.0\",\"id\":5,\"method\":\"unknown\"}]");
+            Assert.assertTrue(responses, responses.contains("{\"jsonrpc\":\"2.0\",\"id\":1,\"result\":1500}"));
+            Assert.assertTrue(responses, responses.contains("{\"jsonrpc\":\"2.0\",\"id\":2,\"result\":1500}"));
+            Assert.assertTrue(responses, responses.contains("{\"jsonrpc\":\"2.0\",\"id\":3,\"result\":1}"));
+            Assert.assertTrue(responses, responses.contains("\"id\":4,\"error\":{\"code\":-32602"));
+            Assert.assertTrue(responses, responses.contains("\"id\":5,\"error\":{\"code\":-32601"));
+            Assert.assertTrue(post(url + "/api", "{\"id\":1").contains("\"code\":-32700"));
+
+            // the pending event is returned right away.
+            String events = get(url + "/events?wait=5");
+            Assert.assertTrue(events, events.contains("\"transactionHash\":\"" + payment.getHashAsString() + "\""));
+            Assert.assertTrue(events, events.contains("\"stage\":\"CONFIRMED\""));
+
+            String confirmation = post(url + "/api", "{\"jsonrpc\":\"2.0\",\"id\":6,\"method\":\"confirmEventReception\",\"params\":{" +
+                    "\"transactionHash\":\"" + payment.getHashAsString() + "\",\"address\":\"" + address.toBase58() + "\"," +
+                    "\"stage\":\"CONFIRMED\",\"height\":100}}");
+            Assert.assertEquals("{\"jsonrpc\":\"2.0\",\"id\":6,\"result\":true}", confirmation);
+            Assert.assertTrue(watchOnlyWallet.getPendingNotificationEvents().isEmpty());
+
+            // with nothing pending, the poll waits and ends empty.
+            long start = System.currentTimeMillis();
+            Assert.assertEquals("[]", get(url + "/events?wait=1"));
+            Assert.assertTrue(System.currentTimeMillis() - start >= 900);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    /**
+     * Without a token the server only answers queries. With a token, requests without it are rejected. Documents nested too deep are
+     * answered with a parse error, and group names that can't be stored with invalid params.
+     */
+    @Test
+    public void securityTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address address = new ECKey().toAddress(params);
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(address, 1475280000);
+        wallet.saveToFile(walletFile);
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        WalletServer server = new WalletServer(watchOnlyWallet, new InetSocketAddress("127.0.0.1", 0), 2);
+        server.start();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort();
+        try {
+            String imported = post(url + "/api", "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"importAddress\",\"params\":{" +
+                    "\"address\":\"" + new ECKey().toAddress(params).toBase58() + "\"}}");
+            Assert.assertTrue(imported, imported.contains("\"code\":-32001"));
+            Assert.assertEquals(1, watchOnlyWallet.getAddressesSize());
+            Assert.assertTrue(post(url + "/api", "{\"jsonrpc\":\"2.0\",\"id\":2,\"method\":\"getAddressesSize\"}").contains("\"result\":1"));
+
+            StringBuilder nested = new StringBuilder();
+            for (int i = 0; i < 100000; i++)
+                nested.append('[');
+            Assert.assertTrue(post(url + "/api", nested.toString()).contains("\"code\":-32700"));
+
+            server.setAuthToken(TOKEN);
+            HttpURLConnection connection = (HttpURLConnection) new URL(url + "/events?wait=0").openConnection();
+            Assert.assertEquals(401, connection.getResponseCode());
+            Assert.assertEquals("[]", get(url + "/events?wait=0"));
+
+            // a group name the groups file can't keep is rejected before the address is imported.
+            imported = post(url + "/api", "{\"jsonrpc\":\"2.0\",\"id\":3,\"method\":\"importAddress\",\"params\":{" +
+                    "\"address\":\"" + new ECKey().toAddress(params).toBase58() + "\",\"group\":\"a\\nb\"}}");
+            Assert.assertTrue(imported, imported.contains("\"code\":-32602"));
+            Assert.assertEquals(1, watchOnlyWallet.getAddressesSize());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private String post(String url, String body) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Authorization", "Bearer " + TOKEN);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        OutputStream out = connection.getOutputStream();
+        out.write(body.getBytes("UTF-8"));
+        out.close();
+        return read(connection);
+    }
+
+    private String get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Authorization", "Bearer " + TOKEN);
+        return read(connection);
+    }
+
+    private String read(HttpURLConnection connection) throws IOException {
+        Assert.assertEquals(200, connection.getResponseCode());
+        InputStream in = connection.getInputStream();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            body.write(buffer, 0, read);
+        in.close();
+        return new String(body.toByteArray(), "UTF-8");
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        new File(walletFile.getName() + ".history").delete();
+        new File(walletFile.getName() + ".index").delete();
+        new File(walletFile.getName() + ".groups").delete();
+        new File(walletFile.getName() + ".events").delete();
+    }
+}
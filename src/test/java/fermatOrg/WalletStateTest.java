@@ -0,0 +1,106 @@
+package fermatOrg;
+
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.BalanceType;
+import fermatOrg.wallet.WalletState;
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.*;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.blockchainj.wallet.WalletTransaction;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+
+public class WalletStateTest {
+    private final File walletFile;
+
+    public WalletStateTest() {
+        walletFile = new File("walletStateTest");
+        cleanUp();
+    }
+
+    /**
+     * The state has the ledger of the watched addresses and is published again when addresses are imported or removed.
+     */
+    @Test
+    public void stateTest() throws Exception {
+        NetworkParameters params = IoP_TestNet3Params.get();
+        Address address = new ECKey().toAddress(params);
+        Address other = new ECKey().toAddress(params);
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(address, 1475280000);
+        wallet.addWatchedAddress(other, 1475280000);
+        wallet.setLastBlockSeenHash(Sha256Hash.of(new byte[]{1}));
+        wallet.setLastBlockSeenHeight(120);
+
+        Transaction confirmed = createTransaction(address, 1200);
+        confirmed.getConfidence().setAppearedAtChainHeight(102);
+        Transaction pending = createTransaction(address, 1000);
+        pending.getConfidence().setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+        Transaction otherPayment = createTransaction(other, 500);
+        otherPayment.getConfidence().setAppearedAtChainHeight(110);
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, confirmed));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.PENDING, pending));
+        wallet.addWalletTransaction(new WalletTransaction(WalletTransaction.Pool.UNSPENT, otherPayment));
+        wallet.saveToFile(walletFile);
+
+        WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+        WalletState state = watchOnlyWallet.getState();
+        Assert.assertEquals(2, state.getAddressCount());
+        Assert.assertEquals(120, state.getSyncHeight());
+        Assert.assertEquals(watchOnlyWallet.getWalletBalance(BalanceType.ESTIMATED), state.getWalletBalance());
+        Assert.assertEquals(1700, state.getWalletBalance(BalanceType.CONFIRMED));
+        Assert.assertEquals(watchOnlyWallet.getAddressBalance(address.toBase58()), state.getAddressBalance(address.toBase58()));
+        Assert.assertEquals(1000, state.getAddressBalance(address.toBase58(), BalanceType.UNCONFIRMED));
+        Assert.assertTrue(state.isWatched(other.toBase58()));
+
+        // a new address is published with no balance, the old state doesn't change.
+        Address imported = new ECKey().toAddress(params);
+        watchOnlyWallet.importAddress(imported.toBase58());
+        WalletState importedState = waitForState(watchOnlyWallet, state);
+        Assert.assertEquals(3, importedState.getAddressCount());
+        Assert.assertEquals(0, importedState.getAddressBalance(imported.toBase58()));
+        Assert.assertEquals(2, state.getAddressCount());
+
+        // removed addresses and their balance are left out, even if their history is kept.
+        watchOnlyWallet.removeAddresses(Collections.singletonList(other.toBase58()));
+        WalletState removedState = waitForState(watchOnlyWallet, importedState);
+        Assert.assertEquals(2, removedState.getAddressCount());
+        Assert.assertTrue(removedState.isWatched(other.toBase58()) == false);
+        Assert.assertEquals(2200, removedState.getWalletBalance());
+        Assert.assertEquals(1200, removedState.getWalletBalance(BalanceType.CONFIRMED));
+    }
+
+    /**
+     * states are built on another thread, waits for the one after the previous.
+     */
+    private WalletState waitForState(WatchOnlyWallet watchOnlyWallet, WalletState previous) throws InterruptedException {
+        for (int i = 0; i < 100 && watchOnlyWallet.getState() == previous; i++)
+            Thread.sleep(50);
+        // other changes of the same import may publish it again.
+        Thread.sleep(200);
+        Assert.assertNotSame(previous, watchOnlyWallet.getState());
+        return watchOnlyWallet.getState();
+    }
+
+    private Transaction createTransaction(Address address, int value) {
+        NetworkParameters params = address.getParameters();
+        Transaction transaction = new Transaction(params);
+        transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new Script(new byte[0]));
+        transaction.addOutput(Coin.valueOf(value), address);
+        return transaction;
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        walletFile.delete();
+        new File(walletFile.getName() + ".history").delete();
+        new File(walletFile.getName() + ".index").delete();
+        new File(walletFile.getName() + ".groups").delete();
+        new File(walletFile.getName() + ".events").delete();
+    }
+}
@@ -0,0 +1,60 @@
+package fermatOrg;
+
+import fermatOrg.network.WatchedAddressIndex;
+import org.blockchainj.core.Address;
+import org.blockchainj.core.ECKey;
+import org.blockchainj.params.IoP.IoP_MainNetParams;
+import org.blockchainj.script.Script;
+import org.blockchainj.script.ScriptBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class WatchedAddressIndexTest {
+
+    /**
+     * Output scripts of watched addresses match, other scripts don't.
+     */
+    @Test
+    public void matchTest() {
+        Address watched = new ECKey().toAddress(IoP_MainNetParams.get());
+        Address other = new ECKey().toAddress(IoP_MainNetParams.get());
+        Address scriptHash = Address.fromP2SHHash(IoP_MainNetParams.get(), new ECKey().getPubKeyHash());
+
+        WatchedAddressIndex index = new WatchedAddressIndex();
+        index.add(ScriptBuilder.createOutputScript(watched));
+        index.add(ScriptBuilder.createOutputScript(scriptHash));
+
+        Assert.assertTrue(index.matches(ScriptBuilder.createOutputScript(watched).getProgram()));
+        Assert.assertTrue(index.matches(ScriptBuilder.createOutputScript(scriptHash).getProgram()));
+        Assert.assertTrue(index.matches(ScriptBuilder.createOutputScript(other).getProgram()) == false);
+        Assert.assertTrue(index.matches(ScriptBuilder.createOutputScript(new ECKey()).getProgram()) == false);
+        Assert.assertEquals(3, WatchedAddressIndex.getHash160Offset(ScriptBuilder.createOutputScript(watched).getProgram()));
+        Assert.assertEquals(2, WatchedAddressIndex.getHash160Offset(ScriptBuilder.createOutputScript(scriptHash).getProgram()));
+        Assert.assertEquals(2, index.size());
+    }
+
+    /**
+     * The index grows past its initial capacity and removed addresses no longer match, without losing the others.
+     */
+    @Test
+    public void addRemoveTest() {
+        List<Script> scripts = new ArrayList<>();
+        for (int i = 0; i < 1000; i++)
+            scripts.add(ScriptBuilder.createOutputScript(new ECKey().toAddress(IoP_MainNetParams.get())));
+
+        WatchedAddressIndex index = new WatchedAddressIndex(scripts.subList(0, 10));
+        for (Script script : scripts)
+            index.add(script);
+        Assert.assertEquals(scripts.size(), index.size());
+
+        for (int i = 0; i < scripts.size(); i += 2)
+            index.remove(scripts.get(i));
+        Assert.assertEquals(scripts.size() / 2, index.size());
+
+        for (int i = 0; i < scripts.size(); i++)
+            Assert.assertEquals(i % 2 == 1, index.matches(scripts.get(i).getProgram()));
+    }
+}
@@ -0,0 +1,191 @@
+package fermatOrg;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import fermatOrg.http.WebhookSink;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.WatchOnlyWallet;
+import fermatOrg.wallet.event.EventNotificationManager;
+import fermatOrg.wallet.event.IncomingTransactionEvent;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class WebhookSinkTest {
+    private final File walletFile;
+
+    public WebhookSinkTest() {
+        walletFile = new File("webhookSinkTest");
+        cleanUp();
+    }
+
+    /**
+     * The pending events are posted in one batch, retried after a failure and confirmed only once the endpoint accepts them.
+     */
+    @Test
+    public void deliveryTest() throws Exception {
+        new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(new File(walletFile.getName() + ".events"));
+        for (int i = 0; i < 3; i++)
+            eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address" + i, NetworkType.TEST, 1000 + i, "hash" + i, 100));
+        final WatchOnlyWallet watchOnlyWallet = WatchOnlyWallet.loadFromFile(walletFile);
+
+        // the stand in endpoint fails the first request.
+        final List<String> bodies = new CopyOnWriteArrayList<>();
+        final List<Integer> pendingOnRequest = new CopyOnWriteArrayList<>();
+        final AtomicInteger requests = new AtomicInteger();
+        HttpServer endpoint = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        endpoint.createContext("/events", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                bodies.add(read(exchange.getRequestBody()));
+                pendingOnRequest.add(watchOnlyWallet.getPendingNotificationEvents().size());
+                exchange.sendResponseHeaders(requests.incrementAndGet() == 1 ? 503 : 200, -1);
+                exchange.close();
+            }
+        });
+        endpoint.start();
+
+        WebhookSink sink = new WebhookSink(watchOnlyWallet, new URL("http://127.0.0.1:" + endpoint.getAddress().getPort() + "/events"), 1);
+        sink.setBackoff(50, 200, TimeUnit.MILLISECONDS);
+        try {
+            sink.start();
+            for (int i = 0; i < 100 && !watchOnlyWallet.getPendingNotificationEvents().isEmpty(); i++)
+                Thread.sleep(50);
+
+            Assert.assertTrue(watchOnlyWallet.getPendingNotificationEvents().isEmpty());
+            Assert.assertEquals(0, sink.getPendingCount());
+            Assert.assertEquals(2, requests.get());
+            // nothing was confirmed after the failed request.
+            Assert.assertEquals(3, (int) pendingOnRequest.get(1));
+            Assert.assertEquals(bodies.get(0), bodies.get(1));
+            for (int i = 0; i < 3; i++)
+                Assert.assertTrue(bodies.get(1), bodies.get(1).contains("\"transactionHash\":\"hash" + i + "\""));
+        } finally {
+            sink.stop();
+            endpoint.stop(0);
+        }
+    }
+
+    /**
+     * A batch rejected with a client error is not posted again, its events stay pending in the wallet.
+     */
+    @Test
+    public void rejectionTest() throws Exception {
+        final WatchOnlyWallet watchOnlyWallet = newWallet();
+        final AtomicInteger requests = new AtomicInteger();
+        HttpServer endpoint = newEndpoint(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                read(exchange.getRequestBody());
+                requests.incrementAndGet();
+                exchange.sendResponseHeaders(400, -1);
+                exchange.close();
+            }
+        });
+
+        WebhookSink sink = new WebhookSink(watchOnlyWallet, new URL("http://127.0.0.1:" + endpoint.getAddress().getPort() + "/events"), 2);
+        sink.setBackoff(10, 20, TimeUnit.MILLISECONDS);
+        try {
+            sink.start();
+            for (int i = 0; i < 100 && (requests.get() == 0 || sink.getPendingCount() > 0); i++)
+                Thread.sleep(50);
+            Thread.sleep(300);
+
+            // one batch per sender at most, never retried.
+            Assert.assertTrue(String.valueOf(requests.get()), requests.get() >= 1 && requests.get() <= 2);
+            Assert.assertEquals(0, sink.getPendingCount());
+            Assert.assertEquals(3, watchOnlyWallet.getPendingNotificationEvents().size());
+        } finally {
+            sink.stop();
+            endpoint.stop(0);
+        }
+    }
+
+    /**
+     * A batch accepted after the webhook was stopped is not confirmed, its events are delivered again later.
+     */
+    @Test
+    public void stopTest() throws Exception {
+        final WatchOnlyWallet watchOnlyWallet = newWallet();
+        final CountDownLatch received = new CountDownLatch(1);
+        HttpServer endpoint = newEndpoint(new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                read(exchange.getRequestBody());
+                received.countDown();
+                try {
+                    Thread.sleep(300);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+            }
+        });
+
+        WebhookSink sink = new WebhookSink(watchOnlyWallet, new URL("http://127.0.0.1:" + endpoint.getAddress().getPort() + "/events"), 1);
+        try {
+            sink.start();
+            Assert.assertTrue(received.await(5, TimeUnit.SECONDS));
+            sink.stop();
+            Thread.sleep(500);
+            Assert.assertEquals(3, watchOnlyWallet.getPendingNotificationEvents().size());
+        } finally {
+            sink.stop();
+            endpoint.stop(0);
+        }
+    }
+
+    /**
+     * a wallet with three pending events.
+     */
+    private WatchOnlyWallet newWallet() throws Exception {
+        new WatchOnlyWallet(walletFile, NetworkType.TEST);
+        EventNotificationManager eventNotificationManager = new EventNotificationManager(new File(walletFile.getName() + ".events"));
+        for (int i = 0; i < 3; i++)
+            eventNotificationManager.addNewEvent(new IncomingTransactionEvent(this, "address" + i, NetworkType.TEST, 1000 + i, "hash" + i, 100));
+        eventNotificationManager.close();
+        return WatchOnlyWallet.loadFromFile(walletFile);
+    }
+
+    private static HttpServer newEndpoint(HttpHandler handler) throws IOException {
+        HttpServer endpoint = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        endpoint.createContext("/events", handler);
+        endpoint.start();
+        return endpoint;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+            body.write(buffer, 0, read);
+        in.close();
+        return new String(body.toByteArray(), "UTF-8");
+    }
+
+    @org.junit.After
+    public void cleanUp(){
+        File[] files = new File(".").listFiles();
+        if (files != null) {
+            for (File file : files){
+                if (file.getName().startsWith(walletFile.getName()))
+                    file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package fermatOrg.network;
+
+import fermatOrg.wallet.WatchOnlyWallet;
+import org.blockchainj.core.*;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class BloomFilterMonitorTest {
+    private final NetworkParameters params = IoP_TestNet3Params.get();
+    private final Address watched = new ECKey().toAddress(params);
+
+    /**
+     * When the peers send many more false positives than the target rate allows, the filter is recalculated and the measures start again.
+     */
+    @Test
+    public void recalculationTest() throws Exception {
+        BloomFilterMonitor monitor = newMonitor();
+        PeerGroup peerGroup = new PeerGroup(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        monitor.setPeerGroup(peerGroup);
+
+        // each block has one match and ten false positives out of a hundred transactions, a rate of about 0.1.
+        for (int i = 0; i < 99; i++)
+            monitor.onBlocksDownloaded(null, null, newFilteredBlock(1, 10, 100), 0);
+        BloomFilterStats stats = monitor.getStats();
+        Assert.assertEquals(0, stats.getRecalculations());
+        Assert.assertTrue(stats.toString(), stats.getObservedRate() > stats.getTargetRate() * 4);
+        Assert.assertEquals(99 * 10, stats.getTotalFalsePositives());
+        Assert.assertEquals(99, stats.getTotalMatches());
+
+        // the filter had time to be applied by the peers, so it is recalculated.
+        monitor.onBlocksDownloaded(null, null, newFilteredBlock(1, 10, 100), 0);
+        Assert.assertEquals(1, monitor.getStats().getRecalculations());
+
+        // measures start again, so the next block alone doesn't recalculate.
+        monitor.onBlocksDownloaded(null, null, newFilteredBlock(1, 10, 100), 0);
+        Assert.assertEquals(1, monitor.getStats().getRecalculations());
+        Assert.assertEquals(101, monitor.getStats().getBlocks());
+    }
+
+    /**
+     * A rate under the tolerance never recalculates the filter.
+     */
+    @Test
+    public void withinToleranceTest() throws Exception {
+        BloomFilterMonitor monitor = newMonitor();
+        PeerGroup peerGroup = new PeerGroup(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        monitor.setPeerGroup(peerGroup);
+        monitor.setTargetRate(0.05);
+
+        for (int i = 0; i < 200; i++)
+            monitor.onBlocksDownloaded(null, null, newFilteredBlock(1, 10, 100), 0);
+
+        BloomFilterStats stats = monitor.getStats();
+        Assert.assertEquals(0, stats.getRecalculations());
+        Assert.assertEquals(0.1, stats.getObservedRate(), 0.01);
+    }
+
+    private BloomFilterMonitor newMonitor() {
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(watched);
+        return new BloomFilterMonitor(Collections.singletonList(wallet));
+    }
+
+    /**
+     * a filtered block with the specified amount of transactions that pay to the watched address, of other transactions sent by the peer,
+     * and of transactions in the block.
+     */
+    private FilteredBlock newFilteredBlock(int matches, int falsePositives, int transactionCount) {
+        List<Transaction> sent = new ArrayList<>();
+        for (int i = 0; i < matches + falsePositives; i++){
+            Transaction transaction = new Transaction(params);
+            transaction.addInput(Sha256Hash.of(new ECKey().getPubKey()), 0, new Script(new byte[0]));
+            transaction.addOutput(Coin.valueOf(1000), i < matches ? watched : new ECKey().toAddress(params));
+            sent.add(transaction);
+        }
+
+        List<Sha256Hash> hashes = new ArrayList<>();
+        byte[] includeBits = new byte[(transactionCount + 7) / 8];
+        for (int i = 0; i < transactionCount; i++){
+            if (i < sent.size()) {
+                hashes.add(sent.get(i).getHash());
+                Utils.setBitLE(includeBits, i);
+            } else
+                hashes.add(Sha256Hash.of(new ECKey().getPubKey()));
+        }
+
+        PartialMerkleTree merkleTree = PartialMerkleTree.buildFromLeaves(params, includeBits, hashes);
+        Sha256Hash merkleRoot = merkleTree.getTxnHashAndMerkleRoot(new ArrayList<Sha256Hash>());
+        Block header = new Block(params, Block.BLOCK_VERSION_GENESIS, Sha256Hash.ZERO_HASH, merkleRoot, Utils.currentTimeSeconds(),
+                Block.EASIEST_DIFFICULTY_TARGET, 0, new ArrayList<Transaction>());
+        FilteredBlock filteredBlock = new FilteredBlock(params, header, merkleTree);
+        for (Transaction transaction : sent)
+            filteredBlock.provideTransaction(transaction);
+        return filteredBlock;
+    }
+}
@@ -0,0 +1,64 @@
+package fermatOrg.wallet;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+public class BalanceMapTest {
+
+    /**
+     * A map derived with changed addresses has them and the same total as one built from scratch, and the map it came from doesn't change.
+     */
+    @Test
+    public void derivedMapTest() throws Exception {
+        Map<String, long[]> balances = new HashMap<>();
+        for (int i = 0; i < 5000; i++)
+            balances.put("address" + i, new long[]{i, 1, 0});
+        BalanceMap map = BalanceMap.of(balances);
+        Assert.assertEquals(5000, map.size());
+        Assert.assertEquals(4999L * 5000 / 2, map.getTotal()[0]);
+
+        BalanceMap derived = map.with("address10", new long[]{0, 0, 10}).with("address11", null).with("new", new long[]{100, 0, 0});
+        Assert.assertEquals(5000, derived.size());
+        Assert.assertEquals(10, derived.get("address10")[2]);
+        Assert.assertNull(derived.get("address11"));
+        Assert.assertEquals(100, derived.get("new")[0]);
+        Assert.assertEquals(4999L * 5000 / 2 - 10 - 11 + 100, derived.getTotal()[0]);
+        Assert.assertEquals(5000 - 2, derived.getTotal()[1]);
+
+        // the first map keeps its addresses.
+        Assert.assertEquals(10, map.get("address10")[0]);
+        Assert.assertNotNull(map.get("address11"));
+        Assert.assertNull(map.get("new"));
+        Assert.assertEquals(5000, map.keySet().size());
+
+        Set<String> keys = new HashSet<>(derived.keySet());
+        Assert.assertEquals(5000, keys.size());
+        Assert.assertTrue(keys.contains("new"));
+        Assert.assertTrue(derived.keySet().contains("address10"));
+        Assert.assertFalse(derived.keySet().contains("address11"));
+    }
+
+    /**
+     * Addresses with the same hash code are kept apart.
+     */
+    @Test
+    public void collisionTest() throws Exception {
+        Assert.assertEquals("Aa".hashCode(), "BB".hashCode());
+        BalanceMap map = BalanceMap.EMPTY.with("Aa", new long[]{1, 0, 0}).with("BB", new long[]{2, 0, 0});
+        Assert.assertEquals(2, map.size());
+        Assert.assertEquals(1, map.get("Aa")[0]);
+        Assert.assertEquals(2, map.get("BB")[0]);
+
+        BalanceMap removed = map.with("Aa", null);
+        Assert.assertEquals(1, removed.size());
+        Assert.assertNull(removed.get("Aa"));
+        Assert.assertEquals(2, removed.getTotal()[0]);
+        Assert.assertSame(removed, removed.with("Aa", null));
+        Assert.assertEquals(0, BalanceMap.EMPTY.size());
+    }
+}
@@ -0,0 +1,180 @@
+package fermatOrg.wallet;
+
+import fermatOrg.network.IoPBlockchain;
+import fermatOrg.network.NetworkType;
+import fermatOrg.wallet.event.EventNotificationManager;
+import org.blockchainj.core.*;
+import org.blockchainj.params.IoP.IoP_TestNet3Params;
+import org.blockchainj.script.Script;
+import org.blockchainj.wallet.Wallet;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class UtxoSetTest {
+    private final NetworkParameters params = IoP_TestNet3Params.get();
+    private final Address watched = new ECKey().toAddress(params);
+    private final File utxoFile = new File("utxoSetTest.utxo");
+    private final File historyFile = new File("utxoSetTest.history");
+    private final File groupsFile = new File("utxoSetTest.groups");
+    private final File directory = new File("utxoSetTest");
+
+    /**
+     * A reorganization undoes the outputs added and spent by the old blocks and applies the transactions of the new ones.
+     */
+    @Test
+    public void reorganizeTest() throws Exception {
+        Wallet wallet = newWallet();
+        UtxoSet utxoSet = new UtxoSet(Collections.singletonList(wallet), utxoFile, 10);
+
+        StoredBlock genesis = newBlock(null);
+        StoredBlock block = newBlock(genesis);
+        Transaction received = newTransaction(Sha256Hash.of(new byte[]{1}), 0, 1000);
+        utxoSet.receiveFromBlock(received, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        utxoSet.notifyNewBestBlock(block);
+
+        StoredBlock spendingBlock = newBlock(block);
+        Transaction spent = newTransaction(received.getHash(), 0, 0);
+        utxoSet.receiveFromBlock(spent, spendingBlock, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        utxoSet.notifyNewBestBlock(spendingBlock);
+        Assert.assertEquals(0, utxoSet.getBalance());
+        Assert.assertEquals(1000, utxoSet.getReceived(watched.toBase58()));
+
+        // the spend is reorganized out, and the new chain only pays another 500 to the address.
+        StoredBlock sideBlock = newBlock(block);
+        StoredBlock sideHead = newBlock(sideBlock);
+        Transaction sideReceived = newTransaction(Sha256Hash.of(new byte[]{2}), 0, 500);
+        utxoSet.receiveFromBlock(sideReceived, sideHead, AbstractBlockChain.NewBlockType.SIDE_CHAIN, 0);
+        Assert.assertEquals(0, utxoSet.getBalance());
+
+        ArrayList<StoredBlock> oldBlocks = new ArrayList<>();
+        oldBlocks.add(spendingBlock);
+        ArrayList<StoredBlock> newBlocks = new ArrayList<>();
+        newBlocks.add(sideHead);
+        newBlocks.add(sideBlock);
+        utxoSet.reorganize(block, oldBlocks, newBlocks);
+
+        Assert.assertEquals(1500, utxoSet.getBalance());
+        Assert.assertEquals(2, utxoSet.size());
+        Assert.assertEquals(1500, utxoSet.getReceived(watched.toBase58()));
+        Assert.assertEquals(sideHead.getHeight(), utxoSet.getHeight());
+
+        // a reorganization of the block that paid the first output removes it.
+        oldBlocks.clear();
+        oldBlocks.add(sideHead);
+        oldBlocks.add(sideBlock);
+        oldBlocks.add(block);
+        newBlocks.clear();
+        newBlocks.add(newBlock(genesis));
+        utxoSet.reorganize(genesis, oldBlocks, newBlocks);
+        Assert.assertEquals(0, utxoSet.getBalance());
+        Assert.assertEquals(0, utxoSet.size());
+        Assert.assertEquals(0, utxoSet.getReceived(watched.toBase58()));
+    }
+
+    /**
+     * The wallets lose their confirmed transactions on each block, the pending ones stay.
+     */
+    @Test
+    public void pendingTransactionsTest() throws Exception {
+        Wallet wallet = newWallet();
+        UtxoSet utxoSet = new UtxoSet(Collections.singletonList(wallet), utxoFile, 0);
+
+        StoredBlock block = newBlock(newBlock(null));
+        Transaction confirmed = newTransaction(Sha256Hash.of(new byte[]{1}), 0, 1000);
+        wallet.receiveFromBlock(confirmed, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        Transaction pending = newTransaction(Sha256Hash.of(new byte[]{2}), 0, 500);
+        wallet.receivePending(pending, null);
+        utxoSet.receiveFromBlock(confirmed, block, AbstractBlockChain.NewBlockType.BEST_CHAIN, 0);
+        utxoSet.notifyNewBestBlock(block);
+
+        Assert.assertNull(wallet.getTransaction(confirmed.getHash()));
+        Assert.assertNotNull(wallet.getTransaction(pending.getHash()));
+        Assert.assertEquals(1, wallet.getPendingTransactions().size());
+        Assert.assertEquals(1000, utxoSet.getBalance());
+    }
+
+    /**
+     * Compact wallets get the transactions of a rescan in their unspent outputs and history, and a second rescan adds nothing.
+     */
+    @Test
+    public void rescanTest() throws Exception {
+        directory.mkdirs();
+        Wallet wallet = newWallet();
+        UtxoSet utxoSet = new UtxoSet(Collections.singletonList(wallet), utxoFile, 0);
+        AddressHistory history = new AddressHistory(historyFile, new AddressGroups(groupsFile));
+        utxoSet.setHistory(history);
+        IoPBlockchain ioPBlockchain = new IoPBlockchain(NetworkType.TEST, directory);
+        ioPBlockchain.addWallets(Collections.singletonList(wallet), new EventNotificationManager(new File(directory, "events")));
+        ioPBlockchain.setBlockCacheEnabled(true);
+
+        Transaction payment = newTransaction(Sha256Hash.of(new byte[]{1}), 0, 1000);
+        Transaction spend = newTransaction(payment.getHash(), 0, 0);
+        Transaction unspent = newTransaction(Sha256Hash.of(new byte[]{2}), 0, 500);
+        ioPBlockchain.getBlockCache().add(newFullBlock(payment), 100);
+        ioPBlockchain.getBlockCache().add(newFullBlock(spend, unspent), 101);
+        utxoSet.notifyNewBestBlock(new StoredBlock(newFullBlock().cloneAsHeader(), BigInteger.ONE, 105));
+
+        List<Wallet> wallets = Collections.singletonList(wallet);
+        Assert.assertEquals(3, ioPBlockchain.rescanFrom(wallets, null, utxoSet, 100));
+        Assert.assertEquals(500, utxoSet.getBalance());
+        Assert.assertEquals(1500, utxoSet.getReceived(watched.toBase58()));
+        Assert.assertEquals(2, history.getHistory(watched.toBase58(), 0, 10).size());
+        Assert.assertEquals(spend.getHashAsString(), history.getHistory(watched.toBase58(), 0, 10).get(0).getSpentBy());
+        Assert.assertTrue(wallet.getTransactions(false).isEmpty());
+
+        // the outputs are known, spent or not.
+        Assert.assertEquals(0, ioPBlockchain.rescanFrom(wallets, null, utxoSet, 100));
+        Assert.assertEquals(500, utxoSet.getBalance());
+        Assert.assertEquals(1500, utxoSet.getReceived(watched.toBase58()));
+        ioPBlockchain.close();
+    }
+
+    private Block newFullBlock(Transaction... transactions) {
+        return new Block(params, Block.BLOCK_VERSION_GENESIS, Sha256Hash.of(new ECKey().getPubKey()), Sha256Hash.ZERO_HASH,
+                Utils.currentTimeSeconds(), Block.EASIEST_DIFFICULTY_TARGET, 0, new ArrayList<>(Arrays.asList(transactions)));
+    }
+
+    private Wallet newWallet() {
+        Wallet wallet = new Wallet(WatchOnlyWallet.getNetworkContext(NetworkType.TEST));
+        wallet.addWatchedAddress(watched);
+        return wallet;
+    }
+
+    /**
+     * a transaction that spends the specified outpoint and pays the value to the watched address, or to nobody if it is zero.
+     */
+    private Transaction newTransaction(Sha256Hash spentHash, long spentIndex, long value) {
+        Transaction transaction = new Transaction(params);
+        transaction.addInput(spentHash, spentIndex, new Script(new byte[0]));
+        transaction.addOutput(Coin.valueOf(value == 0 ? 1000 : value), value == 0 ? new ECKey().toAddress(params) : watched);
+        return transaction;
+    }
+
+    private StoredBlock newBlock(StoredBlock previous) {
+        Block header = new Block(params, Block.BLOCK_VERSION_GENESIS, previous == null ? Sha256Hash.ZERO_HASH : previous.getHeader().getHash(),
+                Sha256Hash.of(new ECKey().getPubKey()), Utils.currentTimeSeconds(), Block.EASIEST_DIFFICULTY_TARGET, 0, new ArrayList<Transaction>());
+        return new StoredBlock(header, BigInteger.ONE, previous == null ? 0 : previous.getHeight() + 1);
+    }
+
+    @After
+    public void cleanUp() {
+        utxoFile.delete();
+        new File(utxoFile.getPath() + ".tmp").delete();
+        historyFile.delete();
+        groupsFile.delete();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+}